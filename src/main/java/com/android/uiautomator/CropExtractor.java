@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import com.android.uiautomator.tree.BasicTreeNode;
+import com.android.uiautomator.tree.UiHierarchyXmlLoader;
+import com.android.uiautomator.tree.UiNode;
+import com.android.uiautomator.tree.UniqueLocators;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTException;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.ImageLoader;
+import org.eclipse.swt.graphics.Rectangle;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the part of a screenshot under each node of a UI hierarchy to a PNG file of its own,
+ * named after the unique locator of the node, to build visual baselines from
+ *
+ * Usage: CropExtractor [--threads &lt;count&gt;] &lt;screenshot.png&gt; &lt;dump.xml&gt;
+ * &lt;output directory&gt;
+ *
+ * Crops are sliced from the rows of the decoded screenshot, without going through images of
+ * the display, and encoded by a fixed number of threads. Nodes without area on the
+ * screenshot, and those with the same bounds as a node before them, are left out. Since
+ * locators have to be shortened and escaped to make file names, the directory also gets an
+ * index of the crops, with the file name, locator and bounds of each, tab separated. Tabs,
+ * line breaks and backslashes in locators are escaped as \t, \n, \r and \\.
+ */
+public class CropExtractor {
+
+    /**
+     * The name of the index of the crops written to the directory
+     */
+    public static final String INDEX_FILE = "crops.txt";
+
+    // file names are cut to this many characters, before the suffix
+    private static final int MAX_NAME_LENGTH = 120;
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int first = 0;
+        if (args.length >= 2 && "--threads".equals(args[0])) {
+            try {
+                threads = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                args = new String[0];
+            }
+            first = 2;
+        }
+        if (args.length != first + 3 || threads < 1) {
+            System.err.println("Usage: CropExtractor [--threads <count>] <screenshot.png> "
+                    + "<dump.xml> <output directory>");
+            System.exit(2);
+        }
+        ImageData image;
+        try {
+            image = new ImageLoader().load(args[first])[0];
+        } catch (SWTException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+        BasicTreeNode root = new UiHierarchyXmlLoader().parseXml(args[first + 1]);
+        if (root == null) {
+            System.err.println("Could not load " + args[first + 1]);
+            System.exit(1);
+        }
+        File dir = new File(args[first + 2]);
+        int written = extract(image, root, null, dir, threads);
+        if (written < 0) {
+            System.exit(1);
+        }
+        System.out.println(String.format("%d crops written to %s", written, dir));
+    }
+
+    /**
+     * Writes the crops of the nodes of a fully loaded tree, and their index
+     *
+     * @param locators the unique locators of the tree, or null to generate them
+     * @param threads the number of crops encoded at once
+     * @return the number of crops written, or -1 if the directory couldn't be created or the
+     * index couldn't be written
+     */
+    public static int extract(final ImageData image, BasicTreeNode root,
+            UniqueLocators locators, final File dir, int threads) {
+        dir.mkdirs();
+        if (!dir.isDirectory()) {
+            System.err.println("Could not create " + dir);
+            return -1;
+        }
+        final UniqueLocators names = locators != null ? locators : UniqueLocators.build(root);
+        final Rectangle screen = new Rectangle(0, 0, image.width, image.height);
+        final List<Crop> crops = new ArrayList<Crop>();
+        final Set<Rectangle> bounds = new HashSet<Rectangle>();
+        final Set<String> fileNames = new HashSet<String>();
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                if (!(node instanceof UiNode)) {
+                    return BasicTreeNode.VisitResult.CONTINUE;
+                }
+                Rectangle area = new Rectangle(node.x, node.y, node.width, node.height)
+                        .intersection(screen);
+                if (area.isEmpty() || !bounds.add(area)) {
+                    return BasicTreeNode.VisitResult.CONTINUE;
+                }
+                String locator = names.getLocator(node);
+                if (locator == null) {
+                    locator = ((UiNode) node).getXpath();
+                }
+                crops.add(new Crop(area, locator, getFileName(locator, fileNames)));
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        boolean[] written = new boolean[crops.size()];
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (final Crop crop : crops) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        ImageLoader loader = new ImageLoader();
+                        loader.data = new ImageData[] { slice(image, crop.mArea) };
+                        try {
+                            loader.save(new File(dir, crop.mFileName).getPath(),
+                                    SWT.IMAGE_PNG);
+                        } catch (SWTException e) {
+                            e.printStackTrace();
+                            return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (int i = 0; i < written.length; i++) {
+                try {
+                    written[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int count = 0;
+        Writer index = null;
+        try {
+            index = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(dir, INDEX_FILE)), "UTF-8"));
+            for (int i = 0; i < written.length; i++) {
+                if (!written[i]) {
+                    continue;
+                }
+                Crop crop = crops.get(i);
+                Rectangle area = crop.mArea;
+                index.write(String.format("%s\t%s\t[%d,%d][%d,%d]\n", crop.mFileName,
+                        escape(crop.mLocator), area.x, area.y, area.x + area.width,
+                        area.y + area.height));
+                count++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            if (index != null) {
+                try {
+                    index.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    count = -1;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static class Crop {
+        final Rectangle mArea;
+        final String mLocator;
+        final String mFileName;
+
+        Crop(Rectangle area, String locator, String fileName) {
+            mArea = area;
+            mLocator = locator;
+            mFileName = fileName;
+        }
+    }
+
+    /**
+     * @return the locator with the characters that aren't safe in file names replaced, cut
+     * short and numbered if needed to be unique, ignoring case, among the names given
+     */
+    private static String getFileName(String locator, Set<String> fileNames) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < locator.length() && name.length() < MAX_NAME_LENGTH; i++) {
+            char c = locator.charAt(i);
+            boolean safe = c < 0x80 && (Character.isLetterOrDigit(c) || c == '-' || c == '.');
+            // runs of unsafe characters make a single underscore
+            if (safe) {
+                name.append(c);
+            } else if (name.length() > 0 && name.charAt(name.length() - 1) != '_') {
+                name.append('_');
+            }
+        }
+        String base = name.length() > 0 ? name.toString() : "node";
+        String fileName = base + ".png";
+        for (int n = 2; !fileNames.add(fileName.toLowerCase(Locale.US)); n++) {
+            fileName = base + "-" + n + ".png";
+        }
+        return fileName;
+    }
+
+    /**
+     * @return the text with the characters that would break up the lines or columns of the
+     * index escaped
+     */
+    static String escape(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return a copy of a part of the image, row by row
+     */
+    static ImageData slice(ImageData image, Rectangle area) {
+        ImageData crop = new ImageData(area.width, area.height, image.depth, image.palette);
+        if (image.depth == 8 || image.depth == 24 || image.depth == 32) {
+            // whole bytes per pixel, in the same order whatever the byte order of the image
+            int bytes = image.depth / 8;
+            for (int y = 0; y < area.height; y++) {
+                System.arraycopy(image.data, (area.y + y) * image.bytesPerLine + area.x * bytes,
+                        crop.data, y * crop.bytesPerLine, area.width * bytes);
+            }
+        } else {
+            int[] pixels = new int[area.width];
+            for (int y = 0; y < area.height; y++) {
+                image.getPixels(area.x, area.y + y, area.width, pixels, 0);
+                crop.setPixels(0, y, area.width, pixels, 0);
+            }
+        }
+        if (image.alphaData != null) {
+            crop.alphaData = new byte[area.width * area.height];
+            for (int y = 0; y < area.height; y++) {
+                System.arraycopy(image.alphaData, (area.y + y) * image.width + area.x,
+                        crop.alphaData, y * area.width, area.width);
+            }
+        }
+        crop.alpha = image.alpha;
+        crop.transparentPixel = image.transparentPixel;
+        return crop;
+    }
+}
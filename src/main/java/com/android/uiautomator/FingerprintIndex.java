@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import com.android.uiautomator.tree.BasicTreeNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fingerprints of the snapshots shown in all the windows of the viewer, to find the
+ * nodes that look like a given one across them
+ *
+ * Fingerprints are reference counted like the entries of {@link SnapshotCache}: each window
+ * showing a snapshot adds its fingerprints, and removes them when it stops showing it.
+ */
+public class FingerprintIndex {
+
+    /**
+     * The number of bits in which the fingerprints of nodes that look alike differ at most
+     */
+    public static final int DEFAULT_MAX_DISTANCE = 8;
+
+    private static final FingerprintIndex sInstance = new FingerprintIndex();
+
+    private final Map<NodeFingerprints, Integer> mReferences =
+            new IdentityHashMap<NodeFingerprints, Integer>();
+
+    /**
+     * A node that looks like the one looked for
+     */
+    public static class Match {
+        private final NodeFingerprints mFingerprints;
+        private final int mId;
+        private final int mDistance;
+
+        private Match(NodeFingerprints fingerprints, int id, int distance) {
+            mFingerprints = fingerprints;
+            mId = id;
+            mDistance = distance;
+        }
+
+        public BasicTreeNode getNode() {
+            return mFingerprints.getNode(mId);
+        }
+
+        /**
+         * @return the fingerprints of the snapshot the node is in
+         */
+        public NodeFingerprints getFingerprints() {
+            return mFingerprints;
+        }
+
+        /**
+         * @return the number of bits in which its fingerprint differs
+         */
+        public int getDistance() {
+            return mDistance;
+        }
+    }
+
+    public static FingerprintIndex getInstance() {
+        return sInstance;
+    }
+
+    public synchronized void add(NodeFingerprints fingerprints) {
+        Integer references = mReferences.get(fingerprints);
+        mReferences.put(fingerprints, references == null ? 1 : references + 1);
+    }
+
+    /**
+     * Releases a reference to the fingerprints, dropping them if it was the last one
+     */
+    public synchronized void remove(NodeFingerprints fingerprints) {
+        Integer references = mReferences.get(fingerprints);
+        if (references == null) {
+            throw new IllegalStateException("Fingerprints aren't indexed");
+        }
+        if (references == 1) {
+            mReferences.remove(fingerprints);
+        } else {
+            mReferences.put(fingerprints, references - 1);
+        }
+    }
+
+    /**
+     * @return the nodes of all the snapshots whose fingerprint differs from the given one in at
+     * most maxDistance bits, closest first
+     */
+    public List<Match> find(long fingerprint, int maxDistance) {
+        List<NodeFingerprints> indexed;
+        synchronized (this) {
+            indexed = new ArrayList<NodeFingerprints>(mReferences.keySet());
+        }
+        // fingerprints are only read once computed, they are searched without the lock
+        List<Match> matches = new ArrayList<Match>();
+        for (NodeFingerprints fingerprints : indexed) {
+            for (int id : fingerprints.find(fingerprint, maxDistance)) {
+                matches.add(new Match(fingerprints, id,
+                        Long.bitCount(fingerprints.getFingerprint(id) ^ fingerprint)));
+            }
+        }
+        Collections.sort(matches, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                return a.mDistance - b.mDistance;
+            }
+        });
+        return matches;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import com.android.uiautomator.tree.BasicTreeNode;
+import com.android.uiautomator.tree.LocatorSet;
+import com.android.uiautomator.tree.UiHierarchyXmlLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks a file of XPath locators against UI hierarchy dumps, and reports those that are
+ * broken, match nothing, or match more than one node
+ *
+ * Usage: LocatorValidator &lt;locator file&gt; &lt;dump.xml or directory of dumps&gt;...
+ *
+ * The locator file has one XPath expression per line, optionally after a name and a tab.
+ * Each dump is loaded and matched against all the locators at once, with the dumps spread
+ * over the available processors. The exit code is 1 if any locator is broken or found in no
+ * dump.
+ */
+public class LocatorValidator {
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: LocatorValidator <locator file> "
+                    + "<dump.xml or directory of dumps>...");
+            System.exit(2);
+        }
+        LocatorSet locators;
+        try {
+            locators = LocatorSet.read(new File(args[0]));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(2);
+            return;
+        }
+        List<File> dumps = listDumps(Arrays.asList(args).subList(1, args.length));
+        if (dumps.isEmpty()) {
+            System.err.println("No dumps found");
+            System.exit(2);
+        }
+        LocatorSet.Result[] results = validate(locators, dumps);
+        System.exit(report(locators, dumps, results) ? 0 : 1);
+    }
+
+    /**
+     * @return the dumps given, and the dumps in the directories given, in order
+     */
+    static List<File> listDumps(List<String> paths) {
+        List<File> dumps = new ArrayList<File>();
+        for (String path : paths) {
+            File file = new File(path);
+            File[] files = file.isDirectory() ? file.listFiles() : new File[] { file };
+            if (files != null) {
+                Arrays.sort(files);
+                for (File dump : files) {
+                    if (dump.isFile() && dump.getName().endsWith(".xml")) {
+                        dumps.add(dump);
+                    }
+                }
+            }
+        }
+        return dumps;
+    }
+
+    /**
+     * Matches the locators against each dump, in parallel
+     *
+     * @return the results for each dump, null for those that couldn't be loaded
+     */
+    public static LocatorSet.Result[] validate(final LocatorSet locators, List<File> dumps) {
+        int threads = Math.min(dumps.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            List<Future<LocatorSet.Result>> futures =
+                    new ArrayList<Future<LocatorSet.Result>>();
+            for (final File dump : dumps) {
+                futures.add(executor.submit(new Callable<LocatorSet.Result>() {
+                    @Override
+                    public LocatorSet.Result call() {
+                        BasicTreeNode root =
+                                new UiHierarchyXmlLoader().parseXml(dump.getAbsolutePath());
+                        return root != null ? locators.match(root) : null;
+                    }
+                }));
+            }
+            LocatorSet.Result[] results = new LocatorSet.Result[dumps.size()];
+            for (int i = 0; i < results.length; i++) {
+                try {
+                    results[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Prints a line for each locator with what it matched in each dump, and a summary
+     *
+     * @return whether every locator is valid and found in some dump
+     */
+    private static boolean report(LocatorSet locators, List<File> dumps,
+            LocatorSet.Result[] results) {
+        for (int i = 0; i < dumps.size(); i++) {
+            if (results[i] == null) {
+                System.out.println("Could not load " + dumps.get(i));
+            }
+        }
+        int broken = 0, missing = 0, ambiguous = 0;
+        for (int locator = 0; locator < locators.size(); locator++) {
+            boolean valid = true;
+            String error = null;
+            int found = 0, max = 0;
+            StringBuilder counts = new StringBuilder();
+            for (LocatorSet.Result result : results) {
+                if (result == null) {
+                    continue;
+                }
+                int count = result.getCount(locator);
+                if (count < 0) {
+                    valid = false;
+                    error = result.getError(locator);
+                    break;
+                }
+                counts.append(counts.length() > 0 ? " " : "").append(count);
+                found += count > 0 ? 1 : 0;
+                max = Math.max(max, count);
+            }
+            String status;
+            if (!valid) {
+                status = "BROKEN";
+                broken++;
+            } else if (found == 0) {
+                status = "NOT FOUND";
+                missing++;
+            } else if (max > 1) {
+                status = "AMBIGUOUS";
+                ambiguous++;
+            } else {
+                status = "OK";
+            }
+            System.out.println(String.format("%-9s %s\t%s\t%s", status,
+                    locators.getName(locator), locators.getLocator(locator),
+                    !valid ? error : counts));
+        }
+        System.out.println(String.format(
+                "%d locators, %d dumps: %d broken, %d not found, %d ambiguous",
+                locators.size(), dumps.size(), broken, missing, ambiguous));
+        return broken == 0 && missing == 0;
+    }
+}
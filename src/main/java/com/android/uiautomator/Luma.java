@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
+
+/**
+ * Reads the brightness of the pixels of an image, from 0 to 255, whatever its palette
+ *
+ * A converter only holds a buffer besides what it reads from the image, each thread should
+ * use its own.
+ */
+class Luma {
+
+    private final ImageData mImage;
+    // brightness of each palette entry, or the masks and shifts of the channels
+    private final int[] mLumas;
+    private final int mRedMask, mGreenMask, mBlueMask;
+    private final int mRedShift, mGreenShift, mBlueShift;
+    // where each channel is in the bytes of a pixel, for images of 24 or 32 bits with a byte
+    // per channel, which are read straight from their data
+    private final int mBytesPerPixel;
+    private final int mRedByte, mGreenByte, mBlueByte;
+    private int[] mPixels = new int[0];
+
+    Luma(ImageData image) {
+        mImage = image;
+        PaletteData palette = image.palette;
+        if (!palette.isDirect) {
+            mLumas = new int[palette.colors.length];
+            for (int i = 0; i < mLumas.length; i++) {
+                RGB color = palette.colors[i];
+                mLumas[i] = luma(color.red, color.green, color.blue);
+            }
+        } else {
+            mLumas = null;
+        }
+        mRedMask = palette.redMask;
+        mGreenMask = palette.greenMask;
+        mBlueMask = palette.blueMask;
+        mRedShift = palette.redShift;
+        mGreenShift = palette.greenShift;
+        mBlueShift = palette.blueShift;
+        int bytes = image.depth / 8;
+        int red = byteOf(mRedMask, bytes), green = byteOf(mGreenMask, bytes);
+        int blue = byteOf(mBlueMask, bytes);
+        if (palette.isDirect && (bytes == 3 || bytes == 4) && red >= 0 && green >= 0
+                && blue >= 0) {
+            mBytesPerPixel = bytes;
+            mRedByte = red;
+            mGreenByte = green;
+            mBlueByte = blue;
+        } else {
+            mBytesPerPixel = 0;
+            mRedByte = mGreenByte = mBlueByte = 0;
+        }
+    }
+
+    /**
+     * @return the index of the byte the mask covers in a pixel, most significant first, or
+     * -1 if it doesn't cover exactly one
+     */
+    static int byteOf(int mask, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            if (mask == 0xFF << (8 * i)) {
+                return bytes - 1 - i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the brightness of width pixels of row y from x on, into lumas from offset on
+     */
+    void getRow(int x, int y, int width, int[] lumas, int offset) {
+        if (mBytesPerPixel != 0) {
+            byte[] data = mImage.data;
+            int bytes = mBytesPerPixel;
+            int index = y * mImage.bytesPerLine + x * bytes;
+            int red = index + mRedByte, green = index + mGreenByte, blue = index + mBlueByte;
+            for (int i = 0; i < width; i++, red += bytes, green += bytes, blue += bytes) {
+                lumas[offset + i] = luma(data[red] & 0xFF, data[green] & 0xFF,
+                        data[blue] & 0xFF);
+            }
+            return;
+        }
+        if (mPixels.length < width) {
+            mPixels = new int[width];
+        }
+        int[] pixels = mPixels;
+        mImage.getPixels(x, y, width, pixels, 0);
+        if (mLumas != null) {
+            for (int i = 0; i < width; i++) {
+                int pixel = pixels[i];
+                lumas[offset + i] = pixel < mLumas.length ? mLumas[pixel] : 0;
+            }
+            return;
+        }
+        int redMask = mRedMask, greenMask = mGreenMask, blueMask = mBlueMask;
+        int redShift = mRedShift, greenShift = mGreenShift, blueShift = mBlueShift;
+        for (int i = 0; i < width; i++) {
+            int pixel = pixels[i];
+            lumas[offset + i] = luma(shift(pixel & redMask, redShift),
+                    shift(pixel & greenMask, greenShift), shift(pixel & blueMask, blueShift));
+        }
+    }
+
+    private static int shift(int channel, int shift) {
+        return shift < 0 ? channel >>> -shift : channel << shift;
+    }
+
+    private static int luma(int red, int green, int blue) {
+        return (77 * red + 150 * green + 29 * blue) >> 8;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import com.android.uiautomator.tree.BasicTreeNode;
+import com.android.uiautomator.tree.UiNode;
+
+import org.eclipse.swt.graphics.ImageData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A perceptual fingerprint of the part of the screenshot under each node, which stays the
+ * same when it is scaled or slightly recolored, so that nodes that look alike can be found
+ *
+ * Fingerprints are difference hashes: the crop is shrunk to 9 by 8 cells, and each of the 64
+ * bits tells whether a cell is darker than the one to its right. The screenshot is turned
+ * into an integral image of its brightness once, which gives the mean of any cell in
+ * constant time, so a node's fingerprint costs the same however large it is and no crop is
+ * ever copied. The rows of the screenshot, and the nodes, are spread over the processors.
+ *
+ * Fingerprints are kept in an array, comparing one with all of them takes a bit count each,
+ * about a millisecond for a million nodes.
+ */
+public class NodeFingerprints {
+
+    // nodes smaller than this have too few pixels for each cell, 9 columns by 8 rows
+    private static final int MIN_WIDTH = 9;
+    private static final int MIN_HEIGHT = 8;
+    // rows of pixels and nodes handled by each task, at least
+    private static final int MIN_ROWS = 64;
+    private static final int MIN_NODES = 256;
+
+    private final BasicTreeNode[] mNodes;
+    private final long[] mFingerprints;
+    private final Map<BasicTreeNode, Integer> mIds;
+
+    private NodeFingerprints(List<BasicTreeNode> nodes) {
+        mNodes = nodes.toArray(new BasicTreeNode[nodes.size()]);
+        mFingerprints = new long[mNodes.length];
+        mIds = new HashMap<BasicTreeNode, Integer>(mNodes.length * 2);
+        for (int id = 0; id < mNodes.length; id++) {
+            mIds.put(mNodes[id], id);
+        }
+    }
+
+    /**
+     * Computes the fingerprints of the nodes of a fully loaded tree that lie on the screenshot
+     */
+    public static NodeFingerprints compute(ImageData image, BasicTreeNode root) {
+        final int width = image.width, height = image.height;
+        final List<BasicTreeNode> nodes = new ArrayList<BasicTreeNode>();
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                if (node instanceof UiNode && node.width >= MIN_WIDTH
+                        && node.height >= MIN_HEIGHT && node.x >= 0 && node.y >= 0
+                        && node.x + node.width <= width && node.y + node.height <= height) {
+                    nodes.add(node);
+                }
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        NodeFingerprints fingerprints = new NodeFingerprints(nodes);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int[] integral = new int[(width + 1) * (height + 1)];
+        // the rows are split into a band for each processor, each band is summed up on its
+        // own, and the bands below the first then get the sums of those above them added
+        int bands = Math.max(1, Math.min(pool.getParallelism(), height / MIN_ROWS));
+        List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+        for (int band = 0; band < bands; band++) {
+            tasks.add(new BandTask(image, integral, height * band / bands,
+                    height * (band + 1) / bands));
+        }
+        invokeAll(pool, tasks);
+        tasks.clear();
+        int stride = width + 1;
+        int[] carry = new int[stride];
+        for (int band = 1; band < bands; band++) {
+            // the last row of the band above, in the integral image
+            int above = height * band / bands;
+            int[] sums = new int[stride];
+            for (int x = 0; x < stride; x++) {
+                sums[x] = carry[x] + integral[above * stride + x];
+            }
+            carry = sums;
+            tasks.add(new CarryTask(integral, stride, carry, above + 1,
+                    height * (band + 1) / bands + 1));
+        }
+        invokeAll(pool, tasks);
+        pool.invoke(fingerprints.new NodeTask(integral, width, 0, nodes.size()));
+        return fingerprints;
+    }
+
+    private static void invokeAll(ForkJoinPool pool, List<RecursiveAction> tasks) {
+        for (RecursiveAction task : tasks) {
+            pool.execute(task);
+        }
+        for (RecursiveAction task : tasks) {
+            task.join();
+        }
+    }
+
+    /**
+     * Fills in the rows of the integral image for a band of rows of pixels, shifted down and
+     * right by one, as if the band was at the top of the screenshot
+     *
+     * Sums of large screenshots overflow, but they wrap around, and the differences of them
+     * that give the sum of a cell are still right as long as that sum fits in an int.
+     */
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ImageData mImage;
+        private final int[] mIntegral;
+        private final int mFrom, mTo;
+
+        BandTask(ImageData image, int[] integral, int from, int to) {
+            mImage = image;
+            mIntegral = integral;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            int width = mImage.width;
+            Luma luma = new Luma(mImage);
+            int[] lumas = new int[width];
+            for (int y = mFrom; y < mTo; y++) {
+                luma.getRow(0, y, width, lumas, 0);
+                int row = 0;
+                int offset = (y + 1) * (width + 1) + 1;
+                // the row above, zero for the first of the band
+                int above = y > mFrom ? offset - (width + 1) : -1;
+                for (int x = 0; x < width; x++) {
+                    row += lumas[x];
+                    mIntegral[offset + x] = above < 0 ? row : row + mIntegral[above + x];
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the sums of the bands above to the rows of the integral image of a band
+     */
+    private static class CarryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] mIntegral;
+        private final int mStride;
+        private final int[] mCarry;
+        private final int mFrom, mTo;
+
+        CarryTask(int[] integral, int stride, int[] carry, int from, int to) {
+            mIntegral = integral;
+            mStride = stride;
+            mCarry = carry;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            for (int y = mFrom; y < mTo; y++) {
+                for (int x = 0, i = y * mStride; x < mStride; x++, i++) {
+                    mIntegral[i] += mCarry[x];
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the fingerprints of a range of nodes
+     */
+    private class NodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] mIntegral;
+        private final int mStride;
+        private final int mFrom, mTo;
+
+        NodeTask(int[] integral, int width, int from, int to) {
+            mIntegral = integral;
+            mStride = width + 1;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > MIN_NODES) {
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new NodeTask(mIntegral, mStride - 1, mFrom, middle),
+                        new NodeTask(mIntegral, mStride - 1, middle, mTo));
+                return;
+            }
+            int[] columns = new int[10];
+            int[] cells = new int[9];
+            for (int id = mFrom; id < mTo; id++) {
+                BasicTreeNode node = mNodes[id];
+                for (int c = 0; c <= 9; c++) {
+                    columns[c] = node.x + node.width * c / 9;
+                }
+                long fingerprint = 0;
+                for (int r = 0; r < 8; r++) {
+                    int top = node.y + node.height * r / 8;
+                    int bottom = node.y + node.height * (r + 1) / 8;
+                    for (int c = 0; c < 9; c++) {
+                        int sum = mIntegral[bottom * mStride + columns[c + 1]]
+                                - mIntegral[bottom * mStride + columns[c]]
+                                - mIntegral[top * mStride + columns[c + 1]]
+                                + mIntegral[top * mStride + columns[c]];
+                        // cells in a row have about the same area, so sums compare like means
+                        cells[c] = (int) ((long) sum * 1024
+                                / ((columns[c + 1] - columns[c]) * (bottom - top)));
+                    }
+                    for (int c = 0; c < 8; c++) {
+                        fingerprint = (fingerprint << 1) | (cells[c] < cells[c + 1] ? 1 : 0);
+                    }
+                }
+                mFingerprints[id] = fingerprint;
+            }
+        }
+    }
+
+    public int size() {
+        return mNodes.length;
+    }
+
+    public BasicTreeNode getNode(int id) {
+        return mNodes[id];
+    }
+
+    /**
+     * @return the position of the node in pre-order among the nodes with a fingerprint, or
+     * -1 if it has none
+     */
+    public int getId(BasicTreeNode node) {
+        Integer id = mIds.get(node);
+        return id != null ? id : -1;
+    }
+
+    public long getFingerprint(int id) {
+        return mFingerprints[id];
+    }
+
+    /**
+     * @return the ids of the nodes whose fingerprint differs from the given one in at most
+     * maxDistance bits, in ascending order
+     */
+    public int[] find(long fingerprint, int maxDistance) {
+        int[] found = new int[16];
+        int count = 0;
+        for (int id = 0; id < mFingerprints.length; id++) {
+            if (Long.bitCount(mFingerprints[id] ^ fingerprint) <= maxDistance) {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = id;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+}
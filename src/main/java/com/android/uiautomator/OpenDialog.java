@@ -16,13 +16,17 @@
 
 package com.android.uiautomator;
 
+import com.android.uiautomator.tree.SnapshotArchive;
+
 import org.eclipse.jface.dialogs.Dialog;
 import org.eclipse.jface.dialogs.IDialogConstants;
+import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Combo;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Event;
@@ -33,11 +37,16 @@ import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.widgets.Text;
 
 import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
 
 /**
  * Implements a file selection dialog for both screen shot and xml dump file
  *
- * "OK" button won't be enabled unless both files are selected
+ * "OK" button won't be enabled unless both files are selected, or a snapshot file is, or a
+ * snapshot of an archive is
  * It also has a convenience feature such that if one file has been picked, and the other
  * file path is empty, then selection for the other file will start from the same base folder
  *
@@ -48,17 +57,26 @@ public class OpenDialog extends Dialog {
     private static final int DEFAULT_LAYOUT_SPACING = 10;
     private Text mScreenshotText;
     private Text mXmlText;
+    private Text mSnapshotText;
     private File mScreenshotFile;
     private File mXmlDumpFile;
+    private File mSnapshotFile;
+    private Text mArchiveText;
+    private Combo mArchiveEntryCombo;
+    private File mArchiveFile;
+    private int mArchiveEntry = -1;
     private boolean mFileChanged = false;
     private Button mOkButton;
+    private final UiAutomatorModel mModel;
 
     /**
      * Create the dialog.
      * @param parentShell
+     * @param model the model of the window, whose files the dialog starts with
      */
-    public OpenDialog(Shell parentShell) {
+    public OpenDialog(Shell parentShell, UiAutomatorModel model) {
         super(parentShell);
+        mModel = model;
         setShellStyle(SWT.DIALOG_TRIM | SWT.APPLICATION_MODAL);
     }
 
@@ -125,6 +143,56 @@ public class OpenDialog extends Dialog {
             }
         });
 
+        Group openSnapshotGroup = new Group(container, SWT.NONE);
+        openSnapshotGroup.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false, 1, 1));
+        openSnapshotGroup.setText("Or UI Snapshot");
+        openSnapshotGroup.setLayout(new GridLayout(2, false));
+
+        mSnapshotText = new Text(openSnapshotGroup, SWT.BORDER | SWT.READ_ONLY);
+        GridData gd_snapshotText = new GridData(SWT.FILL, SWT.CENTER, true, false, 1, 1);
+        gd_snapshotText.minimumWidth = FIXED_TEXT_FIELD_WIDTH;
+        gd_snapshotText.widthHint = FIXED_TEXT_FIELD_WIDTH;
+        mSnapshotText.setLayoutData(gd_snapshotText);
+
+        Button openSnapshotButton = new Button(openSnapshotGroup, SWT.NONE);
+        openSnapshotButton.setText("...");
+        openSnapshotButton.addListener(SWT.Selection, new Listener() {
+            @Override
+            public void handleEvent(Event event) {
+                handleOpenSnapshotFile();
+            }
+        });
+
+        Group openArchiveGroup = new Group(container, SWT.NONE);
+        openArchiveGroup.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false, 1, 1));
+        openArchiveGroup.setText("Or Snapshot Archive");
+        openArchiveGroup.setLayout(new GridLayout(2, false));
+
+        mArchiveText = new Text(openArchiveGroup, SWT.BORDER | SWT.READ_ONLY);
+        GridData gd_archiveText = new GridData(SWT.FILL, SWT.CENTER, true, false, 1, 1);
+        gd_archiveText.minimumWidth = FIXED_TEXT_FIELD_WIDTH;
+        gd_archiveText.widthHint = FIXED_TEXT_FIELD_WIDTH;
+        mArchiveText.setLayoutData(gd_archiveText);
+
+        Button openArchiveButton = new Button(openArchiveGroup, SWT.NONE);
+        openArchiveButton.setText("...");
+        openArchiveButton.addListener(SWT.Selection, new Listener() {
+            @Override
+            public void handleEvent(Event event) {
+                handleOpenArchiveFile();
+            }
+        });
+
+        mArchiveEntryCombo = new Combo(openArchiveGroup, SWT.DROP_DOWN | SWT.READ_ONLY);
+        mArchiveEntryCombo.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false, 2, 1));
+        mArchiveEntryCombo.addListener(SWT.Selection, new Listener() {
+            @Override
+            public void handleEvent(Event event) {
+                mArchiveEntry = mArchiveEntryCombo.getSelectionIndex();
+                updateButtonState();
+            }
+        });
+
         return container;
     }
 
@@ -144,7 +212,7 @@ public class OpenDialog extends Dialog {
      */
     @Override
     protected Point getInitialSize() {
-        return new Point(368, 233);
+        return new Point(368, 406);
     }
 
     @Override
@@ -154,8 +222,8 @@ public class OpenDialog extends Dialog {
     }
 
     private void loadDataFromModel() {
-        mScreenshotFile = UiAutomatorModel.getModel().getScreenshotFile();
-        mXmlDumpFile = UiAutomatorModel.getModel().getXmlDumpFile();
+        mScreenshotFile = mModel.getScreenshotFile();
+        mXmlDumpFile = mModel.getXmlDumpFile();
     }
 
     private void handleOpenScreenshotFile() {
@@ -179,6 +247,7 @@ public class OpenDialog extends Dialog {
         if (selected != null) {
             mScreenshotFile = new File(selected);
             mScreenshotText.setText(selected);
+            clearSnapshotFile();
             mFileChanged = true;
         }
         updateButtonState();
@@ -209,14 +278,94 @@ public class OpenDialog extends Dialog {
         if (selected != null) {
             mXmlDumpFile = new File(selected);
             mXmlText.setText(selected);
+            clearSnapshotFile();
             mFileChanged = true;
         }
         updateButtonState();
     }
 
+    private void handleOpenSnapshotFile() {
+        FileDialog fd = new FileDialog(getShell(), SWT.OPEN);
+        fd.setText("Open UI Snapshot File");
+        File initialFile = mXmlDumpFile != null ? mXmlDumpFile : mScreenshotFile;
+        if (initialFile != null && initialFile.isFile()) {
+            fd.setFilterPath(initialFile.getParentFile().getAbsolutePath());
+        }
+        String[] filter = {"*." + SnapshotFile.EXTENSION};
+        fd.setFilterExtensions(filter);
+        String selected = fd.open();
+        if (selected != null) {
+            mSnapshotFile = new File(selected);
+            mSnapshotText.setText(selected);
+            clearArchiveFile();
+            mFileChanged = true;
+        }
+        updateButtonState();
+    }
+
+    private void handleOpenArchiveFile() {
+        FileDialog fd = new FileDialog(getShell(), SWT.OPEN);
+        fd.setText("Open Snapshot Archive");
+        String selected = fd.open();
+        if (selected == null) {
+            return;
+        }
+        List<SnapshotArchive.Entry> entries;
+        SnapshotArchive archive = null;
+        try {
+            archive = SnapshotArchive.openReadOnly(new File(selected));
+            entries = archive.getEntries();
+        } catch (IOException e) {
+            e.printStackTrace();
+            MessageDialog.openError(getShell(), "Open Snapshot Archive", e.getMessage());
+            return;
+        } finally {
+            if (archive != null) {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        clearArchiveFile();
+        mArchiveFile = new File(selected);
+        mArchiveText.setText(selected);
+        DateFormat format = DateFormat.getDateTimeInstance();
+        for (SnapshotArchive.Entry entry : entries) {
+            mArchiveEntryCombo.add(String.format("%s (%s)", entry.getName(),
+                    format.format(new Date(entry.getTimestamp()))));
+        }
+        // the latest snapshot is the likeliest one wanted
+        mArchiveEntryCombo.select(entries.size() - 1);
+        mArchiveEntry = mArchiveEntryCombo.getSelectionIndex();
+        mSnapshotFile = null;
+        mSnapshotText.setText("");
+        mFileChanged = true;
+        updateButtonState();
+    }
+
+    /**
+     * Picking a screenshot or XML dump means the snapshot, if any, is no longer wanted
+     */
+    private void clearSnapshotFile() {
+        mSnapshotFile = null;
+        mSnapshotText.setText("");
+        clearArchiveFile();
+    }
+
+    private void clearArchiveFile() {
+        mArchiveFile = null;
+        mArchiveText.setText("");
+        mArchiveEntryCombo.removeAll();
+        mArchiveEntry = -1;
+    }
+
     private void updateButtonState() {
-        mOkButton.setEnabled(mScreenshotFile != null && mXmlDumpFile != null
-                && mScreenshotFile.isFile() && mXmlDumpFile.isFile());
+        mOkButton.setEnabled((mScreenshotFile != null && mXmlDumpFile != null
+                && mScreenshotFile.isFile() && mXmlDumpFile.isFile())
+                || (mSnapshotFile != null && mSnapshotFile.isFile())
+                || (mArchiveFile != null && mArchiveEntry >= 0));
     }
 
     public boolean hasFileChanged() {
@@ -230,4 +379,25 @@ public class OpenDialog extends Dialog {
     public File getXmlDumpFile() {
         return mXmlDumpFile;
     }
+
+    /**
+     * @return the snapshot file to open instead of the screenshot and XML dump, or null
+     */
+    public File getSnapshotFile() {
+        return mSnapshotFile;
+    }
+
+    /**
+     * @return the archive to open a snapshot of instead of the other files, or null
+     */
+    public File getArchiveFile() {
+        return mArchiveFile;
+    }
+
+    /**
+     * @return the position of the snapshot to open among the entries of the archive
+     */
+    public int getArchiveEntry() {
+        return mArchiveEntry;
+    }
 }
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import com.android.uiautomator.tree.BasicTreeNode;
+import com.android.uiautomator.tree.UiNode;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
+import org.eclipse.swt.graphics.Rectangle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The pixels that differ between two screenshots of the same size, grouped into the regions
+ * that changed, each with the nodes drawn there
+ *
+ * A pixel differs when one of its channels does by more than a threshold, which leaves out
+ * the noise of compression and dithering. The screenshot is split into cells of 16 by 16
+ * pixels, and the bands of rows of cells are compared on all the processors, straight from
+ * the bytes of the images when they have a byte per channel; each band keeps the bounds of
+ * the changed pixels of its own cells, which are then joined into regions wherever changed
+ * cells touch.
+ */
+public class PixelDiff {
+
+    /**
+     * The largest difference of a channel for which pixels are taken as the same
+     */
+    public static final int DEFAULT_THRESHOLD = 16;
+
+    // changed pixels in the same or touching cells make up a region
+    private static final int CELL_SIZE = 16;
+    // rows of cells handled by each task, at least
+    private static final int MIN_CELL_ROWS = 4;
+
+    private final int mWidth, mHeight;
+    private final int mThreshold;
+    // largest difference of a channel of each pixel, row by row, 0 if within the threshold
+    private final byte[] mDifferences;
+    private final int mCellsX, mCellsY;
+    // changed pixels of each cell, and their bounds
+    private final int[] mCellCounts;
+    private final int[] mCellLeft, mCellTop, mCellRight, mCellBottom;
+    private int mChangedPixels;
+    private final List<Region> mRegions = new ArrayList<Region>();
+
+    /**
+     * Changed pixels that touch
+     */
+    public static class Region {
+        private final Rectangle mBounds;
+        private final int mChangedPixels;
+        private final List<BasicTreeNode> mNodes = new ArrayList<BasicTreeNode>();
+
+        private Region(Rectangle bounds, int changedPixels) {
+            mBounds = bounds;
+            mChangedPixels = changedPixels;
+        }
+
+        public Rectangle getBounds() {
+            return mBounds;
+        }
+
+        public int getChangedPixels() {
+            return mChangedPixels;
+        }
+
+        /**
+         * @return the deepest nodes whose bounds intersect the region, none of whose children
+         * do, in pre-order
+         */
+        public List<BasicTreeNode> getNodes() {
+            return Collections.unmodifiableList(mNodes);
+        }
+    }
+
+    private PixelDiff(int width, int height, int threshold) {
+        mWidth = width;
+        mHeight = height;
+        mThreshold = threshold;
+        mDifferences = new byte[width * height];
+        mCellsX = (width + CELL_SIZE - 1) / CELL_SIZE;
+        mCellsY = (height + CELL_SIZE - 1) / CELL_SIZE;
+        mCellCounts = new int[mCellsX * mCellsY];
+        mCellLeft = new int[mCellCounts.length];
+        mCellTop = new int[mCellCounts.length];
+        mCellRight = new int[mCellCounts.length];
+        mCellBottom = new int[mCellCounts.length];
+    }
+
+    /**
+     * Compares two screenshots, and finds the nodes of a fully loaded tree, if any, that are
+     * drawn where they differ
+     *
+     * @return the differences, or null if the screenshots aren't of the same size
+     */
+    public static PixelDiff compute(ImageData before, ImageData after, int threshold,
+            BasicTreeNode root) {
+        if (before.width != after.width || before.height != after.height) {
+            return null;
+        }
+        PixelDiff diff = new PixelDiff(after.width, after.height, threshold);
+        ForkJoinPool.commonPool().invoke(diff.new CompareTask(before, after, 0, diff.mCellsY));
+        diff.findRegions();
+        if (root != null) {
+            diff.findNodes(root);
+        }
+        return diff;
+    }
+
+    /**
+     * Reads rows of an image as 0xRRGGBB, whatever its palette
+     */
+    private static class RowReader {
+        private final ImageData mImage;
+        // where each channel is in the bytes of a pixel, for images with a byte per channel,
+        // which are read straight from their data
+        private final int mBytesPerPixel;
+        private final int mRedByte, mGreenByte, mBlueByte;
+        private int[] mPixels;
+
+        RowReader(ImageData image) {
+            mImage = image;
+            PaletteData palette = image.palette;
+            int bytes = image.depth / 8;
+            int red = Luma.byteOf(palette.redMask, bytes);
+            int green = Luma.byteOf(palette.greenMask, bytes);
+            int blue = Luma.byteOf(palette.blueMask, bytes);
+            if (palette.isDirect && (bytes == 3 || bytes == 4) && red >= 0 && green >= 0
+                    && blue >= 0) {
+                mBytesPerPixel = bytes;
+                mRedByte = red;
+                mGreenByte = green;
+                mBlueByte = blue;
+            } else {
+                mBytesPerPixel = 0;
+                mRedByte = mGreenByte = mBlueByte = 0;
+                mPixels = new int[image.width];
+            }
+        }
+
+        void getRow(int y, int[] colors) {
+            int width = mImage.width;
+            if (mBytesPerPixel != 0) {
+                byte[] data = mImage.data;
+                int bytes = mBytesPerPixel;
+                int index = y * mImage.bytesPerLine;
+                int red = index + mRedByte, green = index + mGreenByte;
+                int blue = index + mBlueByte;
+                for (int x = 0; x < width; x++, red += bytes, green += bytes, blue += bytes) {
+                    colors[x] = (data[red] & 0xFF) << 16 | (data[green] & 0xFF) << 8
+                            | (data[blue] & 0xFF);
+                }
+                return;
+            }
+            mImage.getPixels(0, y, width, mPixels, 0);
+            for (int x = 0; x < width; x++) {
+                RGB color = mImage.palette.getRGB(mPixels[x]);
+                colors[x] = color.red << 16 | color.green << 8 | color.blue;
+            }
+        }
+    }
+
+    /**
+     * Compares the pixels of a band of rows of cells
+     */
+    private class CompareTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ImageData mBefore, mAfter;
+        private final int mFrom, mTo;
+
+        CompareTask(ImageData before, ImageData after, int from, int to) {
+            mBefore = before;
+            mAfter = after;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > MIN_CELL_ROWS) {
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new CompareTask(mBefore, mAfter, mFrom, middle),
+                        new CompareTask(mBefore, mAfter, middle, mTo));
+                return;
+            }
+            RowReader before = new RowReader(mBefore), after = new RowReader(mAfter);
+            int[] beforeColors = new int[mWidth], afterColors = new int[mWidth];
+            int threshold = mThreshold;
+            int end = Math.min(mTo * CELL_SIZE, mHeight);
+            for (int y = mFrom * CELL_SIZE; y < end; y++) {
+                before.getRow(y, beforeColors);
+                after.getRow(y, afterColors);
+                int row = y * mWidth;
+                int cells = (y / CELL_SIZE) * mCellsX;
+                for (int x = 0; x < mWidth; x++) {
+                    int a = beforeColors[x], b = afterColors[x];
+                    if (a == b) {
+                        continue;
+                    }
+                    int difference = Math.max(
+                            Math.abs((a >> 16 & 0xFF) - (b >> 16 & 0xFF)),
+                            Math.max(Math.abs((a >> 8 & 0xFF) - (b >> 8 & 0xFF)),
+                                    Math.abs((a & 0xFF) - (b & 0xFF))));
+                    if (difference <= threshold) {
+                        continue;
+                    }
+                    mDifferences[row + x] = (byte) difference;
+                    // cells are only written by the task of their band
+                    int cell = cells + x / CELL_SIZE;
+                    if (mCellCounts[cell]++ == 0) {
+                        mCellLeft[cell] = mCellRight[cell] = x;
+                        mCellTop[cell] = y;
+                    } else {
+                        mCellLeft[cell] = Math.min(mCellLeft[cell], x);
+                        mCellRight[cell] = Math.max(mCellRight[cell], x);
+                    }
+                    mCellBottom[cell] = y;
+                }
+            }
+        }
+    }
+
+    /**
+     * Joins the changed cells that touch, sides or corners, into regions
+     */
+    private void findRegions() {
+        boolean[] visited = new boolean[mCellCounts.length];
+        int[] stack = new int[mCellCounts.length];
+        for (int start = 0; start < mCellCounts.length; start++) {
+            if (mCellCounts[start] == 0 || visited[start]) {
+                continue;
+            }
+            int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE;
+            int right = -1, bottom = -1, count = 0;
+            int size = 0;
+            stack[size++] = start;
+            visited[start] = true;
+            while (size > 0) {
+                int cell = stack[--size];
+                left = Math.min(left, mCellLeft[cell]);
+                top = Math.min(top, mCellTop[cell]);
+                right = Math.max(right, mCellRight[cell]);
+                bottom = Math.max(bottom, mCellBottom[cell]);
+                count += mCellCounts[cell];
+                int cellX = cell % mCellsX, cellY = cell / mCellsX;
+                for (int y = Math.max(0, cellY - 1); y <= Math.min(mCellsY - 1, cellY + 1);
+                        y++) {
+                    for (int x = Math.max(0, cellX - 1); x <= Math.min(mCellsX - 1, cellX + 1);
+                            x++) {
+                        int next = y * mCellsX + x;
+                        if (mCellCounts[next] != 0 && !visited[next]) {
+                            visited[next] = true;
+                            stack[size++] = next;
+                        }
+                    }
+                }
+            }
+            mChangedPixels += count;
+            mRegions.add(new Region(
+                    new Rectangle(left, top, right - left + 1, bottom - top + 1), count));
+        }
+    }
+
+    private void findNodes(BasicTreeNode root) {
+        // the nodes intersecting each region, in pre-order
+        final List<List<BasicTreeNode>> intersecting = new ArrayList<List<BasicTreeNode>>();
+        for (int i = 0; i < mRegions.size(); i++) {
+            intersecting.add(new ArrayList<BasicTreeNode>());
+        }
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                if (node instanceof UiNode && node.width > 0 && node.height > 0) {
+                    for (int i = 0; i < mRegions.size(); i++) {
+                        Rectangle bounds = mRegions.get(i).mBounds;
+                        if (node.x < bounds.x + bounds.width && bounds.x < node.x + node.width
+                                && node.y < bounds.y + bounds.height
+                                && bounds.y < node.y + node.height) {
+                            intersecting.get(i).add(node);
+                        }
+                    }
+                }
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        for (int i = 0; i < mRegions.size(); i++) {
+            List<BasicTreeNode> nodes = intersecting.get(i);
+            for (int j = 0; j < nodes.size(); j++) {
+                // the descendants of a node follow it in pre-order, so if any of them
+                // intersects the region, the next node that does is one of them
+                if (j + 1 == nodes.size() || !isAncestor(nodes.get(j), nodes.get(j + 1))) {
+                    mRegions.get(i).mNodes.add(nodes.get(j));
+                }
+            }
+        }
+    }
+
+    private static boolean isAncestor(BasicTreeNode ancestor, BasicTreeNode node) {
+        for (BasicTreeNode parent = node.getParent(); parent != null;
+                parent = parent.getParent()) {
+            if (parent == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the largest difference of a channel of the pixel, 0 if it is within the
+     * threshold or off the screenshot
+     */
+    public int getDifference(int x, int y) {
+        if (x < 0 || y < 0 || x >= mWidth || y >= mHeight) {
+            return 0;
+        }
+        return mDifferences[y * mWidth + x] & 0xFF;
+    }
+
+    /**
+     * @return whether the pixel differs by more than the threshold
+     */
+    public boolean isChanged(int x, int y) {
+        return getDifference(x, y) != 0;
+    }
+
+    public int getChangedPixels() {
+        return mChangedPixels;
+    }
+
+    /**
+     * @return the regions that changed, from the top of the screenshot down
+     */
+    public List<Region> getRegions() {
+        return Collections.unmodifiableList(mRegions);
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import com.android.uiautomator.tree.AttributeIndex;
+import com.android.uiautomator.tree.BasicTreeNode;
+import com.android.uiautomator.tree.OverlapDepth;
+import com.android.uiautomator.tree.SpatialIndex;
+import com.android.uiautomator.tree.TouchTargetAnalyzer;
+import com.android.uiautomator.tree.UniqueLocators;
+import com.android.uiautomator.tree.XPathEvaluator;
+
+import org.eclipse.swt.graphics.ImageData;
+
+import java.io.File;
+
+/**
+ * A loaded screenshot and UI hierarchy, along with the files they came from
+ *
+ * Snapshots are built off the UI thread and handed over by {@link UiAutomatorModel} in one
+ * step, so they can be read from any thread once published. Neither the snapshot nor its
+ * image data and tree are modified afterwards, with one exception: a dump that is still being
+ * loaded is published early with an incomplete tree, which only grows on the UI thread, and
+ * is published again once complete. Code working off the UI thread should wait for a
+ * complete snapshot.
+ */
+public class Snapshot {
+
+    private final ImageData mImageData;
+    private final BasicTreeNode mRootNode;
+    private final File mScreenshotFile;
+    private final File mXmlDumpFile;
+    private final boolean mComplete;
+    private final String mCacheKey;
+    private final SpatialIndex mSpatialIndex;
+    // the snapshot the contents are shared with, which holds the search indexes
+    private final Snapshot mContents;
+    private AttributeIndex mAttributeIndex;
+    private XPathEvaluator mXPathEvaluator;
+    private UniqueLocators mUniqueLocators;
+    private TouchTargetAnalyzer.Report mTouchTargetReport;
+    private int mTouchTargetMinSize;
+    private OverlapDepth mOverlapDepth;
+    private NodeFingerprints mFingerprints;
+
+    /**
+     * @param screenshotFile the file the screenshot was loaded from, or null
+     * @param xmlDumpFile the file the hierarchy was loaded from, or null
+     */
+    public Snapshot(ImageData imageData, BasicTreeNode rootNode, File screenshotFile,
+            File xmlDumpFile) {
+        this(imageData, rootNode, screenshotFile, xmlDumpFile, true, null);
+    }
+
+    /**
+     * Creates a snapshot whose image data and tree are those of the entry of the
+     * {@link SnapshotCache} with the given key
+     */
+    Snapshot(Snapshot shared, File screenshotFile, File xmlDumpFile, String cacheKey) {
+        this(shared.mImageData, shared.mRootNode, screenshotFile, xmlDumpFile, true, cacheKey,
+                shared.mSpatialIndex, shared.mContents);
+    }
+
+    private Snapshot(ImageData imageData, BasicTreeNode rootNode, File screenshotFile,
+            File xmlDumpFile, boolean complete, String cacheKey) {
+        this(imageData, rootNode, screenshotFile, xmlDumpFile, complete, cacheKey,
+                complete ? SpatialIndex.build(rootNode) : null, null);
+    }
+
+    private Snapshot(ImageData imageData, BasicTreeNode rootNode, File screenshotFile,
+            File xmlDumpFile, boolean complete, String cacheKey, SpatialIndex spatialIndex,
+            Snapshot contents) {
+        mImageData = imageData;
+        mRootNode = rootNode;
+        mScreenshotFile = screenshotFile;
+        mXmlDumpFile = xmlDumpFile;
+        mComplete = complete;
+        mCacheKey = cacheKey;
+        mSpatialIndex = spatialIndex;
+        mContents = contents != null ? contents : this;
+    }
+
+    /**
+     * Creates a snapshot of a dump whose tree is still being loaded
+     */
+    static Snapshot createIncomplete(ImageData imageData, BasicTreeNode rootNode,
+            File screenshotFile, File xmlDumpFile) {
+        return new Snapshot(imageData, rootNode, screenshotFile, xmlDumpFile, false, null);
+    }
+
+    /**
+     * @return a complete snapshot with the same contents, once the tree is fully loaded
+     */
+    Snapshot toComplete() {
+        return mComplete ? this : new Snapshot(mImageData, mRootNode, mScreenshotFile,
+                mXmlDumpFile, true, mCacheKey);
+    }
+
+    /**
+     * @return the key of the {@link SnapshotCache} entry the contents of the snapshot are
+     * shared through, whose reference the holder of the snapshot releases, or null
+     */
+    String getCacheKey() {
+        return mCacheKey;
+    }
+
+    /**
+     * @return the decoded screenshot, which must not be modified
+     */
+    public ImageData getImageData() {
+        return mImageData;
+    }
+
+    public BasicTreeNode getRootNode() {
+        return mRootNode;
+    }
+
+    public File getScreenshotFile() {
+        return mScreenshotFile;
+    }
+
+    public File getXmlDumpFile() {
+        return mXmlDumpFile;
+    }
+
+    /**
+     * @return the index of the bounds of the nodes, or null until the snapshot is complete
+     */
+    public SpatialIndex getSpatialIndex() {
+        return mSpatialIndex;
+    }
+
+    /**
+     * Returns the index of the searchable attributes of the nodes, building it on first use,
+     * which takes a while for large dumps
+     *
+     * @return the index, or null until the snapshot is complete
+     */
+    public AttributeIndex getAttributeIndex() {
+        if (!mComplete) {
+            return null;
+        }
+        synchronized (mContents) {
+            if (mContents.mAttributeIndex == null) {
+                mContents.mAttributeIndex = AttributeIndex.build(mRootNode);
+            }
+            return mContents.mAttributeIndex;
+        }
+    }
+
+    /**
+     * Returns the evaluator of XPath expressions over the tree, which looks nodes up in the
+     * attribute index, building both on first use
+     *
+     * @return the evaluator, or null until the snapshot is complete
+     */
+    public XPathEvaluator getXPathEvaluator() {
+        if (!mComplete) {
+            return null;
+        }
+        synchronized (mContents) {
+            if (mContents.mXPathEvaluator == null) {
+                mContents.mXPathEvaluator = new XPathEvaluator(mRootNode, getAttributeIndex());
+            }
+            return mContents.mXPathEvaluator;
+        }
+    }
+
+    /**
+     * @return whether the attribute index and XPath evaluator have been built, so that they
+     * are returned right away
+     */
+    public boolean hasSearchIndexes() {
+        synchronized (mContents) {
+            return mContents.mXPathEvaluator != null;
+        }
+    }
+
+    /**
+     * Returns the shortest unique locator of each node, generating them on first use
+     *
+     * @return the locators, or null until the snapshot is complete
+     */
+    public UniqueLocators getUniqueLocators() {
+        if (!mComplete) {
+            return null;
+        }
+        synchronized (mContents) {
+            if (mContents.mUniqueLocators == null) {
+                mContents.mUniqueLocators = UniqueLocators.build(mRootNode);
+            }
+            return mContents.mUniqueLocators;
+        }
+    }
+
+    /**
+     * @return whether the unique locators have been generated, so that they are returned
+     * right away
+     */
+    public boolean hasUniqueLocators() {
+        synchronized (mContents) {
+            return mContents.mUniqueLocators != null;
+        }
+    }
+
+    /**
+     * Returns the touch target conflicts of the tree, finding them on first use, and again
+     * when asked for at another minimum size
+     *
+     * @param minSize the minimum width and height of a touch target, in pixels
+     * @return the conflicts, or null until the snapshot is complete
+     */
+    public TouchTargetAnalyzer.Report getTouchTargetReport(int minSize) {
+        if (!mComplete) {
+            return null;
+        }
+        synchronized (mContents) {
+            if (!hasTouchTargetReport(minSize)) {
+                mContents.mTouchTargetReport = TouchTargetAnalyzer.analyze(mRootNode, minSize);
+                mContents.mTouchTargetMinSize = minSize;
+            }
+            return mContents.mTouchTargetReport;
+        }
+    }
+
+    /**
+     * @return whether the touch target conflicts at the minimum size have been found, so that
+     * they are returned right away
+     */
+    public boolean hasTouchTargetReport(int minSize) {
+        synchronized (mContents) {
+            return mContents.mTouchTargetReport != null
+                    && mContents.mTouchTargetMinSize == minSize;
+        }
+    }
+
+    /**
+     * Returns how many nodes cover each pixel of the screenshot, computing it on first use
+     *
+     * @return the depths, or null until the snapshot is complete
+     */
+    public OverlapDepth getOverlapDepth() {
+        if (!mComplete) {
+            return null;
+        }
+        synchronized (mContents) {
+            if (mContents.mOverlapDepth == null) {
+                mContents.mOverlapDepth = OverlapDepth.compute(mRootNode, mImageData.width,
+                        mImageData.height);
+            }
+            return mContents.mOverlapDepth;
+        }
+    }
+
+    /**
+     * @return whether the overlap depths have been computed, so that they are returned right
+     * away
+     */
+    public boolean hasOverlapDepth() {
+        synchronized (mContents) {
+            return mContents.mOverlapDepth != null;
+        }
+    }
+
+    /**
+     * Returns the fingerprints of what the nodes look like on the screenshot, computing them
+     * on first use
+     *
+     * @return the fingerprints, or null until the snapshot is complete
+     */
+    public NodeFingerprints getFingerprints() {
+        if (!mComplete) {
+            return null;
+        }
+        synchronized (mContents) {
+            if (mContents.mFingerprints == null) {
+                mContents.mFingerprints = NodeFingerprints.compute(mImageData, mRootNode);
+            }
+            return mContents.mFingerprints;
+        }
+    }
+
+    /**
+     * @return whether the fingerprints have been computed, so that they are returned right
+     * away
+     */
+    public boolean hasFingerprints() {
+        synchronized (mContents) {
+            return mContents.mFingerprints != null;
+        }
+    }
+
+    /**
+     * @return whether the whole tree has been loaded
+     */
+    public boolean isComplete() {
+        return mComplete;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import com.android.uiautomator.tree.BasicTreeNode;
+import com.android.uiautomator.tree.SnapshotArchive;
+import com.android.uiautomator.tree.UiHierarchyXmlLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Adds captures to a {@link SnapshotArchive}, or lists the snapshots in one; the viewer opens
+ * archived snapshots from its Open dialog
+ *
+ * Usage: SnapshotArchiver &lt;archive&gt; add &lt;name&gt; &lt;screenshot.png&gt;
+ * &lt;dump.xml&gt;
+ *        SnapshotArchiver &lt;archive&gt; list
+ *
+ * The archive is created if it doesn't exist.
+ */
+public class SnapshotArchiver {
+
+    public static void main(String[] args) {
+        boolean add = args.length == 5 && "add".equals(args[1]);
+        boolean list = args.length == 2 && "list".equals(args[1]);
+        if (!add && !list) {
+            System.err.println("Usage: SnapshotArchiver <archive> add <name> <screenshot.png> "
+                    + "<dump.xml>");
+            System.err.println("       SnapshotArchiver <archive> list");
+            System.exit(2);
+        }
+        File file = new File(args[0]);
+        if (list && !file.isFile()) {
+            System.err.println("No archive at " + file);
+            System.exit(1);
+        }
+        SnapshotArchive archive = null;
+        try {
+            archive = add ? SnapshotArchive.open(file) : SnapshotArchive.openReadOnly(file);
+            if (add) {
+                byte[] screenshot = Files.readAllBytes(new File(args[3]).toPath());
+                BasicTreeNode root = new UiHierarchyXmlLoader().parseXml(args[4]);
+                if (root == null) {
+                    System.err.println("Could not load " + args[4]);
+                    System.exit(1);
+                }
+                long size = archive.getSize();
+                archive.add(args[2], screenshot, root);
+                System.out.println(String.format("Added %s to %s, %d bytes", args[2], file,
+                        archive.getSize() - size));
+            } else {
+                List<SnapshotArchive.Entry> entries = archive.getEntries();
+                DateFormat format = DateFormat.getDateTimeInstance();
+                for (SnapshotArchive.Entry entry : entries) {
+                    System.out.println(format.format(new Date(entry.getTimestamp())) + "\t"
+                            + entry.getName());
+                }
+                System.out.println(String.format("%d snapshots, %d bytes", entries.size(),
+                        archive.getSize()));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            if (archive != null) {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
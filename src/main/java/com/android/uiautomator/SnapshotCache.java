@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import com.android.uiautomator.tree.StringPool;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Snapshots shared by all the windows of the viewer, so that a capture open in several
+ * windows is loaded and held in memory only once
+ *
+ * Entries are keyed by a hash of what they were loaded from and are reference counted: each
+ * window showing a cached snapshot holds a reference, and an entry is dropped when its last
+ * reference is released. Stores of cached snapshots intern their strings into a common pool,
+ * which is let go of once the cache is empty, since a pool never shrinks.
+ */
+public class SnapshotCache {
+
+    private static final SnapshotCache sInstance = new SnapshotCache();
+
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    private StringPool mStringPool;
+
+    private static class Entry {
+        final Snapshot mSnapshot;
+        int mReferences = 1;
+
+        Entry(Snapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+    }
+
+    public static SnapshotCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return the snapshot cached under the key, with a new reference to it, or null
+     */
+    public synchronized Snapshot acquire(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.mReferences++;
+        return entry.mSnapshot;
+    }
+
+    /**
+     * Caches the snapshot under the key, with one reference to it. If another snapshot got
+     * cached under the key in the meantime, that one is referenced and returned instead.
+     */
+    public synchronized Snapshot put(String key, Snapshot snapshot) {
+        Snapshot cached = acquire(key);
+        if (cached != null) {
+            return cached;
+        }
+        mEntries.put(key, new Entry(snapshot));
+        return snapshot;
+    }
+
+    /**
+     * Releases a reference to the entry with the key, dropping it if it was the last one
+     */
+    public synchronized void release(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            throw new IllegalStateException("Snapshot " + key + " isn't cached");
+        }
+        if (--entry.mReferences == 0) {
+            mEntries.remove(key);
+            if (mEntries.isEmpty()) {
+                mStringPool = null;
+            }
+        }
+    }
+
+    /**
+     * @return the pool the stores of snapshots to be cached should intern their strings into
+     */
+    public synchronized StringPool getStringPool() {
+        if (mStringPool == null) {
+            mStringPool = new StringPool();
+        }
+        return mStringPool;
+    }
+
+    /**
+     * @return the number of snapshots cached
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import com.android.uiautomator.tree.HierarchyStore;
+import com.android.uiautomator.tree.StringPool;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A screenshot and its UI hierarchy in a single binary file
+ *
+ * The pixels are stored decoded and the hierarchy as the node table of a
+ * {@link HierarchyStore}. Opening a snapshot therefore skips PNG decoding and XML parsing. The
+ * file is memory mapped and the arrays are bulk copied out of it. Since version 2 the pixels
+ * are deflated at the fastest level, which keeps a screenshot to a fraction of its decoded
+ * size and still inflates far quicker than a PNG decodes.
+ *
+ * Layout: magic, version, CRC32 of the rest of the file, the image, then the store.
+ */
+public class SnapshotFile {
+
+    public static final String EXTENSION = "uix";
+
+    private static final int MAGIC = 0x55495853; // "UIXS"
+    private static final int VERSION = 2;
+    // the pixels and alpha values are stored as they are
+    private static final int VERSION_UNCOMPRESSED = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final ImageData mImageData;
+    private final HierarchyStore mStore;
+
+    private SnapshotFile(ImageData imageData, HierarchyStore store) {
+        mImageData = imageData;
+        mStore = store;
+    }
+
+    public ImageData getImageData() {
+        return mImageData;
+    }
+
+    public HierarchyStore getStore() {
+        return mStore;
+    }
+
+    public static void write(File file, ImageData image, HierarchyStore store)
+            throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(0).flip();
+            channel.write(header);
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 65536),
+                    new CRC32());
+            DataOutputStream data = new DataOutputStream(checked);
+            writeImage(data, image);
+            store.write(data);
+            data.flush();
+            // now that the checksum is known, fill it in
+            header.clear();
+            header.putInt((int) checked.getChecksum().getValue()).flip();
+            channel.write(header, 8);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @throws IOException if the file cannot be read, isn't a snapshot or is corrupt
+     */
+    public static SnapshotFile read(File file) throws IOException {
+        return read(file, new StringPool());
+    }
+
+    /**
+     * @param pool the pool the store interns its strings into
+     * @throws IOException if the file cannot be read, isn't a snapshot or is corrupt
+     */
+    public static SnapshotFile read(File file, StringPool pool) throws IOException {
+        ByteBuffer in;
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            stream.close();
+        }
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot: " + file);
+        }
+        int version = in.getInt();
+        if (version != VERSION && version != VERSION_UNCOMPRESSED) {
+            throw new IOException("Unsupported snapshot version " + version + ": " + file);
+        }
+        int checksum = in.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(in.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Corrupt snapshot: " + file);
+        }
+        ImageData image = readImage(in, version != VERSION_UNCOMPRESSED);
+        HierarchyStore store = HierarchyStore.read(in, pool);
+        return new SnapshotFile(image, store);
+    }
+
+    private static void writeImage(DataOutputStream out, ImageData image) throws IOException {
+        out.writeInt(image.width);
+        out.writeInt(image.height);
+        out.writeInt(image.depth);
+        out.writeInt(image.scanlinePad);
+        PaletteData palette = image.palette;
+        out.writeBoolean(palette.isDirect);
+        if (palette.isDirect) {
+            out.writeInt(palette.redMask);
+            out.writeInt(palette.greenMask);
+            out.writeInt(palette.blueMask);
+        } else {
+            RGB[] colors = palette.getRGBs();
+            out.writeInt(colors.length);
+            for (RGB color : colors) {
+                out.writeByte(color.red);
+                out.writeByte(color.green);
+                out.writeByte(color.blue);
+            }
+        }
+        out.writeInt(image.transparentPixel);
+        out.writeInt(image.alpha);
+        writeBytes(out, image.alphaData);
+        writeBytes(out, image.data);
+    }
+
+    /**
+     * Writes the length of the bytes, then the length of them deflated and the deflated bytes
+     */
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream stream = new DeflaterOutputStream(deflated, deflater, 65536);
+            stream.write(bytes);
+            stream.finish();
+        } finally {
+            deflater.end();
+        }
+        out.writeInt(bytes.length);
+        out.writeInt(deflated.size());
+        deflated.writeTo(out);
+    }
+
+    private static ImageData readImage(ByteBuffer in, boolean deflated) throws IOException {
+        try {
+            int width = in.getInt();
+            int height = in.getInt();
+            int depth = in.getInt();
+            int scanlinePad = in.getInt();
+            PaletteData palette;
+            if (in.get() != 0) {
+                palette = new PaletteData(in.getInt(), in.getInt(), in.getInt());
+            } else {
+                RGB[] colors = new RGB[in.getInt()];
+                for (int i = 0; i < colors.length; i++) {
+                    colors[i] = new RGB(in.get() & 0xff, in.get() & 0xff, in.get() & 0xff);
+                }
+                palette = new PaletteData(colors);
+            }
+            int transparentPixel = in.getInt();
+            int alpha = in.getInt();
+            byte[] alphaData = readBytes(in, deflated);
+            ImageData image = new ImageData(width, height, depth, palette, scanlinePad,
+                    readBytes(in, deflated));
+            image.transparentPixel = transparentPixel;
+            image.alpha = alpha;
+            image.alphaData = alphaData;
+            return image;
+        } catch (RuntimeException e) {
+            // covers truncated data as well as the IllegalArgumentException and SWTException
+            // ImageData throws for inconsistent dimensions
+            throw new IOException("Corrupt image data", e);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer in, boolean deflated) throws IOException {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        if (!deflated) {
+            in.get(bytes);
+            return bytes;
+        }
+        byte[] input = new byte[in.getInt()];
+        in.get(input);
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream stream = new DataInputStream(
+                    new InflaterInputStream(new ByteArrayInputStream(input), inflater));
+            stream.readFully(bytes);
+            if (stream.read() != -1) {
+                throw new IOException("Corrupt image data");
+            }
+        } finally {
+            inflater.end();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.Rectangle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds where a part of one screenshot shows up in another, such as where a button moved to
+ * in a new build
+ *
+ * Positions are scored by the normalized cross-correlation of their brightness with that of
+ * the part looked for, which doesn't change when both are made brighter or more contrasted.
+ * Both images are shrunk by halves into pyramids: every position of the smallest level is
+ * scored, the sums over the windows coming from integral images, with the rows spread over
+ * the processors, and the few best positions are then refined level by level, only looking
+ * around twice their position at the level below.
+ */
+public class TemplateMatcher {
+
+    // the part looked for is shrunk while its shorter side stays at least this long, and
+    // until it has at most this many pixels, so that its sums of products fit in an int
+    private static final int MIN_TEMPLATE_SIZE = 6;
+    private static final int MAX_COARSE_AREA = 32768;
+    // positions of the smallest level refined, and how far around them each level is searched
+    private static final int CANDIDATES = 16;
+    private static final int RADIUS = 2;
+    // rows handled by each task, at least
+    private static final int MIN_ROWS = 16;
+
+    /**
+     * Where the part was found
+     */
+    public static class Match {
+        private final Rectangle mBounds;
+        private final double mScore;
+
+        private Match(Rectangle bounds, double score) {
+            mBounds = bounds;
+            mScore = score;
+        }
+
+        public Rectangle getBounds() {
+            return mBounds;
+        }
+
+        /**
+         * @return the correlation, from -1 to 1 for an exact copy
+         */
+        public double getScore() {
+            return mScore;
+        }
+    }
+
+    /**
+     * The brightness of an image
+     */
+    private static class Plane {
+        final int mWidth, mHeight;
+        final int[] mPixels;
+
+        Plane(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            mPixels = new int[width * height];
+        }
+
+        /**
+         * @return the plane with half the width and height, each pixel the mean of four
+         */
+        Plane half() {
+            Plane half = new Plane(mWidth / 2, mHeight / 2);
+            for (int y = 0; y < half.mHeight; y++) {
+                int top = 2 * y * mWidth, bottom = top + mWidth;
+                for (int x = 0, i = y * half.mWidth; x < half.mWidth; x++, i++) {
+                    half.mPixels[i] = (mPixels[top + 2 * x] + mPixels[top + 2 * x + 1]
+                            + mPixels[bottom + 2 * x] + mPixels[bottom + 2 * x + 1] + 2) >> 2;
+                }
+            }
+            return half;
+        }
+    }
+
+    /**
+     * Reads the brightness of a part of an image, a band of rows per task
+     */
+    private static class ReadTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ImageData mImage;
+        private final Rectangle mArea;
+        private final Plane mPlane;
+        private final int mFrom, mTo;
+
+        ReadTask(ImageData image, Rectangle area, Plane plane, int from, int to) {
+            mImage = image;
+            mArea = area;
+            mPlane = plane;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > 4 * MIN_ROWS) {
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new ReadTask(mImage, mArea, mPlane, mFrom, middle),
+                        new ReadTask(mImage, mArea, mPlane, middle, mTo));
+                return;
+            }
+            Luma luma = new Luma(mImage);
+            for (int y = mFrom; y < mTo; y++) {
+                luma.getRow(mArea.x, mArea.y + y, mArea.width, mPlane.mPixels,
+                        y * mPlane.mWidth);
+            }
+        }
+    }
+
+    private static Plane read(ImageData image, Rectangle area) {
+        Plane plane = new Plane(area.width, area.height);
+        ForkJoinPool.commonPool().invoke(new ReadTask(image, area, plane, 0, area.height));
+        return plane;
+    }
+
+    /**
+     * The sums of the pixels of the part looked for, and of their squares
+     */
+    private static class Template {
+        final Plane mPlane;
+        final long mSum;
+        final double mVariance;
+
+        Template(Plane plane) {
+            mPlane = plane;
+            long sum = 0, squares = 0;
+            for (int pixel : plane.mPixels) {
+                sum += pixel;
+                squares += pixel * pixel;
+            }
+            mSum = sum;
+            // times the number of pixels, like the covariances it is compared with
+            mVariance = squares - (double) sum * sum / plane.mPixels.length;
+        }
+
+        /**
+         * @return the correlation with the window whose sums of pixels, their squares and
+         * their products with those of the template are given
+         */
+        double score(long sum, long squares, long products) {
+            int n = mPlane.mPixels.length;
+            double variance = squares - (double) sum * sum / n;
+            if (variance <= 0) {
+                return 0;
+            }
+            return (products - (double) sum * mSum / n) / Math.sqrt(variance * mVariance);
+        }
+    }
+
+    /**
+     * Finds the best match of a part of one image in another
+     *
+     * @param area the part of the source image looked for
+     * @return the match, or null if the part is not within the source image, is larger than
+     * the target image, or is of a single color, so that it matches anywhere
+     */
+    public static Match find(ImageData source, Rectangle area, ImageData target) {
+        if (area.width <= 0 || area.height <= 0 || area.x < 0 || area.y < 0
+                || area.x + area.width > source.width || area.y + area.height > source.height
+                || area.width > target.width || area.height > target.height) {
+            return null;
+        }
+        List<Template> templates = new ArrayList<Template>();
+        templates.add(new Template(read(source, area)));
+        if (templates.get(0).mVariance <= 0) {
+            return null;
+        }
+        List<Plane> planes = new ArrayList<Plane>();
+        planes.add(read(target, new Rectangle(0, 0, target.width, target.height)));
+        while (true) {
+            Plane template = templates.get(templates.size() - 1).mPlane;
+            int shorter = Math.min(template.mWidth, template.mHeight);
+            if (shorter / 2 < MIN_TEMPLATE_SIZE
+                    && template.mPixels.length <= MAX_COARSE_AREA || shorter < 2) {
+                break;
+            }
+            Template half = new Template(template.half());
+            if (half.mVariance <= 0) {
+                // shrunk to a single color
+                break;
+            }
+            templates.add(half);
+            planes.add(planes.get(planes.size() - 1).half());
+        }
+
+        int level = templates.size() - 1;
+        Template template = templates.get(level);
+        if (template.mPlane.mPixels.length > MAX_COARSE_AREA) {
+            // a long and thin part that can't be shrunk, not worth searching everywhere
+            return null;
+        }
+        int[] candidates = findCandidates(planes.get(level), template);
+        double[] scores = new double[candidates.length];
+        int count = candidates.length;
+        for (int l = level - 1; l >= 0; l--) {
+            Plane plane = planes.get(l), above = planes.get(l + 1);
+            Template t = templates.get(l);
+            for (int i = 0; i < count; i++) {
+                int x = 2 * (candidates[i] % above.mWidth), y = 2 * (candidates[i] / above.mWidth);
+                scores[i] = Double.NEGATIVE_INFINITY;
+                for (int v = Math.max(0, y - RADIUS);
+                        v <= Math.min(plane.mHeight - t.mPlane.mHeight, y + RADIUS); v++) {
+                    for (int u = Math.max(0, x - RADIUS);
+                            u <= Math.min(plane.mWidth - t.mPlane.mWidth, x + RADIUS); u++) {
+                        double score = score(plane, t, u, v);
+                        if (score > scores[i]) {
+                            scores[i] = score;
+                            candidates[i] = v * plane.mWidth + u;
+                        }
+                    }
+                }
+            }
+            // the best half goes on to the next level, which costs four times as much
+            sort(candidates, scores, count);
+            count = Math.max(1, count / 2);
+        }
+        if (level == 0) {
+            scores[0] = score(planes.get(0), templates.get(0), candidates[0] % target.width,
+                    candidates[0] / target.width);
+        }
+        return new Match(new Rectangle(candidates[0] % target.width,
+                candidates[0] / target.width, area.width, area.height), scores[0]);
+    }
+
+    /**
+     * Sorts the first count candidates by descending score
+     */
+    private static void sort(int[] candidates, double[] scores, int count) {
+        for (int i = 1; i < count; i++) {
+            for (int j = i; j > 0 && scores[j] > scores[j - 1]; j--) {
+                int candidate = candidates[j];
+                candidates[j] = candidates[j - 1];
+                candidates[j - 1] = candidate;
+                double score = scores[j];
+                scores[j] = scores[j - 1];
+                scores[j - 1] = score;
+            }
+        }
+    }
+
+    /**
+     * @return the correlation of the template with the window of the plane at a position
+     */
+    private static double score(Plane plane, Template template, int u, int v) {
+        int width = template.mPlane.mWidth, height = template.mPlane.mHeight;
+        int[] pixels = plane.mPixels, templatePixels = template.mPlane.mPixels;
+        long sum = 0, squares = 0, products = 0;
+        for (int r = 0; r < height; r++) {
+            // a row of products fits in an int, however wide it is
+            int rowSum = 0, rowProducts = 0;
+            long rowSquares = 0;
+            for (int x = 0, i = (v + r) * plane.mWidth + u, j = r * width; x < width;
+                    x++, i++, j++) {
+                int pixel = pixels[i];
+                rowSum += pixel;
+                rowSquares += pixel * pixel;
+                rowProducts += pixel * templatePixels[j];
+            }
+            sum += rowSum;
+            squares += rowSquares;
+            products += rowProducts;
+        }
+        return template.score(sum, squares, products);
+    }
+
+    /**
+     * Scores every position of the template in the plane
+     *
+     * @return the best positions, as y * width + x, each away from those before it by at
+     * least half the template
+     */
+    private static int[] findCandidates(Plane plane, Template template) {
+        int positionsX = plane.mWidth - template.mPlane.mWidth + 1;
+        int positionsY = plane.mHeight - template.mPlane.mHeight + 1;
+        // integral images of the pixels and their squares; like in NodeFingerprints they
+        // wrap around, but the sums over a window fit in an int as those of products do
+        int stride = plane.mWidth + 1;
+        int[] sums = new int[stride * (plane.mHeight + 1)];
+        int[] squares = new int[sums.length];
+        for (int y = 0; y < plane.mHeight; y++) {
+            int rowSum = 0, rowSquares = 0;
+            for (int x = 0, i = (y + 1) * stride + 1; x < plane.mWidth; x++, i++) {
+                int pixel = plane.mPixels[y * plane.mWidth + x];
+                rowSum += pixel;
+                rowSquares += pixel * pixel;
+                sums[i] = sums[i - stride] + rowSum;
+                squares[i] = squares[i - stride] + rowSquares;
+            }
+        }
+        float[] scores = new float[positionsX * positionsY];
+        ForkJoinPool.commonPool().invoke(new ScoreTask(plane, template, sums, squares, scores,
+                positionsX, 0, positionsY));
+
+        // the best local maxima, best first
+        int[] peaks = new int[4 * CANDIDATES];
+        int count = 0;
+        for (int y = 0; y < positionsY; y++) {
+            for (int x = 0; x < positionsX; x++) {
+                int i = y * positionsX + x;
+                float score = scores[i];
+                if (count == peaks.length && score <= scores[peaks[count - 1]]
+                        || !isPeak(scores, positionsX, positionsY, x, y)) {
+                    continue;
+                }
+                int j = count < peaks.length ? count++ : count - 1;
+                for (; j > 0 && scores[peaks[j - 1]] < score; j--) {
+                    peaks[j] = peaks[j - 1];
+                }
+                peaks[j] = i;
+            }
+        }
+        // peaks closer than half the template overlap it mostly, only the best one is kept
+        int[] candidates = new int[CANDIDATES];
+        int found = 0;
+        int halfWidth = template.mPlane.mWidth / 2, halfHeight = template.mPlane.mHeight / 2;
+        for (int p = 0; p < count && found < CANDIDATES; p++) {
+            int x = peaks[p] % positionsX, y = peaks[p] / positionsX;
+            boolean near = false;
+            for (int c = 0; c < found && !near; c++) {
+                near = Math.abs(candidates[c] % plane.mWidth - x) <= halfWidth
+                        && Math.abs(candidates[c] / plane.mWidth - y) <= halfHeight;
+            }
+            if (!near) {
+                candidates[found++] = y * plane.mWidth + x;
+            }
+        }
+        return Arrays.copyOf(candidates, found);
+    }
+
+    /**
+     * @return whether no position next to the given one scores better
+     */
+    private static boolean isPeak(float[] scores, int width, int height, int x, int y) {
+        float score = scores[y * width + x];
+        for (int v = Math.max(0, y - 1); v <= Math.min(height - 1, y + 1); v++) {
+            for (int u = Math.max(0, x - 1); u <= Math.min(width - 1, x + 1); u++) {
+                if (scores[v * width + u] > score) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scores the positions of a band of rows
+     */
+    private static class ScoreTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Plane mPlane;
+        private final Template mTemplate;
+        private final int[] mSums, mSquares;
+        private final float[] mScores;
+        private final int mPositionsX;
+        private final int mFrom, mTo;
+
+        ScoreTask(Plane plane, Template template, int[] sums, int[] squares, float[] scores,
+                int positionsX, int from, int to) {
+            mPlane = plane;
+            mTemplate = template;
+            mSums = sums;
+            mSquares = squares;
+            mScores = scores;
+            mPositionsX = positionsX;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > MIN_ROWS) {
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new ScoreTask(mPlane, mTemplate, mSums, mSquares, mScores,
+                        mPositionsX, mFrom, middle),
+                        new ScoreTask(mPlane, mTemplate, mSums, mSquares, mScores,
+                        mPositionsX, middle, mTo));
+                return;
+            }
+            int width = mTemplate.mPlane.mWidth, height = mTemplate.mPlane.mHeight;
+            int[] pixels = mPlane.mPixels, templatePixels = mTemplate.mPlane.mPixels;
+            int stride = mPlane.mWidth + 1;
+            int positions = mPositionsX;
+            int[] products = new int[positions];
+            int[] row0 = new int[positions], row1 = new int[positions];
+            int[] row2 = new int[positions], row3 = new int[positions];
+            for (int v = mFrom; v < mTo; v++) {
+                // each pixel of the template scales a row of the plane, added up for all
+                // the positions of the row at once; the rows are copied first, the loop is
+                // only vectorized when all the arrays are indexed alike
+                Arrays.fill(products, 0);
+                for (int r = 0; r < height; r++) {
+                    int offset = (v + r) * mPlane.mWidth, t = r * width;
+                    int x = 0;
+                    for (; x + 4 <= width; x += 4) {
+                        int t0 = templatePixels[t + x], t1 = templatePixels[t + x + 1];
+                        int t2 = templatePixels[t + x + 2], t3 = templatePixels[t + x + 3];
+                        System.arraycopy(pixels, offset + x, row0, 0, positions);
+                        System.arraycopy(pixels, offset + x + 1, row1, 0, positions);
+                        System.arraycopy(pixels, offset + x + 2, row2, 0, positions);
+                        System.arraycopy(pixels, offset + x + 3, row3, 0, positions);
+                        for (int u = 0; u < positions; u++) {
+                            products[u] += row0[u] * t0 + row1[u] * t1 + row2[u] * t2
+                                    + row3[u] * t3;
+                        }
+                    }
+                    for (; x < width; x++) {
+                        int t0 = templatePixels[t + x];
+                        System.arraycopy(pixels, offset + x, row0, 0, positions);
+                        for (int u = 0; u < positions; u++) {
+                            products[u] += row0[u] * t0;
+                        }
+                    }
+                }
+                for (int u = 0; u < positions; u++) {
+                    int top = v * stride + u, bottom = (v + height) * stride + u;
+                    int sum = mSums[bottom + width] - mSums[bottom] - mSums[top + width]
+                            + mSums[top];
+                    int squares = mSquares[bottom + width] - mSquares[bottom]
+                            - mSquares[top + width] + mSquares[top];
+                    mScores[v * positions + u] =
+                            (float) mTemplate.score(sum, squares, products[u]);
+                }
+            }
+        }
+    }
+}
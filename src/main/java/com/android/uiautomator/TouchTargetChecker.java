@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import com.android.uiautomator.tree.BasicTreeNode;
+import com.android.uiautomator.tree.TouchTargetAnalyzer;
+import com.android.uiautomator.tree.UiHierarchyXmlLoader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reports the clickable nodes of UI hierarchy dumps that overlap each other or are smaller
+ * than the minimum touch target size
+ *
+ * Usage: TouchTargetChecker [--min-size &lt;pixels&gt;] &lt;dump.xml or directory of
+ * dumps&gt;...
+ *
+ * The dumps are spread over the available processors. The exit code is 1 if any dump has a
+ * conflict.
+ */
+public class TouchTargetChecker {
+
+    public static void main(String[] args) {
+        int minSize = TouchTargetAnalyzer.DEFAULT_MIN_SIZE;
+        int first = 0;
+        if (args.length >= 2 && "--min-size".equals(args[0])) {
+            try {
+                minSize = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                args = new String[0];
+            }
+            first = 2;
+        }
+        if (args.length <= first) {
+            System.err.println("Usage: TouchTargetChecker [--min-size <pixels>] "
+                    + "<dump.xml or directory of dumps>...");
+            System.exit(2);
+        }
+        List<File> dumps = LocatorValidator.listDumps(
+                Arrays.asList(args).subList(first, args.length));
+        if (dumps.isEmpty()) {
+            System.err.println("No dumps found");
+            System.exit(2);
+        }
+        TouchTargetAnalyzer.Report[] reports = check(dumps, minSize);
+        System.exit(report(dumps, reports, minSize) ? 0 : 1);
+    }
+
+    /**
+     * Analyzes each dump, in parallel
+     *
+     * @return the conflicts of each dump, null for those that couldn't be loaded
+     */
+    public static TouchTargetAnalyzer.Report[] check(List<File> dumps, final int minSize) {
+        int threads = Math.min(dumps.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            List<Future<TouchTargetAnalyzer.Report>> futures =
+                    new ArrayList<Future<TouchTargetAnalyzer.Report>>();
+            for (final File dump : dumps) {
+                futures.add(executor.submit(new Callable<TouchTargetAnalyzer.Report>() {
+                    @Override
+                    public TouchTargetAnalyzer.Report call() {
+                        BasicTreeNode root =
+                                new UiHierarchyXmlLoader().parseXml(dump.getAbsolutePath());
+                        return root != null ? TouchTargetAnalyzer.analyze(root, minSize) : null;
+                    }
+                }));
+            }
+            TouchTargetAnalyzer.Report[] reports = new TouchTargetAnalyzer.Report[dumps.size()];
+            for (int i = 0; i < reports.length; i++) {
+                try {
+                    reports[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return reports;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Prints the conflicts of each dump, and a summary
+     *
+     * @return whether no dump has a conflict
+     */
+    private static boolean report(List<File> dumps, TouchTargetAnalyzer.Report[] reports,
+            int minSize) {
+        int failed = 0, tooSmall = 0, overlaps = 0;
+        for (int i = 0; i < dumps.size(); i++) {
+            TouchTargetAnalyzer.Report report = reports[i];
+            if (report == null) {
+                System.out.println("Could not load " + dumps.get(i));
+                continue;
+            }
+            if (report.isEmpty()) {
+                continue;
+            }
+            failed++;
+            System.out.println(dumps.get(i) + ":");
+            for (BasicTreeNode node : report.getTooSmall()) {
+                System.out.println("  TOO SMALL " + node);
+            }
+            for (BasicTreeNode[] overlap : report.getOverlaps()) {
+                System.out.println("  OVERLAP   " + overlap[0] + "\t" + overlap[1]);
+            }
+            tooSmall += report.getTooSmall().size();
+            overlaps += report.getOverlaps().size();
+        }
+        System.out.println(String.format(
+                "%d dumps: %d with conflicts, %d nodes under %dpx, %d overlaps",
+                dumps.size(), failed, tooSmall, minSize, overlaps));
+        return failed == 0;
+    }
+}
@@ -17,7 +17,16 @@
 package com.android.uiautomator;
 
 import com.android.uiautomator.tree.BasicTreeNode;
+import com.android.uiautomator.tree.HierarchyDiff;
+import com.android.uiautomator.tree.HierarchyStore;
+import com.android.uiautomator.tree.OverlapDepth;
+import com.android.uiautomator.tree.SnapshotArchive;
+import com.android.uiautomator.tree.SpatialIndex;
+import com.android.uiautomator.tree.StringPool;
+import com.android.uiautomator.tree.TouchTargetAnalyzer;
 import com.android.uiautomator.tree.UiHierarchyXmlLoader;
+import com.android.uiautomator.tree.UiHierarchyXmlLoader.INodeBatchListener;
+import com.android.uiautomator.tree.UiHierarchyXmlLoader.NodeBatch;
 import com.android.uiautomator.tree.UiNode;
 import com.android.uiautomator.tree.BasicTreeNode.IFindNodeListener;
 
@@ -26,101 +35,801 @@ import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.graphics.ImageData;
 import org.eclipse.swt.graphics.ImageLoader;
 import org.eclipse.swt.graphics.Rectangle;
+import org.eclipse.swt.widgets.Display;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.prefs.Preferences;
 
+/**
+ * State of one viewer window: the snapshot it shows and loads, and the selection
+ *
+ * Snapshots opened from the same files share their contents through the
+ * {@link SnapshotCache}, however many windows they are open in.
+ */
 public class UiAutomatorModel {
 
-    private static UiAutomatorModel inst = null;
+    private static final String PREF_LEAN_LOAD = "leanLoad";
+    private static final String PREF_STREAM_CAPTURES = "streamCaptures";
+    private static final String PREF_LOADER_MODE = "loaderMode";
+
+    // snapshots of recently opened screenshot and dump pairs, which open faster than the
+    // files themselves
+    private static final File CACHE_DIR = new File(System.getProperty("user.home"),
+            ".android" + File.separator + "uiautomatorviewer" + File.separator + "cache");
+    // entries hold the screenshot's pixels deflated, typically a few hundred KB each
+    private static final long MAX_CACHE_BYTES = 64L << 20;
 
-    private File mScreenshotFile, mXmlDumpFile;
-    private UiAutomatorViewer mView;
+    private final UiAutomatorViewer mView;
+    private final Display mDisplay;
+    private final SnapshotCache mCache = SnapshotCache.getInstance();
+    // the latest snapshot, swapped in as a whole once loaded, and the one the view shows,
+    // which catches up with it on the UI thread; mScreenshot is the image of the latter
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<Snapshot>();
+    private Snapshot mShownSnapshot;
     private Image mScreenshot;
-    private BasicTreeNode mRootNode;
     private BasicTreeNode mSelectedNode;
     private Rectangle mCurrentDrawingRect;
+    // what the search box holds, and the nodes of the shown snapshot matching it
+    private String mSearchQuery = "";
+    private String mSearchError;
+    private List<BasicTreeNode> mSearchResults = Collections.emptyList();
+    private Set<BasicTreeNode> mSearchMatches = Collections.emptySet();
+    // the changes from the snapshot shown before, and the nodes they inserted, moved or changed
+    private HierarchyDiff mHierarchyDiff;
+    private Set<BasicTreeNode> mChangedNodes = Collections.emptySet();
+    // worked out on the load thread for the snapshot published last, before it is shown
+    private volatile Changes mChanges;
+    // reused across loads so that the XML parser is only set up once
+    private UiHierarchyXmlLoader mXmlLoader;
+    private UiHierarchyXmlLoader.Mode mLoaderMode;
+    private boolean mLeanLoad;
+    private boolean mStreamCaptures;
+    private boolean mShowTouchTargets;
+    // of the device the snapshots come from, which scales the minimum touch target size
+    private int mDensity = TouchTargetAnalyzer.DEFAULT_DENSITY;
+    private boolean mShowOverlapDepth;
+    private boolean mShowPixelDiff;
+    // the screenshot of the snapshot shown before, and how the shown one differs from it
+    private ImageData mPreviousImageData;
+    private PixelDiff mPixelDiff;
+    private Set<BasicTreeNode> mPixelChangedNodes = Collections.emptySet();
+    // the fingerprints of the shown snapshot, once they are in the index
+    private NodeFingerprints mIndexedFingerprints;
+    private Rectangle mLocatedRegion;
+    // dumps are loaded one at a time off the UI thread, each load bumps the generation so
+    // that older loads still in progress stop
+    private final ExecutorService mLoadExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Dump loader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final AtomicInteger mLoadGeneration = new AtomicInteger();
+    // when the capture the next load comes from started, in System.nanoTime(), or 0
+    private final AtomicLong mCaptureStart = new AtomicLong();
 
     // determines whether we lookup the leaf UI node on mouse move of screenshot image
     private boolean mExploreMode = true;
+    private boolean mDisposed;
 
-    private UiAutomatorModel(UiAutomatorViewer view) {
+    public UiAutomatorModel(UiAutomatorViewer view) {
         mView = view;
-    }
-
-    public static UiAutomatorModel createInstance(UiAutomatorViewer view) {
-        if (inst != null) {
-            throw new IllegalStateException("instance already created!");
+        mDisplay = view.getShell().getDisplay();
+        mLeanLoad = getPreferences().getBoolean(PREF_LEAN_LOAD, false);
+        mStreamCaptures = getPreferences().getBoolean(PREF_STREAM_CAPTURES, false);
+        try {
+            mLoaderMode = UiHierarchyXmlLoader.Mode.valueOf(getPreferences().get(
+                    PREF_LOADER_MODE, UiHierarchyXmlLoader.Mode.STREAMING.name()));
+        } catch (IllegalArgumentException e) {
+            mLoaderMode = UiHierarchyXmlLoader.Mode.STREAMING;
+        }
+        mXmlLoader = new UiHierarchyXmlLoader(mLoaderMode);
+        if (mLeanLoad) {
+            mXmlLoader.setAttributeProjection(UiHierarchyXmlLoader.LEAN_ATTRIBUTES);
         }
-        inst = new UiAutomatorModel(view);
-        return inst;
     }
 
-    public static UiAutomatorModel getModel() {
-        if (inst == null) {
-            throw new IllegalStateException("instance not created yet!");
-        }
-        return inst;
+    private static Preferences getPreferences() {
+        return Preferences.userNodeForPackage(UiAutomatorModel.class);
     }
 
     public File getScreenshotFile() {
-        return mScreenshotFile;
+        return mShownSnapshot != null ? mShownSnapshot.getScreenshotFile() : null;
     }
 
     public File getXmlDumpFile() {
-        return mXmlDumpFile;
+        return mShownSnapshot != null ? mShownSnapshot.getXmlDumpFile() : null;
+    }
+
+    /**
+     * @return the latest snapshot, or null if nothing has been loaded yet; unlike the
+     * other getters this one can be called from any thread
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot.get();
     }
 
-    public boolean loadScreenshotAndXmlDump(File screenshotFile, File xmlDumpFile) {
+    /**
+     * Loads the screenshot and XML dump in the background. The view is updated as soon as
+     * the screenshot and the root of the dump are loaded, and the rest of the tree is filled
+     * in while the dump is being parsed. The snapshot is only published once the whole dump
+     * has been parsed; if either file turns out to be unreadable, the snapshot shown before
+     * is put back and the error is reported in a dialog.
+     *
+     * May be called from any thread.
+     *
+     * @return true if both files exist and loading has started, which doesn't mean it will
+     * succeed
+     */
+    public boolean loadScreenshotAndXmlDump(final File screenshotFile, final File xmlDumpFile) {
         if (screenshotFile != null && xmlDumpFile != null
                 && screenshotFile.isFile() && xmlDumpFile.isFile()) {
-            ImageData[] data = null;
-            Image img = null;
+            // stops any load still in progress
+            final int generation = mLoadGeneration.incrementAndGet();
+            final long captureStart = mCaptureStart.getAndSet(0);
+            mLoadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loadInBackground(generation, captureStart, screenshotFile, xmlDumpFile);
+                }
+            });
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Loads a screenshot and XML dump held in memory, such as ones streamed from a device,
+     * like {@link #loadScreenshotAndXmlDump(File, File)}. Since there are no files to reopen,
+     * the snapshot isn't cached.
+     *
+     * May be called from any thread.
+     *
+     * @param screenshot the encoded screenshot
+     * @param xmlDump the contents of the dump
+     */
+    public void loadScreenshotAndXmlDump(final byte[] screenshot, final byte[] xmlDump) {
+        final int generation = mLoadGeneration.incrementAndGet();
+        final long captureStart = mCaptureStart.getAndSet(0);
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ImageData[] data = null;
+                try {
+                    data = new ImageLoader().load(new ByteArrayInputStream(screenshot));
+                } catch (SWTException e) {
+                    e.printStackTrace();
+                }
+                if (data == null || data.length < 1) {
+                    reportLoadError(generation, "Cannot decode the screenshot");
+                    return;
+                }
+                loadDump(generation, captureStart, data[0], xmlDump, null, null, null, null);
+            }
+        });
+    }
+
+    /**
+     * Marks the next load as that of a capture which started at the given System.nanoTime(),
+     * so that the time it took to get to a snapshot is shown once it is published
+     *
+     * May be called from any thread.
+     */
+    public void setCaptureStart(long startTime) {
+        mCaptureStart.set(startTime);
+    }
+
+    private void loadInBackground(final int generation, long captureStart,
+            final File screenshotFile, final File xmlDumpFile) {
+        // captures go to temporary files that are never opened again
+        final String cacheKey = captureStart == 0
+                ? getCacheKey(screenshotFile, xmlDumpFile) : null;
+        File cacheFile = null;
+        if (cacheKey != null) {
+            // open in this or another window already
+            Snapshot shared = mCache.acquire(cacheKey);
+            if (shared != null) {
+                publish(generation, captureStart,
+                        new Snapshot(shared, screenshotFile, xmlDumpFile, cacheKey));
+                return;
+            }
+            cacheFile = new File(CACHE_DIR, cacheKey + "." + SnapshotFile.EXTENSION);
+        }
+        if (cacheFile != null && cacheFile.isFile()) {
             try {
-                // use SWT's ImageLoader to read png from path
-                data = new ImageLoader().load(screenshotFile.getAbsolutePath());
-            } catch (SWTException e) {
+                SnapshotFile snapshot = SnapshotFile.read(cacheFile, mCache.getStringPool());
+                // keep recently used entries from being pruned
+                cacheFile.setLastModified(System.currentTimeMillis());
+                Snapshot shared = mCache.put(cacheKey, new Snapshot(snapshot.getImageData(),
+                        snapshot.getStore().getRootNode(), screenshotFile, xmlDumpFile));
+                publish(generation, captureStart,
+                        new Snapshot(shared, screenshotFile, xmlDumpFile, cacheKey));
+                return;
+            } catch (IOException e) {
+                // a stale or broken entry, load from the files and replace it
                 e.printStackTrace();
-                return false;
             }
-            // "data" is an array, probably used to handle images that has multiple frames
-            // i.e. gifs or icons, we just care if it has at least one here
-            if (data.length < 1) return false;
-            BasicTreeNode rootNode = new UiHierarchyXmlLoader().parseXml(xmlDumpFile
-                    .getAbsolutePath());
-            if (rootNode == null) {
-                System.err.println("null rootnode after parsing.");
+        }
+        ImageData[] data = null;
+        try {
+            // use SWT's ImageLoader to read png from path
+            data = new ImageLoader().load(screenshotFile.getAbsolutePath());
+        } catch (SWTException e) {
+            e.printStackTrace();
+        }
+        // "data" is an array, probably used to handle images that has multiple frames
+        // i.e. gifs or icons, we just care if it has at least one here
+        if (data == null || data.length < 1) {
+            reportLoadError(generation, "Cannot load the screenshot " + screenshotFile);
+            return;
+        }
+        loadDump(generation, captureStart, data[0], null, screenshotFile, xmlDumpFile, cacheKey,
+                cacheFile);
+    }
+
+    /**
+     * Loads the dump held in memory, or else the dump file, progressively
+     */
+    private void loadDump(final int generation, long captureStart, final ImageData imageData,
+            byte[] xmlDump, final File screenshotFile, final File xmlDumpFile,
+            final String cacheKey, File cacheFile) {
+        final Snapshot[] partial = new Snapshot[1];
+        INodeBatchListener listener = new INodeBatchListener() {
+            @Override
+            public boolean onRootLoaded(BasicTreeNode root) {
+                // only published once the whole dump is loaded, but shown while it loads if
+                // there is no complete snapshot to keep showing meanwhile
+                partial[0] = Snapshot.createIncomplete(imageData, root, screenshotFile,
+                        xmlDumpFile);
+                return runInUiThread(generation, new Runnable() {
+                    @Override
+                    public void run() {
+                        showLoadingSnapshot(partial[0]);
+                    }
+                });
+            }
+
+            @Override
+            public boolean onBatchLoaded(final NodeBatch batch) {
+                return runInUiThread(generation, new Runnable() {
+                    @Override
+                    public void run() {
+                        batch.attach();
+                        if (mShownSnapshot == partial[0]) {
+                            mView.refreshTree();
+                        }
+                    }
+                });
+            }
+        };
+        BasicTreeNode rootNode = xmlDump != null ? mXmlLoader.parseXml(xmlDump, listener)
+                : mXmlLoader.parseXml(xmlDumpFile.getAbsolutePath(), listener);
+        if (rootNode == null) {
+            // a dump that turns out to be malformed halfway is dropped, along with what was
+            // shown of it
+            runInUiThread(generation, new Runnable() {
+                @Override
+                public void run() {
+                    dropLoadingSnapshot();
+                }
+            });
+            reportLoadError(generation, "Cannot parse the UI XML dump"
+                    + (xmlDumpFile != null ? " " + xmlDumpFile : ""));
+            return;
+        }
+        // the batches are attached in the UI thread, after the last one the tree is complete
+        if (!waitForUiThread() || generation != mLoadGeneration.get()) {
+            return;
+        }
+        Snapshot complete = partial[0].toComplete();
+        if (cacheKey != null) {
+            // unless another window has cached the same files meanwhile, in which case this
+            // window keeps its own tree, since it may be showing it already
+            Snapshot shared = mCache.put(cacheKey, complete);
+            if (shared == complete) {
+                complete = new Snapshot(shared, screenshotFile, xmlDumpFile, cacheKey);
+            } else {
+                mCache.release(cacheKey);
+            }
+        }
+        publish(generation, captureStart, complete);
+        if (cacheFile != null) {
+            writeCacheFile(cacheFile, imageData, complete.getRootNode());
+        }
+    }
+
+    /**
+     * Tells the user that a load failed, unless a newer load has started by then
+     */
+    private void reportLoadError(int generation, final String message) {
+        runInUiThread(generation, new Runnable() {
+            @Override
+            public void run() {
+                mView.showLoadError(message);
+            }
+        });
+    }
+
+    /**
+     * Waits for the UI thread to run everything handed to it so far
+     * @return false if the display is gone
+     */
+    private boolean waitForUiThread() {
+        try {
+            mDisplay.syncExec(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            return true;
+        } catch (SWTException e) {
+            // disposed meanwhile
+            return false;
+        }
+    }
+
+    /**
+     * Loads a snapshot written by {@link SnapshotFile} in the background
+     * @return true if the file exists and loading has started
+     */
+    public boolean loadSnapshot(final File snapshotFile) {
+        if (snapshotFile == null || !snapshotFile.isFile()) {
+            return false;
+        }
+        final int generation = mLoadGeneration.incrementAndGet();
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // not cached, so its strings shouldn't outlive it in the cache's pool
+                    SnapshotFile snapshot = SnapshotFile.read(snapshotFile, new StringPool());
+                    publish(generation, new Snapshot(snapshot.getImageData(),
+                            snapshot.getStore().getRootNode(), null, null));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    reportLoadError(generation, "Cannot read the snapshot " + snapshotFile);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Loads a snapshot of an archive in the background, opening the archive for as long as it
+     * takes to read the snapshot
+     * @param index the position of the snapshot among the entries of the archive
+     * @return true if the archive exists and loading has started
+     */
+    public boolean loadArchivedSnapshot(final File archiveFile, final int index) {
+        if (archiveFile == null || !archiveFile.isFile()) {
+            return false;
+        }
+        final int generation = mLoadGeneration.incrementAndGet();
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SnapshotArchive archive = null;
+                try {
+                    archive = SnapshotArchive.openReadOnly(archiveFile);
+                    SnapshotArchive.Entry entry = archive.getEntries().get(index);
+                    if (entry.hasScreenshot()) {
+                        ImageData[] data = new ImageLoader().load(
+                                new ByteArrayInputStream(archive.readScreenshot(entry)));
+                        HierarchyStore store = archive.readHierarchy(entry,
+                                new StringPool());
+                        publish(generation,
+                                new Snapshot(data[0], store.getRootNode(), null, null));
+                        return;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (SWTException e) {
+                    e.printStackTrace();
+                } catch (IndexOutOfBoundsException e) {
+                    e.printStackTrace();
+                } finally {
+                    if (archive != null) {
+                        try {
+                            archive.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                reportLoadError(generation, "Cannot read the snapshot from " + archiveFile);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Makes the snapshot the latest one, unless a newer load has started, and has the view
+     * catch up with it. Takes over the snapshot's reference to its cache entry, if any.
+     * @return false if the load is stale
+     */
+    private boolean publish(int generation, Snapshot snapshot) {
+        return publish(generation, 0, snapshot);
+    }
+
+    /**
+     * @param captureStart when the capture the snapshot comes from started, in
+     * System.nanoTime(), or 0 if it doesn't come from one
+     */
+    private boolean publish(int generation, long captureStart, final Snapshot snapshot) {
+        final String status = captureStart != 0 ? String.format("Captured in %d ms",
+                (System.nanoTime() - captureStart) / 1000000) : "";
+        // the tree shown is normally the one published last, whose changes are then ready
+        // by the time this one gets shown. Only a recapture is compared with it, a dump opened
+        // from disk usually has nothing to do with the screen shown before.
+        Changes changes = captureStart != 0 ? Changes.compute(mSnapshot.get(), snapshot) : null;
+        Snapshot current;
+        do {
+            if (generation != mLoadGeneration.get()) {
+                release(snapshot);
                 return false;
             }
+            current = mSnapshot.get();
+        } while (!mSnapshot.compareAndSet(current, snapshot));
+        release(current);
+        mChanges = changes;
+        if (mDisplay.isDisposed()) {
+            return false;
+        }
+        // not tied to the generation: whatever was published last gets shown
+        mDisplay.asyncExec(new Runnable() {
+            @Override
+            public void run() {
+                showLatestSnapshot();
+                if (!mDisposed && mSnapshot.get() == snapshot) {
+                    mView.setStatus(status);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Releases the reference the snapshot holds to its cache entry, if any
+     */
+    private void release(Snapshot snapshot) {
+        if (snapshot != null && snapshot.getCacheKey() != null) {
+            mCache.release(snapshot.getCacheKey());
+        }
+    }
+
+    /**
+     * @return the key the pair of files is cached under, in memory and on disk, which is a
+     * hash of their contents and of the load settings, or null if the files cannot be hashed
+     */
+    private String getCacheKey(File screenshotFile, File xmlDumpFile) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+        byte[] buffer = new byte[65536];
+        for (File file : new File[] { screenshotFile, xmlDumpFile }) {
             try {
-                // Image is tied to ImageData and a Display, so we only need to create once
-                // per new image
-                img = new Image(mView.getShell().getDisplay(), data[0]);
-            } catch (SWTException e) {
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        digest.update(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
                 e.printStackTrace();
-                return false;
+                return null;
             }
-            // only update screenhot and xml if both are loaded successfully
-            if (mScreenshot != null) {
-                mScreenshot.dispose();
-            }
-            mScreenshot = img;
-            if (mRootNode != null) {
-                mRootNode.clearAllChildren();
-            }
-            // TODO: we should verify here if the coordinates in the XML matches the png
-            // or not: think loading a phone screenshot with a tablet XML dump
-            mRootNode = rootNode;
-            mScreenshotFile = screenshotFile;
-            mXmlDumpFile = xmlDumpFile;
-            mExploreMode = true;
-            mView.loadScreenshotAndXml();
-            return true;
+            // keeps the boundary between the two files from being ambiguous
+            digest.update(ByteBuffer.allocate(8).putLong(file.length()).array());
         }
-        return false;
+        digest.update((byte) (mXmlLoader.getAttributeProjection() != null ? 1 : 0));
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Writes a copy of a fully loaded tree to the cache, rather than parsing the dump again
+     */
+    private void writeCacheFile(File cacheFile, ImageData imageData, BasicTreeNode root) {
+        HierarchyStore store = HierarchyStore.copyOf(root, new StringPool());
+        File dir = cacheFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.err.println("Cannot create snapshot cache directory " + dir);
+            return;
+        }
+        // write under a temporary name, so that no other viewer reads a partial entry
+        File tmpFile = new File(dir, cacheFile.getName() + ".tmp");
+        try {
+            SnapshotFile.write(tmpFile, imageData, store);
+            if (!tmpFile.renameTo(cacheFile)) {
+                cacheFile.delete();
+                if (!tmpFile.renameTo(cacheFile)) {
+                    throw new IOException("Cannot rename " + tmpFile + " to " + cacheFile);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmpFile.delete();
+            return;
+        }
+        pruneCache(dir);
+    }
+
+    /**
+     * Deletes the least recently used entries that don't fit in {@link #MAX_CACHE_BYTES},
+     * except for the most recent one
+     */
+    private static void pruneCache(File dir) {
+        File[] entries = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith("." + SnapshotFile.EXTENSION);
+            }
+        });
+        if (entries == null) {
+            return;
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(b.lastModified(), a.lastModified());
+            }
+        });
+        long size = 0;
+        for (int i = 0; i < entries.length; i++) {
+            size += entries[i].length();
+            if (i > 0 && size > MAX_CACHE_BYTES) {
+                entries[i].delete();
+            }
+        }
+    }
+
+    /**
+     * Runs the runnable in the UI thread, unless a newer load has started by then
+     * @return false if the load is stale
+     */
+    private boolean runInUiThread(final int generation, final Runnable runnable) {
+        if (generation != mLoadGeneration.get() || mDisplay.isDisposed()) {
+            return false;
+        }
+        mDisplay.asyncExec(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mLoadGeneration.get()) {
+                    runnable.run();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Shows the latest snapshot published. A snapshot still being loaded is replaced by the
+     * same tree once complete, without reloading the view.
+     */
+    private void showLatestSnapshot() {
+        Snapshot snapshot = mSnapshot.get();
+        if (mDisposed || snapshot == null || snapshot == mShownSnapshot) {
+            return;
+        }
+        if (mShownSnapshot != null && !mShownSnapshot.isComplete()
+                && mShownSnapshot.getRootNode() == snapshot.getRootNode()) {
+            mShownSnapshot = snapshot;
+            updateSearchResults();
+            updateUniqueLocators();
+            updateTouchTargets();
+            updateOverlapDepth();
+            updateFingerprints();
+            updatePixelDiff();
+            return;
+        }
+        showSnapshot(snapshot);
+    }
+
+    /**
+     * Shows a dump while it loads, unless a complete one is shown, which is kept until the
+     * new one is complete so that the changes between the two can be shown
+     */
+    private void showLoadingSnapshot(Snapshot snapshot) {
+        if (mDisposed || (mShownSnapshot != null && mShownSnapshot.isComplete())) {
+            return;
+        }
+        showSnapshot(snapshot);
+    }
+
+    /**
+     * Goes back from a dump that failed to load to the latest snapshot published, if what is
+     * shown is one still being loaded
+     */
+    private void dropLoadingSnapshot() {
+        if (mDisposed || mShownSnapshot == null || mShownSnapshot.isComplete()) {
+            return;
+        }
+        Snapshot latest = mSnapshot.get();
+        if (latest != null) {
+            showSnapshot(latest);
+            return;
+        }
+        if (mScreenshot != null) {
+            mScreenshot.dispose();
+            mScreenshot = null;
+        }
+        mShownSnapshot = null;
+        mSelectedNode = null;
+        mCurrentDrawingRect = null;
+        mHierarchyDiff = null;
+        mChangedNodes = Collections.emptySet();
+        mView.clearScreenshotAndXml();
+    }
+
+    private void showSnapshot(Snapshot snapshot) {
+        Snapshot previous = mShownSnapshot;
+        Image img = null;
+        try {
+            // Image is tied to ImageData and a Display, so we only need to create once
+            // per new image
+            img = new Image(mDisplay, snapshot.getImageData());
+        } catch (SWTException e) {
+            e.printStackTrace();
+            // only update screenhot and xml if both are loaded successfully, so go back to
+            // the snapshot shown, unless an even newer one has been published meanwhile
+            Snapshot shown = previous != null && previous.isComplete() ? previous : null;
+            if (snapshot.isComplete() && mSnapshot.compareAndSet(snapshot, shown)) {
+                release(snapshot);
+                if (shown != null && shown.getCacheKey() != null) {
+                    // its reference was released when it got replaced
+                    mCache.put(shown.getCacheKey(), shown);
+                }
+            }
+            mView.showLoadError("Cannot show the screenshot");
+            return;
+        }
+        if (mScreenshot != null) {
+            mScreenshot.dispose();
+        }
+        mScreenshot = img;
+        // the previous tree is left as it is, other threads may still be working with it
+        // TODO: we should verify here if the coordinates in the XML matches the png
+        // or not: think loading a phone screenshot with a tablet XML dump
+        mShownSnapshot = snapshot;
+        mExploreMode = true;
+        mLocatedRegion = null;
+        if (previous != null && previous.isComplete()) {
+            mPreviousImageData = previous.getImageData();
+        }
+        // a new capture of the device is shown as the changes to the previous snapshot
+        mHierarchyDiff = null;
+        mChangedNodes = Collections.emptySet();
+        Changes changes = mChanges;
+        if (changes != null && changes.mTo == snapshot) {
+            if (changes.mFrom == previous) {
+                mHierarchyDiff = changes.mDiff;
+                mChangedNodes = changes.mNodes;
+            }
+            // the previous tree isn't held on to any longer than the diff needs it
+            mChanges = null;
+        }
+        mView.loadScreenshotAndXml();
+        updateSearchResults();
+        updateUniqueLocators();
+        updateTouchTargets();
+        updateOverlapDepth();
+        updateFingerprints();
+        updatePixelDiff();
+    }
+
+    /**
+     * Stops loading and lets go of the snapshot, once the window is closed
+     */
+    public void dispose() {
+        mDisposed = true;
+        mLoadGeneration.incrementAndGet();
+        // snapshots are published from the load thread, releasing the last one from there
+        // makes sure no load still in progress publishes another one afterwards
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                release(mSnapshot.getAndSet(null));
+            }
+        });
+        mLoadExecutor.shutdown();
+        if (mScreenshot != null) {
+            mScreenshot.dispose();
+            mScreenshot = null;
+        }
+        mShownSnapshot = null;
+        indexFingerprints(null);
+    }
+
+    public boolean isLeanLoad() {
+        return mLeanLoad;
+    }
+
+    /**
+     * Sets whether dumps loaded from now on only keep the most commonly used attributes, the
+     * setting is remembered across sessions
+     */
+    public void setLeanLoad(final boolean leanLoad) {
+        mLeanLoad = leanLoad;
+        // the loader is only ever used from the load thread
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mXmlLoader.setAttributeProjection(
+                        leanLoad ? UiHierarchyXmlLoader.LEAN_ATTRIBUTES : null);
+            }
+        });
+        getPreferences().putBoolean(PREF_LEAN_LOAD, leanLoad);
+    }
+
+    public UiHierarchyXmlLoader.Mode getLoaderMode() {
+        return mLoaderMode;
+    }
+
+    /**
+     * Sets how dumps loaded from then on are parsed and held, the setting is remembered across
+     * sessions
+     */
+    public void setLoaderMode(final UiHierarchyXmlLoader.Mode mode) {
+        mLoaderMode = mode;
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                UiHierarchyXmlLoader loader = new UiHierarchyXmlLoader(mode);
+                loader.setAttributeProjection(mXmlLoader.getAttributeProjection());
+                mXmlLoader = loader;
+            }
+        });
+        getPreferences().put(PREF_LOADER_MODE, mode.name());
+    }
+
+    public boolean isStreamCaptures() {
+        return mStreamCaptures;
+    }
+
+    /**
+     * Sets whether device captures are streamed into memory rather than written to files on
+     * the device and pulled, the setting is remembered across sessions
+     */
+    public void setStreamCaptures(boolean streamCaptures) {
+        mStreamCaptures = streamCaptures;
+        getPreferences().putBoolean(PREF_STREAM_CAPTURES, streamCaptures);
     }
 
     public BasicTreeNode getXmlRootNode() {
-        return mRootNode;
+        return mShownSnapshot != null ? mShownSnapshot.getRootNode() : null;
     }
 
     public Image getScreenshot() {
@@ -162,15 +871,537 @@ public class UiAutomatorModel {
      * @param y
      */
     public void updateSelectionForCoordinates(int x, int y) {
-        if (mRootNode == null)
+        if (mShownSnapshot == null)
             return;
         MinAreaFindNodeListener listener = new MinAreaFindNodeListener();
-        boolean found = mRootNode.findLeafMostNodesAtPoint(x, y, listener);
+        // the tree is only walked while it is still loading
+        SpatialIndex index = mShownSnapshot.getSpatialIndex();
+        boolean found = index != null ? index.findLeafMostNodesAtPoint(x, y, listener)
+                : mShownSnapshot.getRootNode().findLeafMostNodesAtPoint(x, y, listener);
         if (found && listener.mNode != null && !listener.mNode.equals(mSelectedNode)) {
             mView.updateTreeSelection(listener.mNode);
         }
     }
 
+    /**
+     * Looks for the nodes of the shown snapshot with a text, content description, resource id
+     * or class containing <code>query</code>, ignoring case, or selected by it if it is an
+     * XPath expression, which the view then highlights
+     */
+    public void search(String query) {
+        mSearchQuery = query;
+        updateSearchResults();
+    }
+
+    private void updateSearchResults() {
+        final Snapshot snapshot = mShownSnapshot;
+        List<BasicTreeNode> results = Collections.emptyList();
+        mSearchError = null;
+        if (snapshot != null && !mSearchQuery.isEmpty()) {
+            if (snapshot.hasSearchIndexes()) {
+                if (isXPath(mSearchQuery)) {
+                    try {
+                        results = snapshot.getXPathEvaluator().evaluate(mSearchQuery);
+                    } catch (IllegalArgumentException e) {
+                        // most likely still being typed
+                        mSearchError = e.getMessage();
+                    }
+                } else {
+                    results = snapshot.getAttributeIndex().findSubstring(null, mSearchQuery);
+                }
+            } else if (snapshot.isComplete()) {
+                // the indexes are built on first use, which takes a while for large dumps, so
+                // they are built on the load thread and the search redone once they are ready
+                final int generation = mLoadGeneration.get();
+                mLoadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        snapshot.getXPathEvaluator();
+                        runInUiThread(generation, new Runnable() {
+                            @Override
+                            public void run() {
+                                if (snapshot == mShownSnapshot) {
+                                    updateSearchResults();
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        }
+        mSearchResults = results;
+        mSearchMatches = new HashSet<BasicTreeNode>(results);
+        mView.updateSearchResults();
+    }
+
+    private static boolean isXPath(String query) {
+        return query.startsWith("/") || query.startsWith("(");
+    }
+
+    /**
+     * @return why the search, an XPath expression, couldn't be evaluated, or null
+     */
+    public String getSearchError() {
+        return mSearchError;
+    }
+
+    /**
+     * @return the nodes matching the search, in document order
+     */
+    public List<BasicTreeNode> getSearchResults() {
+        return mSearchResults;
+    }
+
+    public boolean isSearchMatch(BasicTreeNode node) {
+        return mSearchMatches.contains(node);
+    }
+
+    /**
+     * Generates the unique locators of the shown snapshot on the load thread, once it is
+     * complete, and then shows the locator of the selected node
+     */
+    private void updateUniqueLocators() {
+        final Snapshot snapshot = mShownSnapshot;
+        if (snapshot == null || !snapshot.isComplete() || snapshot.hasUniqueLocators()) {
+            return;
+        }
+        final int generation = mLoadGeneration.get();
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                snapshot.getUniqueLocators();
+                runInUiThread(generation, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (snapshot == mShownSnapshot && mSelectedNode != null) {
+                            mView.loadAttributeTable();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the shortest locator that selects the node and no other in the shown snapshot,
+     * or null if it hasn't been generated yet
+     */
+    public String getUniqueLocator(BasicTreeNode node) {
+        Snapshot snapshot = mShownSnapshot;
+        if (snapshot == null || !snapshot.hasUniqueLocators()) {
+            return null;
+        }
+        return snapshot.getUniqueLocators().getLocator(node);
+    }
+
+    public boolean isShowTouchTargets() {
+        return mShowTouchTargets;
+    }
+
+    /**
+     * Sets whether the touch target conflicts of the shown snapshot are highlighted
+     */
+    public void setShowTouchTargets(boolean showTouchTargets) {
+        mShowTouchTargets = showTouchTargets;
+        mView.updateScreenshot();
+        updateTouchTargets();
+    }
+
+    /**
+     * @return the screen density of the device the snapshots come from, in dpi
+     */
+    public int getDensity() {
+        return mDensity;
+    }
+
+    /**
+     * Sets the screen density of the device the snapshots come from, in dpi, which the
+     * minimum touch target size of 48dp is converted to pixels with
+     */
+    public void setDensity(int density) {
+        if (density == mDensity) {
+            return;
+        }
+        mDensity = density;
+        mView.updateScreenshot();
+        updateTouchTargets();
+    }
+
+    /**
+     * Finds the touch target conflicts of the shown snapshot on the load thread, once it is
+     * complete, if they are shown, and then highlights them
+     */
+    private void updateTouchTargets() {
+        final Snapshot snapshot = mShownSnapshot;
+        final int minSize = TouchTargetAnalyzer.getMinSize(mDensity);
+        if (!mShowTouchTargets || snapshot == null || !snapshot.isComplete()
+                || snapshot.hasTouchTargetReport(minSize)) {
+            return;
+        }
+        final int generation = mLoadGeneration.get();
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                snapshot.getTouchTargetReport(minSize);
+                runInUiThread(generation, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (snapshot == mShownSnapshot) {
+                            mView.updateScreenshot();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the touch target conflicts of the shown snapshot, or null if they aren't shown
+     * or haven't been found yet
+     */
+    public TouchTargetAnalyzer.Report getTouchTargetReport() {
+        Snapshot snapshot = mShownSnapshot;
+        int minSize = TouchTargetAnalyzer.getMinSize(mDensity);
+        if (!mShowTouchTargets || snapshot == null || !snapshot.hasTouchTargetReport(minSize)) {
+            return null;
+        }
+        return snapshot.getTouchTargetReport(minSize);
+    }
+
+    public boolean isShowOverlapDepth() {
+        return mShowOverlapDepth;
+    }
+
+    /**
+     * Sets whether how many nodes cover each pixel of the shown snapshot is shown
+     */
+    public void setShowOverlapDepth(boolean showOverlapDepth) {
+        mShowOverlapDepth = showOverlapDepth;
+        mView.updateScreenshot();
+        if (mSelectedNode != null) {
+            mView.loadAttributeTable();
+        }
+        updateOverlapDepth();
+    }
+
+    /**
+     * Computes the overlap depths of the shown snapshot on the load thread, once it is
+     * complete, if they are shown, and then shows them
+     */
+    private void updateOverlapDepth() {
+        final Snapshot snapshot = mShownSnapshot;
+        if (!mShowOverlapDepth || snapshot == null || !snapshot.isComplete()
+                || snapshot.hasOverlapDepth()) {
+            return;
+        }
+        final int generation = mLoadGeneration.get();
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                snapshot.getOverlapDepth();
+                runInUiThread(generation, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (snapshot == mShownSnapshot) {
+                            mView.updateScreenshot();
+                            if (mSelectedNode != null) {
+                                mView.loadAttributeTable();
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    public boolean isShowPixelDiff() {
+        return mShowPixelDiff;
+    }
+
+    /**
+     * Sets whether the pixels of the shown screenshot that differ from the one shown before
+     * are shown
+     */
+    public void setShowPixelDiff(boolean showPixelDiff) {
+        mShowPixelDiff = showPixelDiff;
+        updatePixelDiff();
+    }
+
+    /**
+     * Compares the screenshot of the shown snapshot with the one shown before on the load
+     * thread, once the snapshot is complete, if the differences are shown, and then shows them
+     */
+    private void updatePixelDiff() {
+        final Snapshot snapshot = mShownSnapshot;
+        final ImageData previous = mPreviousImageData;
+        if (mPixelDiff != null) {
+            mPixelDiff = null;
+            mPixelChangedNodes = Collections.emptySet();
+            mView.updateTreeColors();
+        }
+        if (!mShowPixelDiff || snapshot == null || !snapshot.isComplete()
+                || previous == null) {
+            return;
+        }
+        final int generation = mLoadGeneration.get();
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final PixelDiff diff = PixelDiff.compute(previous, snapshot.getImageData(),
+                        PixelDiff.DEFAULT_THRESHOLD, snapshot.getRootNode());
+                runInUiThread(generation, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (snapshot == mShownSnapshot && mShowPixelDiff && diff != null) {
+                            mPixelDiff = diff;
+                            mPixelChangedNodes = new HashSet<BasicTreeNode>();
+                            for (PixelDiff.Region region : diff.getRegions()) {
+                                mPixelChangedNodes.addAll(region.getNodes());
+                            }
+                            mView.updateTreeColors();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return how the shown screenshot differs from the one shown before, or null if it isn't
+     * shown, hasn't been computed yet or they aren't of the same size
+     */
+    public PixelDiff getPixelDiff() {
+        return mPixelDiff;
+    }
+
+    /**
+     * @return whether the node is one of the deepest drawn where the shown screenshot differs
+     * from the one shown before
+     */
+    public boolean isPixelChangedNode(BasicTreeNode node) {
+        return mPixelChangedNodes.contains(node);
+    }
+
+    /**
+     * @return how many nodes cover each pixel of the shown snapshot, or null if it isn't
+     * shown or hasn't been computed yet
+     */
+    public OverlapDepth getOverlapDepth() {
+        Snapshot snapshot = mShownSnapshot;
+        if (!mShowOverlapDepth || snapshot == null || !snapshot.hasOverlapDepth()) {
+            return null;
+        }
+        return snapshot.getOverlapDepth();
+    }
+
+    /**
+     * Computes the fingerprints of the shown snapshot on the load thread, once it is complete,
+     * and then adds them to the index in place of those of the snapshot shown before
+     */
+    private void updateFingerprints() {
+        final Snapshot snapshot = mShownSnapshot;
+        if (snapshot != null && snapshot.isComplete() && snapshot.hasFingerprints()) {
+            indexFingerprints(snapshot.getFingerprints());
+            return;
+        }
+        indexFingerprints(null);
+        if (snapshot == null || !snapshot.isComplete()) {
+            return;
+        }
+        final int generation = mLoadGeneration.get();
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                snapshot.getFingerprints();
+                runInUiThread(generation, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (snapshot == mShownSnapshot) {
+                            indexFingerprints(snapshot.getFingerprints());
+                            if (mSelectedNode != null) {
+                                mView.loadAttributeTable();
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the fingerprints of the shown snapshot, or null if they haven't been computed yet
+     */
+    public NodeFingerprints getFingerprints() {
+        return mIndexedFingerprints;
+    }
+
+    private void indexFingerprints(NodeFingerprints fingerprints) {
+        if (fingerprints == mIndexedFingerprints) {
+            return;
+        }
+        if (mIndexedFingerprints != null) {
+            FingerprintIndex.getInstance().remove(mIndexedFingerprints);
+        }
+        if (fingerprints != null) {
+            FingerprintIndex.getInstance().add(fingerprints);
+        }
+        mIndexedFingerprints = fingerprints;
+    }
+
+    /**
+     * @return the other nodes that look like the node, in the shown snapshot and those shown
+     * in other windows, closest first, or null if the fingerprints of the shown snapshot
+     * haven't been computed yet or the node has none
+     */
+    public List<FingerprintIndex.Match> findSimilarNodes(BasicTreeNode node) {
+        NodeFingerprints fingerprints = mIndexedFingerprints;
+        int id = fingerprints != null && node != null ? fingerprints.getId(node) : -1;
+        if (id < 0) {
+            return null;
+        }
+        List<FingerprintIndex.Match> matches = FingerprintIndex.getInstance().find(
+                fingerprints.getFingerprint(id), FingerprintIndex.DEFAULT_MAX_DISTANCE);
+        for (int i = 0; i < matches.size(); i++) {
+            if (matches.get(i).getNode() == node) {
+                matches.remove(i);
+                break;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Highlights the nodes of the shown snapshot that look like the selected one, in place of
+     * the search results, until the search changes
+     */
+    public void showSimilarNodes() {
+        List<FingerprintIndex.Match> matches = findSimilarNodes(mSelectedNode);
+        if (matches == null) {
+            return;
+        }
+        final NodeFingerprints fingerprints = mIndexedFingerprints;
+        List<BasicTreeNode> results = new ArrayList<BasicTreeNode>();
+        for (FingerprintIndex.Match match : matches) {
+            if (match.getFingerprints() == fingerprints) {
+                results.add(match.getNode());
+            }
+        }
+        Collections.sort(results, new Comparator<BasicTreeNode>() {
+            @Override
+            public int compare(BasicTreeNode a, BasicTreeNode b) {
+                return fingerprints.getId(a) - fingerprints.getId(b);
+            }
+        });
+        mSearchError = null;
+        mSearchResults = results;
+        mSearchMatches = new HashSet<BasicTreeNode>(results);
+        mView.updateSearchResults();
+    }
+
+    /**
+     * Looks for the part of the screenshot under the selected node in the screenshots shown in
+     * the other windows, which then select the node where they find it
+     */
+    public void locateInOtherWindows() {
+        Snapshot snapshot = mShownSnapshot;
+        if (snapshot == null || !(mSelectedNode instanceof UiNode)) {
+            return;
+        }
+        ImageData image = snapshot.getImageData();
+        Rectangle area = new Rectangle(mSelectedNode.x, mSelectedNode.y, mSelectedNode.width,
+                mSelectedNode.height).intersection(
+                        new Rectangle(0, 0, image.width, image.height));
+        if (area.isEmpty()) {
+            return;
+        }
+        for (UiAutomatorViewer window : mView.getOtherWindows()) {
+            window.getModel().locate(image, area);
+        }
+    }
+
+    /**
+     * Looks for a part of another screenshot in the shown one on the load thread, and then
+     * selects the node that covers best where it was found
+     */
+    public void locate(final ImageData source, final Rectangle area) {
+        final Snapshot snapshot = mShownSnapshot;
+        if (snapshot == null) {
+            return;
+        }
+        final int generation = mLoadGeneration.get();
+        mLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final TemplateMatcher.Match match =
+                        TemplateMatcher.find(source, area, snapshot.getImageData());
+                runInUiThread(generation, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (snapshot == mShownSnapshot) {
+                            showLocatedRegion(match != null ? match.getBounds() : null);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void showLocatedRegion(final Rectangle region) {
+        mLocatedRegion = region;
+        if (region != null) {
+            // the node whose bounds overlap the region the most, relative to their union
+            final BasicTreeNode[] best = new BasicTreeNode[1];
+            final double[] bestOverlap = new double[1];
+            mShownSnapshot.getRootNode().accept(new BasicTreeNode.TreeVisitorAdapter() {
+                @Override
+                public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                    if (node instanceof UiNode) {
+                        Rectangle bounds = new Rectangle(node.x, node.y, node.width,
+                                node.height);
+                        Rectangle common = bounds.intersection(region);
+                        double overlap = (double) common.width * common.height / (
+                                (double) bounds.width * bounds.height
+                                + (double) region.width * region.height
+                                - (double) common.width * common.height);
+                        if (!common.isEmpty() && overlap > bestOverlap[0]) {
+                            best[0] = node;
+                            bestOverlap[0] = overlap;
+                        }
+                    }
+                    return BasicTreeNode.VisitResult.CONTINUE;
+                }
+            });
+            if (best[0] != null) {
+                mExploreMode = false;
+                mView.updateTreeSelection(best[0]);
+            }
+        }
+        mView.updateScreenshot();
+    }
+
+    /**
+     * @return where the part of the screenshot looked for from another window was found in
+     * the shown one, or null
+     */
+    public Rectangle getLocatedRegion() {
+        return mLocatedRegion;
+    }
+
+    /**
+     * @return the changes from the snapshot shown before to the one shown, or null if there
+     * was none or the tree was shown while it was being loaded
+     */
+    public HierarchyDiff getHierarchyDiff() {
+        return mHierarchyDiff;
+    }
+
+    /**
+     * @return whether the node was inserted, moved or changed since the snapshot shown before
+     */
+    public boolean isChangedNode(BasicTreeNode node) {
+        return mChangedNodes.contains(node);
+    }
+
     public boolean isExploreMode() {
         return mExploreMode;
     }
@@ -184,6 +1415,38 @@ public class UiAutomatorModel {
         mExploreMode = exploreMode;
     }
 
+    /**
+     * The changes from one complete snapshot to the capture published after it
+     */
+    private static class Changes {
+        final Snapshot mFrom;
+        final Snapshot mTo;
+        final HierarchyDiff mDiff;
+        // the nodes inserted, moved or changed
+        final Set<BasicTreeNode> mNodes;
+
+        private Changes(Snapshot from, Snapshot to, HierarchyDiff diff) {
+            mFrom = from;
+            mTo = to;
+            mDiff = diff;
+            mNodes = new HashSet<BasicTreeNode>(diff.getInserted());
+            mNodes.addAll(diff.getMoved());
+            mNodes.addAll(diff.getChanged());
+        }
+
+        /**
+         * @return the changes between the snapshots, or null if either isn't a complete tree
+         */
+        static Changes compute(Snapshot from, Snapshot to) {
+            if (from == null || !from.isComplete() || !to.isComplete()
+                    || from.getRootNode() == null || to.getRootNode() == null) {
+                return null;
+            }
+            return new Changes(from, to,
+                    HierarchyDiff.compute(from.getRootNode(), to.getRootNode()));
+        }
+    }
+
     private static class MinAreaFindNodeListener implements IFindNodeListener {
         BasicTreeNode mNode = null;
         @Override
@@ -17,21 +17,37 @@
 package com.android.uiautomator;
 
 import com.android.uiautomator.actions.ExpandAllAction;
+import com.android.uiautomator.actions.ExportCropsAction;
+import com.android.uiautomator.actions.FindSimilarAction;
 import com.android.uiautomator.actions.ImageHelper;
+import com.android.uiautomator.actions.LeanLoadAction;
+import com.android.uiautomator.actions.LoaderModeAction;
+import com.android.uiautomator.actions.LocateAction;
+import com.android.uiautomator.actions.NewWindowAction;
 import com.android.uiautomator.actions.OpenFilesAction;
+import com.android.uiautomator.actions.OverlapDepthAction;
+import com.android.uiautomator.actions.PixelDiffAction;
 import com.android.uiautomator.actions.ScreenshotAction;
+import com.android.uiautomator.actions.StreamCapturesAction;
+import com.android.uiautomator.actions.TouchTargetsAction;
 import com.android.uiautomator.tree.AttributePair;
 import com.android.uiautomator.tree.BasicTreeNode;
 import com.android.uiautomator.tree.BasicTreeNodeContentProvider;
+import com.android.uiautomator.tree.HierarchyDiff;
+import com.android.uiautomator.tree.OverlapDepth;
+import com.android.uiautomator.tree.TouchTargetAnalyzer;
 
 import org.eclipse.jface.action.Action;
 import org.eclipse.jface.action.ToolBarManager;
+import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.jface.layout.TableColumnLayout;
 import org.eclipse.jface.viewers.ArrayContentProvider;
 import org.eclipse.jface.viewers.CellEditor;
 import org.eclipse.jface.viewers.ColumnLabelProvider;
 import org.eclipse.jface.viewers.ColumnWeightData;
 import org.eclipse.jface.viewers.EditingSupport;
+import org.eclipse.jface.viewers.IColorProvider;
+import org.eclipse.jface.viewers.IElementComparer;
 import org.eclipse.jface.viewers.ISelectionChangedListener;
 import org.eclipse.jface.viewers.IStructuredSelection;
 import org.eclipse.jface.viewers.LabelProvider;
@@ -42,14 +58,23 @@ import org.eclipse.jface.viewers.TableViewerColumn;
 import org.eclipse.jface.viewers.TextCellEditor;
 import org.eclipse.jface.viewers.TreeViewer;
 import org.eclipse.jface.window.ApplicationWindow;
+import org.eclipse.jface.window.Window;
+import org.eclipse.jface.window.WindowManager;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.MouseAdapter;
 import org.eclipse.swt.events.MouseEvent;
+import org.eclipse.swt.events.ModifyEvent;
+import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.events.MouseMoveListener;
 import org.eclipse.swt.events.PaintEvent;
 import org.eclipse.swt.events.PaintListener;
+import org.eclipse.swt.events.SelectionAdapter;
+import org.eclipse.swt.events.SelectionEvent;
+import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.graphics.GC;
 import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
 import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.layout.FillLayout;
@@ -64,24 +89,68 @@ import org.eclipse.swt.widgets.Monitor;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.swt.widgets.Text;
 import org.eclipse.swt.widgets.Tree;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class UiAutomatorViewer extends ApplicationWindow {
 
     private static final int FIXED_RHS_WIDTH = 350;
     private static final int FIXED_DETAIL_VIEW_HEIGHT = 200;
     private static final int IMG_BORDER = 2;
-
+    // colors of the pixels covered by 2, 3, 4, and 5 or more nodes, as in the debug GPU
+    // overdraw of the device, those covered by fewer are left clear
+    private static final int[] HEATMAP_COLORS = { 0x0000FF, 0x00FF00, 0xFF80FF, 0xFF0000 };
+    private static final int HEATMAP_ALPHA = 0x70;
+    // changed pixels are drawn in this color, more opaque the more they changed
+    private static final int PIXEL_DIFF_COLOR = 0xFF4000;
+    private static final int PIXEL_DIFF_MIN_ALPHA = 0x60;
+
+    private UiAutomatorModel mModel;
     private Canvas mScreenshotCanvas;
     private TreeViewer mTreeViewer;
-
+    private TreeInput mTreeInput;
+    // what identifies the nodes of the tree shown to the tree viewer, which a node shares with
+    // the node of the tree shown before it was matched with, so that the tree viewer keeps its
+    // item, and the identities of the nodes of the tree shown before, while it is replaced;
+    // identities are plain objects, so that they don't keep the trees they came from around
+    private Map<BasicTreeNode, Object> mNodeIdentities =
+            new IdentityHashMap<BasicTreeNode, Object>();
+    private Map<BasicTreeNode, Object> mPreviousNodeIdentities;
+    private Text mSearchText;
+    // position in the search results of the node last selected by pressing enter
+    private int mSearchPosition = -1;
+
+    private Action mNewWindowAction;
     private Action mOpenFilesAction;
     private Action mExpandAllAction;
     private ScreenshotAction mScreenshotAction;
+    private Action mLeanLoadAction;
+    private LoaderModeAction mLoaderModeAction;
+    private Action mStreamCapturesAction;
+    private Action mTouchTargetsAction;
+    private Action mOverlapDepthAction;
+    private Action mPixelDiffAction;
+    private Action mFindSimilarAction;
+    private Action mLocateAction;
+    private Action mExportCropsAction;
     private TableViewer mTableViewer;
 
     private float mScale = 1.0f;
     private Image mCachedScaleImage = null;
+    // the heatmap of the overlap depths drawn over it, and the depths and scale it is for
+    private Image mCachedHeatmapImage;
+    private OverlapDepth mHeatmapDepth;
+    private float mHeatmapScale;
+    // the changed pixels drawn over it, and the differences and scale they are for
+    private Image mCachedPixelDiffImage;
+    private PixelDiff mPixelDiffImageDiff;
+    private float mPixelDiffImageScale;
 
     /**
      * Create the application window.
@@ -90,6 +159,8 @@ public class UiAutomatorViewer extends ApplicationWindow {
         super(null);
         setShellStyle(SWT.DIALOG_TRIM);
         createActions();
+        // tells how long captures took
+        addStatusLine();
     }
 
     /**
@@ -99,7 +170,7 @@ public class UiAutomatorViewer extends ApplicationWindow {
      */
     @Override
     protected Control createContents(Composite parent) {
-        UiAutomatorModel.createInstance(this);
+        mModel = new UiAutomatorModel(this);
 
         Composite basePane = new Composite(parent, SWT.NONE);
         basePane.setLayout(new GridLayout(2, false));
@@ -107,11 +178,11 @@ public class UiAutomatorViewer extends ApplicationWindow {
         mScreenshotCanvas.addMouseListener(new MouseAdapter() {
             @Override
             public void mouseUp(MouseEvent e) {
-                UiAutomatorModel.getModel().toggleExploreMode();
+                mModel.toggleExploreMode();
             }
         });
         mScreenshotCanvas.setBackground(getShell().getDisplay().getSystemColor(SWT.COLOR_BLACK));
-        mScreenshotCanvas.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true, 1, 3));
+        mScreenshotCanvas.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true, 1, 4));
         mScreenshotCanvas.addPaintListener(new PaintListener() {
             @Override
             public void paintControl(PaintEvent e) {
@@ -119,10 +190,30 @@ public class UiAutomatorViewer extends ApplicationWindow {
                     // shifting the image here, so that there's a border around screen shot
                     // this makes highlighting red rectangles on the screen shot edges more visible
                     e.gc.drawImage(mCachedScaleImage, IMG_BORDER, IMG_BORDER);
-                    Rectangle rect = UiAutomatorModel.getModel().getCurrentDrawingRect();
+                    OverlapDepth depth = mModel.getOverlapDepth();
+                    if (depth != null) {
+                        e.gc.drawImage(getHeatmapImage(depth), IMG_BORDER, IMG_BORDER);
+                    }
+                    PixelDiff pixelDiff = mModel.getPixelDiff();
+                    if (pixelDiff != null) {
+                        e.gc.drawImage(getPixelDiffImage(pixelDiff), IMG_BORDER, IMG_BORDER);
+                        e.gc.setForeground(
+                                e.gc.getDevice().getSystemColor(SWT.COLOR_DARK_RED));
+                        e.gc.setLineStyle(SWT.LINE_SOLID);
+                        e.gc.setLineWidth(1);
+                        for (PixelDiff.Region region : pixelDiff.getRegions()) {
+                            Rectangle bounds = region.getBounds();
+                            e.gc.drawRectangle(
+                                    IMG_BORDER + getScaledSize(bounds.x),
+                                    IMG_BORDER + getScaledSize(bounds.y),
+                                    getScaledSize(bounds.width),
+                                    getScaledSize(bounds.height));
+                        }
+                    }
+                    Rectangle rect = mModel.getCurrentDrawingRect();
                     if (rect != null) {
                         e.gc.setForeground(e.gc.getDevice().getSystemColor(SWT.COLOR_RED));
-                        if (UiAutomatorModel.getModel().isExploreMode()) {
+                        if (mModel.isExploreMode()) {
                             // when we highlight nodes dynamically on mouse move,
                             // use dashed borders
                             e.gc.setLineStyle(SWT.LINE_DASH);
@@ -139,14 +230,44 @@ public class UiAutomatorViewer extends ApplicationWindow {
                                 getScaledSize(rect.width),
                                 getScaledSize(rect.height));
                     }
+                    HierarchyDiff diff = mModel.getHierarchyDiff();
+                    if (diff != null) {
+                        // regions that changed since the previous capture
+                        e.gc.setLineStyle(SWT.LINE_DOT);
+                        drawNodes(e.gc, diff.getInserted(), SWT.COLOR_GREEN);
+                        drawNodes(e.gc, diff.getMoved(), SWT.COLOR_CYAN);
+                        drawNodes(e.gc, diff.getChanged(), SWT.COLOR_CYAN);
+                    }
+                    TouchTargetAnalyzer.Report touchTargets = mModel.getTouchTargetReport();
+                    if (touchTargets != null) {
+                        e.gc.setLineStyle(SWT.LINE_DASH);
+                        drawNodes(e.gc, touchTargets.getTooSmall(), SWT.COLOR_MAGENTA);
+                        e.gc.setLineStyle(SWT.LINE_SOLID);
+                        drawNodes(e.gc, touchTargets.getOverlapping(), SWT.COLOR_MAGENTA);
+                    }
+                    e.gc.setLineStyle(SWT.LINE_SOLID);
+                    drawNodes(e.gc, mModel.getSearchResults(), SWT.COLOR_YELLOW);
+                    Rectangle located = mModel.getLocatedRegion();
+                    if (located != null) {
+                        // where the part of another window's screenshot was found
+                        e.gc.setForeground(
+                                e.gc.getDevice().getSystemColor(SWT.COLOR_DARK_YELLOW));
+                        e.gc.setLineStyle(SWT.LINE_DASH);
+                        e.gc.setLineWidth(2);
+                        e.gc.drawRectangle(
+                                IMG_BORDER + getScaledSize(located.x),
+                                IMG_BORDER + getScaledSize(located.y),
+                                getScaledSize(located.width),
+                                getScaledSize(located.height));
+                    }
                 }
             }
         });
         mScreenshotCanvas.addMouseMoveListener(new MouseMoveListener() {
             @Override
             public void mouseMove(MouseEvent e) {
-                if (UiAutomatorModel.getModel().isExploreMode()) {
-                    UiAutomatorModel.getModel().updateSelectionForCoordinates(
+                if (mModel.isExploreMode()) {
+                    mModel.updateSelectionForCoordinates(
                             getInverseScaledSize(e.x - IMG_BORDER),
                             getInverseScaledSize(e.y - IMG_BORDER));
                 }
@@ -156,29 +277,67 @@ public class UiAutomatorViewer extends ApplicationWindow {
         mScreenshotCanvas.setBackgroundImage(ImageHelper.loadImageDescriptorFromResource("images/logo.png").createImage());
 
         ToolBarManager toolBarManager = new ToolBarManager(SWT.FLAT);
+        toolBarManager.add(mNewWindowAction);
         toolBarManager.add(mOpenFilesAction);
         toolBarManager.add(mExpandAllAction);
         toolBarManager.add(mScreenshotAction);
+        mStreamCapturesAction.setChecked(mModel.isStreamCaptures());
+        toolBarManager.add(mStreamCapturesAction);
+        mLeanLoadAction.setChecked(mModel.isLeanLoad());
+        toolBarManager.add(mLeanLoadAction);
+        mLoaderModeAction.update();
+        toolBarManager.add(mLoaderModeAction);
+        toolBarManager.add(mTouchTargetsAction);
+        toolBarManager.add(mOverlapDepthAction);
+        toolBarManager.add(mPixelDiffAction);
+        toolBarManager.add(mFindSimilarAction);
+        toolBarManager.add(mLocateAction);
+        toolBarManager.add(mExportCropsAction);
         toolBarManager.createControl(basePane);
 
+        mSearchText = new Text(basePane, SWT.SEARCH | SWT.ICON_SEARCH | SWT.ICON_CANCEL);
+        GridData gd_SearchText = new GridData(SWT.FILL, SWT.CENTER, false, false, 1, 1);
+        gd_SearchText.widthHint = 350;
+        mSearchText.setLayoutData(gd_SearchText);
+        mSearchText.setMessage("Find text, content-desc, resource-id or class, or an XPath");
+        mSearchText.addModifyListener(new ModifyListener() {
+            @Override
+            public void modifyText(ModifyEvent e) {
+                mModel.search(mSearchText.getText());
+            }
+        });
+        mSearchText.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetDefaultSelected(SelectionEvent e) {
+                // enter goes through the matches
+                List<BasicTreeNode> matches = mModel.getSearchResults();
+                if (!matches.isEmpty()) {
+                    mSearchPosition = (mSearchPosition + 1) % matches.size();
+                    mModel.setExploreMode(false);
+                    updateTreeSelection(matches.get(mSearchPosition));
+                }
+            }
+        });
+
         mTreeViewer = new TreeViewer(basePane, SWT.BORDER);
         Tree tree = mTreeViewer.getTree();
         GridData gd_Tree = new GridData(SWT.FILL, SWT.FILL, false, true, 1, 1);
         gd_Tree.widthHint = 350;
         tree.setLayoutData(gd_Tree);
         mTreeViewer.setContentProvider(new BasicTreeNodeContentProvider());
+        mTreeViewer.setComparer(new NodeComparer());
         // default LabelProvider uses toString() to generate text to display
-        mTreeViewer.setLabelProvider(new LabelProvider());
+        mTreeViewer.setLabelProvider(new SearchLabelProvider());
         mTreeViewer.addSelectionChangedListener(new ISelectionChangedListener() {
             @Override
             public void selectionChanged(SelectionChangedEvent event) {
                 if (event.getSelection().isEmpty()) {
-                    UiAutomatorModel.getModel().setSelectedNode(null);
+                    mModel.setSelectedNode(null);
                 } else if (event.getSelection() instanceof IStructuredSelection) {
                     IStructuredSelection selection = (IStructuredSelection) event.getSelection();
                     Object o = selection.toArray()[0];
                     if (o instanceof BasicTreeNode) {
-                        UiAutomatorModel.getModel().setSelectedNode((BasicTreeNode)o);
+                        mModel.setSelectedNode((BasicTreeNode)o);
                     }
                 }
             }
@@ -246,9 +405,19 @@ public class UiAutomatorViewer extends ApplicationWindow {
      * Create the actions.
      */
     private void createActions() {
+        mNewWindowAction = new NewWindowAction(this);
         mOpenFilesAction = new OpenFilesAction(this);
         mExpandAllAction = new ExpandAllAction(this);
         mScreenshotAction = new ScreenshotAction(this);
+        mLeanLoadAction = new LeanLoadAction(this);
+        mLoaderModeAction = new LoaderModeAction(this);
+        mStreamCapturesAction = new StreamCapturesAction(this);
+        mTouchTargetsAction = new TouchTargetsAction(this);
+        mOverlapDepthAction = new OverlapDepthAction(this);
+        mPixelDiffAction = new PixelDiffAction(this);
+        mFindSimilarAction = new FindSimilarAction(this);
+        mLocateAction = new LocateAction(this);
+        mExportCropsAction = new ExportCropsAction(this);
     }
 
     /**
@@ -258,15 +427,66 @@ public class UiAutomatorViewer extends ApplicationWindow {
      */
     public static void main(String args[]) {
         try {
+            // all windows run in this process, and share the snapshots they have open
+            WindowManager windows = new WindowManager();
             UiAutomatorViewer window = new UiAutomatorViewer();
-            window.setBlockOnOpen(true);
+            windows.add(window);
             window.open();
-            Display.getCurrent().dispose();
+            Display display = Display.getCurrent();
+            // closed windows remove themselves from the manager
+            while (windows.getWindowCount() > 0) {
+                if (!display.readAndDispatch()) {
+                    display.sleep();
+                }
+            }
+            display.dispose();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    public UiAutomatorModel getModel() {
+        return mModel;
+    }
+
+    /**
+     * @return the other viewer windows that are open
+     */
+    public List<UiAutomatorViewer> getOtherWindows() {
+        List<UiAutomatorViewer> others = new ArrayList<UiAutomatorViewer>();
+        if (getWindowManager() != null) {
+            for (Window window : getWindowManager().getWindows()) {
+                if (window != this && window instanceof UiAutomatorViewer
+                        && ((UiAutomatorViewer) window).getModel() != null) {
+                    others.add((UiAutomatorViewer) window);
+                }
+            }
+        }
+        return others;
+    }
+
+    /**
+     * Opens another, empty, viewer window
+     */
+    public void openNewWindow() {
+        UiAutomatorViewer window = new UiAutomatorViewer();
+        if (getWindowManager() != null) {
+            getWindowManager().add(window);
+        }
+        window.open();
+    }
+
+    @Override
+    public boolean close() {
+        if (!super.close()) {
+            return false;
+        }
+        if (mModel != null) {
+            mModel.dispose();
+        }
+        return true;
+    }
+
     /**
      * Configure the shell.
      *
@@ -285,20 +505,46 @@ public class UiAutomatorViewer extends ApplicationWindow {
      */
     public void loadScreenshotAndXml() {
         // re-layout screenshot canvas
-        GridData gd = new GridData(SWT.CENTER, SWT.CENTER, true, true, 1, 3);
-        Rectangle r = UiAutomatorModel.getModel().getScreenshot().getBounds();
+        GridData gd = new GridData(SWT.CENTER, SWT.CENTER, true, true, 1, 4);
+        Rectangle r = mModel.getScreenshot().getBounds();
         mScale = calcScreenshotScale(r.width, r.height);
-        updateScaledImage(UiAutomatorModel.getModel().getScreenshot());
+        updateScaledImage(mModel.getScreenshot());
         gd.minimumHeight = getScaledSize(r.height) + 2 * IMG_BORDER;
         gd.minimumWidth = getScaledSize(r.width) + 2 * IMG_BORDER;
         mScreenshotCanvas.setLayoutData(gd);
 
         // load xml into tree
-        BasicTreeNode wrapper = new BasicTreeNode();
-        // putting another root node on top of existing root node
-        // because Tree seems to like to hide the root node
-        wrapper.addChild(UiAutomatorModel.getModel().getXmlRootNode());
-        mTreeViewer.setInput(wrapper);
+        HierarchyDiff diff = mModel.getHierarchyDiff();
+        if (diff != null && mTreeInput != null) {
+            // the items of nodes matched with nodes shown are kept, along with whether they
+            // are expanded, and only the changes are applied
+            mPreviousNodeIdentities = mNodeIdentities;
+            mNodeIdentities = new IdentityHashMap<BasicTreeNode, Object>();
+            mModel.getXmlRootNode().accept(new BasicTreeNode.TreeVisitorAdapter() {
+                @Override
+                public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                    BasicTreeNode match = mModel.getHierarchyDiff().getOldNode(node);
+                    mNodeIdentities.put(node, match != null ? getIdentity(match) : new Object());
+                    return BasicTreeNode.VisitResult.CONTINUE;
+                }
+            });
+            mTreeInput.mRoot = mModel.getXmlRootNode();
+            // labels of matched nodes change along with their attributes or index
+            mTreeViewer.refresh(true);
+            mPreviousNodeIdentities = null;
+            // the selection now holds the match of the node selected, if it has one
+            IStructuredSelection selection = (IStructuredSelection) mTreeViewer.getSelection();
+            BasicTreeNode selected = (BasicTreeNode) selection.getFirstElement();
+            if (selected != mModel.getSelectedNode()) {
+                mModel.setSelectedNode(selected);
+            }
+        } else {
+            mNodeIdentities.clear();
+            // putting another root node on top of existing root node
+            // because Tree seems to like to hide the root node
+            mTreeInput = new TreeInput(mModel.getXmlRootNode());
+            mTreeViewer.setInput(mTreeInput);
+        }
         mTreeViewer.getTree().setFocus();
 
         // resize & reposition window
@@ -306,6 +552,58 @@ public class UiAutomatorViewer extends ApplicationWindow {
         adjustShellLocation();
     }
 
+    /**
+     * Empties the screenshot area and tree view, after a dump that was being shown failed to
+     * load and there is nothing to go back to
+     */
+    public void clearScreenshotAndXml() {
+        // unscaled, this is the screenshot the model has disposed of already
+        if (mCachedScaleImage != null && !mCachedScaleImage.isDisposed()) {
+            mCachedScaleImage.dispose();
+        }
+        mCachedScaleImage = null;
+        mNodeIdentities.clear();
+        mTreeInput = null;
+        mTreeViewer.setInput(null);
+        mTableViewer.setInput(null);
+        mScreenshotCanvas.redraw();
+    }
+
+    /**
+     * Tells the user that a screenshot or XML dump couldn't be loaded
+     */
+    public void showLoadError(String message) {
+        MessageDialog.openError(getShell(), "Error", message);
+    }
+
+    /**
+     * Shows nodes added to the tree since it was loaded or last refreshed
+     */
+    public void refreshTree() {
+        // labels of nodes already shown don't change
+        mTreeViewer.refresh(false);
+    }
+
+    /**
+     * Highlights the nodes matching the search in the tree and on the screenshot, and
+     * reveals the first one
+     */
+    public void updateSearchResults() {
+        mSearchPosition = -1;
+        String error = mModel.getSearchError();
+        mSearchText.setForeground(error != null
+                ? getShell().getDisplay().getSystemColor(SWT.COLOR_RED) : null);
+        mSearchText.setToolTipText(error);
+        if (mTreeViewer.getInput() != null) {
+            mTreeViewer.refresh(true);
+            List<BasicTreeNode> matches = mModel.getSearchResults();
+            if (!matches.isEmpty()) {
+                mTreeViewer.reveal(matches.get(0));
+            }
+        }
+        mScreenshotCanvas.redraw();
+    }
+
     /*
      * Causes a redraw of the canvas.
      *
@@ -316,6 +614,16 @@ public class UiAutomatorViewer extends ApplicationWindow {
         mScreenshotCanvas.redraw();
     }
 
+    /**
+     * Updates the colors of the nodes of the tree, once the nodes they depend on are known
+     */
+    public void updateTreeColors() {
+        if (mTreeViewer.getInput() != null) {
+            mTreeViewer.refresh(true);
+        }
+        mScreenshotCanvas.redraw();
+    }
+
     public void expandAll() {
         mTreeViewer.expandAll();
     }
@@ -326,8 +634,32 @@ public class UiAutomatorViewer extends ApplicationWindow {
 
     public void loadAttributeTable() {
         // udpate the lower right corner table to show the attributes of the node
-        mTableViewer.setInput(
-                UiAutomatorModel.getModel().getSelectedNode().getAttributesArray());
+        Object[] attributes = mModel.getSelectedNode().getAttributesArray();
+        String locator = mModel.getUniqueLocator(mModel.getSelectedNode());
+        if (attributes != null && locator != null) {
+            attributes = Arrays.copyOf(attributes, attributes.length + 1);
+            attributes[attributes.length - 1] = new AttributePair("locator", locator);
+        }
+        OverlapDepth depth = mModel.getOverlapDepth();
+        double[] stats = depth != null ? depth.getStats(mModel.getSelectedNode()) : null;
+        if (attributes != null && stats != null) {
+            attributes = Arrays.copyOf(attributes, attributes.length + 1);
+            attributes[attributes.length - 1] = new AttributePair("subtree overlap depth",
+                    String.format("max %d, mean %.1f", (int) stats[0], stats[1]));
+        }
+        List<FingerprintIndex.Match> similar = mModel.findSimilarNodes(mModel.getSelectedNode());
+        if (attributes != null && similar != null) {
+            int here = 0;
+            for (FingerprintIndex.Match match : similar) {
+                if (match.getFingerprints() == mModel.getFingerprints()) {
+                    here++;
+                }
+            }
+            attributes = Arrays.copyOf(attributes, attributes.length + 1);
+            attributes[attributes.length - 1] = new AttributePair("look-alikes",
+                    String.format("%d here, %d in other windows", here, similar.size() - here));
+        }
+        mTableViewer.setInput(attributes);
     }
 
     @Override
@@ -388,6 +720,76 @@ public class UiAutomatorViewer extends ApplicationWindow {
         mCachedScaleImage = scaled;
     }
 
+    /**
+     * @return the heatmap of the depths at the scale of the screenshot, made once for each
+     */
+    private Image getHeatmapImage(OverlapDepth depth) {
+        if (mCachedHeatmapImage != null && mHeatmapDepth == depth && mHeatmapScale == mScale) {
+            return mCachedHeatmapImage;
+        }
+        int width = getScaledSize(depth.getWidth());
+        int height = getScaledSize(depth.getHeight());
+        ImageData data = new ImageData(width, height, 24,
+                new PaletteData(0xFF0000, 0x00FF00, 0x0000FF));
+        int[] pixels = new int[width];
+        byte[] alphas = new byte[width];
+        for (int y = 0; y < height; y++) {
+            int sourceY = Math.min((int) (y / mScale), depth.getHeight() - 1);
+            for (int x = 0; x < width; x++) {
+                int sourceX = Math.min((int) (x / mScale), depth.getWidth() - 1);
+                int color = depth.getDepth(sourceX, sourceY) - 2;
+                pixels[x] = color < 0 ? 0
+                        : HEATMAP_COLORS[Math.min(color, HEATMAP_COLORS.length - 1)];
+                alphas[x] = (byte) (color < 0 ? 0 : HEATMAP_ALPHA);
+            }
+            data.setPixels(0, y, width, pixels, 0);
+            data.setAlphas(0, y, width, alphas, 0);
+        }
+        if (mCachedHeatmapImage != null) {
+            mCachedHeatmapImage.dispose();
+        }
+        mCachedHeatmapImage = new Image(getShell().getDisplay(), data);
+        mHeatmapDepth = depth;
+        mHeatmapScale = mScale;
+        return mCachedHeatmapImage;
+    }
+
+    /**
+     * @return the changed pixels at the scale of the screenshot, made once for each
+     * differences
+     */
+    private Image getPixelDiffImage(PixelDiff diff) {
+        if (mCachedPixelDiffImage != null && mPixelDiffImageDiff == diff
+                && mPixelDiffImageScale == mScale) {
+            return mCachedPixelDiffImage;
+        }
+        int width = getScaledSize(diff.getWidth());
+        int height = getScaledSize(diff.getHeight());
+        ImageData data = new ImageData(width, height, 24,
+                new PaletteData(0xFF0000, 0x00FF00, 0x0000FF));
+        int[] pixels = new int[width];
+        Arrays.fill(pixels, PIXEL_DIFF_COLOR);
+        byte[] alphas = new byte[width];
+        for (int y = 0; y < height; y++) {
+            int sourceY = Math.min((int) (y / mScale), diff.getHeight() - 1);
+            for (int x = 0; x < width; x++) {
+                int sourceX = Math.min((int) (x / mScale), diff.getWidth() - 1);
+                int difference = diff.getDifference(sourceX, sourceY);
+                alphas[x] = (byte) (difference == 0 ? 0 : PIXEL_DIFF_MIN_ALPHA
+                        + (0xFF - PIXEL_DIFF_MIN_ALPHA) * difference / 0xFF);
+            }
+            data.setPixels(0, y, width, pixels, 0);
+            data.setAlphas(0, y, width, alphas, 0);
+        }
+        if (mCachedPixelDiffImage != null) {
+            mCachedPixelDiffImage.dispose();
+        }
+        mCachedPixelDiffImage = new Image(getShell().getDisplay(), data);
+        mPixelDiffImageDiff = diff;
+        mPixelDiffImageScale = mScale;
+        return mCachedPixelDiffImage;
+    }
+
     /**
      * Find out which monitor the current window's top left corner is in
      *
@@ -432,6 +834,104 @@ public class UiAutomatorViewer extends ApplicationWindow {
         }
     }
 
+    private void drawNodes(GC gc, List<BasicTreeNode> nodes, int color) {
+        gc.setForeground(gc.getDevice().getSystemColor(color));
+        gc.setLineWidth(1);
+        for (BasicTreeNode node : nodes) {
+            gc.drawRectangle(
+                    IMG_BORDER + getScaledSize(node.x),
+                    IMG_BORDER + getScaledSize(node.y),
+                    getScaledSize(node.width),
+                    getScaledSize(node.height));
+        }
+    }
+
+    /**
+     * @return what identifies the element to the tree viewer: for a node, the identity it
+     * shares with the node it was matched with in the tree shown before, or one of its own
+     */
+    private Object getIdentity(Object element) {
+        if (!(element instanceof BasicTreeNode)) {
+            return element;
+        }
+        Object identity = mNodeIdentities.get(element);
+        if (identity == null && mPreviousNodeIdentities != null) {
+            identity = mPreviousNodeIdentities.get(element);
+        }
+        if (identity == null) {
+            // while the tree is replaced, every node of the new one has its identity already
+            identity = new Object();
+            (mPreviousNodeIdentities != null ? mPreviousNodeIdentities : mNodeIdentities)
+                    .put((BasicTreeNode) element, identity);
+        }
+        return identity;
+    }
+
+    /**
+     * Tells the tree viewer that nodes matched with nodes shown before are the same elements
+     */
+    private class NodeComparer implements IElementComparer {
+
+        @Override
+        public boolean equals(Object a, Object b) {
+            return getIdentity(a) == getIdentity(b);
+        }
+
+        @Override
+        public int hashCode(Object element) {
+            return System.identityHashCode(getIdentity(element));
+        }
+    }
+
+    /**
+     * The input of the tree viewer, whose only child is the root of the tree shown
+     */
+    private static class TreeInput extends BasicTreeNode {
+        BasicTreeNode mRoot;
+
+        TreeInput(BasicTreeNode root) {
+            mRoot = root;
+        }
+
+        @Override
+        public BasicTreeNode[] getChildren() {
+            return new BasicTreeNode[] { mRoot };
+        }
+
+        @Override
+        public boolean hasChild() {
+            return true;
+        }
+    }
+
+    /**
+     * Labels tree nodes with their toString(), on a yellow background if they match the search,
+     * in green if they changed since the previous capture, or else in red if they are drawn
+     * where its pixels changed
+     */
+    private class SearchLabelProvider extends LabelProvider implements IColorProvider {
+
+        @Override
+        public Color getForeground(Object element) {
+            if (element instanceof BasicTreeNode && mModel.isChangedNode((BasicTreeNode) element)) {
+                return getShell().getDisplay().getSystemColor(SWT.COLOR_DARK_GREEN);
+            }
+            if (element instanceof BasicTreeNode
+                    && mModel.isPixelChangedNode((BasicTreeNode) element)) {
+                return getShell().getDisplay().getSystemColor(SWT.COLOR_DARK_RED);
+            }
+            return null;
+        }
+
+        @Override
+        public Color getBackground(Object element) {
+            if (element instanceof BasicTreeNode && mModel.isSearchMatch((BasicTreeNode) element)) {
+                return getShell().getDisplay().getSystemColor(SWT.COLOR_YELLOW);
+            }
+            return null;
+        }
+    }
+
     private class AttributeTableEditingSupport extends EditingSupport {
 
         private TableViewer mViewer;
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.actions;
+
+import com.android.uiautomator.CropExtractor;
+import com.android.uiautomator.Snapshot;
+import com.android.uiautomator.UiAutomatorViewer;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jface.action.Action;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.jface.dialogs.ProgressMonitorDialog;
+import org.eclipse.jface.operation.IRunnableWithProgress;
+import org.eclipse.swt.widgets.DirectoryDialog;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Writes the crop of the screenshot under each node of the shown snapshot to a directory
+ */
+public class ExportCropsAction extends Action {
+
+    UiAutomatorViewer mWindow;
+
+    public ExportCropsAction(UiAutomatorViewer window) {
+        super("E&xport Crops...");
+        mWindow = window;
+        setToolTipText("Write the part of the screenshot under each node to its own file");
+    }
+
+    @Override
+    public void run() {
+        final Snapshot snapshot = mWindow.getModel().getSnapshot();
+        if (snapshot == null || !snapshot.isComplete()) {
+            MessageDialog.openInformation(mWindow.getShell(), "Export Crops",
+                    "Crops can be exported once the snapshot is loaded");
+            return;
+        }
+        DirectoryDialog dialog = new DirectoryDialog(mWindow.getShell());
+        dialog.setMessage("Directory to write the crops to");
+        String path = dialog.open();
+        if (path == null) {
+            return;
+        }
+        final File dir = new File(path);
+        final int[] written = new int[1];
+        try {
+            new ProgressMonitorDialog(mWindow.getShell()).run(true, false,
+                    new IRunnableWithProgress() {
+                @Override
+                public void run(IProgressMonitor monitor) {
+                    monitor.beginTask("Writing crops...", IProgressMonitor.UNKNOWN);
+                    written[0] = CropExtractor.extract(snapshot.getImageData(),
+                            snapshot.getRootNode(), snapshot.getUniqueLocators(), dir,
+                            Runtime.getRuntime().availableProcessors());
+                    monitor.done();
+                }
+            });
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+            written[0] = -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (written[0] < 0) {
+            MessageDialog.openError(mWindow.getShell(), "Export Crops",
+                    "Could not write the crops to " + dir);
+        } else {
+            MessageDialog.openInformation(mWindow.getShell(), "Export Crops",
+                    String.format("%d crops written to %s", written[0], dir));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.actions;
+
+import com.android.uiautomator.UiAutomatorViewer;
+
+import org.eclipse.jface.action.Action;
+import org.eclipse.jface.action.IAction;
+
+/**
+ * Toggles the "lean load" preference: when checked, dumps loaded from then on only keep the
+ * attributes listed in {@link com.android.uiautomator.tree.UiHierarchyXmlLoader#LEAN_ATTRIBUTES}
+ */
+public class LeanLoadAction extends Action {
+
+    UiAutomatorViewer mWindow;
+
+    public LeanLoadAction(UiAutomatorViewer window) {
+        super("&Lean Load", IAction.AS_CHECK_BOX);
+        mWindow = window;
+        setToolTipText("Only keep class, resource-id, text, content-desc, index, bounds,"
+                + " clickable and visible-to-user attributes of the next dumps loaded");
+    }
+
+    @Override
+    public void run() {
+        mWindow.getModel().setLeanLoad(isChecked());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.actions;
+
+import com.android.uiautomator.UiAutomatorViewer;
+import com.android.uiautomator.tree.UiHierarchyXmlLoader;
+
+import org.eclipse.jface.action.Action;
+import org.eclipse.jface.action.ActionContributionItem;
+import org.eclipse.jface.action.IAction;
+import org.eclipse.jface.action.IMenuCreator;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Menu;
+
+/**
+ * Picks how the next dumps are loaded, from a drop-down of the
+ * {@link UiHierarchyXmlLoader.Mode}s; clicking the button itself moves on to the next mode
+ */
+public class LoaderModeAction extends Action implements IMenuCreator {
+
+    UiAutomatorViewer mWindow;
+    private Menu mMenu;
+
+    public LoaderModeAction(UiAutomatorViewer window) {
+        super("Loader", IAction.AS_DROP_DOWN_MENU);
+        mWindow = window;
+        setMenuCreator(this);
+    }
+
+    private static String getLabel(UiHierarchyXmlLoader.Mode mode) {
+        switch (mode) {
+            case SAX:
+                return "SAX";
+            case COLUMNAR:
+                return "Columnar";
+            case MAPPED:
+                return "Mapped";
+            default:
+                return "Streaming";
+        }
+    }
+
+    /**
+     * Shows the mode the model loads with
+     */
+    public void update() {
+        UiHierarchyXmlLoader.Mode mode = mWindow.getModel().getLoaderMode();
+        setText("Loader: " + getLabel(mode));
+        setToolTipText("Load the next dumps with the " + getLabel(mode).toLowerCase()
+                + " loader, the columnar and mapped ones hold large dumps in less memory");
+    }
+
+    private void setMode(UiHierarchyXmlLoader.Mode mode) {
+        if (mode != mWindow.getModel().getLoaderMode()) {
+            mWindow.getModel().setLoaderMode(mode);
+            update();
+        }
+    }
+
+    @Override
+    public void run() {
+        UiHierarchyXmlLoader.Mode[] modes = UiHierarchyXmlLoader.Mode.values();
+        setMode(modes[(mWindow.getModel().getLoaderMode().ordinal() + 1) % modes.length]);
+    }
+
+    @Override
+    public Menu getMenu(Control parent) {
+        dispose();
+        mMenu = new Menu(parent);
+        for (final UiHierarchyXmlLoader.Mode mode : UiHierarchyXmlLoader.Mode.values()) {
+            Action item = new Action(getLabel(mode), IAction.AS_RADIO_BUTTON) {
+                @Override
+                public void run() {
+                    if (isChecked()) {
+                        setMode(mode);
+                    }
+                }
+            };
+            item.setChecked(mode == mWindow.getModel().getLoaderMode());
+            new ActionContributionItem(item).fill(mMenu, -1);
+        }
+        return mMenu;
+    }
+
+    @Override
+    public Menu getMenu(Menu parent) {
+        return null;
+    }
+
+    @Override
+    public void dispose() {
+        if (mMenu != null) {
+            mMenu.dispose();
+            mMenu = null;
+        }
+    }
+}
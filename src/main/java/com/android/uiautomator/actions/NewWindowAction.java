@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.actions;
+
+import com.android.uiautomator.UiAutomatorViewer;
+
+import org.eclipse.jface.action.Action;
+
+public class NewWindowAction extends Action {
+
+    UiAutomatorViewer mWindow;
+
+    public NewWindowAction(UiAutomatorViewer window) {
+        mWindow = window;
+        setText("&New Window");
+        setToolTipText("Open another window, to look at several captures side by side");
+    }
+
+    @Override
+    public void run() {
+        mWindow.openNewWindow();
+    }
+}
@@ -16,18 +16,17 @@
 
 package com.android.uiautomator.actions;
 
-import com.android.uiautomator.UiAutomatorModel;
 import com.android.uiautomator.OpenDialog;
+import com.android.uiautomator.UiAutomatorViewer;
 
 import org.eclipse.jface.action.Action;
 import org.eclipse.jface.resource.ImageDescriptor;
-import org.eclipse.jface.window.ApplicationWindow;
 
 public class OpenFilesAction extends Action {
 
-    ApplicationWindow mWindow;
+    UiAutomatorViewer mWindow;
 
-    public OpenFilesAction(ApplicationWindow window) {
+    public OpenFilesAction(UiAutomatorViewer window) {
         mWindow = window;
         setText("&Open");
     }
@@ -39,10 +38,17 @@ public class OpenFilesAction extends Action {
 
     @Override
     public void run() {
-        OpenDialog d = new OpenDialog(mWindow.getShell());
+        OpenDialog d = new OpenDialog(mWindow.getShell(), mWindow.getModel());
         if (d.open() == OpenDialog.OK) {
-            UiAutomatorModel.getModel().loadScreenshotAndXmlDump(
-                    d.getScreenshotFile(), d.getXmlDumpFile());
+            if (d.getSnapshotFile() != null) {
+                mWindow.getModel().loadSnapshot(d.getSnapshotFile());
+            } else if (d.getArchiveFile() != null) {
+                mWindow.getModel().loadArchivedSnapshot(d.getArchiveFile(),
+                        d.getArchiveEntry());
+            } else {
+                mWindow.getModel().loadScreenshotAndXmlDump(
+                        d.getScreenshotFile(), d.getXmlDumpFile());
+            }
         }
     }
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.actions;
+
+import com.android.uiautomator.UiAutomatorViewer;
+
+import org.eclipse.jface.action.Action;
+import org.eclipse.jface.action.IAction;
+
+/**
+ * Toggles the heatmap of how many nodes cover each pixel of the screenshot
+ */
+public class OverlapDepthAction extends Action {
+
+    UiAutomatorViewer mWindow;
+
+    public OverlapDepthAction(UiAutomatorViewer window) {
+        super("&Overlap Depth", IAction.AS_CHECK_BOX);
+        mWindow = window;
+        setToolTipText("Show how many views are stacked over each part of the screen");
+    }
+
+    @Override
+    public void run() {
+        mWindow.getModel().setShowOverlapDepth(isChecked());
+    }
+}
@@ -16,7 +16,6 @@
 
 package com.android.uiautomator.actions;
 
-import com.android.uiautomator.UiAutomatorModel;
 import com.android.uiautomator.UiAutomatorViewer;
 
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -29,12 +28,22 @@ import org.eclipse.jface.operation.IRunnableWithProgress;
 import org.eclipse.jface.resource.ImageDescriptor;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ScreenshotAction extends Action {
 
@@ -52,6 +61,7 @@ public class ScreenshotAction extends Action {
 
     @Override
     public void run() {
+        final boolean streamCaptures = mViewer.getModel().isStreamCaptures();
         ProgressMonitorDialog dialog = new ProgressMonitorDialog(mViewer.getShell());
         try {
             dialog.run(true, false, new IRunnableWithProgress() {
@@ -68,6 +78,35 @@ public class ScreenshotAction extends Action {
                     });
                 }
 
+                /**
+                 * Runs the chains at the same time and waits for all of them
+                 * @param showError whether a chain failing is reported to the user
+                 * @return false if one failed
+                 */
+                private boolean runChains(List<Chain> chains, boolean showError,
+                        IProgressMonitor monitor) throws InterruptedException {
+                    ExecutorService executor = Executors.newFixedThreadPool(chains.size());
+                    try {
+                        for (Future<Void> future : executor.invokeAll(chains)) {
+                            try {
+                                future.get();
+                            } catch (ExecutionException e) {
+                                Throwable failure = e.getCause();
+                                if (showError) {
+                                    showError(failure.getMessage(), failure.getCause(),
+                                            monitor);
+                                } else {
+                                    failure.printStackTrace();
+                                }
+                                return false;
+                            }
+                        }
+                    } finally {
+                        executor.shutdownNow();
+                    }
+                    return true;
+                }
+
                 @Override
                 public void run(IProgressMonitor monitor) throws InvocationTargetException,
                 InterruptedException {
@@ -82,8 +121,12 @@ public class ScreenshotAction extends Action {
                         tmpDir.delete();
                         if (!tmpDir.mkdirs())
                             throw new IOException("Failed to mkdir");
+                        // the files are deleted before the directory
+                        tmpDir.deleteOnExit();
                         xmlDumpFile = File.createTempFile("dump_", ".xml", tmpDir);
+                        xmlDumpFile.deleteOnExit();
                         screenshotFile = File.createTempFile("screenshot_", ".png", tmpDir);
+                        screenshotFile.deleteOnExit();
                     } catch (IOException e) {
                         e.printStackTrace();
                         showError("Cannot get temp directory", e, monitor);
@@ -91,8 +134,10 @@ public class ScreenshotAction extends Action {
                     }
 
                     // boiler plates to do a bunch of adb stuff to take XML snapshot and screenshot
+                    long startTime = System.nanoTime();
+                    // streamed captures fall back to the three steps of pulling files
                     monitor.beginTask("Getting UI status dump from device...",
-                            IProgressMonitor.UNKNOWN);
+                            1 + 2 * (streamCaptures ? 4 : 3));
                     monitor.subTask("Detecting device...");
                     procRunner = getAdbRunner(serial, "shell", "ls", "/system/bin/uiautomator");
                     try {
@@ -112,91 +157,90 @@ public class ScreenshotAction extends Action {
                         showError("/system/bin/uiautomator not found on device", null, monitor);
                         return;
                     }
-                    monitor.subTask("Deleting old UI XML snapshot ...");
-                    procRunner = getAdbRunner(serial,
-                            "shell", "rm", "/sdcard/uidump.xml");
-                    try {
-                        retCode = procRunner.run(30000);
-                        if (retCode != 0) {
-                            throw new IOException(
-                                    "Non-zero return code from \"rm\" xml dump command:\n"
-                                            + procRunner.getOutputBlob());
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        showError("Failed to execute \"rm\" xml dump command.", e, monitor);
-                        return;
-                    }
-
-                    monitor.subTask("Taking UI XML snapshot...");
-                    procRunner = getAdbRunner(serial,
-                            "shell", "/system/bin/uiautomator", "dump", "/sdcard/uidump.xml");
-                    try {
-                        retCode = procRunner.run(30000);
-                        if (retCode != 0) {
-                            throw new IOException("Non-zero return code from dump command:\n"
-                                    + procRunner.getOutputBlob());
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        showError("Failed to execute dump command.", e, monitor);
-                        return;
-                    }
-                    procRunner = getAdbRunner(serial,
-                            "pull", "/sdcard/uidump.xml", xmlDumpFile.getAbsolutePath());
-                    try {
-                        retCode = procRunner.run(30000);
-                        if (retCode != 0) {
-                            throw new IOException("Non-zero return code from pull command:\n"
-                                    + procRunner.getOutputBlob());
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        showError("Failed to pull dump file.", e, monitor);
-                        return;
+                    // the minimum touch target size depends on it
+                    final int density = getDensity(serial);
+                    if (density > 0) {
+                        mViewer.getShell().getDisplay().syncExec(new Runnable() {
+                            @Override
+                            public void run() {
+                                mViewer.getModel().setDensity(density);
+                            }
+                        });
                     }
+                    monitor.worked(1);
 
-                    monitor.subTask("Deleting old device screenshot...");
-                    procRunner = getAdbRunner(serial,
-                            "shell", "rm", "/sdcard/screenshot.png");
-                    try {
-                        retCode = procRunner.run(30000);
-                        if (retCode != 0) {
-                            throw new IOException(
-                                    "Non-zero return code from \"rm\" screenshot command:\n"
-                                            + procRunner.getOutputBlob());
+                    // the hierarchy dump and the screenshot don't depend on each other, so
+                    // each goes through its own chain of commands and they only meet here
+                    ChainProgress progress = new ChainProgress(monitor);
+                    List<Chain> chains = new ArrayList<Chain>();
+                    if (streamCaptures) {
+                        // both are written straight to the output of adb, and kept in memory
+                        ProcRunner dumpRunner = getAdbRunner(serial, true, "exec-out",
+                                "/system/bin/uiautomator", "dump", "/dev/tty");
+                        ProcRunner screenshotRunner = getAdbRunner(serial, true, "exec-out",
+                                "screencap", "-p");
+                        chains.add(new Chain("UI XML snapshot", progress,
+                                new Step("taking snapshot...",
+                                        "Failed to execute dump command.",
+                                        "Non-zero return code from dump command:",
+                                        dumpRunner)));
+                        chains.add(new Chain("Screenshot", progress,
+                                new Step("taking screenshot...",
+                                        "Failed to execute screenshot command.",
+                                        "Non-zero return code from screenshot command:",
+                                        screenshotRunner)));
+                        // devices or adb versions without exec-out fail here, or write the
+                        // dump somewhere else, and are captured the way files are pulled
+                        byte[] xml = null;
+                        byte[] png = null;
+                        if (runChains(chains, false, monitor)) {
+                            xml = getHierarchy(dumpRunner.getOutputBytes());
+                            png = screenshotRunner.getOutputBytes();
                         }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        showError("Failed to execute \"rm\" screenshot command.", e, monitor);
-                        return;
-                    }
-
-                    monitor.subTask("Taking device screenshot...");
-                    procRunner = getAdbRunner(serial,
-                            "shell", "screencap", "-p", "/sdcard/screenshot.png");
-                    try {
-                        retCode = procRunner.run(30000);
-                        if (retCode != 0) {
-                            throw new IOException("Non-zero return code from screenshot command:\n"
-                                    + procRunner.getOutputBlob());
+                        if (xml != null && png.length > 0) {
+                            mViewer.getModel().setCaptureStart(startTime);
+                            mViewer.getModel().loadScreenshotAndXmlDump(png, xml);
+                            monitor.done();
+                            return;
                         }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        showError("Failed to execute screenshot command.", e, monitor);
-                        return;
+                        chains.clear();
+                        // the capture time shouldn't include the attempt that failed
+                        startTime = System.nanoTime();
+                        monitor.subTask("Pulling captures instead...");
                     }
-                    procRunner = getAdbRunner(serial,
-                            "pull", "/sdcard/screenshot.png", screenshotFile.getAbsolutePath());
-                    try {
-                        retCode = procRunner.run(30000);
-                        if (retCode != 0) {
-                            throw new IOException("Non-zero return code from pull command:\n"
-                                    + procRunner.getOutputBlob());
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        showError("Failed to pull dump file.", e, monitor);
+                    chains.add(new Chain("UI XML snapshot", progress,
+                            new Step("deleting old snapshot...",
+                                    "Failed to execute \"rm\" xml dump command.",
+                                    "Non-zero return code from \"rm\" xml dump command:",
+                                    getAdbRunner(serial, "shell", "rm",
+                                            "/sdcard/uidump.xml")),
+                            new Step("taking snapshot...",
+                                    "Failed to execute dump command.",
+                                    "Non-zero return code from dump command:",
+                                    getAdbRunner(serial, "shell", "/system/bin/uiautomator",
+                                            "dump", "/sdcard/uidump.xml")),
+                            new Step("pulling snapshot...",
+                                    "Failed to pull dump file.",
+                                    "Non-zero return code from pull command:",
+                                    getAdbRunner(serial, "pull", "/sdcard/uidump.xml",
+                                            xmlDumpFile.getAbsolutePath()))));
+                    chains.add(new Chain("Screenshot", progress,
+                            new Step("deleting old screenshot...",
+                                    "Failed to execute \"rm\" screenshot command.",
+                                    "Non-zero return code from \"rm\" screenshot command:",
+                                    getAdbRunner(serial, "shell", "rm",
+                                            "/sdcard/screenshot.png")),
+                            new Step("taking screenshot...",
+                                    "Failed to execute screenshot command.",
+                                    "Non-zero return code from screenshot command:",
+                                    getAdbRunner(serial, "shell", "screencap", "-p",
+                                            "/sdcard/screenshot.png")),
+                            new Step("pulling screenshot...",
+                                    "Failed to pull dump file.",
+                                    "Non-zero return code from pull command:",
+                                    getAdbRunner(serial, "pull", "/sdcard/screenshot.png",
+                                            screenshotFile.getAbsolutePath()))));
+                    if (!runChains(chains, true, monitor)) {
                         return;
                     }
                     final File png = screenshotFile, xml = xmlDumpFile;
@@ -204,12 +248,10 @@ public class ScreenshotAction extends Action {
                         showError("Screenshot file size is 0", null, monitor);
                         return;
                     } else {
-                        mViewer.getShell().getDisplay().syncExec(new Runnable() {
-                            @Override
-                            public void run() {
-                                UiAutomatorModel.getModel().loadScreenshotAndXmlDump(png, xml);
-                            }
-                        });
+                        // the model loads in the background and hands the result over to
+                        // the UI thread itself, along with the time the capture took
+                        mViewer.getModel().setCaptureStart(startTime);
+                        mViewer.getModel().loadScreenshotAndXmlDump(png, xml);
                     }
                     monitor.done();
                 }
@@ -225,6 +267,13 @@ public class ScreenshotAction extends Action {
      * Convenience function to construct an 'adb' command, e.g. use 'adb' or 'adb -s NNN'
      */
     private ProcRunner getAdbRunner(String serial, String... command) {
+        return getAdbRunner(serial, false, command);
+    }
+
+    /*
+     * Like getAdbRunner(String, String...), but keeps the output of a binary command as is
+     */
+    private ProcRunner getAdbRunner(String serial, boolean binary, String... command) {
         List<String> cmd = new ArrayList<String>();
         cmd.add("adb");
         if (serial != null) {
@@ -234,23 +283,180 @@ public class ScreenshotAction extends Action {
         for (String s : command) {
             cmd.add(s);
         }
-        return new ProcRunner(cmd);
+        return new ProcRunner(cmd, binary);
+    }
+
+    /**
+     * @return the screen density of the device in dpi, the one it was overridden with if any,
+     * or -1 if it cannot be read
+     */
+    private int getDensity(String serial) {
+        ProcRunner procRunner = getAdbRunner(serial, "shell", "wm", "density");
+        try {
+            if (procRunner.run(30000) != 0) {
+                return -1;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        int density = -1;
+        // e.g. "Physical density: 560", followed by "Override density: 480" if overridden
+        for (String line : procRunner.mOutput) {
+            int colon = line.indexOf(':');
+            if (colon < 0 || !line.contains("density")) {
+                continue;
+            }
+            try {
+                density = Integer.parseInt(line.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                // not a line with a density
+            }
+        }
+        return density;
+    }
+
+    /**
+     * @return the hierarchy in what the dump command wrote to its output, without the
+     * messages around it, or null if there is none
+     */
+    private static byte[] getHierarchy(byte[] output) {
+        int start = 0;
+        while (start < output.length && output[start] != '<') {
+            start++;
+        }
+        byte[] end = "</hierarchy>".getBytes();
+        for (int i = output.length - end.length; i >= start; i--) {
+            int j = 0;
+            while (j < end.length && output[i + j] == end[j]) {
+                j++;
+            }
+            if (j == end.length) {
+                return Arrays.copyOfRange(output, start, i + end.length);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * One adb command of a chain, and how to report it failing
+     */
+    private static class Step {
+        final String mTask;
+        final String mFailure;
+        final String mReturnCodeFailure;
+        final ProcRunner mProcRunner;
+
+        Step(String task, String failure, String returnCodeFailure, ProcRunner procRunner) {
+            mTask = task;
+            mFailure = failure;
+            mReturnCodeFailure = returnCodeFailure;
+            mProcRunner = procRunner;
+        }
+    }
+
+    /**
+     * Runs its steps one after another, stopping at the first that fails
+     *
+     * The call throws an IOException with the message to show and the actual failure as its
+     * cause.
+     */
+    private static class Chain implements Callable<Void> {
+
+        final String mName;
+        final ChainProgress mProgress;
+        final List<Step> mSteps;
+
+        Chain(String name, ChainProgress progress, Step... steps) {
+            mName = name;
+            mProgress = progress;
+            mSteps = Arrays.asList(steps);
+        }
+
+        @Override
+        public Void call() throws IOException {
+            for (Step step : mSteps) {
+                mProgress.subTask(mName, step.mTask);
+                try {
+                    int retCode = step.mProcRunner.run(30000);
+                    if (retCode != 0) {
+                        throw new IOException(step.mReturnCodeFailure + "\n"
+                                + step.mProcRunner.getOutputBlob());
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    throw new IOException(step.mFailure, e);
+                }
+                mProgress.worked();
+            }
+            mProgress.subTask(mName, "done");
+            return null;
+        }
+    }
+
+    /**
+     * Shows the current step of every chain at once, as the chains report from their own
+     * threads
+     */
+    private static class ChainProgress {
+
+        final IProgressMonitor mMonitor;
+
+        final Map<String, String> mTasks = new LinkedHashMap<String, String>();
+
+        ChainProgress(IProgressMonitor monitor) {
+            mMonitor = monitor;
+        }
+
+        synchronized void subTask(String chain, String task) {
+            mTasks.put(chain, task);
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> entry : mTasks.entrySet()) {
+                if (sb.length() > 0) {
+                    sb.append(System.getProperty("line.separator"));
+                }
+                sb.append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+            mMonitor.subTask(sb.toString());
+        }
+
+        synchronized void worked() {
+            mMonitor.worked(1);
+        }
     }
 
     /**
      * Convenience class to run external process.
      *
-     * Always redirects stderr into stdout, has timeout control
+     * Always redirects stderr into stdout, unless the output is binary, has timeout control
      *
      */
     private static class ProcRunner {
 
         ProcessBuilder mProcessBuilder;
 
+        final boolean mBinary;
+
         List<String> mOutput = new ArrayList<String>();
 
+        ByteArrayOutputStream mOutputBytes = new ByteArrayOutputStream();
+
         public ProcRunner(List<String> command) {
-            mProcessBuilder = new ProcessBuilder(command).redirectErrorStream(true);
+            this(command, false);
+        }
+
+        /**
+         * @param binary whether to keep the output as bytes instead of lines of text, in which
+         * case stderr goes to the stderr of the viewer
+         */
+        public ProcRunner(List<String> command, boolean binary) {
+            mProcessBuilder = new ProcessBuilder(command);
+            if (binary) {
+                mProcessBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            } else {
+                mProcessBuilder.redirectErrorStream(true);
+            }
+            mBinary = binary;
         }
 
         public int run(long timeout) throws IOException {
@@ -260,7 +466,18 @@ public class ScreenshotAction extends Action {
                 public void run() {
                     String line;
                     mOutput.clear();
+                    mOutputBytes.reset();
                     try {
+                        if (mBinary) {
+                            InputStream in = p.getInputStream();
+                            byte[] buffer = new byte[65536];
+                            int read;
+                            while ((read = in.read(buffer)) > 0) {
+                                mOutputBytes.write(buffer, 0, read);
+                            }
+                            in.close();
+                            return;
+                        }
                         BufferedReader br = new BufferedReader(new InputStreamReader(
                                 p.getInputStream()));
                         while ((line = br.readLine()) != null) {
@@ -297,5 +514,12 @@ public class ScreenshotAction extends Action {
             }
             return sb.toString();
         }
+
+        /**
+         * @return the output of a binary command
+         */
+        public byte[] getOutputBytes() {
+            return mOutputBytes.toByteArray();
+        }
     }
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.actions;
+
+import com.android.uiautomator.UiAutomatorViewer;
+
+import org.eclipse.jface.action.Action;
+import org.eclipse.jface.action.IAction;
+
+/**
+ * Toggles the "stream captures" preference: when checked, device screenshots and dumps are
+ * streamed through "adb exec-out" into memory, instead of written to files on the device and
+ * pulled from there; captures that can't be streamed are still pulled
+ */
+public class StreamCapturesAction extends Action {
+
+    UiAutomatorViewer mWindow;
+
+    public StreamCapturesAction(UiAutomatorViewer window) {
+        super("Stream &Captures", IAction.AS_CHECK_BOX);
+        mWindow = window;
+        setToolTipText("Stream device captures into memory instead of going through files;"
+                + " devices without \"adb exec-out\" fall back to pulling files");
+    }
+
+    @Override
+    public void run() {
+        mWindow.getModel().setStreamCaptures(isChecked());
+    }
+}
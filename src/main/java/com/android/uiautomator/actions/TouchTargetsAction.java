@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.actions;
+
+import com.android.uiautomator.UiAutomatorViewer;
+
+import org.eclipse.jface.action.Action;
+import org.eclipse.jface.action.IAction;
+import org.eclipse.jface.dialogs.IInputValidator;
+import org.eclipse.jface.dialogs.InputDialog;
+import org.eclipse.jface.window.Window;
+
+/**
+ * Toggles the highlighting of clickable nodes that overlap each other or are smaller than
+ * the minimum touch target size
+ *
+ * The size is 48dp, so turning the highlighting on asks for the screen density, filled in
+ * with that of the device last captured.
+ */
+public class TouchTargetsAction extends Action {
+
+    UiAutomatorViewer mWindow;
+
+    public TouchTargetsAction(UiAutomatorViewer window) {
+        super("&Touch Targets", IAction.AS_CHECK_BOX);
+        mWindow = window;
+        setToolTipText("Highlight overlapping clickable nodes, and clickable nodes smaller than"
+                + " 48x48dp");
+    }
+
+    @Override
+    public void run() {
+        if (isChecked()) {
+            InputDialog dialog = new InputDialog(mWindow.getShell(), "Touch Targets",
+                    "Screen density of the device, in dpi:",
+                    Integer.toString(mWindow.getModel().getDensity()), new IInputValidator() {
+                        @Override
+                        public String isValid(String text) {
+                            return parseDensity(text) > 0 ? null
+                                    : "Enter a whole number of dots per inch";
+                        }
+                    });
+            if (dialog.open() != Window.OK) {
+                setChecked(false);
+                return;
+            }
+            mWindow.getModel().setDensity(parseDensity(dialog.getValue()));
+        }
+        mWindow.getModel().setShowTouchTargets(isChecked());
+    }
+
+    /**
+     * @return the density, or -1 if the text isn't a number
+     */
+    private static int parseDensity(String text) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
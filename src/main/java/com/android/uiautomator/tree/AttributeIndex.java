@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index over the attributes of the nodes of a hierarchy that are worth searching
+ * for, answering exact, prefix and substring queries without walking the whole tree
+ *
+ * Matching ignores case, which is folded one character at a time so that a value containing,
+ * starting with or equal to another still does once folded. Each distinct value is kept once,
+ * with the list of the attributes holding it. Values are also kept sorted, for prefix queries,
+ * and listed under each 1, 2 and 3 character gram they contain: a substring query of up to 3
+ * characters is answered by a single list, a longer one only checks the values found in the
+ * lists of all its trigrams.
+ *
+ * The hierarchy must not change after the index is built.
+ */
+public class AttributeIndex {
+
+    /** Attributes indexed, queries may be limited to one of them */
+    public static final String[] ATTRIBUTES = { "text", "content-desc", "resource-id", "class" };
+
+    static final int EXACT = 0;
+    static final int PREFIX = 1;
+    static final int SUBSTRING = 2;
+
+    private static final int[] EMPTY = new int[0];
+
+    // hierarchy nodes in pre order
+    private final BasicTreeNode[] mNodes;
+
+    // distinct values, lower cased, and for each the attributes holding it, in ascending order
+    // of node * ATTRIBUTES.length + attribute
+    private final String[] mValues;
+    private final int[][] mPostings;
+    private final Map<String, Integer> mValueIds;
+
+    // ids of the values in ascending order of the values
+    private final int[] mSorted;
+
+    // open addressed table from the grams, packed by gram(), to the ascending ids of the values
+    // containing them
+    private final long[] mGrams;
+    private final int[][] mGramValues;
+
+    private AttributeIndex(BasicTreeNode[] nodes, List<String> values, int[][] postings,
+            Map<String, Integer> valueIds) {
+        mNodes = nodes;
+        mValues = values.toArray(new String[values.size()]);
+        mPostings = postings;
+        mValueIds = valueIds;
+
+        Integer[] order = new Integer[mValues.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return mValues[a].compareTo(mValues[b]);
+            }
+        });
+        mSorted = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            mSorted[i] = order[i];
+        }
+
+        long[] grams = new long[1024];
+        int[][] lists = new int[grams.length][];
+        int count = 0;
+        for (int id = 0; id < mValues.length; id++) {
+            String value = mValues[id];
+            for (int i = 0; i < value.length(); i++) {
+                for (int length = 1; length <= 3 && i + length <= value.length(); length++) {
+                    if ((count + 1) * 2 > grams.length) {
+                        long[] oldGrams = grams;
+                        int[][] oldLists = lists;
+                        grams = new long[oldGrams.length * 2];
+                        lists = new int[grams.length][];
+                        for (int slot = 0; slot < oldGrams.length; slot++) {
+                            if (oldGrams[slot] != 0) {
+                                int to = find(grams, oldGrams[slot]);
+                                grams[to] = oldGrams[slot];
+                                lists[to] = oldLists[slot];
+                            }
+                        }
+                    }
+                    long gram = gram(value, i, length);
+                    int slot = find(grams, gram);
+                    // slot 0 of each list is its size
+                    int[] list = lists[slot];
+                    if (list == null) {
+                        grams[slot] = gram;
+                        list = lists[slot] = new int[4];
+                        count++;
+                    } else if (list[list[0]] == id) {
+                        // values are added in order, the gram was seen earlier in this one
+                        continue;
+                    } else if (list[0] + 1 == list.length) {
+                        list = lists[slot] = Arrays.copyOf(list, list.length * 2);
+                    }
+                    list[++list[0]] = id;
+                }
+            }
+        }
+        for (int slot = 0; slot < lists.length; slot++) {
+            if (lists[slot] != null) {
+                lists[slot] = Arrays.copyOfRange(lists[slot], 1, lists[slot][0] + 1);
+            }
+        }
+        mGrams = grams;
+        mGramValues = lists;
+    }
+
+    /**
+     * Indexes the nodes of the hierarchy rooted at <code>root</code>
+     */
+    public static AttributeIndex build(BasicTreeNode root) {
+        final List<BasicTreeNode> nodes = new ArrayList<BasicTreeNode>();
+        final List<String> values = new ArrayList<String>();
+        final Map<String, Integer> valueIds = new HashMap<String, Integer>();
+        final int[][][] postings = { new int[256][] };
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                int id = nodes.size();
+                nodes.add(node);
+                if (!(node instanceof UiNode)) {
+                    return BasicTreeNode.VisitResult.CONTINUE;
+                }
+                UiNode uiNode = (UiNode) node;
+                for (int a = 0; a < ATTRIBUTES.length; a++) {
+                    String value = uiNode.getAttribute(ATTRIBUTES[a]);
+                    if (value == null || value.isEmpty()) {
+                        continue;
+                    }
+                    value = fold(value);
+                    Integer valueId = valueIds.get(value);
+                    if (valueId == null) {
+                        valueId = values.size();
+                        values.add(value);
+                        valueIds.put(value, valueId);
+                        if (valueId == postings[0].length) {
+                            postings[0] = Arrays.copyOf(postings[0], valueId * 2);
+                        }
+                        // slot 0 is the size of the list
+                        postings[0][valueId] = new int[2];
+                    }
+                    int[] list = postings[0][valueId];
+                    if (list[0] + 1 == list.length) {
+                        list = Arrays.copyOf(list, list.length * 2);
+                        postings[0][valueId] = list;
+                    }
+                    list[++list[0]] = id * ATTRIBUTES.length + a;
+                }
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        int[][] trimmed = new int[values.size()][];
+        for (int i = 0; i < trimmed.length; i++) {
+            int[] list = postings[0][i];
+            trimmed[i] = Arrays.copyOfRange(list, 1, list[0] + 1);
+        }
+        return new AttributeIndex(nodes.toArray(new BasicTreeNode[nodes.size()]), values,
+                trimmed, valueIds);
+    }
+
+    /**
+     * Packs the gram of <code>length</code> (1 to 3) characters at <code>start</code>, the
+     * length in the top bits keeps the result from being 0, which marks empty slots
+     */
+    private static long gram(String s, int start, int length) {
+        long gram = length;
+        for (int i = start; i < start + length; i++) {
+            gram = (gram << 16) | s.charAt(i);
+        }
+        return gram;
+    }
+
+    /**
+     * @return the slot of the table holding the gram, or the empty slot it belongs in
+     */
+    private static int find(long[] grams, long gram) {
+        int mask = grams.length - 1;
+        int slot = (int) ((gram * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        while (grams[slot] != 0 && grams[slot] != gram) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return the ids of the values containing the gram, in ascending order
+     */
+    private int[] valuesWithGram(String s, int start, int length) {
+        int[] list = mGramValues[find(mGrams, gram(s, start, length))];
+        return list != null ? list : EMPTY;
+    }
+
+    /**
+     * @return the number of distinct values indexed
+     */
+    public int size() {
+        return mValues.length;
+    }
+
+    /**
+     * @param attribute the attribute to look in, one of {@link #ATTRIBUTES}, or null for any
+     * @return the nodes with an attribute equal to <code>value</code>, in document order
+     */
+    public List<BasicTreeNode> findExact(String attribute, String value) {
+        return toNodes(find(EXACT, attribute, value));
+    }
+
+    /**
+     * @param attribute the attribute to look in, one of {@link #ATTRIBUTES}, or null for any
+     * @return the nodes with an attribute starting with <code>prefix</code>, in document order
+     */
+    public List<BasicTreeNode> findPrefix(String attribute, String prefix) {
+        return toNodes(find(PREFIX, attribute, prefix));
+    }
+
+    /**
+     * @param attribute the attribute to look in, one of {@link #ATTRIBUTES}, or null for any
+     * @return the nodes with an attribute containing <code>query</code>, in document order
+     */
+    public List<BasicTreeNode> findSubstring(String attribute, String query) {
+        return toNodes(find(SUBSTRING, attribute, query));
+    }
+
+    /**
+     * @param kind {@link #EXACT}, {@link #PREFIX} or {@link #SUBSTRING}
+     * @return the pre order ids of the nodes with an attribute matching <code>query</code>
+     */
+    BitSet find(int kind, String attribute, String query) {
+        query = fold(query);
+        if (kind == EXACT) {
+            Integer id = mValueIds.get(query);
+            return collect(id != null ? new int[] { id } : EMPTY, attribute);
+        }
+        if (kind == PREFIX) {
+            int start = lowerBound(query);
+            int end = start;
+            while (end < mSorted.length && mValues[mSorted[end]].startsWith(query)) {
+                end++;
+            }
+            return collect(Arrays.copyOfRange(mSorted, start, end), attribute);
+        }
+        if (query.isEmpty()) {
+            return new BitSet();
+        }
+        if (query.length() <= 3) {
+            return collect(valuesWithGram(query, 0, query.length()), attribute);
+        }
+        int[][] lists = new int[query.length() - 2][];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = valuesWithGram(query, i, 3);
+        }
+        // intersect the lists of the trigrams, shortest first, then check the values left
+        Arrays.sort(lists, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a.length - b.length;
+            }
+        });
+        int[] candidates = lists[0].clone();
+        int count = candidates.length;
+        for (int i = 1; i < lists.length && count > 0; i++) {
+            count = intersect(candidates, count, lists[i]);
+        }
+        int[] matches = new int[count];
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            if (mValues[candidates[i]].contains(query)) {
+                matches[found++] = candidates[i];
+            }
+        }
+        return collect(Arrays.copyOf(matches, found), attribute);
+    }
+
+    private static String fold(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Keeps the first <code>count</code> ids of <code>ids</code> that are also in
+     * <code>other</code>, both in ascending order, at the start of <code>ids</code>
+     *
+     * @return the number of ids kept
+     */
+    private static int intersect(int[] ids, int count, int[] other) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < count && j < other.length; i++) {
+            while (j < other.length && other[j] < ids[i]) {
+                j++;
+            }
+            if (j < other.length && other[j] == ids[i]) {
+                ids[kept++] = ids[i];
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * @return the position in mSorted of the first value not less than <code>key</code>
+     */
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = mSorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mValues[mSorted[mid]].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the pre order ids of the nodes holding any of the values in the attribute
+     */
+    private BitSet collect(int[] valueIds, String attribute) {
+        BitSet found = new BitSet(mNodes.length);
+        int only = attribute != null ? Arrays.asList(ATTRIBUTES).indexOf(attribute) : -1;
+        if (attribute != null && only < 0) {
+            return found;
+        }
+        for (int id : valueIds) {
+            for (int posting : mPostings[id]) {
+                if (only < 0 || posting % ATTRIBUTES.length == only) {
+                    found.set(posting / ATTRIBUTES.length);
+                }
+            }
+        }
+        return found;
+    }
+
+    private List<BasicTreeNode> toNodes(BitSet ids) {
+        // pre order ids are document order
+        List<BasicTreeNode> result = new ArrayList<BasicTreeNode>(ids.cardinality());
+        for (int i = ids.nextSetBit(0); i >= 0; i = ids.nextSetBit(i + 1)) {
+            result.add(mNodes[i]);
+        }
+        return result;
+    }
+}
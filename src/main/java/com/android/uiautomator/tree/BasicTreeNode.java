@@ -17,12 +17,16 @@
 package com.android.uiautomator.tree;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
 public class BasicTreeNode {
 
+    // hit-tests recurse this deep at most
+    private static final int MAX_RECURSION_DEPTH = 256;
+
     private static final BasicTreeNode[] CHILDREN_TEMPLATE = new BasicTreeNode[] {};
 
     protected BasicTreeNode mParent;
@@ -39,12 +43,15 @@ public class BasicTreeNode {
     public int childOffset = 0;
     //自己是第几个孩子
     public int index;
-    public HashMap<String,Integer> classNameMap = new HashMap<String, Integer>();
+    // only allocated once the node gets a UiNode child
+    public HashMap<String,Integer> classNameMap;
     public void addChild(BasicTreeNode child) {
         if (child == null) {
             throw new NullPointerException("Cannot add null child");
         }
-        if (mChildren.contains(child)) {
+        // a node's parent pointer is only set by addChild and reset by clearAllChildren, so
+        // checking it is equivalent to a (linear) scan of mChildren
+        if (child.mParent == this) {
             throw new IllegalArgumentException("node already a child");
         }
         mChildren.add(child);
@@ -53,6 +60,9 @@ public class BasicTreeNode {
         child.index = childOffset;
         if(!RootWindowNode.class.isInstance(child)){
             String className = ((UiNode)child).getNodeClassAttribute();
+            if (classNameMap == null) {
+                classNameMap = new HashMap<String, Integer>();
+            }
             if(classNameMap.get(className)==null){
                 classNameMap.put(className, 1);
             }else{
@@ -62,12 +72,20 @@ public class BasicTreeNode {
         }
     }
 
+    /**
+     * @return the live list of children; nodes that don't keep their children in mChildren,
+     * such as views of a {@link HierarchyStore}, override this
+     */
+    List<BasicTreeNode> children() {
+        return mChildren;
+    }
+
     public List<BasicTreeNode> getChildrenList() {
-        return Collections.unmodifiableList(mChildren);
+        return Collections.unmodifiableList(children());
     }
 
     public BasicTreeNode[] getChildren() {
-        return mChildren.toArray(CHILDREN_TEMPLATE);
+        return children().toArray(CHILDREN_TEMPLATE);
     }
 
     public BasicTreeNode getParent() {
@@ -75,16 +93,45 @@ public class BasicTreeNode {
     }
 
     public boolean hasChild() {
-        return mChildren.size() != 0;
+        return children().size() != 0;
     }
 
     public int getChildCount() {
-        return mChildren.size();
+        return children().size();
     }
 
     public void clearAllChildren() {
+        // children are released after their own subtrees, so every node is still reachable
+        // from the stack when the traversal gets to it
+        accept(new TreeVisitorAdapter() {
+            @Override
+            public VisitResult preVisit(BasicTreeNode node) {
+                return node.hasLoadedChildren() ? VisitResult.CONTINUE
+                        : VisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public VisitResult postVisit(BasicTreeNode node) {
+                node.releaseChildren();
+                return VisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @return false if walking the children of this node would have to create them first,
+     * in which case there is nothing to clear below it
+     */
+    boolean hasLoadedChildren() {
+        return true;
+    }
+
+    /**
+     * Drops the children of this node, without touching their own children
+     */
+    void releaseChildren() {
         for (BasicTreeNode child : mChildren) {
-            child.clearAllChildren();
+            child.mParent = null;
         }
         mChildren.clear();
     }
@@ -102,23 +149,168 @@ public class BasicTreeNode {
      * @return
      */
     public boolean findLeafMostNodesAtPoint(int px, int py, IFindNodeListener listener) {
+        return findLeafMostNodesAtPoint(px, py, listener, 0);
+    }
+
+    /**
+     * Recurses, which is the fastest for the usual hierarchies, until the depth gets too large
+     * for the stack, from where the rest of the subtree is walked with an explicit stack
+     */
+    private boolean findLeafMostNodesAtPoint(int px, int py, IFindNodeListener listener,
+            int depth) {
+        if (depth == MAX_RECURSION_DEPTH) {
+            return findLeafMostNodesAtPointIteratively(px, py, listener);
+        }
         boolean foundInChild = false;
-        for (BasicTreeNode node : mChildren) {
-            foundInChild |= node.findLeafMostNodesAtPoint(px, py, listener);
+        List<BasicTreeNode> children = children();
+        for (int i = 0; i < children.size(); i++) {
+            foundInChild |= children.get(i).findLeafMostNodesAtPoint(px, py, listener,
+                    depth + 1);
         }
         // checked all children, if at least one child covers the point, return directly
         if (foundInChild) return true;
         // check self if the node has no children, or no child nodes covers the point
-        if (mHasBounds) {
-            if (x <= px && px <= x + width && y <= py && py <= y + height) {
-                listener.onFoundNode(this);
-                return true;
+        if (containsPoint(px, py)) {
+            listener.onFoundNode(this);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean findLeafMostNodesAtPointIteratively(int px, int py,
+            IFindNodeListener listener) {
+        // the same walk as accept(), without a visitor call per node, keeping for each node on
+        // the stack the position of the next child to visit and whether a node below it covers
+        // the point; no subtree is pruned, as a child's bounds aren't guaranteed to be inside
+        // its parent's
+        BasicTreeNode[] nodes = new BasicTreeNode[32];
+        int[] next = new int[32];
+        boolean[] found = new boolean[32];
+        int top = 0;
+        nodes[0] = this;
+        while (true) {
+            BasicTreeNode node = nodes[top];
+            List<BasicTreeNode> children = node.children();
+            int child = next[top];
+            if (child < children.size()) {
+                next[top] = child + 1;
+                if (++top == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, top * 2);
+                    next = Arrays.copyOf(next, top * 2);
+                    found = Arrays.copyOf(found, top * 2);
+                }
+                nodes[top] = children.get(child);
+                next[top] = 0;
+                found[top] = false;
             } else {
-                return false;
+                boolean hit = found[top];
+                // check self if the node has no children, or no child nodes covers the point
+                if (!hit && node.containsPoint(px, py)) {
+                    listener.onFoundNode(node);
+                    hit = true;
+                }
+                nodes[top] = null;
+                if (top == 0) {
+                    return hit;
+                }
+                found[--top] |= hit;
             }
-        } else {
+        }
+    }
+
+    private boolean containsPoint(int px, int py) {
+        return mHasBounds && x <= px && px <= x + width && y <= py && py <= y + height;
+    }
+
+    /**
+     * Walks the subtree rooted at this node depth first, calling
+     * {@link ITreeVisitor#preVisit(BasicTreeNode)} before and
+     * {@link ITreeVisitor#postVisit(BasicTreeNode)} after the children of each node.
+     *
+     * The walk keeps its own stack, so it works for hierarchies of any depth.
+     *
+     * @return false if the visitor terminated the walk
+     */
+    public boolean accept(ITreeVisitor visitor) {
+        VisitResult rootResult = visitor.preVisit(this);
+        if (rootResult == VisitResult.TERMINATE) {
             return false;
+        } else if (rootResult == VisitResult.SKIP_SUBTREE) {
+            return visitor.postVisit(this) != VisitResult.TERMINATE;
+        }
+        // stack of the nodes being visited, their children, the position of the next child to
+        // visit and the number of children left to visit (0 if the subtree is skipped)
+        BasicTreeNode[] nodes = new BasicTreeNode[32];
+        List<?>[] children = new List<?>[32];
+        int[] next = new int[32];
+        int[] remaining = new int[32];
+        int top = 0;
+        nodes[0] = this;
+        children[0] = children();
+        remaining[0] = children[0].size();
+        while (top >= 0) {
+            if (remaining[top] > 0) {
+                remaining[top]--;
+                BasicTreeNode child = (BasicTreeNode) children[top].get(next[top]++);
+                VisitResult result = visitor.preVisit(child);
+                if (result == VisitResult.TERMINATE) {
+                    return false;
+                }
+                if (++top == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, top * 2);
+                    children = Arrays.copyOf(children, top * 2);
+                    next = Arrays.copyOf(next, top * 2);
+                    remaining = Arrays.copyOf(remaining, top * 2);
+                }
+                nodes[top] = child;
+                next[top] = 0;
+                // a skipped subtree still gets its post visit, just like a leaf
+                if (result == VisitResult.SKIP_SUBTREE) {
+                    remaining[top] = 0;
+                } else {
+                    children[top] = child.children();
+                    remaining[top] = children[top].size();
+                }
+            } else {
+                BasicTreeNode node = nodes[top];
+                nodes[top] = null;
+                children[top--] = null;
+                if (visitor.postVisit(node) == VisitResult.TERMINATE) {
+                    return false;
+                }
+            }
         }
+        return true;
+    }
+
+    /**
+     * Like {@link #accept(ITreeVisitor)}, but skips the subtree of every node whose bounds
+     * don't intersect the given rectangle (edges included). Nodes without bounds are always
+     * descended into.
+     *
+     * This assumes that children lie within the bounds of their parent, which holds for
+     * most layouts but not for views that draw outside of their parent, so callers that
+     * need exact results, like {@link #findLeafMostNodesAtPoint}, should not prune.
+     *
+     * @return false if the visitor terminated the walk
+     */
+    public boolean accept(final ITreeVisitor visitor, final int left, final int top,
+            final int right, final int bottom) {
+        return accept(new ITreeVisitor() {
+            @Override
+            public VisitResult preVisit(BasicTreeNode node) {
+                if (node.mHasBounds && (node.x > right || node.x + node.width < left
+                        || node.y > bottom || node.y + node.height < top)) {
+                    return VisitResult.SKIP_SUBTREE;
+                }
+                return visitor.preVisit(node);
+            }
+
+            @Override
+            public VisitResult postVisit(BasicTreeNode node) {
+                return visitor.postVisit(node);
+            }
+        });
     }
 
     public Object[] getAttributesArray () {
@@ -128,4 +320,34 @@ public class BasicTreeNode {
     public static interface IFindNodeListener {
         void onFoundNode(BasicTreeNode node);
     }
+
+    public static enum VisitResult {
+        /** go on with the walk */
+        CONTINUE,
+        /** don't visit the children of the node, only returned from a pre visit */
+        SKIP_SUBTREE,
+        /** stop the walk */
+        TERMINATE
+    }
+
+    public static interface ITreeVisitor {
+        VisitResult preVisit(BasicTreeNode node);
+        VisitResult postVisit(BasicTreeNode node);
+    }
+
+    /**
+     * Visitor that continues everywhere, for subclasses that only care about one of the two
+     * callbacks
+     */
+    public static class TreeVisitorAdapter implements ITreeVisitor {
+        @Override
+        public VisitResult preVisit(BasicTreeNode node) {
+            return VisitResult.CONTINUE;
+        }
+
+        @Override
+        public VisitResult postVisit(BasicTreeNode node) {
+            return VisitResult.CONTINUE;
+        }
+    }
 }
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The differences between two versions of a hierarchy, such as two dumps of the same screen
+ *
+ * The nodes of the new tree are matched with those of the old one: first the subtrees that
+ * are identical and unique in both, by hashes of their contents computed bottom-up, then, top
+ * down, each node with a child of its parent's match that is identical, that has the same
+ * class and identifying attributes, or the same class, in that order; nodes whose parent has
+ * no match are matched by identifying attributes that are unique in both trees. Nodes without
+ * a match are inserted or removed, matched nodes under another parent or out of order among
+ * their siblings are moved, and matched nodes with other attributes are changed.
+ *
+ * Neither tree is modified; the diff takes time linear in the size of the trees, apart from
+ * sorting out the order of children.
+ */
+public class HierarchyDiff {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+
+    private final Tree mOld;
+    private final Tree mNew;
+    // the id of the match of each node in the other tree, or -1
+    private final int[] mOldMatch;
+    private final int[] mNewMatch;
+    private final List<BasicTreeNode> mInserted = new ArrayList<BasicTreeNode>();
+    private final List<BasicTreeNode> mRemoved = new ArrayList<BasicTreeNode>();
+    private final List<BasicTreeNode> mMoved = new ArrayList<BasicTreeNode>();
+    private final List<BasicTreeNode> mChanged = new ArrayList<BasicTreeNode>();
+    private Map<BasicTreeNode, Integer> mNewIds;
+    // the unmatched children of old nodes, by hash, key and class, built on first use
+    private final Map<Integer, Children> mOldChildren = new HashMap<Integer, Children>();
+
+    /**
+     * A tree numbered in pre-order, so that subtrees are ranges of ids, with the hashes of
+     * each node's own attributes and of its subtree
+     */
+    private static class Tree {
+        final BasicTreeNode[] mNodes;
+        final int[] mParent;
+        final int[] mEnd;
+        final long[] mContent;
+        final long[] mSubtree;
+        // class and the attributes that usually tell nodes apart, 0 if it has none
+        final long[] mKey;
+        final long[] mClass;
+
+        Tree(BasicTreeNode root) {
+            final List<BasicTreeNode> nodes = new ArrayList<BasicTreeNode>();
+            final List<Integer> parents = new ArrayList<Integer>();
+            final List<Integer> ends = new ArrayList<Integer>();
+            final List<Integer> path = new ArrayList<Integer>();
+            root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+                @Override
+                public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                    parents.add(path.isEmpty() ? -1 : path.get(path.size() - 1));
+                    path.add(nodes.size());
+                    nodes.add(node);
+                    ends.add(0);
+                    return BasicTreeNode.VisitResult.CONTINUE;
+                }
+
+                @Override
+                public BasicTreeNode.VisitResult postVisit(BasicTreeNode node) {
+                    ends.set(path.remove(path.size() - 1), nodes.size());
+                    return BasicTreeNode.VisitResult.CONTINUE;
+                }
+            });
+            int size = nodes.size();
+            mNodes = nodes.toArray(new BasicTreeNode[size]);
+            mParent = new int[size];
+            mEnd = new int[size];
+            mContent = new long[size];
+            mSubtree = new long[size];
+            mKey = new long[size];
+            mClass = new long[size];
+            for (int id = 0; id < size; id++) {
+                mParent[id] = parents.get(id);
+                mEnd[id] = ends.get(id);
+                if (mNodes[id] instanceof UiNode) {
+                    hashAttributes(id, (UiNode) mNodes[id]);
+                }
+            }
+            // children come after their parent in pre-order
+            for (int id = size - 1; id >= 0; id--) {
+                long hash = mContent[id] * MIX + 1;
+                for (int child = id + 1; child < mEnd[id]; child = mEnd[child]) {
+                    hash = (hash ^ mSubtree[child]) * MIX;
+                }
+                mSubtree[id] = hash ^ (hash >>> 29);
+            }
+        }
+
+        private void hashAttributes(int id, UiNode node) {
+            // summed, so that the order of the attributes doesn't matter
+            long content = 0;
+            for (Map.Entry<String, String> attribute : node.getLoadedAttributes().entrySet()) {
+                // the position among the siblings is compared separately
+                if (!"index".equals(attribute.getKey())) {
+                    long hash = hash(hash(FNV_OFFSET, attribute.getKey()), attribute.getValue());
+                    content += (hash ^ (hash >>> 31)) * MIX;
+                }
+            }
+            mContent[id] = content;
+            mClass[id] = hash(FNV_OFFSET, node.getNodeClassAttribute());
+            String resourceId = node.getAttribute("resource-id");
+            String text = node.getAttribute("text");
+            String description = node.getAttribute("content-desc");
+            if (!isEmpty(resourceId) || !isEmpty(text) || !isEmpty(description)) {
+                mKey[id] = hash(hash(hash(mClass[id], resourceId), text), description);
+            }
+        }
+
+        private static boolean isEmpty(String value) {
+            return value == null || value.isEmpty();
+        }
+
+        private static long hash(long hash, String value) {
+            if (value != null) {
+                for (int i = 0; i < value.length(); i++) {
+                    hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+                }
+            }
+            // keeps "ab", "c" apart from "a", "bc"
+            return (hash ^ 0xffff) * FNV_PRIME;
+        }
+    }
+
+    /**
+     * The unmatched children of an old node, in order
+     */
+    private class Children {
+        final Map<Long, ArrayDeque<Integer>> mBySubtree =
+                new HashMap<Long, ArrayDeque<Integer>>();
+        final Map<Long, ArrayDeque<Integer>> mByKey = new HashMap<Long, ArrayDeque<Integer>>();
+        final Map<Long, ArrayDeque<Integer>> mByClass =
+                new HashMap<Long, ArrayDeque<Integer>>();
+
+        Children(int parent) {
+            for (int child = parent + 1; child < mOld.mEnd[parent]; child = mOld.mEnd[child]) {
+                if (mOldMatch[child] < 0 && mOld.mNodes[child] instanceof UiNode) {
+                    add(mBySubtree, mOld.mSubtree[child], child);
+                    if (mOld.mKey[child] != 0) {
+                        add(mByKey, mOld.mKey[child], child);
+                    }
+                    add(mByClass, mOld.mClass[child], child);
+                }
+            }
+        }
+
+        private void add(Map<Long, ArrayDeque<Integer>> map, long hash, int id) {
+            ArrayDeque<Integer> ids = map.get(hash);
+            if (ids == null) {
+                ids = new ArrayDeque<Integer>(1);
+                map.put(hash, ids);
+            }
+            ids.add(id);
+        }
+
+        /**
+         * @return the first child with the hash that is still unmatched, or -1
+         */
+        int poll(Map<Long, ArrayDeque<Integer>> map, long hash) {
+            ArrayDeque<Integer> ids = map.get(hash);
+            while (ids != null && !ids.isEmpty()) {
+                int id = ids.poll();
+                if (mOldMatch[id] < 0) {
+                    return id;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private HierarchyDiff(BasicTreeNode oldRoot, BasicTreeNode newRoot) {
+        mOld = new Tree(oldRoot);
+        mNew = new Tree(newRoot);
+        mOldMatch = new int[mOld.mNodes.length];
+        mNewMatch = new int[mNew.mNodes.length];
+        Arrays.fill(mOldMatch, -1);
+        Arrays.fill(mNewMatch, -1);
+    }
+
+    /**
+     * Compares two fully loaded trees
+     */
+    public static HierarchyDiff compute(BasicTreeNode oldRoot, BasicTreeNode newRoot) {
+        HierarchyDiff diff = new HierarchyDiff(oldRoot, newRoot);
+        diff.matchUniqueSubtrees();
+        diff.matchTopDown();
+        diff.classify();
+        return diff;
+    }
+
+    private void match(int oldId, int newId) {
+        mOldMatch[oldId] = newId;
+        mNewMatch[newId] = oldId;
+    }
+
+    /**
+     * Matches identical subtrees, which have the same shape and so the same ids relative to
+     * their roots, apart from nodes matched already
+     */
+    private void matchSubtree(int oldId, int newId) {
+        for (int i = 0; i < mNew.mEnd[newId] - newId; i++) {
+            if (mOldMatch[oldId + i] < 0 && mNewMatch[newId + i] < 0) {
+                match(oldId + i, newId + i);
+            }
+        }
+    }
+
+    private void matchUniqueSubtrees() {
+        Map<Long, Integer> oldCounts = count(mOld.mSubtree);
+        Map<Long, Integer> newCounts = count(mNew.mSubtree);
+        Map<Long, Integer> oldIds = new HashMap<Long, Integer>();
+        for (int id = 0; id < mOld.mNodes.length; id++) {
+            if (oldCounts.get(mOld.mSubtree[id]) == 1) {
+                oldIds.put(mOld.mSubtree[id], id);
+            }
+        }
+        for (int id = 0; id < mNew.mNodes.length; id++) {
+            long hash = mNew.mSubtree[id];
+            Integer oldId = oldIds.get(hash);
+            if (oldId != null && newCounts.get(hash) == 1 && mOldMatch[oldId] < 0) {
+                matchSubtree(oldId, id);
+                // the rest of the subtree is matched already
+                id = mNew.mEnd[id] - 1;
+            }
+        }
+    }
+
+    private static Map<Long, Integer> count(long[] hashes) {
+        Map<Long, Integer> counts = new HashMap<Long, Integer>(hashes.length * 2);
+        for (long hash : hashes) {
+            Integer count = counts.get(hash);
+            counts.put(hash, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    private void matchTopDown() {
+        if (mNewMatch[0] < 0 && mOldMatch[0] < 0 && mOld.mClass[0] == mNew.mClass[0]) {
+            match(0, 0);
+        }
+        // attributes that tell a node apart from all the others in both trees
+        Map<Long, Integer> oldKeys = count(mOld.mKey);
+        Map<Long, Integer> newKeys = count(mNew.mKey);
+        Map<Long, Integer> oldIds = new HashMap<Long, Integer>();
+        for (int id = 0; id < mOld.mNodes.length; id++) {
+            if (mOld.mKey[id] != 0 && oldKeys.get(mOld.mKey[id]) == 1) {
+                oldIds.put(mOld.mKey[id], id);
+            }
+        }
+        for (int id = 1; id < mNew.mNodes.length; id++) {
+            if (mNewMatch[id] >= 0 || !(mNew.mNodes[id] instanceof UiNode)) {
+                continue;
+            }
+            int parent = mNewMatch[mNew.mParent[id]];
+            int oldId = -1;
+            if (parent >= 0) {
+                Children children = mOldChildren.get(parent);
+                if (children == null) {
+                    children = new Children(parent);
+                    mOldChildren.put(parent, children);
+                }
+                oldId = children.poll(children.mBySubtree, mNew.mSubtree[id]);
+                if (oldId >= 0) {
+                    matchSubtree(oldId, id);
+                    continue;
+                }
+                if (mNew.mKey[id] != 0) {
+                    oldId = children.poll(children.mByKey, mNew.mKey[id]);
+                }
+                if (oldId < 0) {
+                    oldId = children.poll(children.mByClass, mNew.mClass[id]);
+                }
+            }
+            if (oldId < 0 && mNew.mKey[id] != 0 && newKeys.get(mNew.mKey[id]) == 1) {
+                Integer unique = oldIds.get(mNew.mKey[id]);
+                if (unique != null && mOldMatch[unique] < 0) {
+                    oldId = unique;
+                }
+            }
+            if (oldId >= 0) {
+                match(oldId, id);
+            }
+        }
+    }
+
+    private void classify() {
+        for (int id = 0; id < mOld.mNodes.length; id++) {
+            if (mOldMatch[id] < 0 && mOld.mNodes[id] instanceof UiNode) {
+                mRemoved.add(mOld.mNodes[id]);
+            }
+        }
+        boolean[] moved = new boolean[mNew.mNodes.length];
+        for (int id = 0; id < mNew.mNodes.length; id++) {
+            if (mNewMatch[id] < 0) {
+                if (mNew.mNodes[id] instanceof UiNode) {
+                    mInserted.add(mNew.mNodes[id]);
+                }
+                continue;
+            }
+            int oldParent = mOld.mParent[mNewMatch[id]];
+            int parent = mNew.mParent[id];
+            if (parent >= 0 && (oldParent < 0 || mOldMatch[oldParent] != parent)) {
+                moved[id] = true;
+            }
+            // the children that stayed under the same parent but are out of order
+            findReordered(id, moved);
+        }
+        for (int id = 0; id < mNew.mNodes.length; id++) {
+            int oldId = mNewMatch[id];
+            if (oldId < 0) {
+                continue;
+            }
+            if (moved[id]) {
+                mMoved.add(mNew.mNodes[id]);
+            }
+            if (mOld.mContent[oldId] != mNew.mContent[id]) {
+                mChanged.add(mNew.mNodes[id]);
+            }
+        }
+    }
+
+    /**
+     * Marks the fewest children of a node as moved so that the others are in the same order
+     * as in the old tree, keeping the longest increasing run of old ids
+     */
+    private void findReordered(int parent, boolean[] moved) {
+        int oldParent = mNewMatch[parent];
+        List<Integer> children = new ArrayList<Integer>();
+        for (int child = parent + 1; child < mNew.mEnd[parent]; child = mNew.mEnd[child]) {
+            int oldChild = mNewMatch[child];
+            if (oldChild >= 0 && mOld.mParent[oldChild] == oldParent) {
+                children.add(child);
+            }
+        }
+        int size = children.size();
+        if (size < 2) {
+            return;
+        }
+        // patience sorting, with the predecessor of each child in the run ending at it
+        int[] tails = new int[size];
+        int[] previous = new int[size];
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            int oldId = mNewMatch[children.get(i)];
+            int low = 0, high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (mNewMatch[children.get(tails[middle])] < oldId) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            length = Math.max(length, low + 1);
+        }
+        if (length == size) {
+            return;
+        }
+        boolean[] kept = new boolean[size];
+        for (int i = tails[length - 1]; i >= 0; i = previous[i]) {
+            kept[i] = true;
+        }
+        for (int i = 0; i < size; i++) {
+            if (!kept[i]) {
+                moved[children.get(i)] = true;
+            }
+        }
+    }
+
+    /**
+     * @return the node of the old tree matched with a node of the new one, or null if it was
+     * inserted
+     */
+    public BasicTreeNode getOldNode(BasicTreeNode newNode) {
+        if (mNewIds == null) {
+            Map<BasicTreeNode, Integer> ids =
+                    new HashMap<BasicTreeNode, Integer>(mNew.mNodes.length * 2);
+            for (int id = 0; id < mNew.mNodes.length; id++) {
+                ids.put(mNew.mNodes[id], id);
+            }
+            mNewIds = ids;
+        }
+        Integer id = mNewIds.get(newNode);
+        return id != null && mNewMatch[id] >= 0 ? mOld.mNodes[mNewMatch[id]] : null;
+    }
+
+    /**
+     * @return the nodes of the new tree that have no match in the old one, in pre-order
+     */
+    public List<BasicTreeNode> getInserted() {
+        return Collections.unmodifiableList(mInserted);
+    }
+
+    /**
+     * @return the nodes of the old tree that have no match in the new one, in pre-order
+     */
+    public List<BasicTreeNode> getRemoved() {
+        return Collections.unmodifiableList(mRemoved);
+    }
+
+    /**
+     * @return the nodes of the new tree whose match is under a node that isn't matched with
+     * their parent, or out of order among their siblings, in pre-order
+     */
+    public List<BasicTreeNode> getMoved() {
+        return Collections.unmodifiableList(mMoved);
+    }
+
+    /**
+     * @return the nodes of the new tree whose attributes differ from those of their match,
+     * in pre-order
+     */
+    public List<BasicTreeNode> getChanged() {
+        return Collections.unmodifiableList(mChanged);
+    }
+
+    /**
+     * @return whether the trees are the same
+     */
+    public boolean isEmpty() {
+        return mInserted.isEmpty() && mRemoved.isEmpty() && mMoved.isEmpty()
+                && mChanged.isEmpty();
+    }
+}
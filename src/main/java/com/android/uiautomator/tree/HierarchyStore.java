@@ -0,0 +1,713 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Struct-of-arrays representation of a UI hierarchy
+ *
+ * Nodes are identified by int ids assigned in document order, so ids are a pre-order
+ * traversal of the tree and a full walk is a plain loop from 0 to {@link #size()}. Structure is
+ * kept in parent / first child / next sibling arrays, and attributes as (key, value) id pairs
+ * into a {@link StringPool}.
+ *
+ * A store can also be backed by the memory mapped dump itself, see {@link #isMapped()}. Only
+ * the byte range of each attribute value is recorded then, and values are decoded from the
+ * file whenever they are asked for, so the heap holds little more than the tree structure.
+ *
+ * The tree can be handed to code expecting {@link BasicTreeNode}s through {@link #getRootNode()};
+ * the {@link UiNode}s reachable from there are read-only views created on first access.
+ * A store is built once by {@link UiHierarchyXmlLoader}, copied from a loaded tree by
+ * {@link #copyOf(BasicTreeNode, StringPool)}, or read back from the binary form written by
+ * {@link #write(DataOutput)}, and is immutable afterwards.
+ */
+public class HierarchyStore {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final StringPool mPool;
+    private int mSize;
+
+    private int[] mParent = new int[INITIAL_CAPACITY];
+    private int[] mFirstChild = new int[INITIAL_CAPACITY];
+    private int[] mNextSibling = new int[INITIAL_CAPACITY];
+    private int[] mChildCount = new int[INITIAL_CAPACITY];
+    // 1 based position among siblings, and among siblings of the same class
+    private int[] mChildPosition = new int[INITIAL_CAPACITY];
+    private int[] mClassNameIndex = new int[INITIAL_CAPACITY];
+    // pool id of the class of each node, -1 if it has none
+    private int[] mClassIds = new int[INITIAL_CAPACITY];
+    // x, y, width, height of each node
+    private int[] mBounds = new int[INITIAL_CAPACITY * 4];
+    private final BitSet mHasBounds = new BitSet();
+
+    // attributes of node i are at [mAttrStart[i], mAttrStart[i + 1]) of the two arrays below
+    private int[] mAttrStart = new int[INITIAL_CAPACITY + 1];
+    private int[] mAttrKeys = new int[INITIAL_CAPACITY * 16];
+    private int[] mAttrValues = new int[INITIAL_CAPACITY * 16];
+    private int mAttrCount;
+
+    // for mapped stores, mAttrValues holds the offset of the first byte of a value in mSource,
+    // and this array the offset just past its last byte; -1 marks a value held by the pool
+    private final ByteBuffer mSource;
+    private int[] mAttrValueEnds;
+
+    private boolean mHasWindow;
+    private String mWindowName;
+    private BasicTreeNode mRootNode;
+    private UiNode[] mNodes;
+    // labels computed at load time, only used when attributes they are built from may be
+    // missing from the store; otherwise labels are built from the attributes on demand
+    private String[] mLabels;
+
+    // only used while the store is being built
+    private int[] mLastChild = new int[INITIAL_CAPACITY];
+    private Map<Long, Integer> mClassCounts = new HashMap<Long, Integer>();
+    private int mTopLevelCount;
+    private int mLastTopLevel = -1;
+
+    HierarchyStore(StringPool pool) {
+        this(pool, null);
+    }
+
+    /**
+     * Creates a store whose attribute values are read from <code>source</code>, which must not
+     * change for the lifetime of the store
+     */
+    HierarchyStore(StringPool pool, ByteBuffer source) {
+        mPool = pool;
+        mSource = source;
+        if (source != null) {
+            mAttrValueEnds = new int[mAttrValues.length];
+        }
+    }
+
+    public StringPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * @return true if attribute values are decoded from the mapped dump on demand, in which
+     * case they have no pool id
+     */
+    public boolean isMapped() {
+        return mSource != null;
+    }
+
+    /**
+     * @return the number of nodes in the store, not counting the root window
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the root of the tree as {@link BasicTreeNode}s, a {@link RootWindowNode} unless
+     * the dump had no "hierarchy" element
+     */
+    public BasicTreeNode getRootNode() {
+        return mRootNode;
+    }
+
+    /**
+     * @return the {@link UiNode} view of the node, creating it if necessary
+     */
+    public synchronized UiNode getNode(int id) {
+        checkId(id);
+        UiNode node = mNodes[id];
+        if (node == null) {
+            node = new UiNode(this, id);
+            mNodes[id] = node;
+        }
+        return node;
+    }
+
+    /**
+     * @return id of the parent node, or -1 for top level nodes
+     */
+    public int getParent(int id) {
+        checkId(id);
+        return mParent[id];
+    }
+
+    /**
+     * @return id of the first child, or -1 if the node has none
+     */
+    public int getFirstChild(int id) {
+        checkId(id);
+        return mFirstChild[id];
+    }
+
+    /**
+     * @return id of the next sibling, or -1 if the node is the last child of its parent
+     */
+    public int getNextSibling(int id) {
+        checkId(id);
+        return mNextSibling[id];
+    }
+
+    public int getChildCount(int id) {
+        checkId(id);
+        return mChildCount[id];
+    }
+
+    /**
+     * @return the 1 based position of the node among its siblings
+     */
+    public int getChildPosition(int id) {
+        checkId(id);
+        return mChildPosition[id];
+    }
+
+    /**
+     * @return the 1 based position of the node among its siblings of the same class
+     */
+    public int getClassNameIndex(int id) {
+        checkId(id);
+        return mClassNameIndex[id];
+    }
+
+    /**
+     * @return the class of the node, which is known even if the "class" attribute isn't kept
+     */
+    public String getClassName(int id) {
+        checkId(id);
+        return mClassIds[id] < 0 ? null : mPool.get(mClassIds[id]);
+    }
+
+    /**
+     * Renders the absolute xpath of the node from the class and class name index of the node
+     * and each of its ancestors; the xpath isn't stored.
+     */
+    public String getXpath(int id) {
+        checkId(id);
+        int depth = 0;
+        for (int n = id; n >= 0; n = mParent[n]) {
+            depth++;
+        }
+        int[] path = new int[depth];
+        for (int n = id, i = depth - 1; n >= 0; n = mParent[n], i--) {
+            path[i] = n;
+        }
+        // a top level node is "/class[n]", anything deeper is "//class[n]/class[n]..."
+        StringBuilder xpath = new StringBuilder(depth * 32);
+        if (depth > 1) {
+            xpath.append('/');
+        }
+        for (int n : path) {
+            xpath.append('/').append(getClassName(n)).append('[').append(mClassNameIndex[n])
+                    .append(']');
+        }
+        return xpath.toString();
+    }
+
+    /**
+     * @return the label computed when the node was loaded, or null if it has to be built from
+     * the node's attributes
+     */
+    String getLabel(int id) {
+        checkId(id);
+        return mLabels != null ? mLabels[id] : null;
+    }
+
+    /**
+     * Copies x, y, width and height of the node into <code>out</code>
+     * @return false if the node has no bounds, in which case <code>out</code> is untouched
+     */
+    public boolean getBounds(int id, int[] out) {
+        checkId(id);
+        if (!mHasBounds.get(id)) {
+            return false;
+        }
+        System.arraycopy(mBounds, id * 4, out, 0, 4);
+        return true;
+    }
+
+    public int getAttributeCount(int id) {
+        checkId(id);
+        return mAttrStart[id + 1] - mAttrStart[id];
+    }
+
+    /**
+     * @return pool id of the key of the node's i-th attribute
+     */
+    public int getAttributeKeyId(int id, int i) {
+        return mAttrKeys[attributeSlot(id, i)];
+    }
+
+    /**
+     * @return pool id of the value of the node's i-th attribute
+     * @throws IllegalStateException if the value is read from a mapped dump
+     */
+    public int getAttributeValueId(int id, int i) {
+        return valueId(attributeSlot(id, i));
+    }
+
+    /**
+     * @return the value of the node's i-th attribute
+     */
+    public String getAttributeValue(int id, int i) {
+        return value(attributeSlot(id, i));
+    }
+
+    /**
+     * @return pool id of the value of the attribute with the given key id, or -1
+     * @throws IllegalStateException if the value is read from a mapped dump
+     */
+    public int findAttributeValueId(int id, int keyId) {
+        int slot = findSlot(id, keyId);
+        return slot < 0 ? -1 : valueId(slot);
+    }
+
+    public String getAttribute(int id, String key) {
+        int keyId = mPool.find(key);
+        if (keyId < 0) {
+            return null;
+        }
+        int slot = findSlot(id, keyId);
+        return slot < 0 ? null : value(slot);
+    }
+
+    /**
+     * @return a new map of the node's attributes, in document order
+     */
+    public Map<String, String> getAttributes(int id) {
+        checkId(id);
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        for (int i = mAttrStart[id]; i < mAttrStart[id + 1]; i++) {
+            attributes.put(mPool.get(mAttrKeys[i]), value(i));
+        }
+        return attributes;
+    }
+
+    private int findSlot(int id, int keyId) {
+        checkId(id);
+        for (int i = mAttrStart[id]; i < mAttrStart[id + 1]; i++) {
+            if (mAttrKeys[i] == keyId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int valueId(int slot) {
+        if (mAttrValueEnds != null && mAttrValueEnds[slot] >= 0) {
+            throw new IllegalStateException("Value is read from the mapped dump");
+        }
+        return mAttrValues[slot];
+    }
+
+    private String value(int slot) {
+        if (mAttrValueEnds == null || mAttrValueEnds[slot] < 0) {
+            return mPool.get(mAttrValues[slot]);
+        }
+        int start = mAttrValues[slot];
+        int end = mAttrValueEnds[slot];
+        // absolute reads don't touch the buffer's position, so this is safe from any thread
+        return UiHierarchyPullParser.decodeValue(mSource, start, end, new byte[end - start]);
+    }
+
+    private int attributeSlot(int id, int i) {
+        checkId(id);
+        if (i < 0 || i >= mAttrStart[id + 1] - mAttrStart[id]) {
+            throw new IndexOutOfBoundsException("Attribute " + i + " of node " + id);
+        }
+        return mAttrStart[id] + i;
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= mSize) {
+            throw new IndexOutOfBoundsException("No node with id " + id);
+        }
+    }
+
+    // ----- building, only used by the loader -----
+
+    void setWindowName(String windowName) {
+        mHasWindow = true;
+        mWindowName = windowName;
+    }
+
+    /**
+     * Appends a new node as the last child of <code>parent</code>, or as a top level node if
+     * parent is -1. Attributes added next belong to the new node.
+     * @return id of the new node
+     */
+    int addNode(int parent) {
+        int id = mSize++;
+        ensureCapacity(mSize);
+        mParent[id] = parent;
+        mFirstChild[id] = -1;
+        mNextSibling[id] = -1;
+        mLastChild[id] = -1;
+        mAttrStart[id] = mAttrCount;
+        mAttrStart[id + 1] = mAttrCount;
+        if (parent < 0) {
+            if (mLastTopLevel >= 0) {
+                mNextSibling[mLastTopLevel] = id;
+            }
+            mLastTopLevel = id;
+            mChildPosition[id] = ++mTopLevelCount;
+        } else {
+            if (mLastChild[parent] < 0) {
+                mFirstChild[parent] = id;
+            } else {
+                mNextSibling[mLastChild[parent]] = id;
+            }
+            mLastChild[parent] = id;
+            mChildPosition[id] = ++mChildCount[parent];
+        }
+        return id;
+    }
+
+    /**
+     * Adds an attribute to the node that was added last
+     */
+    void addAttribute(String key, String value) {
+        appendAttribute(key, mPool.intern(value), -1);
+    }
+
+    /**
+     * Adds an attribute whose value is the given byte range of the mapped source to the node
+     * that was added last
+     */
+    void addMappedAttribute(String key, int start, int end) {
+        appendAttribute(key, start, end);
+    }
+
+    private void appendAttribute(String key, int value, int valueEnd) {
+        if (mAttrCount == mAttrKeys.length) {
+            mAttrKeys = Arrays.copyOf(mAttrKeys, mAttrCount * 2);
+            mAttrValues = Arrays.copyOf(mAttrValues, mAttrCount * 2);
+            if (mAttrValueEnds != null) {
+                mAttrValueEnds = Arrays.copyOf(mAttrValueEnds, mAttrCount * 2);
+            }
+        }
+        mAttrKeys[mAttrCount] = mPool.intern(key);
+        mAttrValues[mAttrCount] = value;
+        if (mAttrValueEnds != null) {
+            mAttrValueEnds[mAttrCount] = valueEnd;
+        }
+        mAttrCount++;
+        mAttrStart[mSize] = mAttrCount;
+    }
+
+    /**
+     * Records the bounds, class and label of the node that was added last; the values are
+     * passed in since the attributes they come from may not be kept
+     * @param label the node's label, or null to build it from its attributes when needed
+     */
+    void onAttributesLoaded(int id, String className, String bounds, String label) {
+        if (bounds != null) {
+            int[] values = new int[4];
+            UiNode.parseBounds(bounds, values);
+            System.arraycopy(values, 0, mBounds, id * 4, 4);
+            mHasBounds.set(id);
+        }
+        // class names are few, intern them even if the store is mapped
+        int classId = className == null ? -1 : mPool.intern(className);
+        mClassIds[id] = classId;
+        // same numbering as BasicTreeNode#addChild(BasicTreeNode)
+        Long key = ((long) mParent[id] << 32) | (classId & 0xffffffffL);
+        Integer count = mClassCounts.get(key);
+        count = count == null ? 1 : count + 1;
+        mClassCounts.put(key, count);
+        mClassNameIndex[id] = count;
+        if (label != null) {
+            if (mLabels == null) {
+                mLabels = new String[mParent.length];
+            }
+            mLabels[id] = label;
+        }
+    }
+
+    /**
+     * Trims the arrays and creates the root node, after which the store is read only
+     */
+    void finish() {
+        mParent = Arrays.copyOf(mParent, mSize);
+        mFirstChild = Arrays.copyOf(mFirstChild, mSize);
+        mNextSibling = Arrays.copyOf(mNextSibling, mSize);
+        mChildCount = Arrays.copyOf(mChildCount, mSize);
+        mChildPosition = Arrays.copyOf(mChildPosition, mSize);
+        mClassNameIndex = Arrays.copyOf(mClassNameIndex, mSize);
+        mClassIds = Arrays.copyOf(mClassIds, mSize);
+        if (mLabels != null) {
+            mLabels = Arrays.copyOf(mLabels, mSize);
+        }
+        mBounds = Arrays.copyOf(mBounds, mSize * 4);
+        mAttrStart = Arrays.copyOf(mAttrStart, mSize + 1);
+        mAttrKeys = Arrays.copyOf(mAttrKeys, mAttrCount);
+        mAttrValues = Arrays.copyOf(mAttrValues, mAttrCount);
+        if (mAttrValueEnds != null) {
+            mAttrValueEnds = Arrays.copyOf(mAttrValueEnds, mAttrCount);
+        }
+        attachRootNode();
+    }
+
+    /**
+     * Creates the root node once the arrays are final
+     */
+    private void attachRootNode() {
+        mLastChild = null;
+        mClassCounts = null;
+        mNodes = new UiNode[mSize];
+        if (mHasWindow) {
+            mRootNode = new RootWindowNode(mWindowName);
+            for (int id = mSize > 0 ? 0 : -1; id >= 0; id = mNextSibling[id]) {
+                mRootNode.addChild(getNode(id));
+            }
+        } else if (mSize > 0) {
+            mRootNode = getNode(0);
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= mParent.length) {
+            return;
+        }
+        int capacity = Math.max(size, mParent.length * 2);
+        mParent = Arrays.copyOf(mParent, capacity);
+        mFirstChild = Arrays.copyOf(mFirstChild, capacity);
+        mNextSibling = Arrays.copyOf(mNextSibling, capacity);
+        mChildCount = Arrays.copyOf(mChildCount, capacity);
+        mChildPosition = Arrays.copyOf(mChildPosition, capacity);
+        mClassNameIndex = Arrays.copyOf(mClassNameIndex, capacity);
+        mClassIds = Arrays.copyOf(mClassIds, capacity);
+        if (mLabels != null) {
+            mLabels = Arrays.copyOf(mLabels, capacity);
+        }
+        mLastChild = Arrays.copyOf(mLastChild, capacity);
+        mBounds = Arrays.copyOf(mBounds, capacity * 4);
+        mAttrStart = Arrays.copyOf(mAttrStart, capacity + 1);
+    }
+
+    // ----- binary form -----
+
+    /**
+     * Writes the store in the form read by {@link #read(ByteBuffer, StringPool)}: a table of
+     * the strings the store refers to, followed by the node and attribute arrays as ids into
+     * that table. Values of mapped stores are decoded and written like any other string.
+     */
+    public void write(DataOutput out) throws IOException {
+        // the pool may be shared with other stores, only write what this one refers to
+        StringPool strings = new StringPool();
+        int[] classIds = new int[mSize];
+        for (int id = 0; id < mSize; id++) {
+            classIds[id] = mClassIds[id] < 0 ? -1 : strings.intern(mPool.get(mClassIds[id]));
+        }
+        int[] keys = new int[mAttrCount];
+        int[] values = new int[mAttrCount];
+        for (int slot = 0; slot < mAttrCount; slot++) {
+            keys[slot] = strings.intern(mPool.get(mAttrKeys[slot]));
+            values[slot] = strings.intern(value(slot));
+        }
+        int windowName = mWindowName != null ? strings.intern(mWindowName) : -1;
+        int[] labels = null;
+        if (mLabels != null) {
+            labels = new int[mSize];
+            for (int id = 0; id < mSize; id++) {
+                labels[id] = mLabels[id] != null ? strings.intern(mLabels[id]) : -1;
+            }
+        }
+
+        out.writeInt(strings.size());
+        for (int i = 0; i < strings.size(); i++) {
+            byte[] bytes = strings.get(i).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        out.writeInt(mSize);
+        out.writeBoolean(mHasWindow);
+        out.writeInt(windowName);
+        writeInts(out, mParent, mSize);
+        writeInts(out, mFirstChild, mSize);
+        writeInts(out, mNextSibling, mSize);
+        writeInts(out, mChildCount, mSize);
+        writeInts(out, mChildPosition, mSize);
+        writeInts(out, mClassNameIndex, mSize);
+        writeInts(out, classIds, mSize);
+        writeInts(out, mBounds, mSize * 4);
+        long[] hasBounds = mHasBounds.toLongArray();
+        out.writeInt(hasBounds.length);
+        for (long word : hasBounds) {
+            out.writeLong(word);
+        }
+        out.writeBoolean(labels != null);
+        if (labels != null) {
+            writeInts(out, labels, mSize);
+        }
+        writeInts(out, mAttrStart, mSize + 1);
+        out.writeInt(mAttrCount);
+        writeInts(out, keys, mAttrCount);
+        writeInts(out, values, mAttrCount);
+    }
+
+    private static void writeInts(DataOutput out, int[] values, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    /**
+     * Copies a fully loaded tree of {@link UiNode}s, under a {@link RootWindowNode} or not,
+     * such as one loaded by the streaming parser, so that it can be written without parsing
+     * the dump again
+     */
+    public static HierarchyStore copyOf(BasicTreeNode root, StringPool pool) {
+        final HierarchyStore store = new HierarchyStore(pool);
+        // ids of the nodes being visited, with -1 for the root window
+        final int[][] stack = { new int[64] };
+        final int[] depth = { 0 };
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                int parent = depth[0] > 0 ? stack[0][depth[0] - 1] : -1;
+                int id = parent;
+                if (node instanceof RootWindowNode && depth[0] == 0) {
+                    store.setWindowName(node.toString());
+                } else if (node instanceof UiNode) {
+                    id = store.addNode(parent);
+                    Map<String, String> attributes = ((UiNode) node).getLoadedAttributes();
+                    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                        store.addAttribute(attribute.getKey(), attribute.getValue());
+                    }
+                    // nodes loaded without some of the attributes labels are made of keep
+                    // the label they were loaded with
+                    String label = UiNode.buildDisplayName(attributes.get("class"),
+                            attributes.get("text"), attributes.get("content-desc"),
+                            attributes.get("index"), attributes.get("bounds")) == null
+                            ? node.toString() : null;
+                    store.onAttributesLoaded(id, attributes.get("class"),
+                            attributes.get("bounds"), label);
+                } else {
+                    throw new IllegalArgumentException(
+                            "Cannot copy " + node.getClass().getName());
+                }
+                if (depth[0] == stack[0].length) {
+                    stack[0] = Arrays.copyOf(stack[0], depth[0] * 2);
+                }
+                stack[0][depth[0]++] = id;
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+
+            @Override
+            public BasicTreeNode.VisitResult postVisit(BasicTreeNode node) {
+                depth[0]--;
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        store.finish();
+        return store;
+    }
+
+    /**
+     * Reads a store written by {@link #write(DataOutput)}, starting at the buffer's position.
+     * The strings are interned into <code>pool</code>, the store holds all of its values.
+     * @throws IOException if the data is truncated or inconsistent
+     */
+    public static HierarchyStore read(ByteBuffer in, StringPool pool) throws IOException {
+        try {
+            int[] strings = new int[in.getInt()];
+            byte[] scratch = new byte[256];
+            for (int i = 0; i < strings.length; i++) {
+                int length = in.getInt();
+                if (length > scratch.length) {
+                    scratch = new byte[Math.max(length, scratch.length * 2)];
+                }
+                in.get(scratch, 0, length);
+                strings[i] = pool.intern(new String(scratch, 0, length, StandardCharsets.UTF_8));
+            }
+            HierarchyStore store = new HierarchyStore(pool);
+            int size = in.getInt();
+            store.mSize = size;
+            store.mHasWindow = in.get() != 0;
+            int windowName = in.getInt();
+            store.mWindowName = windowName < 0 ? null : pool.get(strings[windowName]);
+            store.mParent = readInts(in, size);
+            store.mFirstChild = readInts(in, size);
+            store.mNextSibling = readInts(in, size);
+            store.mChildCount = readInts(in, size);
+            store.mChildPosition = readInts(in, size);
+            store.mClassNameIndex = readInts(in, size);
+            store.mClassIds = remap(readInts(in, size), strings);
+            store.mBounds = readInts(in, size * 4);
+            long[] hasBounds = new long[in.getInt()];
+            in.asLongBuffer().get(hasBounds);
+            in.position(in.position() + hasBounds.length * 8);
+            store.mHasBounds.or(BitSet.valueOf(hasBounds));
+            if (in.get() != 0) {
+                int[] labels = readInts(in, size);
+                store.mLabels = new String[size];
+                for (int id = 0; id < size; id++) {
+                    store.mLabels[id] = labels[id] < 0 ? null : pool.get(strings[labels[id]]);
+                }
+            }
+            store.mAttrStart = readInts(in, size + 1);
+            store.mAttrCount = in.getInt();
+            store.mAttrKeys = remap(readInts(in, store.mAttrCount), strings);
+            store.mAttrValues = remap(readInts(in, store.mAttrCount), strings);
+            for (int id = 0; id < size; id++) {
+                int parent = store.mParent[id];
+                int next = store.mNextSibling[id];
+                int child = store.mFirstChild[id];
+                // links only point forward in document order, which also rules out cycles
+                if (parent >= id || parent < -1 || (next <= id && next != -1)
+                        || (child <= id && child != -1) || next >= size || child >= size
+                        || store.mAttrStart[id] > store.mAttrStart[id + 1]) {
+                    throw new IOException("Inconsistent node table at node " + id);
+                }
+            }
+            if (store.mAttrStart[0] != 0 || store.mAttrStart[size] != store.mAttrCount) {
+                throw new IOException("Inconsistent attribute table");
+            }
+            store.attachRootNode();
+            return store;
+        } catch (RuntimeException e) {
+            // buffer underflows, negative sizes and ids out of range all mean bad data
+            throw new IOException("Corrupt hierarchy data", e);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer in, int count) {
+        int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + count * 4);
+        return values;
+    }
+
+    /**
+     * Replaces each id into the string table with the corresponding pool id, -1 stays -1
+     */
+    private static int[] remap(int[] ids, int[] strings) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] >= 0) {
+                ids[i] = strings[ids[i]];
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A set of XPath locators compiled into one matcher, which finds what all of them select in
+ * a hierarchy with a single pass over its nodes
+ *
+ * Most locators look like "//class[@attribute='value' and ...]": their first step selects
+ * descendants of the document one node at a time. These are grouped by an attribute value all
+ * the nodes they select have, or a prefix of it, or failing that by class, so that each node
+ * is only checked against the few locators of its own attribute values and class; the steps
+ * after the first, if any, start from the nodes found. Other locators are evaluated one by
+ * one.
+ *
+ * A set can be matched against several hierarchies at the same time.
+ */
+public class LocatorSet {
+
+    private final String[] mNames;
+    private final String[] mSources;
+    private final XPathEvaluator.Expression[] mExpressions;
+    private final String[] mErrors;
+
+    // locators whose first step is matched node by node, by the value of an attribute they
+    // require or its prefix, by class, and the rest, which check every node
+    private final Map<String, Map<String, int[]>> mByAttribute =
+            new HashMap<String, Map<String, int[]>>();
+    private final String[] mKeyAttributes;
+    private final Map<String, Map<String, int[]>> mByPrefix =
+            new HashMap<String, Map<String, int[]>>();
+    private final String[] mPrefixAttributes;
+    // the lengths of the prefixes of each attribute, in the order of mPrefixAttributes
+    private final int[][] mPrefixLengths;
+    private final Map<String, int[]> mByClass = new HashMap<String, int[]>();
+    private final int[] mOnEveryNode;
+    // the other locators, by index
+    private final int[] mEvaluated;
+
+    /**
+     * Results of matching a set against one hierarchy
+     */
+    public static class Result {
+        private final int[] mCounts;
+        private final String[] mErrors;
+
+        private Result(int size) {
+            mCounts = new int[size];
+            mErrors = new String[size];
+        }
+
+        /**
+         * @return the number of nodes the locator selects, or -1 if it is broken
+         */
+        public int getCount(int locator) {
+            return mCounts[locator];
+        }
+
+        /**
+         * @return why the locator is broken, or null
+         */
+        public String getError(int locator) {
+            return mErrors[locator];
+        }
+    }
+
+    /**
+     * @param names names of the locators, reported along with them
+     * @param locators XPath expressions; those that don't compile are reported as broken
+     */
+    public LocatorSet(List<String> names, List<String> locators) {
+        int size = locators.size();
+        mNames = names.toArray(new String[size]);
+        mSources = locators.toArray(new String[size]);
+        mExpressions = new XPathEvaluator.Expression[size];
+        mErrors = new String[size];
+
+        Map<String, Map<String, List<Integer>>> byAttribute =
+                new HashMap<String, Map<String, List<Integer>>>();
+        Map<String, Map<String, List<Integer>>> byPrefix =
+                new HashMap<String, Map<String, List<Integer>>>();
+        Map<String, List<Integer>> byClass = new HashMap<String, List<Integer>>();
+        List<Integer> onEveryNode = new ArrayList<Integer>();
+        List<Integer> evaluated = new ArrayList<Integer>();
+        for (int i = 0; i < size; i++) {
+            try {
+                mExpressions[i] = XPathEvaluator.compile(mSources[i]);
+            } catch (IllegalArgumentException e) {
+                mErrors[i] = e.getMessage();
+                continue;
+            }
+            if (!XPathEvaluator.hasDescendantStep(mExpressions[i])) {
+                evaluated.add(i);
+                continue;
+            }
+            String[] key = XPathEvaluator.getDescendantStepKey(mExpressions[i]);
+            String[] prefix = XPathEvaluator.getDescendantStepPrefix(mExpressions[i]);
+            String className = XPathEvaluator.getDescendantStepClass(mExpressions[i]);
+            if (key != null) {
+                add(byAttribute, key[0], key[1], i);
+            } else if (prefix != null) {
+                add(byPrefix, prefix[0], prefix[1], i);
+            } else if (className != null) {
+                add(byClass, className, i);
+            } else {
+                onEveryNode.add(i);
+            }
+        }
+        for (Map.Entry<String, Map<String, List<Integer>>> entry : byAttribute.entrySet()) {
+            mByAttribute.put(entry.getKey(), toArrays(entry.getValue()));
+        }
+        mKeyAttributes = mByAttribute.keySet().toArray(new String[mByAttribute.size()]);
+        mPrefixAttributes = byPrefix.keySet().toArray(new String[byPrefix.size()]);
+        mPrefixLengths = new int[mPrefixAttributes.length][];
+        for (int i = 0; i < mPrefixAttributes.length; i++) {
+            Map<String, List<Integer>> byValue = byPrefix.get(mPrefixAttributes[i]);
+            TreeSet<Integer> lengths = new TreeSet<Integer>();
+            for (String value : byValue.keySet()) {
+                lengths.add(value.length());
+            }
+            mPrefixLengths[i] = toArray(new ArrayList<Integer>(lengths));
+            mByPrefix.put(mPrefixAttributes[i], toArrays(byValue));
+        }
+        for (Map.Entry<String, List<Integer>> entry : byClass.entrySet()) {
+            mByClass.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        mOnEveryNode = toArray(onEveryNode);
+        mEvaluated = toArray(evaluated);
+    }
+
+    private static void add(Map<String, List<Integer>> map, String key, int locator) {
+        List<Integer> locators = map.get(key);
+        if (locators == null) {
+            locators = new ArrayList<Integer>();
+            map.put(key, locators);
+        }
+        locators.add(locator);
+    }
+
+    private static void add(Map<String, Map<String, List<Integer>>> map, String attribute,
+            String value, int locator) {
+        Map<String, List<Integer>> byValue = map.get(attribute);
+        if (byValue == null) {
+            byValue = new HashMap<String, List<Integer>>();
+            map.put(attribute, byValue);
+        }
+        add(byValue, value, locator);
+    }
+
+    private static Map<String, int[]> toArrays(Map<String, List<Integer>> map) {
+        Map<String, int[]> arrays = new HashMap<String, int[]>();
+        for (Map.Entry<String, List<Integer>> entry : map.entrySet()) {
+            arrays.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        return arrays;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Reads locators from a file with one per line, either on its own or after its name and a
+     * tab; empty lines and lines starting with '#' are skipped
+     */
+    public static LocatorSet read(File file) throws IOException {
+        List<String> names = new ArrayList<String>();
+        List<String> locators = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                    continue;
+                }
+                int tab = line.indexOf('\t');
+                names.add(tab >= 0 ? line.substring(0, tab).trim() : "line " + number);
+                locators.add(line.substring(tab + 1).trim());
+            }
+        } finally {
+            reader.close();
+        }
+        return new LocatorSet(names, locators);
+    }
+
+    public int size() {
+        return mSources.length;
+    }
+
+    public String getName(int locator) {
+        return mNames[locator];
+    }
+
+    public String getLocator(int locator) {
+        return mSources[locator];
+    }
+
+    /**
+     * Finds how many nodes of the hierarchy each locator selects
+     */
+    public Result match(BasicTreeNode root) {
+        Result result = new Result(size());
+        XPathEvaluator evaluator = new XPathEvaluator(root, null);
+        // ids of the nodes the first step of each locator selects, in ascending order
+        int[][] found = new int[size()][];
+        int[] counts = new int[size()];
+        boolean[] failed = new boolean[size()];
+        for (int id = 1; id < evaluator.getNodeCount(); id++) {
+            for (String attribute : mKeyAttributes) {
+                String value = evaluator.getAttribute(id, attribute);
+                if (value != null) {
+                    matchFirstStep(evaluator, id, mByAttribute.get(attribute).get(value),
+                            found, counts, failed, result);
+                }
+            }
+            for (int i = 0; i < mPrefixAttributes.length; i++) {
+                String value = evaluator.getAttribute(id, mPrefixAttributes[i]);
+                if (value == null) {
+                    continue;
+                }
+                Map<String, int[]> byPrefix = mByPrefix.get(mPrefixAttributes[i]);
+                for (int length : mPrefixLengths[i]) {
+                    if (length > value.length()) {
+                        break;
+                    }
+                    matchFirstStep(evaluator, id, byPrefix.get(value.substring(0, length)),
+                            found, counts, failed, result);
+                }
+            }
+            String className = evaluator.getClassName(id);
+            if (className != null) {
+                matchFirstStep(evaluator, id, mByClass.get(className), found, counts, failed,
+                        result);
+            }
+            matchFirstStep(evaluator, id, mOnEveryNode, found, counts, failed, result);
+        }
+        for (int i = 0; i < size(); i++) {
+            if (mExpressions[i] == null) {
+                result.mCounts[i] = -1;
+                result.mErrors[i] = mErrors[i];
+            } else if (failed[i]) {
+                result.mCounts[i] = -1;
+            } else if (XPathEvaluator.hasDescendantStep(mExpressions[i])) {
+                try {
+                    result.mCounts[i] = evaluator.evaluateAfterFirstStep(mExpressions[i],
+                            found[i] != null ? found[i] : new int[0], counts[i]).size();
+                } catch (IllegalArgumentException e) {
+                    result.mCounts[i] = -1;
+                    result.mErrors[i] = e.getMessage();
+                }
+            }
+        }
+        for (int i : mEvaluated) {
+            try {
+                result.mCounts[i] = evaluator.evaluate(mExpressions[i]).size();
+            } catch (IllegalArgumentException e) {
+                result.mCounts[i] = -1;
+                result.mErrors[i] = e.getMessage();
+            }
+        }
+        return result;
+    }
+
+    private void matchFirstStep(XPathEvaluator evaluator, int id, int[] locators,
+            int[][] found, int[] counts, boolean[] failed, Result result) {
+        if (locators == null) {
+            return;
+        }
+        for (int locator : locators) {
+            if (failed[locator]) {
+                continue;
+            }
+            try {
+                if (!evaluator.isSelectedByFirstStep(mExpressions[locator], id)) {
+                    continue;
+                }
+            } catch (IllegalArgumentException e) {
+                failed[locator] = true;
+                result.mErrors[locator] = e.getMessage();
+                continue;
+            }
+            int[] ids = found[locator];
+            if (ids == null) {
+                ids = found[locator] = new int[4];
+            } else if (counts[locator] == ids.length) {
+                ids = found[locator] = Arrays.copyOf(ids, ids.length * 2);
+            }
+            ids[counts[locator]++] = id;
+        }
+    }
+}
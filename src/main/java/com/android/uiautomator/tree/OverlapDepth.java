@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How many visible nodes cover each pixel of the screen, which shows where views are stacked
+ * deepest and the screen is likely overdrawn
+ *
+ * Each node adds one to the top left corner of its bounds in a difference array and takes
+ * one off the other corners, a single prefix sum over the array then gives the depth of
+ * every pixel: computing it takes O(n + pixels) for n nodes, however large they are.
+ *
+ * The depths are only read once computed, so they can be shared between threads.
+ */
+public class OverlapDepth {
+
+    private final int mWidth;
+    private final int mHeight;
+    // row by row
+    private final int[] mDepths;
+    private int mMaxDepth;
+    // of the nodes on the screen
+    private int mCount;
+
+    private OverlapDepth(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mDepths = new int[width * height];
+    }
+
+    /**
+     * Computes the depths over a screen of the given size, of a fully loaded tree; the parts
+     * of bounds off the screen are left out
+     */
+    public static OverlapDepth compute(BasicTreeNode root, int width, int height) {
+        final OverlapDepth depth = new OverlapDepth(width, height);
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                if (isCounted(node)) {
+                    depth.add(node.x, node.y, node.x + node.width, node.y + node.height);
+                }
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        depth.sum();
+        return depth;
+    }
+
+    /**
+     * @return whether the node is visible, as far as the dump tells; dumps loaded without the
+     * "visible-to-user" attribute count all their nodes
+     */
+    private static boolean isCounted(BasicTreeNode node) {
+        return node.mHasBounds && node instanceof UiNode
+                && !"false".equals(((UiNode) node).getAttribute("visible-to-user"));
+    }
+
+    private void add(int left, int top, int right, int bottom) {
+        left = Math.max(left, 0);
+        top = Math.max(top, 0);
+        right = Math.min(right, mWidth);
+        bottom = Math.min(bottom, mHeight);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        mCount++;
+        // corners past the right or bottom edge would only affect pixels off the screen
+        mDepths[top * mWidth + left]++;
+        if (right < mWidth) {
+            mDepths[top * mWidth + right]--;
+        }
+        if (bottom < mHeight) {
+            mDepths[bottom * mWidth + left]--;
+            if (right < mWidth) {
+                mDepths[bottom * mWidth + right]++;
+            }
+        }
+    }
+
+    /**
+     * Turns the differences into depths in place: the depth of a pixel is the sum of the
+     * differences in its row up to it, plus the depth of the pixel above
+     */
+    private void sum() {
+        int row = 0;
+        for (int x = 0; x < mWidth; x++) {
+            row += mDepths[x];
+            mDepths[x] = row;
+        }
+        for (int y = 1; y < mHeight; y++) {
+            row = 0;
+            for (int i = y * mWidth, end = i + mWidth; i < end; i++) {
+                row += mDepths[i];
+                mDepths[i] = row + mDepths[i - mWidth];
+            }
+        }
+        int max = 0;
+        for (int depth : mDepths) {
+            max = Math.max(max, depth);
+        }
+        mMaxDepth = max;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the number of nodes covering the pixel, 0 off the screen
+     */
+    public int getDepth(int x, int y) {
+        if (x < 0 || y < 0 || x >= mWidth || y >= mHeight) {
+            return 0;
+        }
+        return mDepths[y * mWidth + x];
+    }
+
+    /**
+     * @return the largest depth over the screen
+     */
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * Computes the depths of the subtree of the node on its own, leaving out its ancestors
+     * and the nodes beside it; children need not lie within the bounds of their parent, so
+     * the depths are taken over the area all the nodes of the subtree span
+     *
+     * @return the largest depth, and the mean depth over the pixels the subtree covers, or
+     * null if none of its nodes is on the screen
+     */
+    public double[] getStats(BasicTreeNode root) {
+        final List<int[]> bounds = new ArrayList<int[]>();
+        final int[] area = { mWidth, mHeight, 0, 0 };
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                if (isCounted(node)) {
+                    int[] b = { Math.max(node.x, 0), Math.max(node.y, 0),
+                            Math.min(node.x + node.width, mWidth),
+                            Math.min(node.y + node.height, mHeight) };
+                    if (b[0] < b[2] && b[1] < b[3]) {
+                        bounds.add(b);
+                        area[0] = Math.min(area[0], b[0]);
+                        area[1] = Math.min(area[1], b[1]);
+                        area[2] = Math.max(area[2], b[2]);
+                        area[3] = Math.max(area[3], b[3]);
+                    }
+                }
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        if (bounds.isEmpty()) {
+            return null;
+        }
+        OverlapDepth depth = this;
+        if (bounds.size() < mCount) {
+            depth = new OverlapDepth(area[2] - area[0], area[3] - area[1]);
+            for (int[] b : bounds) {
+                depth.add(b[0] - area[0], b[1] - area[1], b[2] - area[0], b[3] - area[1]);
+            }
+            depth.sum();
+        }
+        // otherwise the subtree has all the nodes, whose depths are known already
+        long sum = 0, covered = 0;
+        for (int d : depth.mDepths) {
+            if (d > 0) {
+                sum += d;
+                covered++;
+            }
+        }
+        return new double[] { depth.mMaxDepth, (double) sum / covered };
+    }
+}
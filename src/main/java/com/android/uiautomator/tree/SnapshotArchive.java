@@ -0,0 +1,622 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only archive of many snapshots, each made of a screenshot and a UI hierarchy
+ *
+ * Everything is stored as content-addressed records. A node record holds the node's
+ * attributes and the hashes of its children, so its hash covers its whole subtree, Merkle
+ * style. Subtrees and screenshots that are the same in several snapshots are therefore
+ * stored only once. Consecutive captures of an app mostly add the nodes along the paths to
+ * whatever changed.
+ *
+ * On open, the archive is scanned once to index the records by hash. Snapshots are read back
+ * on demand as a {@link HierarchyStore} plus the screenshot's bytes. A record cut short, for
+ * example by a crash while appending, is dropped on open and overwritten by the next append.
+ * Archives opened with {@link #openReadOnly(File)} are never written to, so they can be read
+ * while another process appends to them; they only see the records complete when opened.
+ */
+public class SnapshotArchive implements Closeable {
+
+    private static final int MAGIC = 0x55495841; // "UIXA"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int HASH_SIZE = 20;
+    // type, hash, raw length and stored length
+    private static final int RECORD_HEADER_SIZE = 1 + HASH_SIZE + 4 + 4;
+
+    private static final byte TYPE_NODE = 1;
+    private static final byte TYPE_WINDOW = 2;
+    private static final byte TYPE_IMAGE = 3;
+    private static final byte TYPE_SNAPSHOT = 4;
+
+    // node records are small and repetitive, deflating them against a dictionary of the usual
+    // keys and values pays off even for a single record; changing it needs a new VERSION
+    private static final byte[] DICTIONARY = ("android.widget.FrameLayout"
+            + "android.widget.LinearLayout android.widget.RelativeLayout"
+            + "android.view.ViewGroup android.view.View androidx.recyclerview.widget.RecyclerView"
+            + "android.widget.ImageView android.widget.Button android.widget.TextView"
+            + "indextextresource-idclasspackagecontent-desccheckablecheckedclickableenabled"
+            + "focusablefocusedscrollablelong-clickablepasswordselectedbounds"
+            + "falsetrue[0,0][1080,").getBytes(StandardCharsets.UTF_8);
+
+    private final RandomAccessFile mFile;
+    private final boolean mReadOnly;
+    private final FileChannel mChannel;
+    // offset of the record with each hash, keyed by ByteBuffer.wrap(hash)
+    private final Map<ByteBuffer, Long> mIndex = new HashMap<ByteBuffer, Long>();
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    private long mEnd;
+    private final MessageDigest mDigest;
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private final Inflater mInflater = new Inflater();
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(4096);
+
+    /**
+     * A snapshot in the archive
+     */
+    public static class Entry {
+        private final String mName;
+        private final long mTimestamp;
+        private final byte[] mScreenshotHash;
+        private final byte[] mRootHash;
+
+        Entry(String name, long timestamp, byte[] screenshotHash, byte[] rootHash) {
+            mName = name;
+            mTimestamp = timestamp;
+            mScreenshotHash = screenshotHash;
+            mRootHash = rootHash;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return when the snapshot was added, in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public boolean hasScreenshot() {
+            return mScreenshotHash != null;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private SnapshotArchive(File file, boolean readOnly) throws IOException {
+        try {
+            mDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        mReadOnly = readOnly;
+        mFile = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        mChannel = mFile.getChannel();
+    }
+
+    /**
+     * Opens the archive to add snapshots to it, creating it if the file doesn't exist yet
+     * @throws IOException if the file cannot be read or isn't an archive
+     */
+    public static SnapshotArchive open(File file) throws IOException {
+        return open(file, false);
+    }
+
+    /**
+     * Opens an existing archive to read snapshots from it, leaving the file as it is
+     * @throws IOException if the file cannot be read or isn't an archive
+     */
+    public static SnapshotArchive openReadOnly(File file) throws IOException {
+        return open(file, true);
+    }
+
+    private static SnapshotArchive open(File file, boolean readOnly) throws IOException {
+        SnapshotArchive archive = new SnapshotArchive(file, readOnly);
+        try {
+            archive.scan();
+        } catch (IOException e) {
+            archive.close();
+            throw e;
+        }
+        return archive;
+    }
+
+    private void scan() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        if (mChannel.size() == 0) {
+            if (mReadOnly) {
+                throw new IOException("Not a snapshot archive");
+            }
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            mChannel.write(header, 0);
+            mEnd = FILE_HEADER_SIZE;
+            return;
+        }
+        header.limit(FILE_HEADER_SIZE);
+        if (!readFully(header, 0) || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a snapshot archive");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported archive version " + header.getInt(4));
+        }
+        long position = FILE_HEADER_SIZE;
+        long size = mChannel.size();
+        mEnd = position;
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            byte type = header.get(0);
+            byte[] hash = new byte[HASH_SIZE];
+            header.position(1);
+            header.get(hash);
+            header.getInt();
+            int storedLength = header.getInt();
+            if (storedLength < 0 || position + RECORD_HEADER_SIZE + storedLength > size) {
+                break;
+            }
+            // anything past the last complete record is the remains of an interrupted append
+            mEnd = position + RECORD_HEADER_SIZE + storedLength;
+            if (type == TYPE_SNAPSHOT) {
+                mEntries.add(readEntry(position));
+            } else {
+                mIndex.put(ByteBuffer.wrap(hash), position);
+            }
+            position = mEnd;
+        }
+    }
+
+    /**
+     * @return the snapshots in the order they were added
+     */
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(mEntries));
+    }
+
+    /**
+     * @return the size of the archive file, in bytes
+     */
+    public synchronized long getSize() {
+        return mEnd;
+    }
+
+    /**
+     * Adds a snapshot, storing only the subtrees and screenshot the archive doesn't have yet
+     * @param name a name for the snapshot, need not be unique
+     * @param screenshot the encoded screenshot, e.g. the bytes of a PNG file, or null
+     * @param root the root of the hierarchy, a {@link RootWindowNode} or a {@link UiNode}
+     */
+    public synchronized Entry add(String name, byte[] screenshot, BasicTreeNode root)
+            throws IOException {
+        if (mReadOnly) {
+            throw new IOException("Archive is open read-only");
+        }
+        byte[] screenshotHash = null;
+        if (screenshot != null) {
+            screenshotHash = putRecord(TYPE_IMAGE, screenshot);
+        }
+        byte[] rootHash = putTree(root);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        long timestamp = System.currentTimeMillis();
+        writeString(out, name);
+        out.writeLong(timestamp);
+        out.writeBoolean(screenshotHash != null);
+        if (screenshotHash != null) {
+            out.write(screenshotHash);
+        }
+        out.write(rootHash);
+        Entry entry = new Entry(name, timestamp, screenshotHash, rootHash);
+        appendRecord(TYPE_SNAPSHOT, hash(TYPE_SNAPSHOT, bytes.toByteArray()),
+                bytes.toByteArray());
+        mEntries.add(entry);
+        return entry;
+    }
+
+    /**
+     * Stores each subtree of the hierarchy that isn't in the archive yet, bottom up
+     * @return the hash of the root's record
+     */
+    private byte[] putTree(BasicTreeNode root) throws IOException {
+        final List<List<byte[]>> childHashes = new ArrayList<List<byte[]>>();
+        final byte[][] rootHash = new byte[1][];
+        final IOException[] error = new IOException[1];
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                childHashes.add(new ArrayList<byte[]>());
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+
+            @Override
+            public BasicTreeNode.VisitResult postVisit(BasicTreeNode node) {
+                List<byte[]> children = childHashes.remove(childHashes.size() - 1);
+                try {
+                    byte[] hash = putNode(node, children);
+                    if (childHashes.isEmpty()) {
+                        rootHash[0] = hash;
+                    } else {
+                        childHashes.get(childHashes.size() - 1).add(hash);
+                    }
+                    return BasicTreeNode.VisitResult.CONTINUE;
+                } catch (IOException e) {
+                    error[0] = e;
+                    return BasicTreeNode.VisitResult.TERMINATE;
+                }
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return rootHash[0];
+    }
+
+    private byte[] putNode(BasicTreeNode node, List<byte[]> children) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte type;
+        if (node instanceof RootWindowNode) {
+            type = TYPE_WINDOW;
+            String windowName = node.toString();
+            out.writeBoolean(windowName != null);
+            if (windowName != null) {
+                writeString(out, windowName);
+            }
+        } else if (node instanceof UiNode) {
+            type = TYPE_NODE;
+            // the xpath depends on where the subtree is, leaving it out lets moved subtrees
+            // be shared; it is derived again when the snapshot is read
+            Map<String, String> attributes = ((UiNode) node).getLoadedAttributes();
+            out.writeInt(attributes.size());
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                writeString(out, attribute.getKey());
+                writeString(out, attribute.getValue());
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot archive " + node.getClass().getName());
+        }
+        out.writeInt(children.size());
+        for (byte[] child : children) {
+            out.write(child);
+        }
+        return putRecord(type, bytes.toByteArray());
+    }
+
+    /**
+     * Appends a record unless the archive already has one with the same contents
+     * @return the hash of the record
+     */
+    private byte[] putRecord(byte type, byte[] payload) throws IOException {
+        byte[] hash = hash(type, payload);
+        if (!mIndex.containsKey(ByteBuffer.wrap(hash))) {
+            mIndex.put(ByteBuffer.wrap(hash), appendRecord(type, hash, payload));
+        }
+        return hash;
+    }
+
+    private byte[] hash(byte type, byte[] payload) {
+        mDigest.reset();
+        mDigest.update(type);
+        return mDigest.digest(payload);
+    }
+
+    /**
+     * @return the offset of the new record
+     */
+    private long appendRecord(byte type, byte[] hash, byte[] payload) throws IOException {
+        byte[] stored = payload;
+        int storedLength = payload.length;
+        // screenshots come compressed already
+        if (type != TYPE_IMAGE) {
+            mDeflater.reset();
+            mDeflater.setDictionary(DICTIONARY);
+            mDeflater.setInput(payload);
+            mDeflater.finish();
+            stored = new byte[payload.length + payload.length / 8 + 64];
+            storedLength = 0;
+            while (!mDeflater.finished()) {
+                if (storedLength == stored.length) {
+                    stored = Arrays.copyOf(stored, stored.length * 2);
+                }
+                storedLength += mDeflater.deflate(stored, storedLength,
+                        stored.length - storedLength);
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.put(type).put(hash).putInt(payload.length).putInt(storedLength).flip();
+        long position = mEnd;
+        mChannel.write(header, position);
+        mChannel.write(ByteBuffer.wrap(stored, 0, storedLength), position + RECORD_HEADER_SIZE);
+        mEnd = position + RECORD_HEADER_SIZE + storedLength;
+        return position;
+    }
+
+    /**
+     * @return the encoded screenshot of the snapshot, or null if it has none
+     */
+    public synchronized byte[] readScreenshot(Entry entry) throws IOException {
+        if (entry.mScreenshotHash == null) {
+            return null;
+        }
+        return readPayload(find(entry.mScreenshotHash), TYPE_IMAGE);
+    }
+
+    /**
+     * Reads the hierarchy of the snapshot into a new store
+     * @param pool the pool the store interns its strings into
+     */
+    public synchronized HierarchyStore readHierarchy(Entry entry, StringPool pool)
+            throws IOException {
+        HierarchyStore store = new HierarchyStore(pool);
+        // records shared by several subtrees of the snapshot are only read once
+        Map<ByteBuffer, DecodedNode> decoded = new HashMap<ByteBuffer, DecodedNode>();
+        // pre order walk with an explicit stack of (record hash, parent id) pairs
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        int[] parents = new int[64];
+        hashes.add(entry.mRootHash);
+        parents[0] = -1;
+        boolean root = true;
+        while (!hashes.isEmpty()) {
+            int top = hashes.size() - 1;
+            byte[] hash = hashes.remove(top);
+            int parent = parents[top];
+            DecodedNode node = decoded.get(ByteBuffer.wrap(hash));
+            if (node == null) {
+                node = decodeNode(hash);
+                decoded.put(ByteBuffer.wrap(hash), node);
+            }
+            int id = parent;
+            if (node.mWindow) {
+                if (!root) {
+                    throw new IOException("Window record below the root");
+                }
+                store.setWindowName(node.mWindowName);
+            } else {
+                id = store.addNode(parent);
+                String className = null;
+                String bounds = null;
+                for (int i = 0; i < node.mKeys.length; i++) {
+                    store.addAttribute(node.mKeys[i], node.mValues[i]);
+                    if ("class".equals(node.mKeys[i])) {
+                        className = node.mValues[i];
+                    } else if ("bounds".equals(node.mKeys[i])) {
+                        bounds = node.mValues[i];
+                    }
+                }
+                try {
+                    store.onAttributesLoaded(id, className, bounds, null);
+                } catch (RuntimeException e) {
+                    throw new IOException("Corrupt node record", e);
+                }
+            }
+            root = false;
+            // children are pushed last to first, so that the first child is visited next
+            for (int i = node.mChildren.length - 1; i >= 0; i--) {
+                if (hashes.size() == parents.length) {
+                    parents = Arrays.copyOf(parents, parents.length * 2);
+                }
+                parents[hashes.size()] = id;
+                hashes.add(node.mChildren[i]);
+            }
+        }
+        store.finish();
+        return store;
+    }
+
+    /**
+     * A node or window record, as read from the archive
+     */
+    private static class DecodedNode {
+        boolean mWindow;
+        String mWindowName;
+        String[] mKeys;
+        String[] mValues;
+        byte[][] mChildren;
+    }
+
+    private DecodedNode decodeNode(byte[] hash) throws IOException {
+        long position = find(hash);
+        Record record = readRecord(position);
+        ByteBuffer in = ByteBuffer.wrap(record.mPayload);
+        DecodedNode node = new DecodedNode();
+        try {
+            if (record.mType == TYPE_WINDOW) {
+                node.mWindow = true;
+                node.mWindowName = in.get() != 0 ? readString(in) : null;
+                node.mKeys = new String[0];
+                node.mValues = new String[0];
+            } else if (record.mType == TYPE_NODE) {
+                int count = in.getInt();
+                node.mKeys = new String[count];
+                node.mValues = new String[count];
+                for (int i = 0; i < count; i++) {
+                    node.mKeys[i] = readString(in);
+                    node.mValues[i] = readString(in);
+                }
+            } else {
+                throw new IOException("Not a node record at offset " + position);
+            }
+            node.mChildren = new byte[in.getInt()][];
+            for (int i = 0; i < node.mChildren.length; i++) {
+                node.mChildren[i] = new byte[HASH_SIZE];
+                in.get(node.mChildren[i]);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt node record at offset " + position, e);
+        }
+        return node;
+    }
+
+    private Entry readEntry(long position) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(readPayload(position, TYPE_SNAPSHOT));
+        try {
+            String name = readString(in);
+            long timestamp = in.getLong();
+            byte[] screenshotHash = null;
+            if (in.get() != 0) {
+                screenshotHash = new byte[HASH_SIZE];
+                in.get(screenshotHash);
+            }
+            byte[] rootHash = new byte[HASH_SIZE];
+            in.get(rootHash);
+            return new Entry(name, timestamp, screenshotHash, rootHash);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt snapshot record at offset " + position, e);
+        }
+    }
+
+    private long find(byte[] hash) throws IOException {
+        Long position = mIndex.get(ByteBuffer.wrap(hash));
+        if (position == null) {
+            throw new IOException("Missing record in archive");
+        }
+        return position;
+    }
+
+    /**
+     * A record as read from the archive, with its payload inflated
+     */
+    private static class Record {
+        final byte mType;
+        final byte[] mPayload;
+
+        Record(byte type, byte[] payload) {
+            mType = type;
+            mPayload = payload;
+        }
+    }
+
+    private Record readRecord(long position) throws IOException {
+        // most records are small enough to come with their header in a single read
+        mReadBuffer.clear();
+        mReadBuffer.limit((int) Math.min(mReadBuffer.capacity(), mEnd - position));
+        if (mReadBuffer.limit() < RECORD_HEADER_SIZE || !readFully(mReadBuffer, position)) {
+            throw new EOFException("Truncated record at offset " + position);
+        }
+        byte type = mReadBuffer.get(0);
+        int rawLength = mReadBuffer.getInt(1 + HASH_SIZE);
+        int storedLength = mReadBuffer.getInt(1 + HASH_SIZE + 4);
+        if (rawLength < 0 || storedLength < 0
+                || storedLength > mEnd - position - RECORD_HEADER_SIZE) {
+            throw new IOException("Corrupt record at offset " + position);
+        }
+        byte[] stored = new byte[storedLength];
+        int buffered = Math.min(storedLength, mReadBuffer.limit() - RECORD_HEADER_SIZE);
+        mReadBuffer.position(RECORD_HEADER_SIZE);
+        mReadBuffer.get(stored, 0, buffered);
+        if (buffered < storedLength && !readFully(
+                ByteBuffer.wrap(stored, buffered, storedLength - buffered),
+                position + RECORD_HEADER_SIZE + buffered)) {
+            throw new EOFException("Truncated record at offset " + position);
+        }
+        if (type == TYPE_IMAGE) {
+            return new Record(type, stored);
+        }
+        byte[] payload = new byte[rawLength];
+        try {
+            mInflater.reset();
+            mInflater.setInput(stored);
+            int length = mInflater.inflate(payload);
+            if (mInflater.needsDictionary()) {
+                mInflater.setDictionary(DICTIONARY);
+                length = mInflater.inflate(payload);
+            }
+            if (length != rawLength || !mInflater.finished()) {
+                throw new IOException("Corrupt record at offset " + position);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt record at offset " + position, e);
+        }
+        return new Record(type, payload);
+    }
+
+    private byte[] readPayload(long position, byte type) throws IOException {
+        Record record = readRecord(position);
+        if (record.mType != type) {
+            throw new IOException("Unexpected record type " + record.mType + " at offset "
+                    + position);
+        }
+        return record.mPayload;
+    }
+
+    /**
+     * @return false if the file ends before the buffer is full
+     */
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length,
+                StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // drop whatever an interrupted append left behind
+        if (!mReadOnly && mChannel.isOpen() && mChannel.size() > mEnd && mEnd > 0) {
+            mChannel.truncate(mEnd);
+        }
+        mDeflater.end();
+        mInflater.end();
+        mFile.close();
+    }
+}
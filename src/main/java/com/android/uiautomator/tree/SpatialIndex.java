@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import com.android.uiautomator.tree.BasicTreeNode.IFindNodeListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * R-tree over the bounds of the nodes of a hierarchy, for point and rectangle queries that
+ * don't walk the whole tree
+ *
+ * The tree is bulk loaded once with the Sort-Tile-Recursive packing: the nodes are sorted
+ * into vertical slices by x, each slice by y, and runs of {@link #FAN_OUT} consecutive
+ * entries make up the nodes of the level above. Nothing is assumed about children lying
+ * within their parents, so results are exact.
+ *
+ * The hierarchy must not change after the index is built.
+ */
+public class SpatialIndex {
+
+    private static final int FAN_OUT = 16;
+
+    // hierarchy nodes in pre order, with the pre order id of their parent (-1 for the root)
+    // and their rank in post order, the order BasicTreeNode reports nodes found at a point in
+    private final BasicTreeNode[] mNodes;
+    private final int[] mParent;
+    private final int[] mPostOrder;
+
+    // level 0 holds the nodes that have bounds, in packing order, as pre order ids in
+    // mEntries; entry i of level k + 1 covers entries [i * FAN_OUT, (i + 1) * FAN_OUT) of
+    // level k. Each level keeps left, top, right and bottom of its entries, edges included.
+    private final int[] mEntries;
+    private final int[][] mLeft;
+    private final int[][] mTop;
+    private final int[][] mRight;
+    private final int[][] mBottom;
+
+    // marks of the current point query, stamped with mQuery so they never need clearing
+    private final int[] mMarks;
+    private int mQuery;
+
+    private SpatialIndex(BasicTreeNode[] nodes, int[] parent, int[] postOrder) {
+        mNodes = nodes;
+        mParent = parent;
+        mPostOrder = postOrder;
+        mMarks = new int[nodes.length];
+
+        int count = 0;
+        for (BasicTreeNode node : nodes) {
+            if (node.mHasBounds) {
+                count++;
+            }
+        }
+        Integer[] order = new Integer[count];
+        count = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i].mHasBounds) {
+                order[count++] = i;
+            }
+        }
+        pack(order);
+        mEntries = new int[count];
+        for (int i = 0; i < count; i++) {
+            mEntries[i] = order[i];
+        }
+
+        List<int[]> left = new ArrayList<int[]>();
+        List<int[]> top = new ArrayList<int[]>();
+        List<int[]> right = new ArrayList<int[]>();
+        List<int[]> bottom = new ArrayList<int[]>();
+        int[] l = new int[count], t = new int[count], r = new int[count], b = new int[count];
+        for (int i = 0; i < count; i++) {
+            BasicTreeNode node = nodes[mEntries[i]];
+            l[i] = node.x;
+            t[i] = node.y;
+            r[i] = node.x + node.width;
+            b[i] = node.y + node.height;
+        }
+        while (true) {
+            left.add(l);
+            top.add(t);
+            right.add(r);
+            bottom.add(b);
+            if (l.length <= 1) {
+                break;
+            }
+            int size = (l.length + FAN_OUT - 1) / FAN_OUT;
+            int[] pl = new int[size], pt = new int[size], pr = new int[size], pb = new int[size];
+            for (int i = 0; i < size; i++) {
+                int start = i * FAN_OUT;
+                int end = Math.min(start + FAN_OUT, l.length);
+                pl[i] = Integer.MAX_VALUE;
+                pt[i] = Integer.MAX_VALUE;
+                pr[i] = Integer.MIN_VALUE;
+                pb[i] = Integer.MIN_VALUE;
+                for (int c = start; c < end; c++) {
+                    pl[i] = Math.min(pl[i], l[c]);
+                    pt[i] = Math.min(pt[i], t[c]);
+                    pr[i] = Math.max(pr[i], r[c]);
+                    pb[i] = Math.max(pb[i], b[c]);
+                }
+            }
+            l = pl;
+            t = pt;
+            r = pr;
+            b = pb;
+        }
+        mLeft = left.toArray(new int[left.size()][]);
+        mTop = top.toArray(new int[top.size()][]);
+        mRight = right.toArray(new int[right.size()][]);
+        mBottom = bottom.toArray(new int[bottom.size()][]);
+    }
+
+    /**
+     * Indexes the nodes of the hierarchy rooted at <code>root</code>
+     */
+    public static SpatialIndex build(BasicTreeNode root) {
+        final List<BasicTreeNode> nodes = new ArrayList<BasicTreeNode>();
+        final int[][] parent = { new int[256] };
+        final int[][] postOrder = { new int[256] };
+        root.accept(new BasicTreeNode.ITreeVisitor() {
+            // pre order ids of the nodes on the path from the root
+            private int[] mPath = new int[32];
+            private int mDepth;
+            private int mPostCount;
+
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                int id = nodes.size();
+                nodes.add(node);
+                if (id == parent[0].length) {
+                    parent[0] = Arrays.copyOf(parent[0], id * 2);
+                    postOrder[0] = Arrays.copyOf(postOrder[0], id * 2);
+                }
+                parent[0][id] = mDepth > 0 ? mPath[mDepth - 1] : -1;
+                if (mDepth == mPath.length) {
+                    mPath = Arrays.copyOf(mPath, mDepth * 2);
+                }
+                mPath[mDepth++] = id;
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+
+            @Override
+            public BasicTreeNode.VisitResult postVisit(BasicTreeNode node) {
+                postOrder[0][mPath[--mDepth]] = mPostCount++;
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        return new SpatialIndex(nodes.toArray(new BasicTreeNode[nodes.size()]),
+                parent[0], postOrder[0]);
+    }
+
+    /**
+     * Sorts the nodes into Sort-Tile-Recursive order
+     */
+    private void pack(Integer[] order) {
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(centerX(a), centerX(b));
+            }
+        });
+        int leaves = (order.length + FAN_OUT - 1) / FAN_OUT;
+        int slices = (int) Math.ceil(Math.sqrt(leaves));
+        int sliceSize = slices * FAN_OUT;
+        for (int start = 0; start < order.length; start += sliceSize) {
+            Arrays.sort(order, start, Math.min(start + sliceSize, order.length),
+                    new Comparator<Integer>() {
+                        @Override
+                        public int compare(Integer a, Integer b) {
+                            return Long.compare(centerY(a), centerY(b));
+                        }
+                    });
+        }
+    }
+
+    // doubled, to stay in integers
+    private long centerX(int id) {
+        return 2L * mNodes[id].x + mNodes[id].width;
+    }
+
+    private long centerY(int id) {
+        return 2L * mNodes[id].y + mNodes[id].height;
+    }
+
+    /**
+     * @return the number of nodes indexed, which is the number of nodes that have bounds
+     */
+    public int size() {
+        return mEntries.length;
+    }
+
+    /**
+     * Same as {@link BasicTreeNode#findLeafMostNodesAtPoint(int, int, IFindNodeListener)}
+     * called on the root of the indexed hierarchy: the nodes containing the point that have no
+     * descendant containing it are reported in the same order.
+     *
+     * @return true if any node contains the point
+     */
+    public synchronized boolean findLeafMostNodesAtPoint(int px, int py,
+            IFindNodeListener listener) {
+        int[] hits = query(px, py, px, py, false);
+        if (hits.length == 0) {
+            return false;
+        }
+        // a node is leaf most unless one of its descendants is a hit too, so mark the
+        // ancestors of all hits; the walk up stops where an earlier one got to
+        if (++mQuery == 0) {
+            Arrays.fill(mMarks, -1);
+            mQuery = 1;
+        }
+        for (int hit : hits) {
+            for (int p = mParent[hit]; p >= 0 && mMarks[p] != mQuery; p = mParent[p]) {
+                mMarks[p] = mQuery;
+            }
+        }
+        int count = 0;
+        for (int hit : hits) {
+            if (mMarks[hit] != mQuery) {
+                hits[count++] = hit;
+            }
+        }
+        report(hits, count, mPostOrder, listener);
+        return true;
+    }
+
+    /**
+     * Reports the nodes whose bounds lie inside the rectangle, edges included, in document
+     * order
+     *
+     * @return true if any node was found
+     */
+    public boolean findNodesInRect(int left, int top, int right, int bottom,
+            IFindNodeListener listener) {
+        int[] hits = query(left, top, right, bottom, true);
+        // pre order ids are document order
+        report(hits, hits.length, null, listener);
+        return hits.length > 0;
+    }
+
+    /**
+     * @param inside whether to look for nodes inside the rectangle, rather than the ones
+     * intersecting it
+     * @return pre order ids of the nodes found
+     */
+    private int[] query(int left, int top, int right, int bottom, boolean inside) {
+        int[] hits = new int[16];
+        int count = 0;
+        int levels = mLeft.length;
+        if (mEntries.length == 0) {
+            return new int[0];
+        }
+        // depth first descent, with a stack of (level, entry) pairs
+        int[] stackLevel = new int[levels * FAN_OUT];
+        int[] stackEntry = new int[levels * FAN_OUT];
+        int sp = 0;
+        stackLevel[sp] = levels - 1;
+        stackEntry[sp++] = 0;
+        while (sp > 0) {
+            int level = stackLevel[--sp];
+            int entry = stackEntry[sp];
+            if (mLeft[level][entry] > right || mRight[level][entry] < left
+                    || mTop[level][entry] > bottom || mBottom[level][entry] < top) {
+                continue;
+            }
+            if (level == 0) {
+                if (!inside || (mLeft[0][entry] >= left && mRight[0][entry] <= right
+                        && mTop[0][entry] >= top && mBottom[0][entry] <= bottom)) {
+                    if (count == hits.length) {
+                        hits = Arrays.copyOf(hits, count * 2);
+                    }
+                    hits[count++] = mEntries[entry];
+                }
+                continue;
+            }
+            int start = entry * FAN_OUT;
+            int end = Math.min(start + FAN_OUT, mLeft[level - 1].length);
+            for (int c = start; c < end; c++) {
+                stackLevel[sp] = level - 1;
+                stackEntry[sp++] = c;
+            }
+        }
+        return Arrays.copyOf(hits, count);
+    }
+
+    /**
+     * Reports the first <code>count</code> nodes, sorted by their rank, or by id if ranks is
+     * null
+     */
+    private void report(int[] ids, int count, int[] ranks, IFindNodeListener listener) {
+        long[] keyed = new long[count];
+        for (int i = 0; i < count; i++) {
+            keyed[i] = ((long) (ranks != null ? ranks[ids[i]] : ids[i]) << 32) | ids[i];
+        }
+        Arrays.sort(keyed);
+        for (long key : keyed) {
+            listener.onFoundNode(mNodes[(int) key]);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+/**
+ * Dictionary of interned strings, each identified by a dense int id
+ *
+ * Attribute keys and values of a {@link HierarchyStore} are kept as ids into a pool, so that
+ * a value such as "false" or "android.widget.TextView" exists once no matter how many nodes
+ * (or stores, if they share a pool) refer to it. A pool only ever grows.
+ */
+public class StringPool {
+
+    private String[] mStrings = new String[256];
+    private int mSize;
+    // open addressed hash table of (id + 1), 0 marks an empty slot
+    private int[] mSlots = new int[512];
+
+    /**
+     * @return the id of the string, adding it to the pool if it isn't there yet
+     */
+    public synchronized int intern(String s) {
+        int mask = mSlots.length - 1;
+        int slot = hash(s) & mask;
+        while (mSlots[slot] != 0) {
+            String existing = mStrings[mSlots[slot] - 1];
+            if (existing.equals(s)) {
+                return mSlots[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (mSize == mStrings.length) {
+            String[] grown = new String[mSize * 2];
+            System.arraycopy(mStrings, 0, grown, 0, mSize);
+            mStrings = grown;
+        }
+        int id = mSize++;
+        mStrings[id] = s;
+        mSlots[slot] = id + 1;
+        if (mSize * 2 > mSlots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * @return the id of the string, or -1 if it is not in the pool
+     */
+    public synchronized int find(String s) {
+        int mask = mSlots.length - 1;
+        int slot = hash(s) & mask;
+        while (mSlots[slot] != 0) {
+            if (mStrings[mSlots[slot] - 1].equals(s)) {
+                return mSlots[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public synchronized String get(int id) {
+        if (id < 0 || id >= mSize) {
+            throw new IndexOutOfBoundsException("No string with id " + id);
+        }
+        return mStrings[id];
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private static int hash(String s) {
+        int h = s.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash() {
+        mSlots = new int[mSlots.length * 2];
+        int mask = mSlots.length - 1;
+        for (int id = 0; id < mSize; id++) {
+            int slot = hash(mStrings[id]) & mask;
+            while (mSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            mSlots[slot] = id + 1;
+        }
+    }
+}
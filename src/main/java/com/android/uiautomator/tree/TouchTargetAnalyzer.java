@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Finds clickable nodes that are too small to be touched reliably, and pairs of clickable
+ * nodes whose bounds overlap, neither being inside the other in the hierarchy
+ *
+ * Overlaps are found with a sweep over the left and right edges of the nodes: the nodes the
+ * sweep line crosses are kept in a segment tree over their vertical extents, which tells
+ * which of them span the top of a node that comes in, and in a set sorted by top, which tells
+ * which of them start within it. Analyzing n nodes with k overlaps takes O((n + k) log n).
+ *
+ * The tree is only read, so hierarchies can be analyzed in parallel.
+ */
+public class TouchTargetAnalyzer {
+
+    /**
+     * The minimum width and height of a touch target, in dp
+     */
+    public static final int MIN_SIZE_DP = 48;
+
+    /**
+     * The screen density at which a dp is a pixel, mdpi, in dpi
+     */
+    public static final int DEFAULT_DENSITY = 160;
+
+    /**
+     * The minimum width and height of a touch target, 48dp, in pixels at mdpi
+     */
+    public static final int DEFAULT_MIN_SIZE = 48;
+
+    /**
+     * @return the minimum width and height of a touch target in pixels, on a screen of the
+     * given density in dpi
+     */
+    public static int getMinSize(int density) {
+        return Math.round(MIN_SIZE_DP * density / (float) DEFAULT_DENSITY);
+    }
+
+    /**
+     * The conflicts found in a hierarchy
+     */
+    public static class Report {
+        private final List<BasicTreeNode> mTooSmall;
+        private final List<BasicTreeNode[]> mOverlaps;
+        private final List<BasicTreeNode> mOverlapping;
+
+        private Report(List<BasicTreeNode> tooSmall, List<BasicTreeNode> overlapping,
+                final List<BasicTreeNode> nodes, final long[] pairs, final int count) {
+            mTooSmall = Collections.unmodifiableList(tooSmall);
+            mOverlapping = Collections.unmodifiableList(overlapping);
+            // hierarchies with many stacked clickable nodes have a lot of overlaps, the pairs
+            // are kept packed and only turned into nodes when asked for
+            mOverlaps = new AbstractList<BasicTreeNode[]>() {
+                @Override
+                public BasicTreeNode[] get(int index) {
+                    if (index < 0 || index >= count) {
+                        throw new IndexOutOfBoundsException(Integer.toString(index));
+                    }
+                    long pair = pairs[index];
+                    return new BasicTreeNode[] {
+                        nodes.get((int) (pair >>> 32)), nodes.get((int) pair)
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return count;
+                }
+            };
+        }
+
+        /**
+         * @return the clickable nodes narrower or shorter than the minimum size, in pre-order
+         */
+        public List<BasicTreeNode> getTooSmall() {
+            return mTooSmall;
+        }
+
+        /**
+         * @return the pairs of overlapping clickable nodes, the first of each pair coming
+         * first in pre-order, sorted in pre-order of their first and then second node
+         */
+        public List<BasicTreeNode[]> getOverlaps() {
+            return mOverlaps;
+        }
+
+        /**
+         * @return the clickable nodes that overlap at least one other, in pre-order
+         */
+        public List<BasicTreeNode> getOverlapping() {
+            return mOverlapping;
+        }
+
+        public boolean isEmpty() {
+            return mTooSmall.isEmpty() && mOverlaps.isEmpty();
+        }
+    }
+
+    // the clickable nodes, in pre-order, with the pre-order ids of the first node after the
+    // subtree of each, to tell ancestors apart, and their edges
+    private final List<BasicTreeNode> mNodes = new ArrayList<BasicTreeNode>();
+    private int[] mId = new int[64];
+    private int[] mEnd = new int[64];
+    private int[] mLeft, mTop, mRight, mBottom;
+
+    // the segment tree: the nodes crossed by the sweep line that span each segment tree node's
+    // range of slots between distinct tops and bottoms, and not its parent's
+    private int[] mSlots;
+    private List<Set<Integer>> mSpanning;
+
+    // the overlapping pairs, as first << 32 | second
+    private long[] mPairs = new long[64];
+    private int mPairCount;
+
+    private TouchTargetAnalyzer() {
+    }
+
+    /**
+     * Analyzes the clickable nodes of a fully loaded tree
+     *
+     * @param minSize the minimum width and height of a touch target, in pixels
+     */
+    public static Report analyze(BasicTreeNode root, int minSize) {
+        TouchTargetAnalyzer analyzer = new TouchTargetAnalyzer();
+        analyzer.collect(root);
+        List<BasicTreeNode> tooSmall = new ArrayList<BasicTreeNode>();
+        for (int i = 0; i < analyzer.mNodes.size(); i++) {
+            BasicTreeNode node = analyzer.mNodes.get(i);
+            if (node.width < minSize || node.height < minSize) {
+                tooSmall.add(node);
+            }
+        }
+        analyzer.findOverlaps();
+        boolean[] overlaps = new boolean[analyzer.mNodes.size()];
+        for (int i = 0; i < analyzer.mPairCount; i++) {
+            overlaps[(int) (analyzer.mPairs[i] >>> 32)] = true;
+            overlaps[(int) analyzer.mPairs[i]] = true;
+        }
+        List<BasicTreeNode> overlapping = new ArrayList<BasicTreeNode>();
+        for (int i = 0; i < overlaps.length; i++) {
+            if (overlaps[i]) {
+                overlapping.add(analyzer.mNodes.get(i));
+            }
+        }
+        return new Report(tooSmall, overlapping, analyzer.mNodes, analyzer.mPairs,
+                analyzer.mPairCount);
+    }
+
+    private void collect(BasicTreeNode root) {
+        final List<Integer> path = new ArrayList<Integer>();
+        final int[] count = new int[1];
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                boolean clickable = node.mHasBounds && node instanceof UiNode
+                        && "true".equals(((UiNode) node).getAttribute("clickable"));
+                path.add(clickable ? mNodes.size() : -1);
+                if (clickable) {
+                    if (mNodes.size() == mId.length) {
+                        mId = Arrays.copyOf(mId, mId.length * 2);
+                        mEnd = Arrays.copyOf(mEnd, mEnd.length * 2);
+                    }
+                    mId[mNodes.size()] = count[0];
+                    mNodes.add(node);
+                }
+                count[0]++;
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+
+            @Override
+            public BasicTreeNode.VisitResult postVisit(BasicTreeNode node) {
+                int index = path.remove(path.size() - 1);
+                if (index >= 0) {
+                    mEnd[index] = count[0];
+                }
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        int size = mNodes.size();
+        mLeft = new int[size];
+        mTop = new int[size];
+        mRight = new int[size];
+        mBottom = new int[size];
+        for (int i = 0; i < size; i++) {
+            BasicTreeNode node = mNodes.get(i);
+            mLeft[i] = node.x;
+            mTop[i] = node.y;
+            mRight[i] = node.x + node.width;
+            mBottom[i] = node.y + node.height;
+        }
+    }
+
+    private void findOverlaps() {
+        int size = mNodes.size();
+        // the left edge of a node opens it and the right edge closes it, nodes that only
+        // touch don't overlap, so at the same x nodes are closed first
+        long[] events = new long[size * 2];
+        int count = 0;
+        TreeSet<Integer> edges = new TreeSet<Integer>();
+        for (int i = 0; i < size; i++) {
+            if (mLeft[i] < mRight[i] && mTop[i] < mBottom[i]) {
+                events[count++] = ((long) mRight[i] << 32) | i;
+                events[count++] = ((long) mLeft[i] << 32) | (1L << 31) | i;
+                edges.add(mTop[i]);
+                edges.add(mBottom[i]);
+            }
+        }
+        Arrays.sort(events, 0, count);
+        mSlots = new int[edges.size()];
+        int slot = 0;
+        for (int edge : edges) {
+            mSlots[slot++] = edge;
+        }
+        mSpanning = new ArrayList<Set<Integer>>();
+        for (int i = 0; i < Math.max(1, 4 * mSlots.length); i++) {
+            mSpanning.add(null);
+        }
+
+        // the open nodes by top, as top << 32 | index
+        TreeSet<Long> byTop = new TreeSet<Long>();
+        List<Integer> overlapping = new ArrayList<Integer>();
+        for (int e = 0; e < count; e++) {
+            int i = (int) (events[e] & 0x7fffffff);
+            long top = (long) mTop[i] << 32;
+            if ((events[e] & (1L << 31)) == 0) {
+                update(i, false);
+                byTop.remove(top | i);
+                continue;
+            }
+            // the open nodes spanning the top of this one, then those starting below it
+            overlapping.clear();
+            stab(0, 0, mSlots.length - 1, slotOf(mTop[i]), overlapping);
+            for (long open : byTop.subSet(top + (1L << 32), (long) mBottom[i] << 32)) {
+                overlapping.add((int) (open & 0xffffffffL));
+            }
+            for (int j : overlapping) {
+                int first = Math.min(i, j), second = Math.max(i, j);
+                // a clickable node inside another one takes the touches on it
+                if (mId[second] >= mEnd[first]) {
+                    if (mPairCount == mPairs.length) {
+                        mPairs = Arrays.copyOf(mPairs, mPairs.length * 2);
+                    }
+                    mPairs[mPairCount++] = ((long) first << 32) | second;
+                }
+            }
+            update(i, true);
+            byTop.add(top | i);
+        }
+        Arrays.sort(mPairs, 0, mPairCount);
+    }
+
+    private int slotOf(int y) {
+        return Arrays.binarySearch(mSlots, y);
+    }
+
+    /**
+     * Adds or removes a node in the segment tree nodes that cover the slots from its top to
+     * its bottom, the slot of the bottom excluded
+     */
+    private void update(int node, boolean add) {
+        update(0, 0, mSlots.length - 1, slotOf(mTop[node]), slotOf(mBottom[node]) - 1, node,
+                add);
+    }
+
+    private void update(int tree, int low, int high, int from, int to, int node, boolean add) {
+        if (to < low || high < from) {
+            return;
+        }
+        if (from <= low && high <= to) {
+            Set<Integer> spanning = mSpanning.get(tree);
+            if (add) {
+                if (spanning == null) {
+                    spanning = new HashSet<Integer>();
+                    mSpanning.set(tree, spanning);
+                }
+                spanning.add(node);
+            } else {
+                spanning.remove(node);
+            }
+            return;
+        }
+        int middle = (low + high) >>> 1;
+        update(2 * tree + 1, low, middle, from, to, node, add);
+        update(2 * tree + 2, middle + 1, high, from, to, node, add);
+    }
+
+    /**
+     * Collects the nodes that cover a slot
+     */
+    private void stab(int tree, int low, int high, int slot, List<Integer> nodes) {
+        while (true) {
+            Set<Integer> spanning = mSpanning.get(tree);
+            if (spanning != null) {
+                nodes.addAll(spanning);
+            }
+            if (low == high) {
+                return;
+            }
+            int middle = (low + high) >>> 1;
+            if (slot <= middle) {
+                tree = 2 * tree + 1;
+                high = middle;
+            } else {
+                tree = 2 * tree + 2;
+                low = middle + 1;
+            }
+        }
+    }
+}
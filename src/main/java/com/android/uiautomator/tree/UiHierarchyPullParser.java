@@ -0,0 +1,569 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A minimal pull parser for UTF-8 encoded UI hierarchy dumps
+ *
+ * It only reports start and end tags along with their attributes, which is all the dumps
+ * produced by uiautomator contain. Element and attribute names are interned in a small table
+ * owned by the parser, so that the same key strings are shared by all nodes of all dumps
+ * parsed by one instance. Attribute values are decoded the same way a conforming XML parser
+ * would: entities are expanded and literal tab, CR and LF characters become spaces.
+ *
+ * Like a conforming parser, it rejects documents that aren't well formed as far as tags and
+ * attribute values go: end tags must match the open element, every element must be closed by
+ * the end of the document, which must have a single root element, and attribute values may
+ * only hold known entities and no '&lt;'. A dump cut short is thus never taken for a complete
+ * one.
+ */
+class UiHierarchyPullParser {
+
+    public static final int START_TAG = 1;
+    public static final int END_TAG = 2;
+    public static final int END_DOCUMENT = 3;
+
+    private ByteBuffer mInput;
+    private int mPos;
+    private int mLimit;
+
+    private String mName;
+    private boolean mPendingEndTag;
+    // names of the elements that are open, and whether the root element was closed
+    private String[] mOpen = new String[64];
+    private int mDepth;
+    private boolean mRootClosed;
+    private int mAttributeCount;
+    private String[] mAttributeNames = new String[32];
+    // start (inclusive) and end (exclusive) offsets of the raw attribute values
+    private int[] mValueStarts = new int[32];
+    private int[] mValueEnds = new int[32];
+
+    private byte[] mScratch = new byte[256];
+
+    // open addressed hash table used to intern element and attribute names
+    private String[] mNames = new String[128];
+    private int mNameCount;
+
+    /**
+     * Resets the parser to read from the buffer's position up to its limit
+     */
+    public void setInput(ByteBuffer input) {
+        mInput = input;
+        mPos = input.position();
+        mLimit = input.limit();
+        mName = null;
+        mPendingEndTag = false;
+        mAttributeCount = 0;
+        Arrays.fill(mOpen, 0, mDepth, null);
+        mDepth = 0;
+        mRootClosed = false;
+    }
+
+    /**
+     * @return the XML encoding declared by the document's prolog, or null if none is present
+     */
+    public String getDeclaredEncoding() {
+        int pos = mInput.position();
+        while (pos < mLimit && isSpace(mInput.get(pos))) {
+            pos++;
+        }
+        if (!startsWith(pos, "<?xml")) {
+            return null;
+        }
+        int end = indexOf(pos, "?>");
+        if (end < 0) {
+            return null;
+        }
+        String decl = decodeAscii(pos, end);
+        int i = decl.indexOf("encoding");
+        if (i < 0) {
+            return null;
+        }
+        i = decl.indexOf('=', i);
+        int q = i + 1;
+        while (q < decl.length() && decl.charAt(q) != '"' && decl.charAt(q) != '\'') {
+            q++;
+        }
+        if (q >= decl.length()) {
+            return null;
+        }
+        int close = decl.indexOf(decl.charAt(q), q + 1);
+        return close < 0 ? null : decl.substring(q + 1, close);
+    }
+
+    /**
+     * Advances to the next start tag, end tag or to the end of the document. An empty element
+     * tag is reported as a start tag immediately followed by an end tag.
+     * @throws IOException if the document isn't well formed
+     */
+    public int next() throws IOException {
+        if (mPendingEndTag) {
+            mPendingEndTag = false;
+            mAttributeCount = 0;
+            closeElement(mName);
+            return END_TAG;
+        }
+        while (true) {
+            // character data is not meaningful in hierarchy dumps, skip to the next markup
+            while (mPos < mLimit && mInput.get(mPos) != '<') {
+                mPos++;
+            }
+            if (mPos >= mLimit) {
+                if (mDepth > 0) {
+                    throw error("Unclosed element <" + mOpen[mDepth - 1] + ">");
+                }
+                if (!mRootClosed) {
+                    throw error("No root element");
+                }
+                mName = null;
+                mAttributeCount = 0;
+                return END_DOCUMENT;
+            }
+            if (startsWith(mPos, "<?")) {
+                mPos = skipPast(mPos + 2, "?>");
+            } else if (startsWith(mPos, "<!--")) {
+                mPos = skipPast(mPos + 4, "-->");
+            } else if (startsWith(mPos, "<![CDATA[")) {
+                mPos = skipPast(mPos + 9, "]]>");
+            } else if (startsWith(mPos, "<!")) {
+                mPos = skipPast(mPos + 2, ">");
+            } else if (startsWith(mPos, "</")) {
+                mPos += 2;
+                mName = readName();
+                skipSpaces();
+                expect('>');
+                mAttributeCount = 0;
+                closeElement(mName);
+                return END_TAG;
+            } else {
+                if (mRootClosed) {
+                    throw error("Content after the root element");
+                }
+                mPos++;
+                readStartTag();
+                if (mDepth == mOpen.length) {
+                    mOpen = Arrays.copyOf(mOpen, mDepth * 2);
+                }
+                mOpen[mDepth++] = mName;
+                return START_TAG;
+            }
+        }
+    }
+
+    private void closeElement(String name) throws IOException {
+        if (mDepth == 0) {
+            throw error("Unexpected end tag </" + name + ">");
+        }
+        String open = mOpen[--mDepth];
+        mOpen[mDepth] = null;
+        // names of the same element are the same interned string, unless they aren't ASCII
+        if (open != name && !open.equals(name)) {
+            throw error("End tag </" + name + "> does not match <" + open + ">");
+        }
+        mRootClosed = mDepth == 0;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getAttributeCount() {
+        return mAttributeCount;
+    }
+
+    public String getAttributeName(int i) {
+        return mAttributeNames[i];
+    }
+
+    /**
+     * @return the decoded value of the attribute at the given index
+     */
+    public String getAttributeValue(int i) {
+        return decodeValue(mInput, mValueStarts[i], mValueEnds[i]);
+    }
+
+    /**
+     * @return the decoded value of the named attribute, or null if the tag doesn't have it
+     */
+    public String getAttributeValue(String name) {
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (mAttributeNames[i].equals(name)) {
+                return getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return offset in the input of the first byte of the raw attribute value
+     */
+    public int getAttributeValueStart(int i) {
+        return mValueStarts[i];
+    }
+
+    /**
+     * @return offset in the input just past the last byte of the raw attribute value
+     */
+    public int getAttributeValueEnd(int i) {
+        return mValueEnds[i];
+    }
+
+    private void readStartTag() throws IOException {
+        mName = readName();
+        mAttributeCount = 0;
+        while (true) {
+            skipSpaces();
+            if (mPos >= mLimit) {
+                throw error("Unterminated start tag");
+            }
+            byte b = mInput.get(mPos);
+            if (b == '>') {
+                mPos++;
+                return;
+            }
+            if (b == '/') {
+                mPos++;
+                expect('>');
+                mPendingEndTag = true;
+                return;
+            }
+            String attrName = readName();
+            skipSpaces();
+            expect('=');
+            skipSpaces();
+            if (mPos >= mLimit) {
+                throw error("Missing attribute value");
+            }
+            byte quote = mInput.get(mPos);
+            if (quote != '"' && quote != '\'') {
+                throw error("Attribute value must be quoted");
+            }
+            int start = ++mPos;
+            while (mPos < mLimit && mInput.get(mPos) != quote) {
+                byte c = mInput.get(mPos);
+                if (c == '<') {
+                    throw error("'<' in attribute value");
+                }
+                if (c == '&') {
+                    checkEntity(quote);
+                }
+                mPos++;
+            }
+            if (mPos >= mLimit) {
+                throw error("Unterminated attribute value");
+            }
+            if (mAttributeCount == mAttributeNames.length) {
+                growAttributes();
+            }
+            mAttributeNames[mAttributeCount] = attrName;
+            mValueStarts[mAttributeCount] = start;
+            mValueEnds[mAttributeCount] = mPos;
+            mAttributeCount++;
+            mPos++;
+        }
+    }
+
+    /**
+     * Checks that the entity at the current position is one that values can be decoded with
+     */
+    private void checkEntity(byte quote) throws IOException {
+        int semi = mPos + 1;
+        while (semi < mLimit && mInput.get(semi) != ';' && mInput.get(semi) != quote) {
+            semi++;
+        }
+        int codePoint = semi < mLimit && mInput.get(semi) == ';'
+                ? decodeEntity(mInput, mPos + 1, semi) : -1;
+        boolean valid = codePoint == 0x9 || codePoint == 0xA || codePoint == 0xD
+                || (codePoint >= 0x20 && codePoint <= 0xD7FF)
+                || (codePoint >= 0xE000 && codePoint <= 0xFFFD)
+                || (codePoint >= 0x10000 && codePoint <= Character.MAX_CODE_POINT);
+        if (!valid) {
+            throw error("Invalid entity in attribute value");
+        }
+        mPos = semi;
+    }
+
+    private void growAttributes() {
+        int size = mAttributeNames.length * 2;
+        String[] names = new String[size];
+        int[] starts = new int[size];
+        int[] ends = new int[size];
+        System.arraycopy(mAttributeNames, 0, names, 0, mAttributeCount);
+        System.arraycopy(mValueStarts, 0, starts, 0, mAttributeCount);
+        System.arraycopy(mValueEnds, 0, ends, 0, mAttributeCount);
+        mAttributeNames = names;
+        mValueStarts = starts;
+        mValueEnds = ends;
+    }
+
+    private String readName() throws IOException {
+        int start = mPos;
+        int hash = 0;
+        boolean ascii = true;
+        while (mPos < mLimit) {
+            byte b = mInput.get(mPos);
+            if (isSpace(b) || b == '=' || b == '>' || b == '/' || b == '<') {
+                break;
+            }
+            hash = 31 * hash + b;
+            ascii &= b >= 0;
+            mPos++;
+        }
+        if (mPos == start) {
+            throw error("Name expected");
+        }
+        // names are compared byte-wise against the table, which only works for ASCII names;
+        // anything else is rare enough to simply be decoded every time
+        return ascii ? internName(start, mPos, hash) : decodeValue(mInput, start, mPos);
+    }
+
+    /**
+     * Looks up the name between the offsets in the intern table, adding it if necessary
+     */
+    private String internName(int start, int end, int hash) {
+        int mask = mNames.length - 1;
+        int slot = hash & mask;
+        while (mNames[slot] != null) {
+            if (nameEquals(mNames[slot], start, end)) {
+                return mNames[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        String name = decodeValue(mInput, start, end);
+        mNames[slot] = name;
+        if (++mNameCount * 2 > mNames.length) {
+            rehashNames();
+        }
+        return name;
+    }
+
+    private boolean nameEquals(String name, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != mInput.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehashNames() {
+        String[] old = mNames;
+        mNames = new String[old.length * 2];
+        int mask = mNames.length - 1;
+        for (String name : old) {
+            if (name != null) {
+                int hash = 0;
+                for (int i = 0; i < name.length(); i++) {
+                    hash = 31 * hash + (byte) name.charAt(i);
+                }
+                int slot = hash & mask;
+                while (mNames[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                mNames[slot] = name;
+            }
+        }
+    }
+
+    /**
+     * Decodes a raw attribute value, expanding entities and normalizing whitespace
+     */
+    String decodeValue(ByteBuffer input, int start, int end) {
+        if (mScratch.length < end - start) {
+            mScratch = new byte[Math.max(end - start, mScratch.length * 2)];
+        }
+        return decodeValue(input, start, end, mScratch);
+    }
+
+    /**
+     * Decodes the raw attribute value between the offsets of the input, using
+     * <code>scratch</code>, which must be at least <code>end - start</code> bytes long, as
+     * working space. Expanding an entity never takes more bytes than the entity itself.
+     */
+    static String decodeValue(ByteBuffer input, int start, int end, byte[] scratch) {
+        boolean ascii = true;
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            byte b = input.get(i);
+            if (b == '&') {
+                int semi = i + 1;
+                while (semi < end && input.get(semi) != ';') {
+                    semi++;
+                }
+                int codePoint = decodeEntity(input, i + 1, semi);
+                if (codePoint < 0 || semi >= end) {
+                    // not a known entity, keep the raw text
+                    scratch[n++] = b;
+                    continue;
+                }
+                n = appendUtf8(scratch, codePoint, n);
+                ascii &= codePoint < 0x80;
+                i = semi;
+            } else if (b == '\r') {
+                // "\r\n" and a lone '\r' are both line ends, and each becomes a single space
+                if (i + 1 < end && input.get(i + 1) == '\n') {
+                    i++;
+                }
+                scratch[n++] = ' ';
+            } else if (b == '\n' || b == '\t') {
+                scratch[n++] = ' ';
+            } else {
+                ascii &= b >= 0;
+                scratch[n++] = b;
+            }
+        }
+        if (n == 0) {
+            return "";
+        }
+        return new String(scratch, 0, n,
+                ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    private static int appendUtf8(byte[] scratch, int codePoint, int n) {
+        if (codePoint < 0x80) {
+            scratch[n++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            scratch[n++] = (byte) (0xc0 | (codePoint >> 6));
+            scratch[n++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else if (codePoint < 0x10000) {
+            scratch[n++] = (byte) (0xe0 | (codePoint >> 12));
+            scratch[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            scratch[n++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+            scratch[n++] = (byte) (0xf0 | (codePoint >> 18));
+            scratch[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            scratch[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            scratch[n++] = (byte) (0x80 | (codePoint & 0x3f));
+        }
+        return n;
+    }
+
+    /**
+     * @return the code point of the entity whose name lies between the offsets, or -1
+     */
+    private static int decodeEntity(ByteBuffer input, int start, int end) {
+        int length = end - start;
+        if (length < 2) {
+            return -1;
+        }
+        if (input.get(start) == '#') {
+            int radix = 10;
+            int i = start + 1;
+            if (input.get(i) == 'x') {
+                radix = 16;
+                i++;
+            }
+            if (i == end) {
+                return -1;
+            }
+            int value = 0;
+            for (; i < end; i++) {
+                int digit = Character.digit(input.get(i), radix);
+                if (digit < 0 || value > Character.MAX_CODE_POINT) {
+                    return -1;
+                }
+                value = value * radix + digit;
+            }
+            return value <= Character.MAX_CODE_POINT ? value : -1;
+        }
+        if (matches(input, start, end, "amp")) return '&';
+        if (matches(input, start, end, "lt")) return '<';
+        if (matches(input, start, end, "gt")) return '>';
+        if (matches(input, start, end, "quot")) return '"';
+        if (matches(input, start, end, "apos")) return '\'';
+        return -1;
+    }
+
+    private static boolean matches(ByteBuffer input, int start, int end, String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (input.get(start + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decodeAscii(int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            sb.append((char) (mInput.get(i) & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private boolean startsWith(int pos, String s) {
+        if (pos + s.length() > mLimit) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (mInput.get(pos + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(int pos, String s) {
+        for (int i = pos; i + s.length() <= mLimit; i++) {
+            if (startsWith(i, s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int skipPast(int pos, String terminator) throws IOException {
+        int i = indexOf(pos, terminator);
+        if (i < 0) {
+            throw error("Missing \"" + terminator + "\"");
+        }
+        return i + terminator.length();
+    }
+
+    private void skipSpaces() {
+        while (mPos < mLimit && isSpace(mInput.get(mPos))) {
+            mPos++;
+        }
+    }
+
+    private void expect(char c) throws IOException {
+        if (mPos >= mLimit || mInput.get(mPos) != c) {
+            throw error("'" + c + "' expected");
+        }
+        mPos++;
+    }
+
+    private IOException error(String msg) {
+        return new IOException(msg + " at offset " + mPos);
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+}
@@ -17,42 +17,259 @@
 package com.android.uiautomator.tree;
 
 import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
+/**
+ * Loads a UI hierarchy XML dump into a tree of {@link RootWindowNode} and {@link UiNode}s
+ *
+ * A loader keeps its parser around, so it is cheaper to reuse one instance for consecutive
+ * dumps than to create a new one each time. Instances are not thread safe.
+ */
 public class UiHierarchyXmlLoader {
 
+    /**
+     * Strategies for turning the XML dump into a node tree, both produce the same tree
+     */
+    public enum Mode {
+        /** the original SAX based loader, kept as a fallback */
+        SAX,
+        /** a lightweight pull parser that builds each node in a single pass */
+        STREAMING,
+        /**
+         * same parser as {@link #STREAMING}, but the tree is a {@link HierarchyStore} and the
+         * nodes handed out are views of it
+         */
+        COLUMNAR,
+        /**
+         * like {@link #COLUMNAR}, but the dump is memory mapped and attribute values are only
+         * decoded from it when asked for; a private copy of the dump is mapped, so the tree
+         * doesn't change if the file is rewritten afterwards
+         */
+        MAPPED,
+    }
+
+    /**
+     * The attributes most tools need, for use with {@link #setAttributeProjection(Set)}
+     */
+    public static final Set<String> LEAN_ATTRIBUTES = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList(
+                    "class", "resource-id", "text", "content-desc", "index", "bounds",
+                    "clickable", "visible-to-user")));
+
+    // progressively loaded nodes are handed out in batches of growing size, so that the top
+    // of the tree shows up quickly without refreshing the view for every few nodes
+    private static final int FIRST_BATCH_SIZE = 64;
+    private static final int MAX_BATCH_SIZE = 4096;
+
+    private final Mode mMode;
     private BasicTreeNode mRootNode;
+    private SAXParser mSaxParser;
+    private UiHierarchyPullParser mPullParser;
+    private ByteBuffer mBuffer;
+    private StringPool mStringPool;
+    private Set<String> mProjection;
+    private final DerivedValues mDerivedValues = new DerivedValues();
 
     public UiHierarchyXmlLoader() {
+        this(Mode.STREAMING);
+    }
+
+    public UiHierarchyXmlLoader(Mode mode) {
+        mMode = mode;
+    }
+
+    public Mode getMode() {
+        return mMode;
     }
 
     /**
-     * Uses a SAX parser to process XML dump
+     * Makes stores built by this loader intern their strings into the given pool, so that
+     * several stores can share one dictionary. By default each store gets its own pool.
+     */
+    public void setStringPool(StringPool pool) {
+        mStringPool = pool;
+    }
+
+    /**
+     * Restricts the attributes kept on loaded nodes to the given set, the values of all other
+     * attributes are skipped without being decoded. Node labels, bounds and xpaths are still
+     * derived from the full set of attributes, and the "xpath" of a node is always available.
+     * @param attributes the attributes to keep, or null to keep all of them
+     */
+    public void setAttributeProjection(Set<String> attributes) {
+        mProjection = attributes != null
+                ? Collections.unmodifiableSet(new HashSet<String>(attributes)) : null;
+    }
+
+    /**
+     * @return the attributes kept on loaded nodes, or null if all of them are
+     */
+    public Set<String> getAttributeProjection() {
+        return mProjection;
+    }
+
+    private boolean isKept(String key) {
+        return mProjection == null || mProjection.contains(key);
+    }
+
+    /**
+     * Parses the XML dump with the parser selected by the loader's {@link Mode}
      * @param xmlPath
-     * @return
+     * @return the root of the loaded tree, or null if the dump cannot be parsed
      */
     public BasicTreeNode parseXml(String xmlPath) {
-        mRootNode = null;
-        // standard boilerplate to get a SAX parser
-        SAXParserFactory factory = SAXParserFactory.newInstance();
-        SAXParser parser = null;
-        try {
-            parser = factory.newSAXParser();
-        } catch (ParserConfigurationException e) {
-            e.printStackTrace();
+        if (mMode == Mode.STREAMING) {
+            return parseXmlStreaming(xmlPath);
+        } else if (mMode == Mode.COLUMNAR || mMode == Mode.MAPPED) {
+            HierarchyStore store = parseXmlToStore(xmlPath);
+            return store != null ? store.getRootNode() : null;
+        }
+        return parseXmlSax(xmlPath);
+    }
+
+    /**
+     * Parses the XML dump like {@link #parseXml(String)}, but hands the nodes to the listener
+     * while the dump is being parsed, so that the top of a large tree can be shown before the
+     * rest of it is loaded.
+     *
+     * Only {@link Mode#STREAMING} loads progressively. In the other modes, and for dumps that
+     * aren't UTF-8, the listener gets the fully loaded root and no batches.
+     * @param xmlPath
+     * @param listener
+     * @return the root of the loaded tree, or null if the dump cannot be parsed or the
+     * listener stopped the load
+     */
+    public BasicTreeNode parseXml(String xmlPath, INodeBatchListener listener) {
+        BasicTreeNode root = null;
+        if (mMode == Mode.STREAMING) {
+            if (mPullParser == null) {
+                mPullParser = new UiHierarchyPullParser();
+            }
+            try {
+                mPullParser.setInput(readFile(xmlPath));
+                if (isUtf8(mPullParser)) {
+                    return buildTree(mPullParser, listener);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            root = parseXmlSax(xmlPath);
+        } else {
+            root = parseXml(xmlPath);
+        }
+        if (root == null || !listener.onRootLoaded(root)) {
             return null;
-        } catch (SAXException e) {
+        }
+        return root;
+    }
+
+    /**
+     * Parses an XML dump held in memory like {@link #parseXml(String, INodeBatchListener)}.
+     * Dumps that would be memory mapped are held in the store instead.
+     * @param xml the contents of the dump
+     * @param listener
+     * @return the root of the loaded tree, or null if the dump cannot be parsed or the
+     * listener stopped the load
+     */
+    public BasicTreeNode parseXml(byte[] xml, INodeBatchListener listener) {
+        BasicTreeNode root = null;
+        if (mPullParser == null) {
+            mPullParser = new UiHierarchyPullParser();
+        }
+        mPullParser.setInput(ByteBuffer.wrap(xml));
+        if (mMode == Mode.SAX || !isUtf8(mPullParser)) {
+            root = parseXmlSax(new InputSource(new ByteArrayInputStream(xml)));
+        } else {
+            try {
+                if (mMode == Mode.STREAMING) {
+                    return buildTree(mPullParser, listener);
+                }
+                root = buildStore(mPullParser, null).getRootNode();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        if (root == null || !listener.onRootLoaded(root)) {
+            return null;
+        }
+        return root;
+    }
+
+    /**
+     * Parses the XML dump into a {@link HierarchyStore}. The store is backed by the mapped
+     * file if the loader's mode is {@link Mode#MAPPED}, and holds all values otherwise.
+     * @param xmlPath
+     * @return the store, or null if the dump cannot be parsed
+     */
+    public HierarchyStore parseXmlToStore(String xmlPath) {
+        if (mPullParser == null) {
+            mPullParser = new UiHierarchyPullParser();
+        }
+        try {
+            ByteBuffer source = null;
+            if (mMode == Mode.MAPPED) {
+                source = mapFile(xmlPath);
+                mPullParser.setInput(source);
+            } else {
+                mPullParser.setInput(readFile(xmlPath));
+            }
+            if (!isUtf8(mPullParser)) {
+                System.err.println("Unsupported encoding: " + mPullParser.getDeclaredEncoding());
+                return null;
+            }
+            return buildStore(mPullParser, source);
+        } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
+    }
+
+    /**
+     * Uses a SAX parser to process XML dump
+     * @param xmlPath
+     * @return
+     */
+    private BasicTreeNode parseXmlSax(String xmlPath) {
+        return parseXmlSax(new InputSource(new File(xmlPath).toURI().toASCIIString()));
+    }
+
+    private BasicTreeNode parseXmlSax(InputSource source) {
+        mRootNode = null;
+        // standard boilerplate to get a SAX parser, which is reset and reused between dumps
+        if (mSaxParser == null) {
+            try {
+                mSaxParser = SAXParserFactory.newInstance().newSAXParser();
+            } catch (ParserConfigurationException e) {
+                e.printStackTrace();
+                return null;
+            } catch (SAXException e) {
+                e.printStackTrace();
+                return null;
+            }
+        } else {
+            mSaxParser.reset();
+        }
         // handler class for SAX parser to receiver standard parsing events:
         // e.g. on reading "<foo>", startElement is called, on reading "</foo>",
         // endElement is called
@@ -71,9 +288,15 @@ public class UiHierarchyXmlLoader {
                     nodeCreated = true;
                 } else if ("node".equals(qName)) {
                     UiNode tmpNode = new UiNode();
+                    mDerivedValues.clear();
                     for (int i = 0; i < attributes.getLength(); i++) {
-                        tmpNode.addAtrribute(attributes.getQName(i), attributes.getValue(i));
+                        String key = attributes.getQName(i);
+                        if (isKept(key)) {
+                            tmpNode.putAttribute(key, attributes.getValue(i));
+                        }
+                        mDerivedValues.set(key, attributes.getValue(i));
                     }
+                    mDerivedValues.applyTo(tmpNode);
                     mWorkingNode = tmpNode;
                     nodeCreated = true;
                 }
@@ -86,8 +309,6 @@ public class UiHierarchyXmlLoader {
                     }
                     if (mParentNode != null) {
                         mParentNode.addChild(mWorkingNode);
-                        String xpath = ((UiNode) mWorkingNode).getXpath();
-                        ((UiNode)mWorkingNode).addAtrribute("xpath",xpath);
                     }
                 }
             }
@@ -105,7 +326,7 @@ public class UiHierarchyXmlLoader {
             }
         };
         try {
-            parser.parse(new File(xmlPath), handler);
+            mSaxParser.parse(source, handler);
         } catch (SAXException e) {
             e.printStackTrace();
             return null;
@@ -115,4 +336,342 @@ public class UiHierarchyXmlLoader {
         }
         return mRootNode;
     }
+
+    /**
+     * Uses a {@link UiHierarchyPullParser} to process XML dump
+     *
+     * Unlike the SAX handler, attributes are copied straight into the node, and the display
+     * name and bounds are computed once per node rather than once per attribute
+     * @param xmlPath
+     * @return
+     */
+    private BasicTreeNode parseXmlStreaming(String xmlPath) {
+        if (mPullParser == null) {
+            mPullParser = new UiHierarchyPullParser();
+        }
+        try {
+            mPullParser.setInput(readFile(xmlPath));
+            if (!isUtf8(mPullParser)) {
+                return parseXmlSax(xmlPath);
+            }
+            return buildTree(mPullParser, null);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * The pull parser only deals with UTF-8, which is all uiautomator produces
+     */
+    private static boolean isUtf8(UiHierarchyPullParser parser) {
+        String encoding = parser.getDeclaredEncoding();
+        return encoding == null || "UTF-8".equalsIgnoreCase(encoding)
+                || "US-ASCII".equalsIgnoreCase(encoding);
+    }
+
+    /**
+     * Reads the whole file into a buffer that is reused between dumps
+     */
+    private ByteBuffer readFile(String path) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + path);
+            }
+            if (mBuffer == null || mBuffer.capacity() < size) {
+                mBuffer = ByteBuffer.allocate((int) size);
+            }
+            mBuffer.clear();
+            mBuffer.limit((int) size);
+            while (mBuffer.hasRemaining()) {
+                if (channel.read(mBuffer) < 0) {
+                    break;
+                }
+            }
+            mBuffer.flip();
+            return mBuffer;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Maps a copy of the file read-only; the mapping stays valid after the channel is closed
+     * and the copy deleted, until the buffer itself is garbage collected
+     *
+     * The file itself isn't mapped since it may be rewritten or cut short while the store
+     * still reads values from it, and reading past the end of a mapped file that shrank
+     * faults. The copy only lives in the page cache, unless it can't be deleted while mapped.
+     */
+    private static ByteBuffer mapFile(String path) throws IOException {
+        File copy = File.createTempFile("uidump", ".xml");
+        try {
+            Files.copy(new File(path).toPath(), copy.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            FileInputStream in = new FileInputStream(copy);
+            try {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("File too large: " + path);
+                }
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } finally {
+                in.close();
+            }
+        } finally {
+            if (!copy.delete()) {
+                copy.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * @param listener if not null, nodes aren't added to their parents but handed to the
+     * listener in batches
+     */
+    private BasicTreeNode buildTree(UiHierarchyPullParser parser, INodeBatchListener listener)
+            throws IOException {
+        BasicTreeNode rootNode = null;
+        NodeBatch batch = listener != null ? new NodeBatch(FIRST_BATCH_SIZE) : null;
+        // nodes of the elements that are currently open; an element that is neither
+        // "hierarchy" nor "node" repeats the entry of its parent so that closing it is a no-op
+        BasicTreeNode[] stack = new BasicTreeNode[64];
+        int depth = 0;
+        int event;
+        while ((event = parser.next()) != UiHierarchyPullParser.END_DOCUMENT) {
+            if (event == UiHierarchyPullParser.START_TAG) {
+                BasicTreeNode parent = depth > 0 ? stack[depth - 1] : null;
+                BasicTreeNode working = parent;
+                String name = parser.getName();
+                if ("hierarchy".equals(name)) {
+                    working = new RootWindowNode(parser.getAttributeValue("windowName"));
+                } else if ("node".equals(name)) {
+                    UiNode node = new UiNode();
+                    mDerivedValues.clear();
+                    int count = parser.getAttributeCount();
+                    for (int i = 0; i < count; i++) {
+                        String key = parser.getAttributeName(i);
+                        boolean kept = isKept(key);
+                        if (!kept && !DerivedValues.isDerivedFrom(key)) {
+                            // the value of a skipped attribute is never decoded
+                            continue;
+                        }
+                        String value = parser.getAttributeValue(i);
+                        if (kept) {
+                            node.putAttribute(key, value);
+                        }
+                        mDerivedValues.set(key, value);
+                    }
+                    mDerivedValues.applyTo(node);
+                    working = node;
+                }
+                if (working != parent) {
+                    if (rootNode == null) {
+                        // this will only happen once
+                        rootNode = working;
+                        if (listener != null && !listener.onRootLoaded(rootNode)) {
+                            return null;
+                        }
+                    }
+                    if (parent != null) {
+                        if (batch == null) {
+                            parent.addChild(working);
+                        } else {
+                            batch.add(parent, working);
+                            if (batch.isFull()) {
+                                if (!listener.onBatchLoaded(batch)) {
+                                    return null;
+                                }
+                                batch = new NodeBatch(
+                                        Math.min(batch.size() * 2, MAX_BATCH_SIZE));
+                            }
+                        }
+                    }
+                }
+                if (depth == stack.length) {
+                    BasicTreeNode[] grown = new BasicTreeNode[depth * 2];
+                    System.arraycopy(stack, 0, grown, 0, depth);
+                    stack = grown;
+                }
+                stack[depth++] = working;
+            } else if (depth > 0) {
+                stack[--depth] = null;
+            }
+        }
+        if (batch != null && batch.size() > 0 && !listener.onBatchLoaded(batch)) {
+            return null;
+        }
+        return rootNode;
+    }
+
+    /**
+     * @param source the mapped dump the parser reads from, if the store should decode
+     * attribute values from it on demand, or null to keep all values in the pool
+     */
+    private HierarchyStore buildStore(UiHierarchyPullParser parser, ByteBuffer source)
+            throws IOException {
+        HierarchyStore store = new HierarchyStore(
+                mStringPool != null ? mStringPool : new StringPool(), source);
+        // ids of the nodes of currently open elements, with the same convention as buildTree
+        // for elements that are neither "hierarchy" nor "node"; -1 is the root window
+        int[] stack = new int[64];
+        int depth = 0;
+        boolean hasRoot = false;
+        // labels are built lazily from the store unless some of the attributes they are made
+        // of aren't kept, in which case they are worked out here for every node
+        boolean labelsKept = mProjection == null
+                || mProjection.containsAll(DerivedValues.KEYS);
+        int event;
+        while ((event = parser.next()) != UiHierarchyPullParser.END_DOCUMENT) {
+            if (event != UiHierarchyPullParser.START_TAG) {
+                if (depth > 0) {
+                    depth--;
+                }
+                continue;
+            }
+            int parent = depth > 0 ? stack[depth - 1] : -1;
+            int working = parent;
+            String name = parser.getName();
+            if ("hierarchy".equals(name) && !hasRoot) {
+                store.setWindowName(parser.getAttributeValue("windowName"));
+                hasRoot = true;
+            } else if ("node".equals(name)) {
+                working = store.addNode(parent);
+                mDerivedValues.clear();
+                int count = parser.getAttributeCount();
+                for (int i = 0; i < count; i++) {
+                    String key = parser.getAttributeName(i);
+                    boolean kept = isKept(key);
+                    boolean derived = "class".equals(key) || "bounds".equals(key)
+                            || (!labelsKept && DerivedValues.isDerivedFrom(key));
+                    String value = null;
+                    if (derived || (kept && source == null)) {
+                        value = parser.getAttributeValue(i);
+                    }
+                    if (kept) {
+                        if (source != null) {
+                            store.addMappedAttribute(key, parser.getAttributeValueStart(i),
+                                    parser.getAttributeValueEnd(i));
+                        } else {
+                            store.addAttribute(key, value);
+                        }
+                    }
+                    if (derived) {
+                        mDerivedValues.set(key, value);
+                    }
+                }
+                store.onAttributesLoaded(working, mDerivedValues.className,
+                        mDerivedValues.bounds,
+                        labelsKept ? null : mDerivedValues.getDisplayName());
+                hasRoot = true;
+            }
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+            }
+            stack[depth++] = working;
+        }
+        store.finish();
+        return store;
+    }
+
+    /**
+     * Receives the nodes of a dump loaded by {@link UiHierarchyXmlLoader#parseXml(String,
+     * INodeBatchListener)} while it is being parsed. Both callbacks are made on the thread
+     * that loads the dump, and return false to stop loading.
+     */
+    public static interface INodeBatchListener {
+        /**
+         * Called as soon as the root node is known, before any of its children is loaded
+         */
+        boolean onRootLoaded(BasicTreeNode root);
+
+        /**
+         * Called with the nodes loaded since the previous batch, which aren't part of the
+         * tree yet; the listener calls {@link NodeBatch#attach()} from the thread that reads
+         * the tree, so that the tree never changes under a reader
+         */
+        boolean onBatchLoaded(NodeBatch batch);
+    }
+
+    /**
+     * Nodes loaded progressively, along with the parents they go under
+     */
+    public static class NodeBatch {
+        private final BasicTreeNode[] mParents;
+        private final BasicTreeNode[] mNodes;
+        private int mSize;
+
+        NodeBatch(int capacity) {
+            mParents = new BasicTreeNode[capacity];
+            mNodes = new BasicTreeNode[capacity];
+        }
+
+        void add(BasicTreeNode parent, BasicTreeNode node) {
+            mParents[mSize] = parent;
+            mNodes[mSize++] = node;
+        }
+
+        boolean isFull() {
+            return mSize == mNodes.length;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * Adds the nodes to their parents in document order. Batches must be attached in the
+         * order they were loaded, since a node's parent may come from an earlier batch.
+         */
+        public void attach() {
+            for (int i = 0; i < mSize; i++) {
+                mParents[i].addChild(mNodes[i]);
+            }
+        }
+    }
+
+    /**
+     * Values of the attributes that a node's label, bounds and class are derived from,
+     * collected while the node's attributes are read
+     */
+    private static class DerivedValues {
+        static final Set<String> KEYS = new HashSet<String>(Arrays.asList(
+                "class", "text", "content-desc", "index", "bounds"));
+
+        String className, text, contentDescription, index, bounds;
+
+        static boolean isDerivedFrom(String key) {
+            return KEYS.contains(key);
+        }
+
+        void clear() {
+            className = text = contentDescription = index = bounds = null;
+        }
+
+        void set(String key, String value) {
+            if ("class".equals(key)) {
+                className = value;
+            } else if ("text".equals(key)) {
+                text = value;
+            } else if ("content-desc".equals(key)) {
+                contentDescription = value;
+            } else if ("index".equals(key)) {
+                index = value;
+            } else if ("bounds".equals(key)) {
+                bounds = value;
+            }
+        }
+
+        String getDisplayName() {
+            return UiNode.buildDisplayName(className, text, contentDescription, index, bounds);
+        }
+
+        void applyTo(UiNode node) {
+            node.onAttributesLoaded(className, text, contentDescription, index, bounds);
+        }
+    }
 }
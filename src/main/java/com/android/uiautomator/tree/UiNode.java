@@ -16,21 +16,64 @@
 
 package com.android.uiautomator.tree;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * A node of the UI hierarchy
+ *
+ * A node either owns its attributes, or is a view of one node of a {@link HierarchyStore}, in
+ * which case attributes, parent and children are all read from the store on demand and the
+ * node cannot be modified.
+ */
 public class UiNode extends BasicTreeNode {
-    private static final Pattern BOUNDS_PATTERN = Pattern
-            .compile("\\[-?(\\d+),-?(\\d+)\\]\\[-?(\\d+),-?(\\d+)\\]");
-    // use LinkedHashMap to preserve the order of the attributes
-    private final Map<String, String> mAttributes = new LinkedHashMap<String, String>();
-    private String mDisplayName = "ShouldNotSeeMe";
+    private static final String DEFAULT_DISPLAY_NAME = "ShouldNotSeeMe";
+
+    // use LinkedHashMap to preserve the order of the attributes, null for store backed nodes
+    private final Map<String, String> mAttributes;
+    private String mDisplayName = DEFAULT_DISPLAY_NAME;
     private Object[] mCachedAttributesArray;
+    // set by loaders, so that the class is known even if the attribute isn't kept
+    private String mClassName;
+
+    private final HierarchyStore mStore;
+    private final int mId;
+    private List<BasicTreeNode> mChildViews;
+    // the "xpath" attribute isn't stored but rendered from the class and class name index of
+    // the node and its ancestors, and cached, the first time it's asked for
+    private String mXpath;
+
+    public UiNode() {
+        mAttributes = new LinkedHashMap<String, String>();
+        mStore = null;
+        mId = -1;
+    }
+
+    /**
+     * Creates a view of node <code>id</code> of the store
+     */
+    UiNode(HierarchyStore store, int id) {
+        mAttributes = null;
+        mStore = store;
+        mId = id;
+        int[] bounds = new int[4];
+        if (store.getBounds(id, bounds)) {
+            x = bounds[0];
+            y = bounds[1];
+            width = bounds[2];
+            height = bounds[3];
+            mHasBounds = true;
+        }
+        index = store.getChildPosition(id);
+        classNameIndex = store.getClassNameIndex(id);
+        mDisplayName = null;
+    }
 
     public void addAtrribute(String key, String value) {
+        checkMutable();
         mAttributes.put(key, value);
         updateDisplayName();
         if ("bounds".equals(key)) {
@@ -38,29 +81,85 @@ public class UiNode extends BasicTreeNode {
         }
     }
 
+    /**
+     * Adds an attribute without refreshing the display name or bounds. Used by loaders that
+     * add all attributes of a node in one go, and then call
+     * {@link #onAttributesLoaded(String, String, String, String, String)}
+     */
+    void putAttribute(String key, String value) {
+        mAttributes.put(key, value);
+    }
+
+    /**
+     * Computes the display name and bounds once all attributes have been added through
+     * {@link #putAttribute(String, String)}. The values are passed in rather than looked up,
+     * since a loader may not keep all of them as attributes.
+     */
+    void onAttributesLoaded(String className, String text, String contentDescription,
+            String index, String bounds) {
+        mClassName = className;
+        String name = buildDisplayName(className, text, contentDescription, index, bounds);
+        if (name != null) {
+            mDisplayName = name;
+        }
+        if (bounds != null) {
+            updateBounds(bounds);
+        }
+    }
+
+    /**
+     * @return the store this node is a view of, or null if the node owns its attributes
+     */
+    public HierarchyStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * @return the id of the node in its store, or -1 if the node isn't store backed
+     */
+    public int getStoreId() {
+        return mId;
+    }
+
     public Map<String, String> getAttributes() {
-        return Collections.unmodifiableMap(mAttributes);
+        Map<String, String> attributes = getLoadedAttributes();
+        if (hasXpath()) {
+            if (attributes == mAttributes) {
+                attributes = new LinkedHashMap<String, String>(mAttributes);
+            }
+            attributes.put("xpath", getXpath());
+        }
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * @return the attributes the node was loaded with, which leaves out the "xpath"
+     */
+    Map<String, String> getLoadedAttributes() {
+        return mStore != null ? mStore.getAttributes(mId) : mAttributes;
     }
 
     /**
      * Builds the display name based on attributes of the node
      */
     private void updateDisplayName() {
-        String className = mAttributes.get("class");
-        if (className == null)
-            return;
-        String text = mAttributes.get("text");
-        if (text == null)
-            return;
-        String contentDescription = mAttributes.get("content-desc");
-        if (contentDescription == null)
-            return;
-        String index = mAttributes.get("index");
-        if (index == null)
-            return;
-        String bounds = mAttributes.get("bounds");
-        if (bounds == null) {
-            return;
+        String name = buildDisplayName(mAttributes.get("class"), mAttributes.get("text"),
+                mAttributes.get("content-desc"), mAttributes.get("index"),
+                mAttributes.get("bounds"));
+        if (name != null) {
+            mDisplayName = name;
+        }
+    }
+
+    /**
+     * @return the label shown in the tree for a node with the given attributes, or null if
+     * any of them is missing
+     */
+    static String buildDisplayName(String className, String text, String contentDescription,
+            String index, String bounds) {
+        if (className == null || text == null || contentDescription == null || index == null
+                || bounds == null) {
+            return null;
         }
         // shorten the standard class names, otherwise it takes up too much space on UI
         className = className.replace("android.widget.", "");
@@ -81,28 +180,84 @@ public class UiNode extends BasicTreeNode {
         }
         builder.append(' ');
         builder.append(bounds);
-        mDisplayName = builder.toString();
+        return builder.toString();
     }
 
     private void updateBounds(String bounds) {
-        Matcher m = BOUNDS_PATTERN.matcher(bounds);
-        if (m.matches()) {
-            x = Integer.parseInt(m.group(1));
-            y = Integer.parseInt(m.group(2));
-            width = Integer.parseInt(m.group(3)) - x;
-            height = Integer.parseInt(m.group(4)) - y;
-            mHasBounds = true;
-        } else {
+        int[] values = new int[4];
+        parseBounds(bounds, values);
+        x = values[0];
+        y = values[1];
+        width = values[2];
+        height = values[3];
+        mHasBounds = true;
+    }
+
+    /**
+     * Parses a "[left,top][right,bottom]" bounds string into x, y, width and height
+     */
+    static void parseBounds(String bounds, int[] out) {
+        // hand rolled equivalent of matching "\\[-?(\\d+),-?(\\d+)\\]\\[-?(\\d+),-?(\\d+)\\]",
+        // bounds are parsed for every node so we'd rather not pay for a regex here
+        int[] values = new int[4];
+        int pos = 0;
+        for (int i = 0; i < 4; i++) {
+            char expected = (i % 2 == 0) ? '[' : ',';
+            if (pos >= bounds.length() || bounds.charAt(pos++) != expected) {
+                throw new RuntimeException("Invalid bounds: " + bounds);
+            }
+            // like the pattern above, a leading minus sign is accepted but ignored
+            if (pos < bounds.length() && bounds.charAt(pos) == '-') {
+                pos++;
+            }
+            int start = pos;
+            long value = 0;
+            while (pos < bounds.length() && bounds.charAt(pos) >= '0'
+                    && bounds.charAt(pos) <= '9') {
+                value = value * 10 + (bounds.charAt(pos++) - '0');
+                if (value > Integer.MAX_VALUE) {
+                    throw new NumberFormatException("Bounds out of range: " + bounds);
+                }
+            }
+            if (pos == start) {
+                throw new RuntimeException("Invalid bounds: " + bounds);
+            }
+            values[i] = (int) value;
+            if (i % 2 == 1 && (pos >= bounds.length() || bounds.charAt(pos++) != ']')) {
+                throw new RuntimeException("Invalid bounds: " + bounds);
+            }
+        }
+        if (pos != bounds.length()) {
             throw new RuntimeException("Invalid bounds: " + bounds);
         }
+        out[0] = values[0];
+        out[1] = values[1];
+        out[2] = values[2] - values[0];
+        out[3] = values[3] - values[1];
     }
 
     @Override
     public String toString() {
+        if (mDisplayName == null) {
+            // store backed nodes build their label the first time the tree asks for it
+            String name = mStore.getLabel(mId);
+            if (name == null) {
+                name = buildDisplayName(getAttribute("class"), getAttribute("text"),
+                        getAttribute("content-desc"), getAttribute("index"),
+                        getAttribute("bounds"));
+            }
+            mDisplayName = name != null ? name : DEFAULT_DISPLAY_NAME;
+        }
         return mDisplayName;
     }
 
     public String getAttribute(String key) {
+        if ("xpath".equals(key)) {
+            return hasXpath() ? getXpath() : null;
+        }
+        if (mStore != null) {
+            return mStore.getAttribute(mId, key);
+        }
         return mAttributes.get(key);
     }
 
@@ -112,37 +267,127 @@ public class UiNode extends BasicTreeNode {
         // after this function is first called. This is currently not a concern because the
         // tree is supposed to be readonly
         if (mCachedAttributesArray == null) {
-            mCachedAttributesArray = new Object[mAttributes.size()];
+            Map<String, String> attributes = getAttributes();
+            mCachedAttributesArray = new Object[attributes.size()];
             int i = 0;
-            for (String attr : mAttributes.keySet()) {
-                mCachedAttributesArray[i++] = new AttributePair(attr, mAttributes.get(attr));
+            for (Map.Entry<String, String> attr : attributes.entrySet()) {
+                mCachedAttributesArray[i++] = new AttributePair(attr.getKey(), attr.getValue());
             }
         }
         return mCachedAttributesArray;
     }
 
     public String getNodeClassAttribute() {
-        return this.mAttributes.get("class");
+        if (mStore != null) {
+            return mStore.getClassName(mId);
+        } else if (mClassName != null) {
+            return mClassName;
+        }
+        return getAttribute("class");
     }
 
-    public String getXpath() {
-        String xpath = null;
+    @Override
+    public BasicTreeNode getParent() {
+        if (mStore != null) {
+            int parent = mStore.getParent(mId);
+            // top level nodes hang off the store's root window, which sets mParent
+            return parent < 0 ? mParent : mStore.getNode(parent);
+        }
+        return mParent;
+    }
+
+    @Override
+    List<BasicTreeNode> children() {
+        if (mStore == null) {
+            return mChildren;
+        }
+        if (mChildViews == null) {
+            BasicTreeNode[] views = new BasicTreeNode[mStore.getChildCount(mId)];
+            int i = 0;
+            for (int c = mStore.getFirstChild(mId); c >= 0; c = mStore.getNextSibling(c)) {
+                views[i++] = mStore.getNode(c);
+            }
+            mChildViews = Arrays.asList(views);
+        }
+        return mChildViews;
+    }
+
+    @Override
+    public void addChild(BasicTreeNode child) {
+        checkMutable();
+        super.addChild(child);
+    }
+
+    @Override
+    boolean hasLoadedChildren() {
+        // the store itself is read only, only the child views created so far are let go of
+        return mStore == null || mChildViews != null;
+    }
+
+    @Override
+    void releaseChildren() {
+        if (mStore == null) {
+            super.releaseChildren();
+        } else {
+            mChildViews = null;
+        }
+    }
+
+    private void checkMutable() {
+        if (mStore != null) {
+            throw new UnsupportedOperationException("Store backed nodes are read only");
+        }
+    }
+
+    /**
+     * @return whether the node has an "xpath" attribute, which is the case for all nodes below
+     * the root window
+     */
+    private boolean hasXpath() {
         BasicTreeNode parent = getParent();
-        if (parent instanceof RootWindowNode)
-            xpath = getIndexXpath();
-        else{
-            String parentXpath = ((UiNode) parent).getAttribute("xpath");
-            if (parentXpath.startsWith("//"))
-                xpath = parentXpath + getIndexXpath();
-            else
-                xpath = "/" + parentXpath + getIndexXpath();
-        }
-        return xpath;
-    }
-
-    private String getIndexXpath() {
-        String className = getNodeClassAttribute();
-        String xpath = "/" + className + "[" + classNameIndex + "]";
-        return xpath;
+        return parent instanceof UiNode || parent instanceof RootWindowNode;
+    }
+
+    public String getXpath() {
+        if (mXpath == null) {
+            mXpath = mStore != null ? mStore.getXpath(mId) : renderXpath();
+        }
+        return mXpath;
+    }
+
+    private String renderXpath() {
+        // walk up to the root window, or to the closest ancestor that has rendered its xpath
+        // already, so that only the steps below it are rendered
+        int depth = 0;
+        String prefix = null;
+        BasicTreeNode node = this;
+        for (; node instanceof UiNode; node = node.getParent()) {
+            if (node != this && ((UiNode) node).mXpath != null) {
+                prefix = ((UiNode) node).mXpath;
+                break;
+            }
+            depth++;
+        }
+        UiNode[] path = new UiNode[depth];
+        node = this;
+        for (int i = depth - 1; i >= 0; i--) {
+            path[i] = (UiNode) node;
+            node = node.getParent();
+        }
+        // a top level node is "/class[n]", anything deeper is "//class[n]/class[n]..."
+        StringBuilder xpath = new StringBuilder();
+        if (prefix != null) {
+            if (!prefix.startsWith("//")) {
+                xpath.append('/');
+            }
+            xpath.append(prefix);
+        } else if (depth > 1) {
+            xpath.append('/');
+        }
+        for (UiNode step : path) {
+            xpath.append('/').append(step.getNodeClassAttribute()).append('[')
+                    .append(step.classNameIndex).append(']');
+        }
+        return xpath.toString();
     }
 }
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The shortest XPath locator that selects each node of a tree and no other, which is less
+ * brittle than the index based xpath of {@link UiNode#getXpath()}
+ *
+ * The candidates for a node select it by its resource id, content description or text, on
+ * their own, along with the class, or two of them together, and are unique if no other node
+ * has the same values, going by counts over the whole tree. Nodes that have none are located
+ * relative to the closest ancestor that has one, by the same kinds of candidates, unique
+ * within the subtree of the ancestor, or by the path of classes and indexes below it, or
+ * below the document for nodes without such an ancestor. The shortest unique candidate is
+ * picked.
+ *
+ * The tree is only read, the locators of separate subtrees are generated in parallel.
+ */
+public class UniqueLocators {
+
+    // the kinds of keys nodes are counted by, which have the values of these attributes
+    private static final String[][] KEYS = {
+        { "resource-id" },
+        { "content-desc" },
+        { "text" },
+        { "class" },
+        { "class", "resource-id" },
+        { "class", "content-desc" },
+        { "class", "text" },
+        { "resource-id", "content-desc" },
+        { "resource-id", "text" },
+        { "content-desc", "text" },
+    };
+    // longer values make for unwieldy locators, nodes are located some other way
+    private static final int MAX_VALUE_LENGTH = 100;
+    // subtrees smaller than this are not split further
+    private static final int MIN_TASK_SIZE = 256;
+
+    private final BasicTreeNode[] mNodes;
+    private final int[] mParent;
+    private final int[] mEnd;
+    // position of each node among the children of its parent with the same class
+    private final int[] mClassIndex;
+    private final String[] mClassNames;
+    // the XPath step that selects the nodes with each node's values for each kind of key, and
+    // the ids of those nodes in pre-order, null where the node doesn't have all the values
+    private final String[][] mSteps;
+    private final int[][][] mPostings;
+    // the closest ancestor or self of each node with a locator that is unique over the tree
+    private final int[] mAnchor;
+    private final String[] mLocators;
+    private final Map<BasicTreeNode, Integer> mIds;
+
+    private UniqueLocators(List<BasicTreeNode> nodes, int[] parent, int[] end) {
+        int size = nodes.size();
+        mNodes = nodes.toArray(new BasicTreeNode[size]);
+        mParent = parent;
+        mEnd = end;
+        mClassIndex = new int[size];
+        mClassNames = new String[size];
+        mSteps = new String[size][];
+        mPostings = new int[size][][];
+        mAnchor = new int[size];
+        mLocators = new String[size];
+        mIds = new HashMap<BasicTreeNode, Integer>(size * 2);
+    }
+
+    /**
+     * Generates the locators of all the nodes of a fully loaded tree
+     */
+    public static UniqueLocators build(BasicTreeNode root) {
+        // number the nodes in pre-order, so that subtrees are ranges of ids
+        final List<BasicTreeNode> nodes = new ArrayList<BasicTreeNode>();
+        final List<Integer> parents = new ArrayList<Integer>();
+        final List<Integer> path = new ArrayList<Integer>();
+        final List<Integer> ends = new ArrayList<Integer>();
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                parents.add(path.isEmpty() ? -1 : path.get(path.size() - 1));
+                path.add(nodes.size());
+                nodes.add(node);
+                ends.add(0);
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+
+            @Override
+            public BasicTreeNode.VisitResult postVisit(BasicTreeNode node) {
+                ends.set(path.remove(path.size() - 1), nodes.size());
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        int[] parent = new int[nodes.size()];
+        int[] end = new int[nodes.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = parents.get(i);
+            end[i] = ends.get(i);
+        }
+        UniqueLocators locators = new UniqueLocators(nodes, parent, end);
+        locators.count();
+        ForkJoinPool.commonPool().invoke(locators.new SubtreeTask(0));
+        return locators;
+    }
+
+    /**
+     * Counts the nodes by each kind of key
+     */
+    private void count() {
+        Map<String, List<Integer>> postings = new HashMap<String, List<Integer>>();
+        Map<String, Integer> classCounts = new HashMap<String, Integer>();
+        for (int id = 0; id < mNodes.length; id++) {
+            mIds.put(mNodes[id], id);
+            if (!(mNodes[id] instanceof UiNode)) {
+                continue;
+            }
+            UiNode node = (UiNode) mNodes[id];
+            String className = node.getNodeClassAttribute();
+            mClassNames[id] = className;
+            // counted per parent and class
+            String sibling = mParent[id] + ":" + className;
+            Integer index = classCounts.get(sibling);
+            mClassIndex[id] = index == null ? 1 : index + 1;
+            classCounts.put(sibling, mClassIndex[id]);
+
+            mSteps[id] = new String[KEYS.length];
+            for (int kind = 0; kind < KEYS.length; kind++) {
+                String step = getStep(node, KEYS[kind]);
+                if (step == null) {
+                    continue;
+                }
+                // steps are distinct for distinct values, so they are the keys
+                mSteps[id][kind] = step;
+                List<Integer> ids = postings.get(step);
+                if (ids == null) {
+                    ids = new ArrayList<Integer>(1);
+                    postings.put(step, ids);
+                }
+                ids.add(id);
+            }
+        }
+        Map<String, int[]> arrays = new HashMap<String, int[]>(postings.size() * 2);
+        for (Map.Entry<String, List<Integer>> entry : postings.entrySet()) {
+            List<Integer> ids = entry.getValue();
+            int[] array = new int[ids.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = ids.get(i);
+            }
+            arrays.put(entry.getKey(), array);
+        }
+        for (int id = 0; id < mNodes.length; id++) {
+            if (mSteps[id] != null) {
+                mPostings[id] = new int[KEYS.length][];
+                for (int kind = 0; kind < KEYS.length; kind++) {
+                    if (mSteps[id][kind] != null) {
+                        mPostings[id][kind] = arrays.get(mSteps[id][kind]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the step selecting the nodes with the node's values of the attributes, or null
+     * if it has no usable value for one of them
+     */
+    private static String getStep(UiNode node, String[] attributes) {
+        StringBuilder step = new StringBuilder();
+        String predicate = "";
+        for (String attribute : attributes) {
+            String value = "class".equals(attribute) ? node.getNodeClassAttribute()
+                    : node.getAttribute(attribute);
+            if (value == null || value.isEmpty() || value.length() > MAX_VALUE_LENGTH) {
+                return null;
+            }
+            if ("class".equals(attribute)) {
+                step.append(value);
+                continue;
+            }
+            String literal = toLiteral(value);
+            if (literal == null) {
+                return null;
+            }
+            predicate += (predicate.isEmpty() ? "" : " and ") + "@" + attribute + "=" + literal;
+        }
+        if (step.length() == 0) {
+            step.append('*');
+        }
+        if (!predicate.isEmpty()) {
+            step.append('[').append(predicate).append(']');
+        }
+        return step.toString();
+    }
+
+    /**
+     * @return the value quoted as an XPath literal, or null if it has both kinds of quotes
+     */
+    private static String toLiteral(String value) {
+        if (value.indexOf('\'') < 0) {
+            return "'" + value + "'";
+        } else if (value.indexOf('"') < 0) {
+            return "\"" + value + "\"";
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of ids in the range from start, inclusive, to end, exclusive
+     */
+    private static int count(int[] ids, int start, int end) {
+        int from = Arrays.binarySearch(ids, start);
+        int to = Arrays.binarySearch(ids, end);
+        return (to < 0 ? -to - 1 : to) - (from < 0 ? -from - 1 : from);
+    }
+
+    /**
+     * Generates the locator of a node, whose parent has its locator and anchor already
+     */
+    private void generate(int id) {
+        int parent = mParent[id];
+        int anchor = parent >= 0 ? mAnchor[parent] : -1;
+        mAnchor[id] = anchor;
+        if (mPostings[id] == null) {
+            // not a UiNode
+            return;
+        }
+        String best = null;
+        for (int kind = 0; kind < KEYS.length; kind++) {
+            int[] ids = mPostings[id][kind];
+            if (ids != null && ids.length == 1) {
+                best = shorter(best, "//" + mSteps[id][kind]);
+            }
+        }
+        if (best != null) {
+            mAnchor[id] = id;
+        } else {
+            String prefix = "";
+            if (anchor >= 0) {
+                prefix = mLocators[anchor];
+                for (int kind = 0; kind < KEYS.length; kind++) {
+                    int[] ids = mPostings[id][kind];
+                    if (ids != null && count(ids, anchor + 1, mEnd[anchor]) == 1) {
+                        best = shorter(best, prefix + "//" + mSteps[id][kind]);
+                    }
+                }
+            }
+            // the path of classes and indexes from the anchor, or from the document
+            StringBuilder steps = new StringBuilder();
+            for (int node = id; node != anchor && mPostings[node] != null;
+                    node = mParent[node]) {
+                steps.insert(0, "/" + mClassNames[node] + "[" + mClassIndex[node] + "]");
+                if (mParent[node] < 0) {
+                    break;
+                }
+            }
+            best = shorter(best, prefix + steps);
+        }
+        mLocators[id] = best;
+    }
+
+    private static String shorter(String a, String b) {
+        return a == null || b.length() < a.length() ? b : a;
+    }
+
+    /**
+     * Generates the locators of a subtree, after those of its root's ancestors
+     */
+    private class SubtreeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mRoot;
+
+        SubtreeTask(int root) {
+            mRoot = root;
+        }
+
+        @Override
+        protected void compute() {
+            generate(mRoot);
+            List<SubtreeTask> tasks = new ArrayList<SubtreeTask>();
+            for (int child = mRoot + 1; child < mEnd[mRoot]; child = mEnd[child]) {
+                if (mEnd[child] - child >= MIN_TASK_SIZE) {
+                    tasks.add(new SubtreeTask(child));
+                } else {
+                    // in pre-order, each parent comes before its children
+                    for (int id = child; id < mEnd[child]; id++) {
+                        generate(id);
+                    }
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * @return the locator of the node, or null if it isn't a UiNode of the tree
+     */
+    public String getLocator(BasicTreeNode node) {
+        Integer id = mIds.get(node);
+        return id != null ? mLocators[id] : null;
+    }
+}
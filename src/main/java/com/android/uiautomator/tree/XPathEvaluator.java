@@ -0,0 +1,1605 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates XPath 1.0 expressions directly over a loaded hierarchy
+ *
+ * The hierarchy is seen the way UI test frameworks see it: each {@link UiNode} is an element
+ * named after its class, with the attributes of the node, and the root window is the
+ * document node; a {@link UiNode} root is the document element. Elements have no text nodes,
+ * so the text of a node is matched with <code>@text</code>. The <code>xpath</code> attribute
+ * of a node selects the node again.
+ *
+ * Expressions may use all axes, node tests, operators and predicates, and the core functions
+ * on node sets, strings, booleans and numbers that locators use; variables, namespaces, and
+ * the rest of the functions aren't supported. A step looking for descendants whose predicates
+ * compare one of {@link AttributeIndex#ATTRIBUTES} to a string, with <code>=</code>,
+ * <code>contains()</code> or <code>starts-with()</code>, only checks the nodes the attribute
+ * index finds for the string rather than every descendant.
+ *
+ * The hierarchy must not change after the evaluator is created.
+ */
+public class XPathEvaluator {
+
+    private static final int CHILD = 0;
+    private static final int DESCENDANT = 1;
+    private static final int DESCENDANT_OR_SELF = 2;
+    private static final int PARENT = 3;
+    private static final int ANCESTOR = 4;
+    private static final int ANCESTOR_OR_SELF = 5;
+    private static final int FOLLOWING_SIBLING = 6;
+    private static final int PRECEDING_SIBLING = 7;
+    private static final int FOLLOWING = 8;
+    private static final int PRECEDING = 9;
+    private static final int SELF = 10;
+    private static final int ATTRIBUTE = 11;
+    private static final String[] AXES = { "child", "descendant", "descendant-or-self",
+            "parent", "ancestor", "ancestor-or-self", "following-sibling", "preceding-sibling",
+            "following", "preceding", "self", "attribute" };
+
+    // node tests
+    private static final int ANY_NODE = 0;
+    private static final int ANY_NAME = 1;
+    private static final int NAME = 2;
+    private static final int NO_NODE = 3;
+
+    // nodes in pre order, which is document order, by id; 0 is the document node, which is
+    // null if the root of the hierarchy is a UiNode, since it then is the document element
+    private final BasicTreeNode[] mNodes;
+    // class of the element nodes, null for the others
+    private final String[] mNames;
+    private final int[] mParent;
+    // id of the last node of the subtree of each node
+    private final int[] mEnd;
+    private final AttributeIndex mIndex;
+    // id of the node the attribute index numbers 0
+    private final int mIndexOffset;
+
+    /**
+     * @param index the attribute index of the same hierarchy, or null to always walk the tree
+     */
+    public XPathEvaluator(BasicTreeNode root, AttributeIndex index) {
+        final List<BasicTreeNode> nodes = new ArrayList<BasicTreeNode>();
+        final int[][] parent = { new int[256] };
+        final int[][] end = { new int[256] };
+        mIndexOffset = root instanceof UiNode ? 1 : 0;
+        if (mIndexOffset == 1) {
+            nodes.add(null);
+            parent[0][0] = -1;
+            end[0][0] = -1;
+        }
+        root.accept(new BasicTreeNode.ITreeVisitor() {
+            private int[] mPath = new int[32];
+            private int mDepth;
+
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                int id = nodes.size();
+                nodes.add(node);
+                if (id == parent[0].length) {
+                    parent[0] = Arrays.copyOf(parent[0], id * 2);
+                    end[0] = Arrays.copyOf(end[0], id * 2);
+                }
+                parent[0][id] = mDepth > 0 ? mPath[mDepth - 1] : mIndexOffset - 1;
+                if (mDepth == mPath.length) {
+                    mPath = Arrays.copyOf(mPath, mDepth * 2);
+                }
+                mPath[mDepth++] = id;
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+
+            @Override
+            public BasicTreeNode.VisitResult postVisit(BasicTreeNode node) {
+                end[0][mPath[--mDepth]] = nodes.size() - 1;
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        mNodes = nodes.toArray(new BasicTreeNode[nodes.size()]);
+        mParent = parent[0];
+        mEnd = end[0];
+        mEnd[0] = mNodes.length - 1;
+        mNames = new String[mNodes.length];
+        for (int i = 0; i < mNodes.length; i++) {
+            if (mNodes[i] instanceof UiNode) {
+                mNames[i] = ((UiNode) mNodes[i]).getNodeClassAttribute();
+            }
+        }
+        mIndex = index;
+    }
+
+    /**
+     * A compiled expression, which can be evaluated against any hierarchy
+     */
+    public static class Expression {
+        private final String mSource;
+        private final Expr mExpr;
+
+        private Expression(String source, Expr expr) {
+            mSource = source;
+            mExpr = expr;
+        }
+
+        @Override
+        public String toString() {
+            return mSource;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression isn't valid or isn't supported
+     */
+    public static Expression compile(String expression) {
+        return new Expression(expression, new Parser(expression).parse());
+    }
+
+    /**
+     * @return the nodes the expression selects, in document order; for attributes, the nodes
+     * holding them
+     * @throws IllegalArgumentException if the expression isn't valid, isn't supported, or
+     * doesn't evaluate to a node set
+     */
+    public List<BasicTreeNode> evaluate(String expression) {
+        return evaluate(compile(expression));
+    }
+
+    /**
+     * @see #evaluate(String)
+     */
+    public List<BasicTreeNode> evaluate(Expression expression) {
+        Object value = expression.mExpr.evaluate(this, 0, null, 1, 1);
+        if (!(value instanceof NodeSet)) {
+            throw new IllegalArgumentException(expression + " doesn't select nodes");
+        }
+        return toNodes((NodeSet) value);
+    }
+
+    private List<BasicTreeNode> toNodes(NodeSet set) {
+        List<BasicTreeNode> result = new ArrayList<BasicTreeNode>(set.mSize);
+        for (int i = 0; i < set.mSize; i++) {
+            BasicTreeNode node = mNodes[set.mIds[i]];
+            if (node != null && (result.isEmpty() || result.get(result.size() - 1) != node)) {
+                result.add(node);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the first step of the expression, if it only selects descendants of the
+     * document node, each of which can be told to be selected on its own, as with
+     * "//name[predicate]" if the predicates don't depend on the position; otherwise null
+     */
+    private static Step getDescendantStep(Expression expression) {
+        if (!(expression.mExpr instanceof Path)) {
+            return null;
+        }
+        Path path = (Path) expression.mExpr;
+        if (path.mFilter != null || !path.mAbsolute || path.mSteps.length == 0
+                || path.mSteps[0].mAxis != DESCENDANT || path.mSteps[0].mPositional) {
+            return null;
+        }
+        return path.mSteps[0];
+    }
+
+    /**
+     * @return whether the nodes the first step of the expression selects can be found one by
+     * one, with {@link #isSelectedByFirstStep}, in a pass over the nodes shared with other
+     * expressions
+     */
+    static boolean hasDescendantStep(Expression expression) {
+        return getDescendantStep(expression) != null;
+    }
+
+    /**
+     * @return the class the nodes the first step selects have, or null if it isn't known,
+     * for an expression that {@link #hasDescendantStep}
+     */
+    static String getDescendantStepClass(Expression expression) {
+        Step step = getDescendantStep(expression);
+        return step.mTest == NAME ? step.mName : null;
+    }
+
+    /**
+     * @return the name and value of an attribute all the nodes the first step selects have,
+     * or null if none is known, for an expression that {@link #hasDescendantStep}
+     */
+    static String[] getDescendantStepKey(Expression expression) {
+        Step step = getDescendantStep(expression);
+        return step.mKeyAttribute != null && step.mKeyKind == AttributeIndex.EXACT
+                ? new String[] { step.mKeyAttribute, step.mKeyValue } : null;
+    }
+
+    /**
+     * @return the name of an attribute all the nodes the first step selects have, and a
+     * prefix of its value, or null if none is known, for an expression that
+     * {@link #hasDescendantStep}
+     */
+    static String[] getDescendantStepPrefix(Expression expression) {
+        Step step = getDescendantStep(expression);
+        return step.mKeyAttribute != null && step.mKeyKind == AttributeIndex.PREFIX
+                ? new String[] { step.mKeyAttribute, step.mKeyValue } : null;
+    }
+
+    /**
+     * @return the number of nodes, which have ids 0 (the document node) to the number - 1
+     */
+    int getNodeCount() {
+        return mNodes.length;
+    }
+
+    /**
+     * @return the class of the node, or null if it isn't an element
+     */
+    String getClassName(int id) {
+        return mNames[id];
+    }
+
+    /**
+     * @return the value of the attribute of the node, or null
+     */
+    String getAttribute(int id, String name) {
+        return mNames[id] != null ? ((UiNode) mNodes[id]).getAttribute(name) : null;
+    }
+
+    /**
+     * @return whether the node is one the first step of the expression selects, for an
+     * expression that {@link #hasDescendantStep}
+     */
+    boolean isSelectedByFirstStep(Expression expression, int id) {
+        Step step = getDescendantStep(expression);
+        if (id == 0 || !matches(id, step)) {
+            return false;
+        }
+        for (Expr predicate : step.mPredicates) {
+            if (!toBoolean(predicate.evaluate(this, id, null, 1, 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluates the rest of an expression that {@link #hasDescendantStep}, given the ids of
+     * the nodes its first step selects in ascending order
+     *
+     * @see #evaluate(String)
+     */
+    List<BasicTreeNode> evaluateAfterFirstStep(Expression expression, int[] ids, int count) {
+        Path path = (Path) expression.mExpr;
+        NodeSet set = new NodeSet(count);
+        for (int i = 0; i < count; i++) {
+            set.add(ids[i], null);
+        }
+        for (int i = 1; i < path.mSteps.length && set.mSize > 0; i++) {
+            set = step(set, path.mSteps[i]);
+        }
+        return toNodes(set);
+    }
+
+    /**
+     * Nodes in document order, without duplicates; the nodes with a name in mAttributes are
+     * that attribute of their element, mAttributes is only allocated for the first attribute
+     */
+    private static class NodeSet {
+        int[] mIds;
+        String[] mAttributes;
+        int mSize;
+
+        NodeSet(int capacity) {
+            mIds = new int[Math.max(capacity, 4)];
+        }
+
+        static NodeSet of(int id, String attribute) {
+            NodeSet set = new NodeSet(1);
+            set.add(id, attribute);
+            return set;
+        }
+
+        void add(int id, String attribute) {
+            if (mSize == mIds.length) {
+                mIds = Arrays.copyOf(mIds, mSize * 2);
+                if (mAttributes != null) {
+                    mAttributes = Arrays.copyOf(mAttributes, mSize * 2);
+                }
+            }
+            if (attribute != null && mAttributes == null) {
+                mAttributes = new String[mIds.length];
+            }
+            mIds[mSize] = id;
+            if (mAttributes != null) {
+                mAttributes[mSize] = attribute;
+            }
+            mSize++;
+        }
+
+        /**
+         * Restores document order and drops duplicates, after nodes were added out of order
+         */
+        void sort() {
+            boolean sorted = true;
+            for (int i = 1; i < mSize && sorted; i++) {
+                sorted = compare(i - 1, i) < 0;
+            }
+            if (sorted) {
+                return;
+            }
+            if (mAttributes == null) {
+                Arrays.sort(mIds, 0, mSize);
+            } else {
+                Integer[] order = new Integer[mSize];
+                for (int i = 0; i < mSize; i++) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return NodeSet.this.compare(a, b);
+                    }
+                });
+                int[] ids = new int[mSize];
+                String[] attributes = new String[mSize];
+                for (int i = 0; i < mSize; i++) {
+                    ids[i] = mIds[order[i]];
+                    attributes[i] = mAttributes[order[i]];
+                }
+                mIds = ids;
+                mAttributes = attributes;
+            }
+            int kept = 0;
+            for (int i = 0; i < mSize; i++) {
+                if (kept == 0 || compare(kept - 1, i) != 0) {
+                    mIds[kept] = mIds[i];
+                    if (mAttributes != null) {
+                        mAttributes[kept] = mAttributes[i];
+                    }
+                    kept++;
+                }
+            }
+            mSize = kept;
+        }
+
+        private int compare(int a, int b) {
+            if (mIds[a] != mIds[b]) {
+                return mIds[a] < mIds[b] ? -1 : 1;
+            }
+            if (mAttributes == null || mAttributes[a] == mAttributes[b]) {
+                return 0;
+            }
+            if (mAttributes[a] == null || mAttributes[b] == null) {
+                // an element comes before its attributes
+                return mAttributes[a] == null ? -1 : 1;
+            }
+            return mAttributes[a].compareTo(mAttributes[b]);
+        }
+
+        String getAttribute(int i) {
+            return mAttributes != null ? mAttributes[i] : null;
+        }
+    }
+
+    /**
+     * @return the string value of the node, which is empty for all but attributes, since
+     * elements have no text nodes
+     */
+    private String stringValue(int id, String attribute) {
+        if (attribute == null) {
+            return "";
+        }
+        String value = ((UiNode) mNodes[id]).getAttribute(attribute);
+        return value != null ? value : "";
+    }
+
+    /**
+     * Selects the nodes of one step from each node of the context
+     */
+    private NodeSet step(NodeSet context, Step step) {
+        if (step.mLookupAttribute != null && mIndex != null) {
+            return lookupStep(context, step);
+        }
+        NodeSet result = new NodeSet(context.mSize);
+        NodeSet axis = new NodeSet(16);
+        // without positional predicates, descendants of a context node that is itself a
+        // descendant of an earlier one are found already
+        boolean skipNested = (step.mAxis == DESCENDANT || step.mAxis == DESCENDANT_OR_SELF)
+                && !step.mPositional;
+        int covered = -1;
+        for (int i = 0; i < context.mSize; i++) {
+            int id = context.mIds[i];
+            String attribute = context.getAttribute(i);
+            if (skipNested && id <= covered && attribute == null) {
+                continue;
+            }
+            axis.mSize = 0;
+            selectAxis(id, attribute, step, axis);
+            for (Expr predicate : step.mPredicates) {
+                filter(axis, predicate, isReverse(step.mAxis));
+            }
+            for (int j = 0; j < axis.mSize; j++) {
+                result.add(axis.mIds[j], axis.getAttribute(j));
+            }
+            if (skipNested && attribute == null) {
+                covered = Math.max(covered, mEnd[id]);
+            }
+        }
+        if (context.mSize > 1) {
+            result.sort();
+        }
+        return result;
+    }
+
+    /**
+     * Selects the nodes of a descendant step through the attribute index
+     */
+    private NodeSet lookupStep(NodeSet context, Step step) {
+        BitSet candidates = mIndex.find(step.mLookupKind, step.mLookupAttribute,
+                step.mLookupValue);
+        NodeSet result = new NodeSet(candidates.cardinality());
+        boolean fromDocument = context.mSize == 1 && context.mIds[0] == 0
+                && context.getAttribute(0) == null;
+        BitSet contextIds = null;
+        if (!fromDocument) {
+            contextIds = new BitSet(mNodes.length);
+            for (int i = 0; i < context.mSize; i++) {
+                if (context.getAttribute(i) == null) {
+                    contextIds.set(context.mIds[i]);
+                }
+            }
+        }
+        for (int c = candidates.nextSetBit(0); c >= 0; c = candidates.nextSetBit(c + 1)) {
+            int id = c + mIndexOffset;
+            if (!matches(id, step) || !hasContextAncestor(id, step.mAxis, contextIds)) {
+                continue;
+            }
+            boolean selected = true;
+            for (int p = 0; p < step.mPredicates.length && selected; p++) {
+                // no predicate depends on the position
+                selected = toBoolean(step.mPredicates[p].evaluate(this, id, null, 1, 1));
+            }
+            if (selected) {
+                result.add(id, null);
+            }
+        }
+        return result;
+    }
+
+    private boolean hasContextAncestor(int id, int axis, BitSet contextIds) {
+        if (contextIds == null) {
+            // everything but the document node descends from it
+            return id != 0 || axis == DESCENDANT_OR_SELF;
+        }
+        for (int p = axis == DESCENDANT_OR_SELF ? id : mParent[id]; p >= 0; p = mParent[p]) {
+            if (contextIds.get(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isReverse(int axis) {
+        return axis == ANCESTOR || axis == ANCESTOR_OR_SELF || axis == PRECEDING
+                || axis == PRECEDING_SIBLING;
+    }
+
+    /**
+     * Adds the nodes on the axis from the node that pass the node test, in document order
+     */
+    private void selectAxis(int id, String attribute, Step step, NodeSet out) {
+        if (attribute != null) {
+            // the parent of an attribute is its element, it has no other relatives
+            if (step.mAxis == PARENT || step.mAxis == ANCESTOR
+                    || step.mAxis == ANCESTOR_OR_SELF) {
+                int start = out.mSize;
+                for (int p = id; p >= 0; p = step.mAxis == PARENT ? -1 : mParent[p]) {
+                    addIfMatches(p, step, out);
+                }
+                reverse(out, start);
+            }
+            // name tests on the self axis are for elements
+            if ((step.mAxis == SELF || step.mAxis == ANCESTOR_OR_SELF)
+                    && step.mTest == ANY_NODE) {
+                out.add(id, attribute);
+            }
+            return;
+        }
+        switch (step.mAxis) {
+            case CHILD:
+                for (int c = id + 1; c <= mEnd[id]; c = mEnd[c] + 1) {
+                    addIfMatches(c, step, out);
+                }
+                break;
+            case DESCENDANT:
+            case DESCENDANT_OR_SELF:
+                for (int d = step.mAxis == DESCENDANT ? id + 1 : id; d <= mEnd[id]; d++) {
+                    addIfMatches(d, step, out);
+                }
+                break;
+            case PARENT:
+                if (mParent[id] >= 0) {
+                    addIfMatches(mParent[id], step, out);
+                }
+                break;
+            case ANCESTOR:
+            case ANCESTOR_OR_SELF: {
+                int start = out.mSize;
+                for (int p = step.mAxis == ANCESTOR ? mParent[id] : id; p >= 0; p = mParent[p]) {
+                    addIfMatches(p, step, out);
+                }
+                reverse(out, start);
+                break;
+            }
+            case FOLLOWING_SIBLING:
+                if (mParent[id] >= 0) {
+                    for (int s = mEnd[id] + 1; s <= mEnd[mParent[id]]; s = mEnd[s] + 1) {
+                        addIfMatches(s, step, out);
+                    }
+                }
+                break;
+            case PRECEDING_SIBLING:
+                if (mParent[id] >= 0) {
+                    for (int s = mParent[id] + 1; s < id; s = mEnd[s] + 1) {
+                        addIfMatches(s, step, out);
+                    }
+                }
+                break;
+            case FOLLOWING:
+                for (int f = mEnd[id] + 1; f < mNodes.length; f++) {
+                    addIfMatches(f, step, out);
+                }
+                break;
+            case PRECEDING:
+                for (int p = 0; p < id; p++) {
+                    // ancestors end after the node
+                    if (mEnd[p] < id) {
+                        addIfMatches(p, step, out);
+                    }
+                }
+                break;
+            case SELF:
+                addIfMatches(id, step, out);
+                break;
+            case ATTRIBUTE:
+                if (mNodes[id] instanceof UiNode) {
+                    UiNode node = (UiNode) mNodes[id];
+                    if (step.mTest == NAME) {
+                        if (node.getAttribute(step.mName) != null) {
+                            out.add(id, step.mName);
+                        }
+                    } else if (step.mTest != NO_NODE) {
+                        List<String> names = new ArrayList<String>(node.getAttributes().keySet());
+                        Collections.sort(names);
+                        for (String name : names) {
+                            out.add(id, name);
+                        }
+                    }
+                }
+                break;
+        }
+    }
+
+    private void addIfMatches(int id, Step step, NodeSet out) {
+        if (matches(id, step)) {
+            out.add(id, null);
+        }
+    }
+
+    private static void reverse(NodeSet set, int start) {
+        for (int i = start, j = set.mSize - 1; i < j; i++, j--) {
+            int id = set.mIds[i];
+            set.mIds[i] = set.mIds[j];
+            set.mIds[j] = id;
+            if (set.mAttributes != null) {
+                String attribute = set.mAttributes[i];
+                set.mAttributes[i] = set.mAttributes[j];
+                set.mAttributes[j] = attribute;
+            }
+        }
+    }
+
+    /**
+     * @return whether the element passes the node test of the step
+     */
+    private boolean matches(int id, Step step) {
+        switch (step.mTest) {
+            case ANY_NODE:
+                return true;
+            case ANY_NAME:
+                return mNames[id] != null;
+            case NAME:
+                return step.mName.equals(mNames[id]);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Keeps the nodes of the set the predicate holds for, positions counting in reverse
+     * document order on reverse axes
+     */
+    private void filter(NodeSet set, Expr predicate, boolean reverse) {
+        int kept = 0;
+        int size = set.mSize;
+        for (int i = 0; i < size; i++) {
+            int position = reverse ? size - i : i + 1;
+            Object value = predicate.evaluate(this, set.mIds[i], set.getAttribute(i), position,
+                    size);
+            boolean selected = value instanceof Double ? (Double) value == position
+                    : toBoolean(value);
+            if (selected) {
+                set.mIds[kept] = set.mIds[i];
+                if (set.mAttributes != null) {
+                    set.mAttributes[kept] = set.mAttributes[i];
+                }
+                kept++;
+            }
+        }
+        set.mSize = kept;
+    }
+
+    private static boolean toBoolean(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            return d != 0 && !Double.isNaN(d);
+        } else if (value instanceof String) {
+            return !((String) value).isEmpty();
+        }
+        return ((NodeSet) value).mSize > 0;
+    }
+
+    private double toNumber(Object value) {
+        if (value instanceof Double) {
+            return (Double) value;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+        return toNumber(toString(value));
+    }
+
+    private static double toNumber(String s) {
+        s = s.trim();
+        // XPath numbers are digits with an optional '-' and '.', no exponent or suffixes
+        boolean digits = false;
+        boolean point = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c == '.' && !point) {
+                point = true;
+            } else if (c != '-' || i > 0) {
+                return Double.NaN;
+            }
+        }
+        return digits ? Double.parseDouble(s) : Double.NaN;
+    }
+
+    private String toString(Object value) {
+        if (value instanceof String) {
+            return (String) value;
+        } else if (value instanceof Boolean) {
+            return value.toString();
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            if (Double.isNaN(d)) {
+                return "NaN";
+            } else if (Double.isInfinite(d)) {
+                return d > 0 ? "Infinity" : "-Infinity";
+            } else if (d == Math.rint(d) && Math.abs(d) < 1e15) {
+                return Long.toString((long) d);
+            }
+            return new BigDecimal(Double.toString(d)).stripTrailingZeros().toPlainString();
+        }
+        NodeSet set = (NodeSet) value;
+        return set.mSize > 0 ? stringValue(set.mIds[0], set.getAttribute(0)) : "";
+    }
+
+    private boolean compare(String op, Object left, Object right) {
+        if (left instanceof NodeSet && right instanceof NodeSet) {
+            NodeSet l = (NodeSet) left;
+            NodeSet r = (NodeSet) right;
+            for (int i = 0; i < l.mSize; i++) {
+                String a = stringValue(l.mIds[i], l.getAttribute(i));
+                for (int j = 0; j < r.mSize; j++) {
+                    if (compareValues(op, a, stringValue(r.mIds[j], r.getAttribute(j)))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        if (right instanceof NodeSet) {
+            return compare(flip(op), right, left);
+        }
+        if (left instanceof NodeSet) {
+            NodeSet l = (NodeSet) left;
+            if (right instanceof Boolean) {
+                return compareValues(op, toBoolean(left), right);
+            }
+            for (int i = 0; i < l.mSize; i++) {
+                if (compareValues(op, stringValue(l.mIds[i], l.getAttribute(i)), right)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return compareValues(op, left, right);
+    }
+
+    private static String flip(String op) {
+        if (op.startsWith("<")) {
+            return ">" + op.substring(1);
+        } else if (op.startsWith(">")) {
+            return "<" + op.substring(1);
+        }
+        return op;
+    }
+
+    /**
+     * Compares values other than node sets
+     */
+    private boolean compareValues(String op, Object left, Object right) {
+        if (op.equals("=") || op.equals("!=")) {
+            boolean equal;
+            if (left instanceof Boolean || right instanceof Boolean) {
+                equal = toBoolean(left) == toBoolean(right);
+            } else if (left instanceof Double || right instanceof Double) {
+                equal = toNumber(left) == toNumber(right);
+            } else {
+                equal = toString(left).equals(toString(right));
+            }
+            return equal == op.equals("=");
+        }
+        double l = toNumber(left);
+        double r = toNumber(right);
+        if (op.equals("<")) {
+            return l < r;
+        } else if (op.equals("<=")) {
+            return l <= r;
+        } else if (op.equals(">")) {
+            return l > r;
+        }
+        return l >= r;
+    }
+
+    private static NodeSet union(NodeSet left, NodeSet right) {
+        NodeSet result = new NodeSet(left.mSize + right.mSize);
+        for (int i = 0; i < left.mSize; i++) {
+            result.add(left.mIds[i], left.getAttribute(i));
+        }
+        for (int i = 0; i < right.mSize; i++) {
+            result.add(right.mIds[i], right.getAttribute(i));
+        }
+        result.sort();
+        return result;
+    }
+
+    private static abstract class Expr {
+        /**
+         * @param node id of the context node
+         * @param attribute name of the context node if it is an attribute of that node,
+         * otherwise null
+         * @return a Boolean, Double, String or NodeSet
+         */
+        abstract Object evaluate(XPathEvaluator e, int node, String attribute, int position,
+                int size);
+
+        /**
+         * @return whether the value is a number, that a predicate compares to the position
+         */
+        boolean isNumber() {
+            return false;
+        }
+
+        /**
+         * @return whether the value depends on the position or size of the context
+         */
+        boolean usesPosition() {
+            return false;
+        }
+    }
+
+    private static class Literal extends Expr {
+        final Object mValue;
+
+        Literal(Object value) {
+            mValue = value;
+        }
+
+        @Override
+        Object evaluate(XPathEvaluator e, int node, String attribute, int position, int size) {
+            return mValue;
+        }
+
+        @Override
+        boolean isNumber() {
+            return mValue instanceof Double;
+        }
+    }
+
+    private static class Binary extends Expr {
+        final String mOp;
+        final Expr mLeft;
+        final Expr mRight;
+
+        Binary(String op, Expr left, Expr right) {
+            mOp = op;
+            mLeft = left;
+            mRight = right;
+        }
+
+        @Override
+        Object evaluate(XPathEvaluator e, int node, String attribute, int position, int size) {
+            if (mOp.equals("or")) {
+                return toBoolean(mLeft.evaluate(e, node, attribute, position, size))
+                        || toBoolean(mRight.evaluate(e, node, attribute, position, size));
+            } else if (mOp.equals("and")) {
+                return toBoolean(mLeft.evaluate(e, node, attribute, position, size))
+                        && toBoolean(mRight.evaluate(e, node, attribute, position, size));
+            }
+            Object left = mLeft.evaluate(e, node, attribute, position, size);
+            Object right = mRight.evaluate(e, node, attribute, position, size);
+            if (mOp.equals("|")) {
+                if (!(left instanceof NodeSet) || !(right instanceof NodeSet)) {
+                    throw new IllegalArgumentException("Union of values that aren't node sets");
+                }
+                return union((NodeSet) left, (NodeSet) right);
+            } else if (!isNumber()) {
+                return e.compare(mOp, left, right);
+            }
+            double l = e.toNumber(left);
+            double r = e.toNumber(right);
+            if (mOp.equals("+")) {
+                return l + r;
+            } else if (mOp.equals("-")) {
+                return l - r;
+            } else if (mOp.equals("*")) {
+                return l * r;
+            } else if (mOp.equals("div")) {
+                return l / r;
+            }
+            return l % r;
+        }
+
+        @Override
+        boolean isNumber() {
+            return mOp.equals("+") || mOp.equals("-") || mOp.equals("*") || mOp.equals("div")
+                    || mOp.equals("mod");
+        }
+
+        @Override
+        boolean usesPosition() {
+            return mLeft.usesPosition() || mRight.usesPosition();
+        }
+    }
+
+    private static class Negate extends Expr {
+        final Expr mOperand;
+
+        Negate(Expr operand) {
+            mOperand = operand;
+        }
+
+        @Override
+        Object evaluate(XPathEvaluator e, int node, String attribute, int position, int size) {
+            return -e.toNumber(mOperand.evaluate(e, node, attribute, position, size));
+        }
+
+        @Override
+        boolean isNumber() {
+            return true;
+        }
+
+        @Override
+        boolean usesPosition() {
+            return mOperand.usesPosition();
+        }
+    }
+
+    private static class Function extends Expr {
+        // name, minimum and maximum number of arguments (-1 for any), and whether the result
+        // is a number
+        private static final Object[][] FUNCTIONS = {
+            { "last", 0, 0, true }, { "position", 0, 0, true }, { "count", 1, 1, true },
+            { "not", 1, 1, false }, { "true", 0, 0, false }, { "false", 0, 0, false },
+            { "boolean", 1, 1, false }, { "number", 0, 1, true }, { "string", 0, 1, false },
+            { "concat", 2, -1, false }, { "contains", 2, 2, false },
+            { "starts-with", 2, 2, false }, { "string-length", 0, 1, true },
+            { "normalize-space", 0, 1, false }, { "translate", 3, 3, false },
+            { "substring", 2, 3, false }, { "substring-before", 2, 2, false },
+            { "substring-after", 2, 2, false }, { "name", 0, 1, false },
+            { "local-name", 0, 1, false },
+        };
+
+        final String mName;
+        final Expr[] mArgs;
+        private final boolean mNumber;
+
+        Function(String name, List<Expr> args) {
+            Object[] function = null;
+            for (Object[] f : FUNCTIONS) {
+                if (f[0].equals(name)) {
+                    function = f;
+                }
+            }
+            if (function == null) {
+                throw new IllegalArgumentException("Unsupported function " + name + "()");
+            }
+            if (args.size() < (Integer) function[1]
+                    || ((Integer) function[2] >= 0 && args.size() > (Integer) function[2])) {
+                throw new IllegalArgumentException("Wrong number of arguments for " + name
+                        + "()");
+            }
+            mName = name;
+            mArgs = args.toArray(new Expr[args.size()]);
+            mNumber = (Boolean) function[3];
+        }
+
+        @Override
+        Object evaluate(XPathEvaluator e, int node, String attribute, int position, int size) {
+            if (mName.equals("last")) {
+                return (double) size;
+            } else if (mName.equals("position")) {
+                return (double) position;
+            } else if (mName.equals("true")) {
+                return true;
+            } else if (mName.equals("false")) {
+                return false;
+            }
+            Object[] args = new Object[mArgs.length];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = mArgs[i].evaluate(e, node, attribute, position, size);
+            }
+            if (mName.equals("count")) {
+                return (double) nodeSet(args[0]).mSize;
+            } else if (mName.equals("not")) {
+                return !toBoolean(args[0]);
+            } else if (mName.equals("boolean")) {
+                return toBoolean(args[0]);
+            } else if (mName.equals("name") || mName.equals("local-name")) {
+                NodeSet set = args.length > 0 ? nodeSet(args[0]) : NodeSet.of(node, attribute);
+                if (set.mSize == 0) {
+                    return "";
+                }
+                String name = set.getAttribute(0);
+                name = name != null ? name : e.mNames[set.mIds[0]];
+                return name != null ? name : "";
+            }
+            // the rest default to the string value of the context node
+            String s = args.length > 0 ? e.toString(args[0]) : e.stringValue(node, attribute);
+            if (mName.equals("number")) {
+                return args.length > 0 ? e.toNumber(args[0]) : toNumber(s);
+            } else if (mName.equals("string")) {
+                return s;
+            } else if (mName.equals("string-length")) {
+                return (double) s.codePointCount(0, s.length());
+            } else if (mName.equals("normalize-space")) {
+                return s.trim().replaceAll("[ \t\r\n]+", " ");
+            } else if (mName.equals("concat")) {
+                StringBuilder result = new StringBuilder();
+                for (Object arg : args) {
+                    result.append(e.toString(arg));
+                }
+                return result.toString();
+            }
+            String t = e.toString(args[1]);
+            if (mName.equals("contains")) {
+                return s.contains(t);
+            } else if (mName.equals("starts-with")) {
+                return s.startsWith(t);
+            } else if (mName.equals("substring-before")) {
+                int i = s.indexOf(t);
+                return i >= 0 ? s.substring(0, i) : "";
+            } else if (mName.equals("substring-after")) {
+                int i = s.indexOf(t);
+                return i >= 0 ? s.substring(i + t.length()) : "";
+            } else if (mName.equals("translate")) {
+                String to = e.toString(args[2]);
+                StringBuilder result = new StringBuilder(s.length());
+                for (int i = 0; i < s.length(); i++) {
+                    int from = t.indexOf(s.charAt(i));
+                    if (from < 0) {
+                        result.append(s.charAt(i));
+                    } else if (from < to.length()) {
+                        result.append(to.charAt(from));
+                    }
+                }
+                return result.toString();
+            }
+            // substring(), whose positions are rounded and count from 1
+            double start = Math.rint(e.toNumber(args[1]));
+            double end = args.length > 2 ? start + Math.rint(e.toNumber(args[2]))
+                    : Double.POSITIVE_INFINITY;
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < s.length(); i++) {
+                if (i + 1 >= start && i + 1 < end) {
+                    result.append(s.charAt(i));
+                }
+            }
+            return result.toString();
+        }
+
+        private NodeSet nodeSet(Object value) {
+            if (!(value instanceof NodeSet)) {
+                throw new IllegalArgumentException(mName + "() needs a node set");
+            }
+            return (NodeSet) value;
+        }
+
+        @Override
+        boolean isNumber() {
+            return mNumber;
+        }
+
+        @Override
+        boolean usesPosition() {
+            if (mName.equals("last") || mName.equals("position")) {
+                return true;
+            }
+            // the context node is used too, but it is the same whatever the position
+            for (Expr arg : mArgs) {
+                if (arg.usesPosition()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Step {
+        final int mAxis;
+        final int mTest;
+        final String mName;
+        final Expr[] mPredicates;
+        // whether a predicate depends on the position of the nodes
+        final boolean mPositional;
+        // what to look up in the attribute index to find the nodes, if anything
+        String mLookupAttribute;
+        String mLookupValue;
+        int mLookupKind;
+        // an attribute whose value, or a prefix of it, all the nodes selected have, if any
+        String mKeyAttribute;
+        String mKeyValue;
+        int mKeyKind;
+
+        Step(int axis, int test, String name, List<Expr> predicates) {
+            mAxis = axis;
+            mTest = test;
+            mName = name;
+            mPredicates = predicates.toArray(new Expr[predicates.size()]);
+            boolean positional = false;
+            for (Expr predicate : mPredicates) {
+                positional |= predicate.isNumber() || predicate.usesPosition();
+            }
+            mPositional = positional;
+            if (!positional) {
+                for (Expr predicate : mPredicates) {
+                    findConditions(predicate);
+                }
+            }
+        }
+
+        /**
+         * Looks for conditions on attributes that all the nodes selected meet
+         */
+        private void findConditions(Expr predicate) {
+            if (predicate instanceof Binary && ((Binary) predicate).mOp.equals("and")) {
+                findConditions(((Binary) predicate).mLeft);
+                findConditions(((Binary) predicate).mRight);
+            } else if (predicate instanceof Binary && ((Binary) predicate).mOp.equals("=")) {
+                Binary equals = (Binary) predicate;
+                if (!addCondition(AttributeIndex.EXACT, equals.mLeft, equals.mRight)) {
+                    addCondition(AttributeIndex.EXACT, equals.mRight, equals.mLeft);
+                }
+            } else if (predicate instanceof Function) {
+                Function function = (Function) predicate;
+                if (function.mName.equals("contains")) {
+                    addCondition(AttributeIndex.SUBSTRING, function.mArgs[0], function.mArgs[1]);
+                } else if (function.mName.equals("starts-with")) {
+                    addCondition(AttributeIndex.PREFIX, function.mArgs[0], function.mArgs[1]);
+                }
+            }
+        }
+
+        /**
+         * @return whether the condition is one on the value of an attribute
+         */
+        private boolean addCondition(int kind, Expr attribute, Expr value) {
+            if (!(attribute instanceof Path) || !(value instanceof Literal)
+                    || !(((Literal) value).mValue instanceof String)) {
+                return false;
+            }
+            Path path = (Path) attribute;
+            if (path.mFilter != null || path.mAbsolute || path.mSteps.length != 1) {
+                return false;
+            }
+            Step step = path.mSteps[0];
+            if (step.mAxis != ATTRIBUTE || step.mTest != NAME || step.mPredicates.length > 0) {
+                return false;
+            }
+            String literal = (String) ((Literal) value).mValue;
+            // values prefixed with "" include those of nodes without the attribute
+            if ((kind == AttributeIndex.EXACT && (mKeyAttribute == null
+                    || mKeyKind != AttributeIndex.EXACT))
+                    || (kind == AttributeIndex.PREFIX && mKeyAttribute == null
+                    && !literal.isEmpty())) {
+                mKeyKind = kind;
+                mKeyAttribute = step.mName;
+                mKeyValue = literal;
+            }
+            // the index leaves empty values out
+            if (mLookupAttribute == null && !literal.isEmpty()
+                    && (mAxis == DESCENDANT || mAxis == DESCENDANT_OR_SELF)
+                    && Arrays.asList(AttributeIndex.ATTRIBUTES).contains(step.mName)) {
+                mLookupKind = kind;
+                mLookupAttribute = step.mName;
+                mLookupValue = literal;
+            }
+            return true;
+        }
+    }
+
+    private static class Path extends Expr {
+        // what the path starts from, if neither the context node nor the document node
+        final Expr mFilter;
+        final boolean mAbsolute;
+        final Step[] mSteps;
+
+        Path(Expr filter, boolean absolute, List<Step> steps) {
+            mFilter = filter;
+            mAbsolute = absolute;
+            // "//name" is "/descendant-or-self::node()/child::name", which selects the same
+            // nodes as "/descendant::name" unless a predicate depends on the position
+            List<Step> merged = new ArrayList<Step>();
+            for (int i = 0; i < steps.size(); i++) {
+                Step step = steps.get(i);
+                Step next = i + 1 < steps.size() ? steps.get(i + 1) : null;
+                if (step.mAxis == DESCENDANT_OR_SELF && step.mTest == ANY_NODE
+                        && step.mPredicates.length == 0 && next != null
+                        && next.mAxis == CHILD && !next.mPositional) {
+                    merged.add(new Step(DESCENDANT, next.mTest, next.mName,
+                            Arrays.asList(next.mPredicates)));
+                    i++;
+                } else {
+                    merged.add(step);
+                }
+            }
+            mSteps = merged.toArray(new Step[merged.size()]);
+        }
+
+        @Override
+        Object evaluate(XPathEvaluator e, int node, String attribute, int position, int size) {
+            if (mFilter == null && !mAbsolute && mSteps.length == 1 && attribute == null
+                    && mSteps[0].mAxis == ATTRIBUTE && mSteps[0].mTest == NAME
+                    && mSteps[0].mPredicates.length == 0) {
+                // "@name", by far the most common path in predicates
+                BasicTreeNode element = e.mNodes[node];
+                String name = mSteps[0].mName;
+                return element instanceof UiNode && ((UiNode) element).getAttribute(name) != null
+                        ? NodeSet.of(node, name) : new NodeSet(0);
+            }
+            NodeSet set;
+            if (mFilter != null) {
+                Object value = mFilter.evaluate(e, node, attribute, position, size);
+                if (!(value instanceof NodeSet)) {
+                    throw new IllegalArgumentException("Path from a value that isn't a node set");
+                }
+                set = (NodeSet) value;
+            } else if (mAbsolute) {
+                set = NodeSet.of(0, null);
+            } else {
+                set = NodeSet.of(node, attribute);
+            }
+            for (Step step : mSteps) {
+                if (set.mSize == 0) {
+                    break;
+                }
+                set = e.step(set, step);
+            }
+            return set;
+        }
+
+        @Override
+        boolean usesPosition() {
+            return mFilter != null && mFilter.usesPosition();
+        }
+    }
+
+    private static class Filter extends Expr {
+        final Expr mPrimary;
+        final Expr[] mPredicates;
+
+        Filter(Expr primary, List<Expr> predicates) {
+            mPrimary = primary;
+            mPredicates = predicates.toArray(new Expr[predicates.size()]);
+        }
+
+        @Override
+        Object evaluate(XPathEvaluator e, int node, String attribute, int position, int size) {
+            Object value = mPrimary.evaluate(e, node, attribute, position, size);
+            if (!(value instanceof NodeSet)) {
+                throw new IllegalArgumentException("Predicate on a value that isn't a node set");
+            }
+            NodeSet source = (NodeSet) value;
+            NodeSet set = new NodeSet(source.mSize);
+            for (int i = 0; i < source.mSize; i++) {
+                set.add(source.mIds[i], source.getAttribute(i));
+            }
+            for (Expr predicate : mPredicates) {
+                e.filter(set, predicate, false);
+            }
+            return set;
+        }
+
+        @Override
+        boolean usesPosition() {
+            return mPrimary.usesPosition();
+        }
+    }
+
+    /**
+     * Recursive descent parser of the XPath 1.0 grammar
+     */
+    private static class Parser {
+        private static final Map<String, Integer> AXIS_IDS = new HashMap<String, Integer>();
+        static {
+            for (int i = 0; i < AXES.length; i++) {
+                AXIS_IDS.put(AXES[i], i);
+            }
+        }
+
+        private final String mSource;
+        // tokens, with quotes kept around literals; operators that are also names or node
+        // tests are prefixed with '#' once told apart from them
+        private final List<String> mTokens = new ArrayList<String>();
+        private int mPosition;
+
+        Parser(String source) {
+            mSource = source;
+            tokenize();
+        }
+
+        private void tokenize() {
+            int i = 0;
+            while (i < mSource.length()) {
+                char c = mSource.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                if (c == '"' || c == '\'') {
+                    int close = mSource.indexOf(c, i + 1);
+                    if (close < 0) {
+                        throw error("Unterminated string");
+                    }
+                    i = close + 1;
+                } else if (Character.isDigit(c) || (c == '.' && i + 1 < mSource.length()
+                        && Character.isDigit(mSource.charAt(i + 1)))) {
+                    while (i < mSource.length() && (Character.isDigit(mSource.charAt(i))
+                            || mSource.charAt(i) == '.')) {
+                        i++;
+                    }
+                } else if (Character.isLetter(c) || c == '_') {
+                    while (i < mSource.length() && isNameChar(mSource.charAt(i))) {
+                        i++;
+                    }
+                } else if (mSource.startsWith("//", i) || mSource.startsWith("..", i)
+                        || mSource.startsWith("::", i) || mSource.startsWith("!=", i)
+                        || mSource.startsWith("<=", i) || mSource.startsWith(">=", i)) {
+                    i += 2;
+                } else if ("/.()[]@,|+-=<>*".indexOf(c) >= 0) {
+                    i++;
+                } else {
+                    throw error("Unexpected '" + c + "'");
+                }
+                String token = mSource.substring(start, i);
+                // '*' and operator names are operators unless at the start or following '@',
+                // '::', '(', '[', ',' or an operator
+                if (token.equals("*") || token.equals("and") || token.equals("or")
+                        || token.equals("div") || token.equals("mod")) {
+                    String previous = mTokens.isEmpty() ? null : mTokens.get(mTokens.size() - 1);
+                    if (previous != null && !previous.equals("@") && !previous.equals("::")
+                            && !previous.equals("(") && !previous.equals("[")
+                            && !previous.equals(",") && !isOperator(previous)) {
+                        token = "#" + token;
+                    }
+                }
+                mTokens.add(token);
+            }
+        }
+
+        private static boolean isNameChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '_' || c == '$';
+        }
+
+        private static boolean isOperator(String token) {
+            return token.startsWith("#") || token.equals("/") || token.equals("//")
+                    || token.equals("|") || token.equals("+") || token.equals("-")
+                    || token.equals("=") || token.equals("!=") || token.equals("<")
+                    || token.equals("<=") || token.equals(">") || token.equals(">=");
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " in " + mSource);
+        }
+
+        private String peek(int ahead) {
+            int i = mPosition + ahead;
+            return i < mTokens.size() ? mTokens.get(i) : "";
+        }
+
+        private boolean accept(String token) {
+            if (peek(0).equals(token)) {
+                mPosition++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw error("Expected '" + token + "'"
+                        + (peek(0).isEmpty() ? " at the end" : " before '" + peek(0) + "'"));
+            }
+        }
+
+        Expr parse() {
+            if (mTokens.isEmpty()) {
+                throw error("Empty expression");
+            }
+            Expr expr = parseOr();
+            if (mPosition < mTokens.size()) {
+                throw error("Unexpected '" + peek(0) + "'");
+            }
+            return expr;
+        }
+
+        private Expr parseOr() {
+            Expr left = parseAnd();
+            while (accept("#or")) {
+                left = new Binary("or", left, parseAnd());
+            }
+            return left;
+        }
+
+        private Expr parseAnd() {
+            Expr left = parseEquality();
+            while (accept("#and")) {
+                left = new Binary("and", left, parseEquality());
+            }
+            return left;
+        }
+
+        private Expr parseEquality() {
+            Expr left = parseRelational();
+            while (peek(0).equals("=") || peek(0).equals("!=")) {
+                String op = mTokens.get(mPosition++);
+                left = new Binary(op, left, parseRelational());
+            }
+            return left;
+        }
+
+        private Expr parseRelational() {
+            Expr left = parseAdditive();
+            while (peek(0).equals("<") || peek(0).equals("<=") || peek(0).equals(">")
+                    || peek(0).equals(">=")) {
+                String op = mTokens.get(mPosition++);
+                left = new Binary(op, left, parseAdditive());
+            }
+            return left;
+        }
+
+        private Expr parseAdditive() {
+            Expr left = parseMultiplicative();
+            while (peek(0).equals("+") || peek(0).equals("-")) {
+                String op = mTokens.get(mPosition++);
+                left = new Binary(op, left, parseMultiplicative());
+            }
+            return left;
+        }
+
+        private Expr parseMultiplicative() {
+            Expr left = parseUnary();
+            while (peek(0).equals("#*") || peek(0).equals("#div") || peek(0).equals("#mod")) {
+                String op = mTokens.get(mPosition++).substring(1);
+                left = new Binary(op, left, parseUnary());
+            }
+            return left;
+        }
+
+        private Expr parseUnary() {
+            if (accept("-")) {
+                return new Negate(parseUnary());
+            }
+            Expr left = parsePath();
+            while (accept("|")) {
+                left = new Binary("|", left, parsePath());
+            }
+            return left;
+        }
+
+        private Expr parsePath() {
+            String token = peek(0);
+            if (token.equals("/") || token.equals("//")) {
+                List<Step> steps = new ArrayList<Step>();
+                if (accept("/") && !startsStep()) {
+                    return new Path(null, true, steps);
+                }
+                if (accept("//")) {
+                    steps.add(descendantOrSelf());
+                }
+                parseSteps(steps);
+                return new Path(null, true, steps);
+            }
+            if (startsStep()) {
+                List<Step> steps = new ArrayList<Step>();
+                parseSteps(steps);
+                return new Path(null, false, steps);
+            }
+            Expr primary = parsePrimary();
+            List<Expr> predicates = parsePredicates();
+            Expr filter = predicates.isEmpty() ? primary : new Filter(primary, predicates);
+            if (peek(0).equals("/") || peek(0).equals("//")) {
+                List<Step> steps = new ArrayList<Step>();
+                if (accept("//")) {
+                    steps.add(descendantOrSelf());
+                } else {
+                    expect("/");
+                }
+                parseSteps(steps);
+                return new Path(filter, false, steps);
+            }
+            return filter;
+        }
+
+        private boolean startsStep() {
+            String token = peek(0);
+            if (token.equals(".") || token.equals("..") || token.equals("@")
+                    || token.equals("*")) {
+                return true;
+            }
+            if (token.isEmpty() || !(Character.isLetter(token.charAt(0))
+                    || token.charAt(0) == '_')) {
+                return false;
+            }
+            // a name followed by '(' is a function, unless it is a node type
+            return !peek(1).equals("(") || isNodeType(token);
+        }
+
+        private static boolean isNodeType(String name) {
+            return name.equals("node") || name.equals("text") || name.equals("comment")
+                    || name.equals("processing-instruction");
+        }
+
+        private static Step descendantOrSelf() {
+            return new Step(DESCENDANT_OR_SELF, ANY_NODE, null, new ArrayList<Expr>());
+        }
+
+        private void parseSteps(List<Step> steps) {
+            steps.add(parseStep());
+            while (true) {
+                if (accept("/")) {
+                    steps.add(parseStep());
+                } else if (accept("//")) {
+                    steps.add(descendantOrSelf());
+                    steps.add(parseStep());
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private Step parseStep() {
+            if (accept(".")) {
+                return new Step(SELF, ANY_NODE, null, new ArrayList<Expr>());
+            } else if (accept("..")) {
+                return new Step(PARENT, ANY_NODE, null, new ArrayList<Expr>());
+            }
+            int axis = CHILD;
+            if (accept("@")) {
+                axis = ATTRIBUTE;
+            } else if (peek(1).equals("::")) {
+                Integer id = AXIS_IDS.get(peek(0));
+                if (id == null) {
+                    throw error("Unsupported axis " + peek(0));
+                }
+                axis = id;
+                mPosition += 2;
+            }
+            String token = peek(0);
+            int test;
+            String name = null;
+            if (accept("*")) {
+                test = ANY_NAME;
+            } else if (!token.isEmpty() && (Character.isLetter(token.charAt(0))
+                    || token.charAt(0) == '_')) {
+                mPosition++;
+                if (accept("(")) {
+                    if (!isNodeType(token)) {
+                        throw error("Unexpected " + token + "()");
+                    }
+                    if (token.equals("processing-instruction")
+                            && (peek(0).startsWith("'") || peek(0).startsWith("\""))) {
+                        mPosition++;
+                    }
+                    expect(")");
+                    test = token.equals("node") ? ANY_NODE : NO_NODE;
+                } else {
+                    test = NAME;
+                    name = token;
+                }
+            } else {
+                throw error(token.isEmpty() ? "Missing step at the end"
+                        : "Unexpected '" + token + "'");
+            }
+            return new Step(axis, test, name, parsePredicates());
+        }
+
+        private List<Expr> parsePredicates() {
+            List<Expr> predicates = new ArrayList<Expr>();
+            while (accept("[")) {
+                predicates.add(parseOr());
+                expect("]");
+            }
+            return predicates;
+        }
+
+        private Expr parsePrimary() {
+            String token = peek(0);
+            if (accept("(")) {
+                Expr expr = parseOr();
+                expect(")");
+                return expr;
+            } else if (token.startsWith("'") || token.startsWith("\"")) {
+                mPosition++;
+                return new Literal(token.substring(1, token.length() - 1));
+            } else if (!token.isEmpty() && (Character.isDigit(token.charAt(0))
+                    || token.charAt(0) == '.')) {
+                mPosition++;
+                try {
+                    return new Literal(Double.parseDouble(token));
+                } catch (NumberFormatException e) {
+                    throw error("Bad number " + token);
+                }
+            } else if (!token.isEmpty() && Character.isLetter(token.charAt(0))
+                    && peek(1).equals("(")) {
+                mPosition += 2;
+                List<Expr> args = new ArrayList<Expr>();
+                if (!accept(")")) {
+                    do {
+                        args.add(parseOr());
+                    } while (accept(","));
+                    expect(")");
+                }
+                return new Function(token, args);
+            }
+            throw error(token.isEmpty() ? "Unexpected end" : "Unexpected '" + token + "'");
+        }
+    }
+}
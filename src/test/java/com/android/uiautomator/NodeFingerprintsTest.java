@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.android.uiautomator.tree.BasicTreeNode;
+import com.android.uiautomator.tree.UiHierarchyXmlLoader;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+public class NodeFingerprintsTest {
+
+    private static String node(int x, int y, int width, int height) {
+        return String.format("<node index=\"0\" text=\"\" class=\"android.view.View\" "
+                + "bounds=\"[%d,%d][%d,%d]\" />", x, y, x + width, y + height);
+    }
+
+    private static BasicTreeNode load(String... nodes) throws Exception {
+        StringBuilder xml = new StringBuilder("<hierarchy rotation=\"0\">");
+        xml.append("<node index=\"0\" text=\"\" class=\"android.widget.FrameLayout\" "
+                + "bounds=\"[0,0][64,64]\">");
+        for (String node : nodes) {
+            xml.append(node);
+        }
+        xml.append("</node></hierarchy>");
+        File file = File.createTempFile("dump", ".xml");
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(xml.toString());
+        } finally {
+            writer.close();
+        }
+        return new UiHierarchyXmlLoader().parseXml(file.getPath());
+    }
+
+    /**
+     * @return a 64 by 64 image whose brightness changes from column to column, unevenly
+     */
+    private static ImageData createImage() {
+        ImageData image = new ImageData(64, 64, 24, new PaletteData(0xFF0000, 0xFF00, 0xFF));
+        for (int y = 0; y < image.height; y++) {
+            for (int x = 0; x < image.width; x++) {
+                int gray = x * x % 251;
+                image.setPixel(x, y, gray << 16 | gray << 8 | gray);
+            }
+        }
+        return image;
+    }
+
+    @Test
+    public void testSmallNodes() throws Exception {
+        BasicTreeNode root = load(node(0, 0, 8, 8), node(10, 0, 9, 8), node(20, 0, 9, 7));
+        NodeFingerprints fingerprints = NodeFingerprints.compute(createImage(), root);
+        // the frame and the 9 by 8 node, which has a pixel for each cell
+        assertEquals(2, fingerprints.size());
+        BasicTreeNode frame = root.getChildren()[0];
+        assertEquals(-1, fingerprints.getId(frame.getChildren()[0]));
+        assertEquals(1, fingerprints.getId(frame.getChildren()[1]));
+        assertEquals(-1, fingerprints.getId(frame.getChildren()[2]));
+    }
+
+    @Test
+    public void testFind() throws Exception {
+        // the first and the last nodes cover the same columns, so they look the same
+        BasicTreeNode root = load(node(0, 0, 16, 16), node(24, 20, 16, 16), node(0, 40, 16, 16));
+        NodeFingerprints fingerprints = NodeFingerprints.compute(createImage(), root);
+        assertEquals(4, fingerprints.size());
+        assertArrayEquals(new int[] { 1, 3 }, fingerprints.find(fingerprints.getFingerprint(1),
+                0));
+    }
+}
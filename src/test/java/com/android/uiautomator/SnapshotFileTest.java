@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.uiautomator.tree.BasicTreeNode;
+import com.android.uiautomator.tree.HierarchyStore;
+import com.android.uiautomator.tree.StringPool;
+import com.android.uiautomator.tree.UiHierarchyXmlLoader;
+import com.android.uiautomator.tree.UiNode;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class SnapshotFileTest {
+
+    private static File createTempFile(String suffix) throws Exception {
+        File file = File.createTempFile("snapshot", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static BasicTreeNode loadHierarchy() throws Exception {
+        StringBuilder xml = new StringBuilder("<hierarchy rotation=\"0\">");
+        xml.append("<node index=\"0\" text=\"\" class=\"android.widget.FrameLayout\" "
+                + "bounds=\"[0,0][720,1600]\">");
+        for (int i = 0; i < 50; i++) {
+            xml.append(String.format("<node index=\"%d\" text=\"item %d\" "
+                    + "resource-id=\"com.example:id/item\" class=\"android.widget.TextView\" "
+                    + "clickable=\"true\" bounds=\"[0,%d][720,%d]\" />", i, i, i * 32,
+                    i * 32 + 32));
+        }
+        xml.append("</node></hierarchy>");
+        File file = createTempFile(".xml");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(xml.toString());
+        } finally {
+            writer.close();
+        }
+        return new UiHierarchyXmlLoader().parseXml(file.getPath());
+    }
+
+    /**
+     * @return the attributes and the number of children of each node, in pre-order
+     */
+    private static List<String> describe(BasicTreeNode root) {
+        final List<String> nodes = new ArrayList<String>();
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                String attributes = node instanceof UiNode
+                        ? ((UiNode) node).getAttributes().toString() : node.toString();
+                nodes.add(attributes + " " + node.getChildCount() + " " + node.x + ","
+                        + node.y + "," + node.width + "," + node.height);
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        return nodes;
+    }
+
+    /**
+     * @return a screen sized image of flat bands with some noise, like a screenshot
+     */
+    private static ImageData createImage() {
+        ImageData image = new ImageData(720, 1600, 24, new PaletteData(0xFF0000, 0xFF00, 0xFF));
+        Random random = new Random(1);
+        for (int y = 0; y < image.height; y++) {
+            int band = y / 32 % 2 == 0 ? 0xFFFFFF : 0xEEEEEE;
+            for (int x = 0; x < image.width; x++) {
+                image.setPixel(x, y, random.nextInt(50) == 0 ? random.nextInt() & 0xFFFFFF
+                        : band);
+            }
+        }
+        return image;
+    }
+
+    private static void assertSameImage(ImageData expected, ImageData actual) {
+        assertEquals(expected.width, actual.width);
+        assertEquals(expected.height, actual.height);
+        assertEquals(expected.depth, actual.depth);
+        assertEquals(expected.scanlinePad, actual.scanlinePad);
+        assertEquals(expected.transparentPixel, actual.transparentPixel);
+        assertEquals(expected.alpha, actual.alpha);
+        assertEquals(expected.palette.isDirect, actual.palette.isDirect);
+        assertArrayEquals(expected.palette.getRGBs(), actual.palette.getRGBs());
+        assertArrayEquals(expected.alphaData, actual.alphaData);
+        assertArrayEquals(expected.data, actual.data);
+    }
+
+    private static void roundTrip(File file, ImageData image, BasicTreeNode root)
+            throws Exception {
+        SnapshotFile.write(file, image, HierarchyStore.copyOf(root, new StringPool()));
+        SnapshotFile snapshot = SnapshotFile.read(file);
+        assertSameImage(image, snapshot.getImageData());
+        assertEquals(describe(root), describe(snapshot.getStore().getRootNode()));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ImageData image = createImage();
+        File file = createTempFile("." + SnapshotFile.EXTENSION);
+        roundTrip(file, image, loadHierarchy());
+        // the pixels are stored deflated
+        assertTrue(file.length() + " bytes", file.length() < image.data.length / 4);
+    }
+
+    @Test
+    public void testRoundTripPaletteAndAlpha() throws Exception {
+        RGB[] colors = { new RGB(0, 0, 0), new RGB(255, 0, 0), new RGB(0, 0, 255) };
+        ImageData image = new ImageData(33, 17, 8, new PaletteData(colors));
+        image.alphaData = new byte[image.width * image.height];
+        for (int i = 0; i < image.data.length; i++) {
+            image.data[i] = (byte) (i % 3);
+        }
+        for (int i = 0; i < image.alphaData.length; i++) {
+            image.alphaData[i] = (byte) (i * 7);
+        }
+        image.transparentPixel = 2;
+        roundTrip(createTempFile("." + SnapshotFile.EXTENSION), image, loadHierarchy());
+    }
+
+    @Test
+    public void testCorrupt() throws Exception {
+        File file = createTempFile("." + SnapshotFile.EXTENSION);
+        SnapshotFile.write(file, createImage(),
+                HierarchyStore.copyOf(loadHierarchy(), new StringPool()));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+        try {
+            SnapshotFile.read(file);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
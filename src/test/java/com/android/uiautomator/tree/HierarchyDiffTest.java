@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * Checks the nodes HierarchyDiff reports, for single edits of a small screen and for many
+ * edits of a generated one
+ */
+public class HierarchyDiffTest {
+
+    private static String node(String className, String id, String text, String... children) {
+        StringBuilder xml = new StringBuilder();
+        xml.append(String.format("<node index=\"0\" text=\"%s\" resource-id=\"%s\" "
+                + "class=\"android.widget.%s\" content-desc=\"\" bounds=\"[0,0][100,100]\"",
+                text, id, className));
+        if (children.length == 0) {
+            return xml.append(" />").toString();
+        }
+        xml.append('>');
+        for (String child : children) {
+            xml.append(child);
+        }
+        return xml.append("</node>").toString();
+    }
+
+    private static BasicTreeNode screen(String... children) throws Exception {
+        StringBuilder xml = new StringBuilder("<hierarchy rotation=\"0\">");
+        xml.append(node("FrameLayout", "root", "", children));
+        xml.append("</hierarchy>");
+        return TestDumps.load(TestDumps.write(xml.toString()));
+    }
+
+    private static String list(String... items) {
+        return node("LinearLayout", "list", "", items);
+    }
+
+    private static String item(String id, String text) {
+        return node("TextView", id, text);
+    }
+
+    private static String bar(String... buttons) {
+        return node("LinearLayout", "bar", "", buttons);
+    }
+
+    private static final String OK = node("Button", "ok", "OK");
+    private static final String CANCEL = node("Button", "cancel", "Cancel");
+
+    private static BasicTreeNode original() throws Exception {
+        return screen(list(item("a", "A"), item("b", "B"), item("c", "C")), bar(OK, CANCEL));
+    }
+
+    private static UiNode find(BasicTreeNode root, String id) {
+        for (UiNode node : TestDumps.getNodes(root)) {
+            if (id.equals(node.getAttribute("resource-id"))) {
+                return node;
+            }
+        }
+        throw new IllegalArgumentException(id);
+    }
+
+    private static List<BasicTreeNode> nodes(BasicTreeNode root, String... ids) {
+        List<BasicTreeNode> nodes = new ArrayList<BasicTreeNode>();
+        for (String id : ids) {
+            nodes.add(find(root, id));
+        }
+        return nodes;
+    }
+
+    private static final List<BasicTreeNode> NONE = Collections.emptyList();
+
+    @Test
+    public void testIdentical() throws Exception {
+        BasicTreeNode oldRoot = original();
+        BasicTreeNode newRoot = original();
+        HierarchyDiff diff = HierarchyDiff.compute(oldRoot, newRoot);
+        assertTrue(diff.isEmpty());
+        List<UiNode> oldNodes = TestDumps.getNodes(oldRoot);
+        List<UiNode> newNodes = TestDumps.getNodes(newRoot);
+        for (int i = 0; i < newNodes.size(); i++) {
+            assertSame(oldNodes.get(i), diff.getOldNode(newNodes.get(i)));
+        }
+    }
+
+    @Test
+    public void testChanged() throws Exception {
+        BasicTreeNode newRoot =
+                screen(list(item("a", "A"), item("b", "B2"), item("c", "C")), bar(OK, CANCEL));
+        HierarchyDiff diff = HierarchyDiff.compute(original(), newRoot);
+        assertEquals(nodes(newRoot, "b"), diff.getChanged());
+        assertEquals(NONE, diff.getInserted());
+        assertEquals(NONE, diff.getRemoved());
+        assertEquals(NONE, diff.getMoved());
+    }
+
+    @Test
+    public void testInserted() throws Exception {
+        BasicTreeNode newRoot = screen(list(item("a", "A"), item("b", "B"), item("d", "D"),
+                item("c", "C")), bar(OK, CANCEL));
+        HierarchyDiff diff = HierarchyDiff.compute(original(), newRoot);
+        assertEquals(nodes(newRoot, "d"), diff.getInserted());
+        assertNull(diff.getOldNode(find(newRoot, "d")));
+        assertEquals(NONE, diff.getRemoved());
+        assertEquals(NONE, diff.getMoved());
+        assertEquals(NONE, diff.getChanged());
+    }
+
+    @Test
+    public void testRemoved() throws Exception {
+        BasicTreeNode oldRoot = original();
+        BasicTreeNode newRoot = screen(list(item("a", "A"), item("b", "B"), item("c", "C")));
+        HierarchyDiff diff = HierarchyDiff.compute(oldRoot, newRoot);
+        assertEquals(nodes(oldRoot, "bar", "ok", "cancel"), diff.getRemoved());
+        assertEquals(NONE, diff.getInserted());
+        assertEquals(NONE, diff.getMoved());
+        assertEquals(NONE, diff.getChanged());
+    }
+
+    @Test
+    public void testReordered() throws Exception {
+        BasicTreeNode oldRoot = original();
+        BasicTreeNode newRoot =
+                screen(list(item("a", "A"), item("b", "B"), item("c", "C")), bar(CANCEL, OK));
+        HierarchyDiff diff = HierarchyDiff.compute(oldRoot, newRoot);
+        assertEquals(1, diff.getMoved().size());
+        assertTrue(nodes(newRoot, "ok", "cancel").containsAll(diff.getMoved()));
+        assertSame(find(oldRoot, "ok"), diff.getOldNode(find(newRoot, "ok")));
+        assertSame(find(oldRoot, "cancel"), diff.getOldNode(find(newRoot, "cancel")));
+        assertEquals(NONE, diff.getInserted());
+        assertEquals(NONE, diff.getRemoved());
+        assertEquals(NONE, diff.getChanged());
+    }
+
+    @Test
+    public void testMovedToAnotherParent() throws Exception {
+        BasicTreeNode oldRoot = original();
+        BasicTreeNode newRoot =
+                screen(list(item("a", "A"), item("b", "B"), item("c", "C"), OK), bar(CANCEL));
+        HierarchyDiff diff = HierarchyDiff.compute(oldRoot, newRoot);
+        assertEquals(nodes(newRoot, "ok"), diff.getMoved());
+        assertSame(find(oldRoot, "ok"), diff.getOldNode(find(newRoot, "ok")));
+        assertEquals(NONE, diff.getInserted());
+        assertEquals(NONE, diff.getRemoved());
+        assertEquals(NONE, diff.getChanged());
+    }
+
+    /**
+     * Changes the text of some nodes of a generated dump, adds a child to others, and removes
+     * some leaves, each edit on a node of its own
+     */
+    @Test
+    public void testMutations() throws Exception {
+        File dump = TestDumps.generate(3000, 7);
+        Document document =
+                DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(dump);
+        NodeList list = document.getElementsByTagName("node");
+        List<Element> elements = new ArrayList<Element>();
+        for (int i = 0; i < list.getLength(); i++) {
+            elements.add((Element) list.item(i));
+        }
+        Collections.shuffle(elements.subList(1, elements.size()), new Random(7));
+        Set<String> changedTexts = new HashSet<String>();
+        int inserted = 0;
+        int removed = 0;
+        for (int i = 1; i <= 150; i++) {
+            Element element = elements.get(i);
+            if (i % 3 == 0) {
+                element.setAttribute("text", "changed" + i);
+                changedTexts.add("changed" + i);
+            } else if (i % 3 == 1) {
+                Element child = document.createElement("node");
+                child.setAttribute("class", "android.widget.Inserted");
+                child.setAttribute("text", "inserted" + i);
+                child.setAttribute("bounds", "[0,0][10,10]");
+                element.appendChild(child);
+                inserted++;
+            } else if (element.getElementsByTagName("node").getLength() == 0) {
+                element.getParentNode().removeChild(element);
+                removed++;
+            }
+        }
+        StringWriter xml = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document),
+                new StreamResult(xml));
+
+        BasicTreeNode oldRoot = TestDumps.load(dump);
+        BasicTreeNode newRoot = TestDumps.load(TestDumps.write(xml.toString()));
+        HierarchyDiff diff = HierarchyDiff.compute(oldRoot, newRoot);
+        List<BasicTreeNode> expectedInserted = new ArrayList<BasicTreeNode>();
+        List<BasicTreeNode> expectedChanged = new ArrayList<BasicTreeNode>();
+        for (UiNode node : TestDumps.getNodes(newRoot)) {
+            if ("android.widget.Inserted".equals(node.getAttribute("class"))) {
+                expectedInserted.add(node);
+            } else if (changedTexts.contains(node.getAttribute("text"))) {
+                expectedChanged.add(node);
+            }
+        }
+        assertEquals(inserted, expectedInserted.size());
+        assertEquals(expectedInserted, diff.getInserted());
+        assertEquals(expectedChanged, diff.getChanged());
+        assertEquals(removed, diff.getRemoved().size());
+        assertEquals(NONE, diff.getMoved());
+
+        // every other node is matched with a distinct node of the old tree
+        Set<BasicTreeNode> matched = new HashSet<BasicTreeNode>();
+        for (UiNode node : TestDumps.getNodes(newRoot)) {
+            BasicTreeNode oldNode = diff.getOldNode(node);
+            if (!expectedInserted.contains(node)) {
+                assertTrue(matched.add(oldNode));
+            }
+        }
+        assertEquals(TestDumps.getNodes(oldRoot).size() - removed, matched.size());
+    }
+
+    @Test
+    public void testLoaderModes() throws Exception {
+        File dump = TestDumps.generate(3000, 7);
+        BasicTreeNode root = TestDumps.load(dump);
+        for (UiHierarchyXmlLoader.Mode mode : UiHierarchyXmlLoader.Mode.values()) {
+            BasicTreeNode loaded = new UiHierarchyXmlLoader(mode).parseXml(dump.getPath());
+            assertTrue(mode.toString(), HierarchyDiff.compute(root, loaded).isEmpty());
+        }
+    }
+}
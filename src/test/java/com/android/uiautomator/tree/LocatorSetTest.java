@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that matching a set of locators gives the same counts as evaluating each of them on
+ * its own
+ */
+public class LocatorSetTest {
+
+    /**
+     * @return locators of the shapes tests use, built from the values of random nodes
+     */
+    private static List<String> generateLocators(List<UiNode> nodes, int count, long seed) {
+        Random random = new Random(seed);
+        List<String> locators = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            UiNode node = nodes.get(random.nextInt(nodes.size()));
+            String className = node.getAttribute("class");
+            String id = node.getAttribute("resource-id");
+            String text = node.getAttribute("text");
+            String part = text.length() > 3 ? text.substring(1, 4) : "a";
+            switch (i % 12) {
+                case 0:
+                    locators.add("//*[@resource-id='" + id + "']");
+                    break;
+                case 1:
+                    locators.add("//" + className + "[@text='" + text + "']");
+                    break;
+                case 2:
+                    locators.add("//*[@resource-id='" + id + "' and @clickable='true']");
+                    break;
+                case 3:
+                    locators.add("//" + className + "[contains(@text,'" + part + "')]");
+                    break;
+                case 4:
+                    locators.add("//*[@resource-id='" + id + "']/*[1]");
+                    break;
+                case 5:
+                    locators.add("(//" + className + ")[" + (1 + random.nextInt(20)) + "]");
+                    break;
+                case 6:
+                    locators.add("//*[@resource-id='" + id + "']//*[@text!='']");
+                    break;
+                case 7:
+                    locators.add("//*[starts-with(@resource-id,'" + id + "')]");
+                    break;
+                case 8:
+                    locators.add("//*[@text='nope" + i + "']");
+                    break;
+                case 9:
+                    locators.add("//" + className + "[@index='" + random.nextInt(3) + "']/..");
+                    break;
+                case 10:
+                    locators.add("//*[@text='" + text + "' or @resource-id='" + id + "']");
+                    break;
+                default:
+                    locators.add(i % 24 == 11 ? "//*[@text='" : "//*[@text=");
+            }
+        }
+        return locators;
+    }
+
+    private static List<String> getNames(int count) {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            names.add("locator " + i);
+        }
+        return names;
+    }
+
+    private static void assertMatchesEvaluator(LocatorSet set, BasicTreeNode root) {
+        LocatorSet.Result result = set.match(root);
+        XPathEvaluator evaluator = new XPathEvaluator(root, null);
+        for (int i = 0; i < set.size(); i++) {
+            String locator = set.getLocator(i);
+            int expected;
+            try {
+                expected = evaluator.evaluate(locator).size();
+            } catch (IllegalArgumentException e) {
+                expected = -1;
+            }
+            assertEquals(locator, expected, result.getCount(i));
+            if (expected < 0) {
+                assertNotNull(locator, result.getError(i));
+            } else {
+                assertNull(locator, result.getError(i));
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesEvaluator() throws Exception {
+        BasicTreeNode root = TestDumps.load(TestDumps.generate(3000, 42));
+        List<String> locators = generateLocators(TestDumps.getNodes(root), 600, 42);
+        assertMatchesEvaluator(new LocatorSet(getNames(locators.size()), locators), root);
+    }
+
+    @Test
+    public void testMatchesSeveralHierarchies() throws Exception {
+        BasicTreeNode first = TestDumps.load(TestDumps.generate(2000, 1));
+        BasicTreeNode second = TestDumps.load(TestDumps.generate(2000, 2));
+        // locators from both, so that some only match one of the hierarchies
+        List<String> locators = generateLocators(TestDumps.getNodes(first), 200, 1);
+        locators.addAll(generateLocators(TestDumps.getNodes(second), 200, 2));
+        LocatorSet set = new LocatorSet(getNames(locators.size()), locators);
+        assertMatchesEvaluator(set, first);
+        assertMatchesEvaluator(set, second);
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        File file = TestDumps.write("# comment\n"
+                + "\n"
+                + "ok\t//*[@text='a']\n"
+                + "  //android.widget.Button  \n");
+        LocatorSet set = LocatorSet.read(file);
+        assertEquals(2, set.size());
+        assertEquals(Arrays.asList("ok", "line 4"),
+                Arrays.asList(set.getName(0), set.getName(1)));
+        assertEquals(Arrays.asList("//*[@text='a']", "//android.widget.Button"),
+                Arrays.asList(set.getLocator(0), set.getLocator(1)));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SnapshotArchiveTest {
+
+    /**
+     * @return the attributes and the number of children of each node, in pre-order
+     */
+    private static List<String> describe(BasicTreeNode root) {
+        final List<String> nodes = new ArrayList<String>();
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                String attributes = node instanceof UiNode
+                        ? ((UiNode) node).getAttributes().toString() : node.toString();
+                nodes.add(attributes + " " + node.getChildCount());
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        return nodes;
+    }
+
+    private static File createArchive(BasicTreeNode first, BasicTreeNode second,
+            byte[] screenshot) throws IOException {
+        File file = File.createTempFile("snapshots", ".uixa");
+        file.delete();
+        file.deleteOnExit();
+        SnapshotArchive archive = SnapshotArchive.open(file);
+        try {
+            archive.add("first", screenshot, first);
+            archive.add("second", null, second);
+        } finally {
+            archive.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void testReadOnlyRoundTrip() throws Exception {
+        BasicTreeNode first = TestDumps.load(TestDumps.generate(2000, 1));
+        BasicTreeNode second = TestDumps.load(TestDumps.generate(2000, 2));
+        byte[] screenshot = { (byte) 0x89, 'P', 'N', 'G', 1, 2, 3 };
+        File file = createArchive(first, second, screenshot);
+        long length = file.length();
+
+        SnapshotArchive archive = SnapshotArchive.openReadOnly(file);
+        try {
+            List<SnapshotArchive.Entry> entries = archive.getEntries();
+            assertEquals(2, entries.size());
+            assertEquals("first", entries.get(0).getName());
+            StringPool pool = new StringPool();
+            assertEquals(describe(first),
+                    describe(archive.readHierarchy(entries.get(0), pool).getRootNode()));
+            assertEquals(describe(second),
+                    describe(archive.readHierarchy(entries.get(1), pool).getRootNode()));
+            assertArrayEquals(screenshot, archive.readScreenshot(entries.get(0)));
+            assertNull(archive.readScreenshot(entries.get(1)));
+            try {
+                archive.add("third", null, first);
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            archive.close();
+        }
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void testReadOnlyKeepsPartialAppend() throws Exception {
+        BasicTreeNode root = TestDumps.load(TestDumps.generate(500, 3));
+        File file = createArchive(root, root, null);
+        long length = file.length();
+        // the start of a record another process is still appending
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[] { 4, 1, 2, 3 });
+        } finally {
+            out.close();
+        }
+
+        SnapshotArchive archive = SnapshotArchive.openReadOnly(file);
+        try {
+            assertEquals(2, archive.getEntries().size());
+        } finally {
+            archive.close();
+        }
+        assertEquals(length + 4, file.length());
+
+        // the writer drops it
+        SnapshotArchive.open(file).close();
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void testReadOnlyEmptyFile() throws Exception {
+        File file = File.createTempFile("empty", ".uixa");
+        file.deleteOnExit();
+        try {
+            SnapshotArchive.openReadOnly(file).close();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, file.length());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Dumps of random hierarchies for tests, the same for the same seed
+ */
+class TestDumps {
+
+    private static final String[] CLASSES = {
+        "android.widget.FrameLayout",
+        "android.widget.LinearLayout",
+        "android.widget.TextView",
+        "android.widget.ImageView",
+        "androidx.recyclerview.widget.RecyclerView",
+        "android.view.ViewGroup",
+        "android.widget.Button",
+    };
+
+    private static final int MAX_DEPTH = 40;
+    private static final int TEXT_LENGTH = 12;
+
+    private final Random mRandom;
+    private final int mSize;
+    private final StringBuilder mXml = new StringBuilder();
+    private int mCount;
+
+    private TestDumps(int size, long seed) {
+        mSize = size;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Writes a dump of about <code>size</code> nodes to a temporary file
+     */
+    static File generate(int size, long seed) throws IOException {
+        TestDumps dumps = new TestDumps(size, seed);
+        dumps.mXml.append("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>");
+        dumps.mXml.append("<hierarchy rotation=\"0\">");
+        dumps.appendNode(0, 0, 0, 1440, 3200, 0);
+        dumps.mXml.append("</hierarchy>");
+        return write(dumps.mXml.toString());
+    }
+
+    /**
+     * Writes the xml to a temporary file
+     */
+    static File write(String xml) throws IOException {
+        File file = File.createTempFile("dump", ".xml");
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(xml);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    static BasicTreeNode load(File dump) {
+        return new UiHierarchyXmlLoader().parseXml(dump.getPath());
+    }
+
+    /**
+     * @return the UiNodes of the tree, in pre-order
+     */
+    static List<UiNode> getNodes(BasicTreeNode root) {
+        final List<UiNode> nodes = new ArrayList<UiNode>();
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                if (node instanceof UiNode) {
+                    nodes.add((UiNode) node);
+                }
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        return nodes;
+    }
+
+    private void appendNode(int index, int x, int y, int width, int height, int depth) {
+        mCount++;
+        StringBuilder text = new StringBuilder();
+        if (mRandom.nextBoolean()) {
+            for (int i = 0; i < TEXT_LENGTH; i++) {
+                text.append((char) ('a' + mRandom.nextInt(26)));
+            }
+        }
+        mXml.append(String.format("<node index=\"%d\" text=\"%s\" "
+                + "resource-id=\"com.example:id/v%d\" class=\"%s\" package=\"com.example.app\" "
+                + "content-desc=\"\" checkable=\"false\" checked=\"false\" clickable=\"%b\" "
+                + "enabled=\"true\" focusable=\"false\" focused=\"false\" scrollable=\"false\" "
+                + "long-clickable=\"false\" password=\"false\" selected=\"false\" "
+                + "bounds=\"[%d,%d][%d,%d]\"", index, text, mRandom.nextInt(200),
+                CLASSES[mRandom.nextInt(CLASSES.length)], mRandom.nextBoolean(), x, y,
+                x + width, y + height));
+        int children = mCount < mSize && depth < MAX_DEPTH
+                ? (depth < 3 ? 4 : mRandom.nextInt(4)) : 0;
+        if (children == 0) {
+            mXml.append(" />");
+            return;
+        }
+        mXml.append('>');
+        int childHeight = Math.max(1, height / children);
+        for (int i = 0; i < children && mCount < mSize; i++) {
+            appendNode(i, x, y + i * childHeight, Math.max(1, width - 2), childHeight,
+                    depth + 1);
+        }
+        mXml.append("</node>");
+    }
+}
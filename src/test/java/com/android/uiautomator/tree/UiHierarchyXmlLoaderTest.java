@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the pull parser based modes load the same trees as the SAX parser, and reject
+ * the same malformed dumps
+ */
+public class UiHierarchyXmlLoaderTest {
+
+    private static final UiHierarchyXmlLoader.Mode[] PULL_MODES = {
+        UiHierarchyXmlLoader.Mode.STREAMING,
+        UiHierarchyXmlLoader.Mode.COLUMNAR,
+        UiHierarchyXmlLoader.Mode.MAPPED,
+    };
+
+    /**
+     * @return the type, attributes and number of children of each node, in pre-order
+     */
+    private static List<String> describe(BasicTreeNode root) {
+        final List<String> nodes = new ArrayList<String>();
+        root.accept(new BasicTreeNode.TreeVisitorAdapter() {
+            @Override
+            public BasicTreeNode.VisitResult preVisit(BasicTreeNode node) {
+                String attributes = node instanceof UiNode
+                        ? ((UiNode) node).getAttributes().toString() : node.toString();
+                nodes.add(node.getClass().getSimpleName() + " " + attributes + " "
+                        + node.getChildCount() + " " + node.x + "," + node.y + ","
+                        + node.width + "," + node.height);
+                return BasicTreeNode.VisitResult.CONTINUE;
+            }
+        });
+        return nodes;
+    }
+
+    private static BasicTreeNode load(UiHierarchyXmlLoader.Mode mode, File dump) {
+        return new UiHierarchyXmlLoader(mode).parseXml(dump.getPath());
+    }
+
+    private static void assertSameAsSax(File dump) {
+        BasicTreeNode expected = load(UiHierarchyXmlLoader.Mode.SAX, dump);
+        assertNotNull(expected);
+        for (UiHierarchyXmlLoader.Mode mode : PULL_MODES) {
+            BasicTreeNode root = load(mode, dump);
+            assertNotNull(mode.toString(), root);
+            assertEquals(mode.toString(), describe(expected), describe(root));
+        }
+    }
+
+    private static void assertRejected(String xml) throws Exception {
+        File dump = TestDumps.write(xml);
+        assertNull(xml, load(UiHierarchyXmlLoader.Mode.SAX, dump));
+        for (UiHierarchyXmlLoader.Mode mode : PULL_MODES) {
+            assertNull(mode + " " + xml, load(mode, dump));
+        }
+    }
+
+    @Test
+    public void testGeneratedDumps() throws Exception {
+        for (long seed = 1; seed <= 3; seed++) {
+            assertSameAsSax(TestDumps.generate(2000, seed));
+        }
+    }
+
+    @Test
+    public void testEntities() throws Exception {
+        assertSameAsSax(TestDumps.write("<?xml version='1.0' encoding='UTF-8' ?>"
+                + "<hierarchy rotation=\"0\" windowName=\"a &amp; b\">"
+                + "<node index=\"0\" text=\"&lt;b&gt; &amp;amp; &quot;q&quot; &apos;s&apos;\" "
+                + "class=\"android.widget.TextView\" content-desc='&#65;&#x42;&#x1F600;&#10;|' "
+                + "resource-id=\"tab\there\r\nline\rend\" bounds=\"[0,0][10,10]\">"
+                + "<!-- a comment --><![CDATA[ <node> ]]>"
+                + "<node index=\"1\" text=\"é中 &#233;\" class=\"x\" bounds=\"[1,1][2,2]\" />"
+                + "</node></hierarchy>"));
+    }
+
+    @Test
+    public void testMappedDumpRewritten() throws Exception {
+        File dump = TestDumps.generate(2000, 5);
+        BasicTreeNode root = load(UiHierarchyXmlLoader.Mode.MAPPED, dump);
+        List<String> expected = describe(load(UiHierarchyXmlLoader.Mode.SAX, dump));
+        // the next capture written over it, shorter than the one loaded
+        Files.write(dump.toPath(), Files.readAllBytes(TestDumps.generate(10, 6).toPath()));
+        assertEquals(expected, describe(root));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        String xml = new String(Files.readAllBytes(TestDumps.generate(300, 4).toPath()),
+                "UTF-8");
+        for (int i = 1; i < 10; i++) {
+            assertRejected(xml.substring(0, xml.length() * i / 10));
+        }
+        assertRejected(xml.substring(0, xml.length() - 1));
+        assertRejected(xml.substring(0, xml.lastIndexOf("</hierarchy>")));
+    }
+
+    @Test
+    public void testMalformed() throws Exception {
+        String node = "<node index=\"0\" text=\"\" class=\"c\" bounds=\"[0,0][1,1]\"";
+        assertRejected("");
+        assertRejected("<?xml version='1.0' ?>");
+        assertRejected("<hierarchy>" + node + "></nod></hierarchy>");
+        assertRejected("<hierarchy>" + node + "></hierarchy></node>");
+        assertRejected("<hierarchy>" + node + " /></node></hierarchy>");
+        assertRejected("<hierarchy>" + node + " /></hierarchy><hierarchy></hierarchy>");
+        assertRejected("<hierarchy>" + node + " />");
+        assertRejected("<hierarchy><node text=\"&foo;\" /></hierarchy>");
+        assertRejected("<hierarchy><node text=\"a & b\" /></hierarchy>");
+        assertRejected("<hierarchy><node text=\"&#0;\" /></hierarchy>");
+        assertRejected("<hierarchy><node text=\"a < b\" /></hierarchy>");
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.uiautomator.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+
+/**
+ * Checks XPathEvaluator, with and without an attribute index, against javax.xml.xpath over a
+ * document that mirrors the tree: an element named after the class of each node, with its
+ * attributes, under a hierarchy element
+ */
+public class XPathEvaluatorTest {
+
+    private static BasicTreeNode sRoot;
+    private static List<UiNode> sNodes;
+    private static Document sDocument;
+    private static final Map<Node, BasicTreeNode> sMirrored = new HashMap<Node, BasicTreeNode>();
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        sRoot = TestDumps.load(TestDumps.generate(3000, 42));
+        sNodes = TestDumps.getNodes(sRoot);
+        sDocument = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element hierarchy = sDocument.createElement("hierarchy");
+        sDocument.appendChild(hierarchy);
+        mirror(hierarchy, sRoot);
+    }
+
+    private static void mirror(Element parent, BasicTreeNode node) {
+        for (BasicTreeNode child : node.getChildren()) {
+            UiNode uiNode = (UiNode) child;
+            Element element = sDocument.createElement(uiNode.getNodeClassAttribute());
+            for (Map.Entry<String, String> attribute : uiNode.getAttributes().entrySet()) {
+                element.setAttribute(attribute.getKey(), attribute.getValue());
+            }
+            sMirrored.put(element, child);
+            parent.appendChild(element);
+            mirror(element, child);
+        }
+    }
+
+    @Test
+    public void testMatchesJdk() throws Exception {
+        String id = sNodes.get(sNodes.size() / 3).getAttribute("resource-id");
+        String text = null;
+        for (int i = sNodes.size() / 2; text == null; i++) {
+            if (!sNodes.get(i).getAttribute("text").isEmpty()) {
+                text = sNodes.get(i).getAttribute("text");
+            }
+        }
+        // the JDK refuses expressions of more than 100 operators, each step takes a few
+        UiNode node = null;
+        for (int i = sNodes.size() / 2; node == null; i--) {
+            if (sNodes.get(i).getXpath().split("/").length <= 20) {
+                node = sNodes.get(i);
+            }
+        }
+        String[] queries = {
+            "//*[@resource-id='" + id + "']",
+            "//android.widget.TextView[@text='" + text + "']",
+            "//*[@text='" + text + "']/..",
+            "//*[contains(@text,'" + text.substring(2, 6) + "')]",
+            "//*[starts-with(@resource-id,'com.example:id/v12')]",
+            "//android.widget.Button[@clickable='true' and contains(@resource-id,'v1')]",
+            "//android.widget.Button",
+            "//android.widget.FrameLayout[1]",
+            "//android.widget.FrameLayout/android.widget.Button[2]",
+            "//android.widget.LinearLayout[last()]",
+            "//*[@resource-id='" + id + "']/following-sibling::*",
+            "//*[@resource-id='" + id + "']/preceding-sibling::*[1]",
+            "//*[@resource-id='" + id + "']/ancestor::*[2]",
+            "//*[@text='" + text + "']/ancestor-or-self::android.widget.LinearLayout",
+            "//*[@resource-id='" + id + "']//android.widget.TextView",
+            "//*[count(*) > 2]",
+            "//*[not(@text='')][position() mod 50 = 1]",
+            "//*[@index=2 and @selected='false']",
+            "(//android.widget.ImageView)[7]",
+            "//android.widget.ImageView | //android.widget.TextView[@enabled='true']",
+            "//*[translate(@text,'ABCDEFGHIJKLMNOPQRSTUVWXYZ','abcdefghijklmnopqrstuvwxyz')='"
+                    + text.toLowerCase(Locale.US) + "']",
+            "//*[string-length(@text) > 11][1]",
+            "//*[@bounds='" + node.getAttribute("bounds") + "']",
+            "//*[@text='" + text + "']/following::*[3]",
+            "//*[@text='" + text + "']/preceding::android.widget.Button[1]",
+            "//android.widget.LinearLayout[.//android.widget.Button[@text='" + text + "']]",
+            "//*[@resource-id='nope']",
+            "//*[@resource-id='" + id + "']/@text/..",
+            node.getXpath(),
+        };
+        XPathEvaluator indexed = new XPathEvaluator(sRoot, AttributeIndex.build(sRoot));
+        XPathEvaluator walking = new XPathEvaluator(sRoot, null);
+        XPath jdk = XPathFactory.newInstance().newXPath();
+        for (String query : queries) {
+            NodeList found = (NodeList) jdk.evaluate(query, sDocument, XPathConstants.NODESET);
+            List<BasicTreeNode> expected = new ArrayList<BasicTreeNode>();
+            for (int i = 0; i < found.getLength(); i++) {
+                Node item = found.item(i);
+                if (item instanceof Attr) {
+                    item = ((Attr) item).getOwnerElement();
+                }
+                BasicTreeNode mirrored = sMirrored.get(item);
+                if (mirrored != null && (expected.isEmpty()
+                        || expected.get(expected.size() - 1) != mirrored)) {
+                    expected.add(mirrored);
+                }
+            }
+            assertEquals(query, expected, indexed.evaluate(query));
+            assertEquals(query, expected, walking.evaluate(query));
+        }
+    }
+
+    @Test
+    public void testXpathSelectsNode() {
+        XPathEvaluator evaluator = new XPathEvaluator(sRoot, AttributeIndex.build(sRoot));
+        for (int i = 0; i < sNodes.size(); i += 7) {
+            UiNode node = sNodes.get(i);
+            assertTrue(node.getXpath(), evaluator.evaluate(node.getXpath()).contains(node));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidExpression() {
+        XPathEvaluator.compile("//*[@text='");
+    }
+}